@@ -1,9 +1,11 @@
 package io.openaristos.dominus;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.RangeSet;
 import com.google.common.collect.Sets;
-import com.google.common.collect.TreeRangeSet;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -13,20 +15,36 @@ import io.openaristos.dominus.core.graph.KnowledgeEdge;
 import io.openaristos.dominus.core.graph.KnowledgeGraph;
 import io.openaristos.dominus.core.graph.KnowledgeNode;
 import io.openaristos.dominus.core.graph.internal.janus.JanusKnowledgeGraph;
+import io.openaristos.dominus.core.internal.BulkLoader;
+import io.openaristos.dominus.core.internal.Checkpointer;
+import io.openaristos.dominus.core.internal.DeprecationLineage;
+import io.openaristos.dominus.core.internal.HeapSnapshotStore;
+import io.openaristos.dominus.core.internal.LayeredSnapshotStore;
 import io.openaristos.dominus.core.internal.LocalMemoryEntityUniverse;
+import io.openaristos.dominus.core.internal.MemoryUsage;
+import io.openaristos.dominus.core.internal.OffHeapSnapshotStore;
+import io.openaristos.dominus.core.internal.SnapshotStore;
+import io.openaristos.dominus.core.internal.UnionFindEntityUniverse;
+import io.openaristos.dominus.core.internal.WriteAheadLog;
 import io.openaristos.dominus.core.subscribers.ExternalSubscriber;
 import io.openaristos.dominus.core.subscribers.SubscribersFactory;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +52,7 @@ public class DominusApplication {
 
   public static final Map<String, EntityUniverse> universeMap = Maps.newConcurrentMap();
   public static final Map<String, EntityType> entityTypeMap = Maps.newConcurrentMap();
+  public static final Map<String, EntityModel> entityModelMap = Maps.newConcurrentMap();
   public static final AtomicLong SEQUENCE_ID = new AtomicLong(0);
   private static final Logger LOG = LoggerFactory.getLogger(DominusApplication.class);
 
@@ -41,6 +60,17 @@ public class DominusApplication {
   private final Properties properties;
   private final JanusKnowledgeGraph knowledgeGraph;
   private Server server;
+  private DominusImpl service;
+
+  // Writes checkpoints of the universes, null if checkpoints are not configured
+  private Checkpointer checkpointer;
+  private ScheduledExecutorService checkpointScheduler;
+
+  // Logs every append made between checkpoints, null if the log is not configured
+  private WriteAheadLog writeAheadLog;
+
+  // Resolves independent groups of dirty identities in parallel, null to resolve in sequence
+  private ForkJoinPool resolutionPool;
 
   public DominusApplication(Properties properties) {
     // Load configuration properties into Dominus
@@ -84,6 +114,20 @@ public class DominusApplication {
 
   // Responsible for starting Dominus
   private void start() throws IOException {
+    // Restores the universes of the last checkpoint, before anything appends to them
+    checkpointer = newCheckpointer();
+
+    final Map<String, Long> logPositions = restoreCheckpoint();
+
+    // Replays the appends logged after the checkpoint, before new appends are logged
+    writeAheadLog = newWriteAheadLog();
+
+    if (writeAheadLog != null) {
+      replayWriteAheadLog(logPositions);
+    }
+
+    final boolean restored = !entityTypeMap.isEmpty();
+
     // Adds all subscriptions from configuration
     subscriberList.addAll(SubscribersFactory.createFromProperties(properties));
 
@@ -92,7 +136,8 @@ public class DominusApplication {
     } else {
       subscriberList.forEach(
           externalSubscriber ->
-              externalSubscriber.setup(entityTypeMap, universeMap, knowledgeGraph));
+              externalSubscriber.setup(
+                  entityTypeMap, universeMap, knowledgeGraph, writeAheadLog));
 
       subscriberList.forEach(
           externalSubscriber ->
@@ -102,15 +147,30 @@ public class DominusApplication {
     // Sets the port number that Dominus operates using
     final int port = Integer.parseInt(properties.getProperty("server.bind.port", "50051"));
 
+    service =
+        new DominusImpl(
+            entityTypeMap,
+            universeMap,
+            knowledgeGraph,
+            subscriberList,
+            this::newEntityUniverse,
+            newBulkLoader(),
+            entityModelMap,
+            checkpointer,
+            writeAheadLog);
+
     // Starts the service using defined parameters
-    server =
-        ServerBuilder.forPort(port)
-            .addService(new DominusImpl(entityTypeMap, universeMap, knowledgeGraph, subscriberList))
-            .build()
-            .start();
+    server = ServerBuilder.forPort(port).addService(service).build().start();
 
     LOG.info("Started Dominus gRPC server on port `{}`", port);
 
+    // restored entity models are never appended again, so subscribers start right away
+    if (restored) {
+      subscriberList.forEach(ExternalSubscriber::start);
+    }
+
+    scheduleCheckpoints();
+
     Runtime.getRuntime()
         .addShutdownHook(
             new Thread(
@@ -123,6 +183,222 @@ public class DominusApplication {
                 }));
   }
 
+  // Creates the universe of an entity type with the clustering configured for this server
+  private EntityUniverse newEntityUniverse(EntityType entityType) {
+    final String clustering = properties.getProperty("universe.clustering", "recluster");
+
+    switch (clustering) {
+      case "recluster":
+        return LocalMemoryEntityUniverse.of(
+            entityType,
+            LocalMemoryEntityUniverse.Reclustering.FULL,
+            newSnapshotStore(entityType),
+            getResolutionPool());
+      case "delta":
+        return LocalMemoryEntityUniverse.of(
+            entityType,
+            LocalMemoryEntityUniverse.Reclustering.DELTA,
+            newSnapshotStore(entityType),
+            getResolutionPool());
+      case "union_find":
+        return UnionFindEntityUniverse.of(entityType);
+      default:
+        throw new IllegalArgumentException("unknown universe clustering " + clustering);
+    }
+  }
+
+  // Returns the pool every universe resolves in, created on first use with the configured
+  // parallelism, or null if resolutions run in sequence
+  private synchronized ForkJoinPool getResolutionPool() {
+    final int parallelism =
+        Integer.parseInt(properties.getProperty("universe.resolution.parallelism", "0"));
+
+    if (resolutionPool == null && parallelism > 0) {
+      resolutionPool = new ForkJoinPool(parallelism);
+    }
+
+    return resolutionPool;
+  }
+
+  // Creates the store of identity snapshots configured for this server
+  private SnapshotStore newSnapshotStore(EntityType entityType) {
+    final String storage = properties.getProperty("universe.snapshots", "heap");
+    final long hotSetSize =
+        Long.parseLong(properties.getProperty("universe.snapshots.hot", "100000"));
+
+    switch (storage) {
+      case "heap":
+        return new HeapSnapshotStore();
+      case "direct":
+        return OffHeapSnapshotStore.direct(hotSetSize);
+      case "mapped":
+        try {
+          return OffHeapSnapshotStore.mapped(
+              new File(properties.getProperty("universe.snapshots.directory")),
+              entityType.getName(),
+              hotSetSize);
+        } catch (IOException ex) {
+          throw new IllegalStateException("failed to map snapshots of " + entityType, ex);
+        }
+      case "layered":
+        try {
+          return LayeredSnapshotStore.of(
+              new File(properties.getProperty("universe.snapshots.directory")),
+              entityType.getName(),
+              Integer.parseInt(properties.getProperty("universe.snapshots.merge", "100000")),
+              hotSetSize);
+        } catch (IOException ex) {
+          throw new IllegalStateException("failed to map snapshots of " + entityType, ex);
+        }
+      default:
+        throw new IllegalArgumentException("unknown snapshot storage " + storage);
+    }
+  }
+
+  // Creates the writer of checkpoints, or returns null if no checkpoint directory is configured
+  private Checkpointer newCheckpointer() {
+    final String directory = properties.getProperty("checkpoint.directory");
+
+    return directory == null
+        ? null
+        : new Checkpointer(
+            new File(directory),
+            ForkJoinPool.commonPool(),
+            Integer.parseInt(properties.getProperty("checkpoint.compact.after", "8")));
+  }
+
+  // Restores every universe of the last checkpoint, returns the position of the write-ahead log
+  // each restored universe holds every record up to
+  private Map<String, Long> restoreCheckpoint() throws IOException {
+    if (checkpointer == null) {
+      return Maps.newHashMap();
+    }
+
+    final Checkpointer.Restored restored =
+        checkpointer.load(this::restoreEntityType, this::newEntityUniverse);
+
+    entityTypeMap.putAll(restored.getEntityTypes());
+    universeMap.putAll(restored.getUniverses());
+    SEQUENCE_ID.accumulateAndGet(restored.getSequenceId(), Math::max);
+
+    // the graph learns every restored master entity at once rather than one append at a time
+    try {
+      knowledgeGraph.lock();
+
+      for (EntityUniverse universe : restored.getUniverses().values()) {
+        universe.getMasterEntities().forEach(x -> knowledgeGraph.append(KnowledgeNode.of(x)));
+      }
+    } finally {
+      knowledgeGraph.unlock();
+    }
+
+    LOG.info(
+        "restored {} universes at sequence id {}",
+        restored.getUniverses().size(),
+        restored.getSequenceId());
+
+    return restored.getLogPositions();
+  }
+
+  // Creates the write-ahead log, or returns null if no log directory is configured
+  private WriteAheadLog newWriteAheadLog() throws IOException {
+    final String directory = properties.getProperty("wal.directory");
+
+    return directory == null ? null : new WriteAheadLog(new File(directory));
+  }
+
+  // Appends again every record logged after the checkpoint of its universe
+  private void replayWriteAheadLog(Map<String, Long> logPositions) throws IOException {
+    final KnowledgeEngineFacade facade =
+        new KnowledgeEngineFacade(entityTypeMap, universeMap, knowledgeGraph);
+
+    writeAheadLog.replay(
+        logPositions,
+        entityTypeMap::get,
+        new WriteAheadLog.Replayer() {
+          @Override
+          public void entityModel(String entityType, byte[] model) {
+            if (entityTypeMap.containsKey(entityType)) {
+              return;
+            }
+
+            final EntityType restored = restoreEntityType(entityType, model);
+
+            entityTypeMap.put(entityType, restored);
+            universeMap.computeIfAbsent(entityType, x -> newEntityUniverse(restored));
+          }
+
+          @Override
+          public void entity(LocalMasterableEntity entity) {
+            facade.appendEntity(entity);
+          }
+
+          @Override
+          public void relationship(
+              LocalMasterableEntity source,
+              LocalMasterableEntity target,
+              String relationship,
+              RangeSet<Long> validDts) {
+            facade.appendRelationship(source, target, relationship, validDts);
+          }
+        });
+  }
+
+  // Reads an entity type back from the entity model it was checkpointed with
+  private EntityType restoreEntityType(String name, byte[] model) {
+    try {
+      final EntityModel entityModel = EntityModel.parseFrom(model);
+
+      entityModelMap.put(name, entityModel);
+
+      return EntityType.of(name, LocalEntityModel.of(entityModel));
+    } catch (InvalidProtocolBufferException ex) {
+      throw new IllegalStateException("invalid entity model checkpointed for " + name, ex);
+    }
+  }
+
+  // Writes a delta checkpoint of every universe at the configured interval
+  private void scheduleCheckpoints() {
+    final long interval =
+        Long.parseLong(properties.getProperty("checkpoint.interval.minutes", "15"));
+
+    if (checkpointer == null || interval <= 0) {
+      return;
+    }
+
+    checkpointScheduler = Executors.newSingleThreadScheduledExecutor();
+    checkpointScheduler.scheduleWithFixedDelay(
+        this::writeCheckpoint, interval, interval, TimeUnit.MINUTES);
+  }
+
+  // Writes a delta checkpoint of every universe, failures are logged so later checkpoints still run
+  private void writeCheckpoint() {
+    try {
+      final Checkpointer.Summary summary = service.writeCheckpoint(false);
+
+      LOG.info(
+          "wrote checkpoint of {} universes, {} bytes at sequence id {}",
+          summary.getUniverses(),
+          summary.getBytes(),
+          summary.getSequenceId());
+    } catch (IOException ex) {
+      LOG.error("failed to write checkpoint", ex);
+    }
+  }
+
+  // Creates the loader of offline bulk loads, spilling its sort runs to the configured directory
+  private BulkLoader newBulkLoader() {
+    return new BulkLoader(
+        entityTypeMap,
+        universeMap,
+        this::newEntityUniverse,
+        ForkJoinPool.commonPool(),
+        new File(
+            properties.getProperty(
+                "bulkload.spill.directory", System.getProperty("java.io.tmpdir"))),
+        Integer.parseInt(properties.getProperty("bulkload.run.size", "16777216")));
+  }
+
   private void blockUntilShutdown() throws InterruptedException {
     if (server != null) {
       server.awaitTermination();
@@ -133,6 +409,16 @@ public class DominusApplication {
     if (server != null) {
       server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
     }
+
+    if (checkpointScheduler != null) {
+      checkpointScheduler.shutdownNow();
+    }
+
+    // a final checkpoint, so the next start restores everything appended until now. The
+    // write-ahead log stays open, subscribers still log what they receive until the process exits
+    if (checkpointer != null && service != null) {
+      writeCheckpoint();
+    }
   }
 
   static class DominusImpl extends DominusGrpc.DominusImplBase {
@@ -141,16 +427,31 @@ public class DominusApplication {
     private final Map<String, EntityUniverse> universeMap;
     private final KnowledgeGraph knowledgeGraph;
     private final List<ExternalSubscriber> subscriberList;
+    private final Function<EntityType, EntityUniverse> universeFactory;
+    private final BulkLoader bulkLoader;
+    private final Map<String, EntityModel> entityModelMap;
+    private final Checkpointer checkpointer;
+    private final WriteAheadLog writeAheadLog;
 
     DominusImpl(
         Map<String, EntityType> entityTypeMap,
         Map<String, EntityUniverse> universeMap,
         KnowledgeGraph knowledgeGraph,
-        List<ExternalSubscriber> subscriberList) {
+        List<ExternalSubscriber> subscriberList,
+        Function<EntityType, EntityUniverse> universeFactory,
+        BulkLoader bulkLoader,
+        Map<String, EntityModel> entityModelMap,
+        Checkpointer checkpointer,
+        WriteAheadLog writeAheadLog) {
       this.entityTypeMap = entityTypeMap;
       this.universeMap = universeMap;
       this.knowledgeGraph = knowledgeGraph;
       this.subscriberList = subscriberList;
+      this.universeFactory = universeFactory;
+      this.bulkLoader = bulkLoader;
+      this.entityModelMap = entityModelMap;
+      this.checkpointer = checkpointer;
+      this.writeAheadLog = writeAheadLog;
     }
 
     @Override
@@ -164,9 +465,30 @@ public class DominusApplication {
         return;
       }
 
-      entityTypeMap.put(
-          request.getEntityType(),
-          EntityType.of(request.getEntityType(), LocalEntityModel.of(request)));
+      final WriteAheadLog.Entry entry =
+          writeAheadLog == null
+              ? null
+              : writeAheadLog.logEntityModel(request.getEntityType(), request.toByteArray());
+
+      try {
+        entityTypeMap.put(
+            request.getEntityType(),
+            EntityType.of(request.getEntityType(), LocalEntityModel.of(request)));
+
+        // checkpoints keep the model, so a restart restores the entity type with its universe
+        entityModelMap.put(request.getEntityType(), request);
+
+        // create the universe up front, so records read by subscribers use the configured
+        // clustering
+        universeMap.computeIfAbsent(
+            request.getEntityType(), x -> universeFactory.apply(entityTypeMap.get(x)));
+      } finally {
+        applied(entry);
+      }
+
+      if (!awaitDurable(entry, responseObserver)) {
+        return;
+      }
 
       responseObserver.onNext(EntityModelSummary.newBuilder().build());
       responseObserver.onCompleted();
@@ -193,14 +515,26 @@ public class DominusApplication {
       EntityUniverse entityUniverse =
           universeMap.getOrDefault(masterableEntity.getEntityType(), null);
       if (entityUniverse == null) {
-        entityUniverse = LocalMemoryEntityUniverse.of(entityType);
+        entityUniverse = universeFactory.apply(entityType);
         universeMap.put(masterableEntity.getEntityType(), entityUniverse);
       }
 
-      final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> results =
-          entityUniverse
-              .append(LocalMasterableEntity.of(entityType, masterableEntity))
-              .getMapping();
+      final LocalMasterableEntity entity = LocalMasterableEntity.of(entityType, masterableEntity);
+      final WriteAheadLog.Entry entry =
+          writeAheadLog == null ? null : writeAheadLog.logEntity(entity);
+
+      final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> results;
+
+      try {
+        results = entityUniverse.append(entity).getMapping();
+      } finally {
+        applied(entry);
+      }
+
+      // the sync of the record is shared with the records of concurrent callers
+      if (!awaitDurable(entry, responseObserver)) {
+        return;
+      }
 
       responseObserver.onNext(getEntityResolution(results));
       responseObserver.onCompleted();
@@ -216,10 +550,29 @@ public class DominusApplication {
       final EntityType srcEntityType = entityTypeMap.get(request.getSource().getEntityType());
       final EntityType tgtEntityType = entityTypeMap.get(request.getTarget().getEntityType());
 
-      final LocalMemoryEntityUniverse.AppendResult srcResolution =
-          srcUniverse.append(LocalMasterableEntity.of(srcEntityType, request.getSource()));
-      final LocalMemoryEntityUniverse.AppendResult tgtResolution =
-          tgtUniverse.append(LocalMasterableEntity.of(tgtEntityType, request.getTarget()));
+      final LocalMasterableEntity srcEntity =
+          LocalMasterableEntity.of(srcEntityType, request.getSource());
+      final LocalMasterableEntity tgtEntity =
+          LocalMasterableEntity.of(tgtEntityType, request.getTarget());
+
+      final WriteAheadLog.Entry entry =
+          writeAheadLog == null
+              ? null
+              : writeAheadLog.logRelationship(
+                  srcEntity,
+                  tgtEntity,
+                  request.getRelationship().getRelationship(),
+                  LongRangeSet.create());
+
+      final LocalMemoryEntityUniverse.AppendResult srcResolution;
+      final LocalMemoryEntityUniverse.AppendResult tgtResolution;
+
+      try {
+        srcResolution = srcUniverse.append(srcEntity);
+        tgtResolution = tgtUniverse.append(tgtEntity);
+      } finally {
+        applied(entry);
+      }
 
       if (srcResolution == null || tgtResolution == null) {
         responseObserver.onError(
@@ -230,6 +583,11 @@ public class DominusApplication {
         return;
       }
 
+      // the graph only sees durable appends, a crash before the sync leaves it untouched
+      if (!awaitDurable(entry, responseObserver)) {
+        return;
+      }
+
       srcResolution
           .getMapping()
           .forEach(
@@ -250,7 +608,7 @@ public class DominusApplication {
                                 tgtV,
                                 KnowledgeEdge.of(
                                     request.getRelationship().getRelationship(),
-                                    TreeRangeSet.create()));
+                                    LongRangeSet.create()));
                           }
                         });
               });
@@ -277,6 +635,35 @@ public class DominusApplication {
         return;
       }
 
+      // without descriptors the request lists the entity type, one page at a time
+      if (request.getDescriptorsCount() <= 0) {
+        final LocalMemoryEntityUniverse.MasterEntityPage page;
+
+        try {
+          page =
+              universe.getMasterEntities(
+                  request.getCursor(),
+                  request.getLimit() > 0 ? request.getLimit() : Integer.MAX_VALUE);
+        } catch (IllegalArgumentException ex) {
+          responseObserver.onError(ex);
+          return;
+        }
+
+        final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> listing =
+            Maps.newLinkedHashMap();
+        page.getMasterEntities().forEach(x -> listing.put(x, ImmutableSet.of()));
+
+        final EntityResolution.Builder builder = getEntityResolution(listing).toBuilder();
+
+        if (page.getNextCursor() != null) {
+          builder.setNextCursor(page.getNextCursor());
+        }
+
+        responseObserver.onNext(builder.build());
+        responseObserver.onCompleted();
+        return;
+      }
+
       final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution =
           universe.resolve(ResolveQuery.of(entityType, request));
 
@@ -294,6 +681,201 @@ public class DominusApplication {
       responseObserver.onCompleted();
     }
 
+    @Override
+    public void resolveLineage(
+        LineageRequest request, StreamObserver<LineageResponse> responseObserver) {
+      final EntityUniverse universe = universeMap.getOrDefault(request.getEntityType(), null);
+
+      if (universe == null) {
+        responseObserver.onError(new RuntimeException("invalid universe"));
+        responseObserver.onCompleted();
+        return;
+      }
+
+      final DeprecationLineage lineage = universe.getDeprecationLineage();
+      final LineageResponse.Builder builder = LineageResponse.newBuilder();
+
+      // a uid deprecated without any survivor has an empty current uid
+      for (String uid : request.getUidsList()) {
+        final String current = lineage.resolve(uid);
+
+        builder.addEntries(
+            LineageEntry.newBuilder()
+                .setUid(uid)
+                .setCurrentUid(current == null ? "" : current)
+                .setDeprecated(!uid.equals(current))
+                .build());
+      }
+
+      responseObserver.onNext(builder.build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void bulkLoad(
+        BulkLoadRequest request, StreamObserver<BulkLoadSummary> responseObserver) {
+      // loads are not logged, only a checkpoint keeps them once later appends are
+      if (writeAheadLog != null && checkpointer == null) {
+        responseObserver.onError(
+            new RuntimeException("bulk loads with a write-ahead log require checkpoints"));
+        return;
+      }
+
+      final List<File> files = Lists.newArrayList();
+      request.getPathsList().forEach(x -> files.add(new File(x)));
+
+      final BulkLoader.Summary summary;
+
+      try {
+        summary = bulkLoader.loadAvro(files);
+      } catch (IOException | IllegalArgumentException ex) {
+        LOG.error("failed to bulk load `{}`", request.getPathsList(), ex);
+        responseObserver.onError(ex);
+        return;
+      }
+
+      // a full checkpoint holds the load before any reply, so a crash never replays logged
+      // appends over a state without it, and the log drops the segments it holds
+      if (checkpointer != null) {
+        try {
+          writeCheckpoint(true);
+        } catch (IOException ex) {
+          LOG.error("failed to checkpoint bulk load `{}`", request.getPathsList(), ex);
+          responseObserver.onError(ex);
+          return;
+        }
+      }
+
+      // the graph learns every loaded master entity at once rather than one append at a time
+      try {
+        knowledgeGraph.lock();
+
+        summary
+            .getEntityTypes()
+            .forEach(
+                x ->
+                    universeMap
+                        .get(x)
+                        .getMasterEntities()
+                        .forEach(me -> knowledgeGraph.append(KnowledgeNode.of(me))));
+      } finally {
+        knowledgeGraph.unlock();
+      }
+
+      responseObserver.onNext(
+          BulkLoadSummary.newBuilder()
+              .setRecords(summary.getRecords())
+              .setRejected(summary.getRejected())
+              .setMasterEntities(summary.getMasterEntities())
+              .build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void checkpoint(
+        CheckpointRequest request, StreamObserver<CheckpointSummary> responseObserver) {
+      if (checkpointer == null) {
+        responseObserver.onError(new RuntimeException("checkpoints are not configured"));
+        return;
+      }
+
+      final Checkpointer.Summary summary;
+
+      try {
+        summary = writeCheckpoint(request.getFull());
+      } catch (IOException ex) {
+        LOG.error("failed to write checkpoint", ex);
+        responseObserver.onError(ex);
+        return;
+      }
+
+      responseObserver.onNext(
+          CheckpointSummary.newBuilder()
+              .setUniverses(summary.getUniverses())
+              .setBytes(summary.getBytes())
+              .setSequenceId(summary.getSequenceId())
+              .build());
+      responseObserver.onCompleted();
+    }
+
+    // Writes a checkpoint of every universe whose entity model is known, only what changed since
+    // the last one unless full. The write-ahead log then drops the segments the checkpoint holds.
+    Checkpointer.Summary writeCheckpoint(boolean full) throws IOException {
+      // read before any universe is written, so every record up to it is held by the checkpoint
+      final long logPosition = writeAheadLog == null ? 0 : writeAheadLog.getAppliedPosition();
+      final Map<String, EntityUniverse> universes =
+          Maps.filterKeys(universeMap, entityModelMap::containsKey);
+      final Function<String, byte[]> models = x -> entityModelMap.get(x).toByteArray();
+
+      final Checkpointer.Summary summary =
+          full
+              ? checkpointer.write(universes, models, SEQUENCE_ID::get, logPosition)
+              : checkpointer.writeDelta(universes, models, SEQUENCE_ID::get, logPosition);
+
+      if (writeAheadLog != null) {
+        writeAheadLog.truncate(summary.getLogPosition());
+      }
+
+      return summary;
+    }
+
+    private static void applied(WriteAheadLog.Entry entry) {
+      if (entry != null) {
+        entry.applied();
+      }
+    }
+
+    // Waits until the logged record is durable, the failure is reported to the observer otherwise
+    private static boolean awaitDurable(
+        WriteAheadLog.Entry entry, StreamObserver<?> responseObserver) {
+      if (entry == null) {
+        return true;
+      }
+
+      try {
+        entry.awaitDurable();
+        return true;
+      } catch (IOException ex) {
+        LOG.error("failed to log append", ex);
+        responseObserver.onError(ex);
+        return false;
+      }
+    }
+
+    @Override
+    public void describeMemory(
+        MemoryUsageRequest request, StreamObserver<MemoryUsageResponse> responseObserver) {
+      // no entity type asks for every universe
+      final Collection<String> entityTypes =
+          request.getEntityTypesCount() == 0 ? universeMap.keySet() : request.getEntityTypesList();
+
+      final MemoryUsageResponse.Builder builder = MemoryUsageResponse.newBuilder();
+
+      for (String entityType : entityTypes) {
+        final EntityUniverse universe = universeMap.getOrDefault(entityType, null);
+
+        if (universe == null) {
+          responseObserver.onError(new RuntimeException("invalid universe"));
+          responseObserver.onCompleted();
+          return;
+        }
+
+        final MemoryUsage usage = universe.getMemoryUsage();
+
+        builder.addUniverses(
+            UniverseMemoryUsage.newBuilder()
+                .setEntityType(usage.getEntityType())
+                .putAllStructures(usage.getBytesByStructure())
+                .setHeapBytes(usage.getHeapBytes())
+                .setOffHeapBytes(usage.getOffHeapBytes())
+                .setDeduplicatedBytes(usage.getDeduplicatedBytes())
+                .build());
+      }
+
+      responseObserver.onNext(builder.build());
+      responseObserver.onCompleted();
+    }
+
     private EntityResolution getEntityResolution(
         final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> results) {
       final EntityResolution.Builder builder = EntityResolution.newBuilder();
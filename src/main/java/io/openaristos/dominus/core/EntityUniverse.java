@@ -1,12 +1,28 @@
 package io.openaristos.dominus.core;
 
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import io.openaristos.dominus.core.internal.DeprecationLineage;
 import io.openaristos.dominus.core.internal.LocalMemoryEntityUniverse;
+import io.openaristos.dominus.core.internal.MemoryUsage;
+import io.openaristos.dominus.core.internal.ResolveCache;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 
 public interface EntityUniverse {
   LocalMemoryEntityUniverse.AppendResult append(LocalMasterableEntity masterableEntity);
+  LocalMemoryEntityUniverse.BatchAppendResult appendAll(
+      Collection<LocalMasterableEntity> masterableEntities);
   Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolve(ResolveQuery resolveQuery);
   Set<LocalMasterEntity> getMasterEntities();
+  LocalMemoryEntityUniverse.MasterEntityPage getMasterEntities(String cursor, int limit);
+  ResolveCache.Stats getResolveCacheStats();
+  DeprecationLineage getDeprecationLineage();
+  MemoryUsage getMemoryUsage();
+  void writeCheckpoint(Output output);
+  void writeCheckpointDelta(Output output);
+  void commitCheckpoint();
+  void readCheckpoint(Input input);
 }
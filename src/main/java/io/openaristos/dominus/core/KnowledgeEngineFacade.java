@@ -2,16 +2,17 @@ package io.openaristos.dominus.core;
 
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import io.openaristos.dominus.core.graph.KnowledgeEdge;
 import io.openaristos.dominus.core.graph.KnowledgeGraph;
 import io.openaristos.dominus.core.graph.KnowledgeNode;
 import io.openaristos.dominus.core.internal.LocalMemoryEntityUniverse;
+import io.openaristos.dominus.core.internal.WriteAheadLog;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Map;
 
 public class KnowledgeEngineFacade {
@@ -20,17 +21,29 @@ public class KnowledgeEngineFacade {
   private final Map<String, EntityType> entityTypeMap;
   private final Map<String, EntityUniverse> universeMap;
   private final KnowledgeGraph knowledgeGraph;
+  private final WriteAheadLog writeAheadLog;
 
   public KnowledgeEngineFacade(
       Map<String, EntityType> entityTypeMap,
       Map<String, EntityUniverse> universeMap,
       KnowledgeGraph knowledgeGraph) {
+    this(entityTypeMap, universeMap, knowledgeGraph, null);
+  }
+
+  // Records are logged to the write-ahead log before they are appended, unless it is null
+  public KnowledgeEngineFacade(
+      Map<String, EntityType> entityTypeMap,
+      Map<String, EntityUniverse> universeMap,
+      KnowledgeGraph knowledgeGraph,
+      WriteAheadLog writeAheadLog) {
     this.entityTypeMap = entityTypeMap;
     this.universeMap = universeMap;
     this.knowledgeGraph = knowledgeGraph;
+    this.writeAheadLog = writeAheadLog;
   }
 
-  public void acceptEntityAvroRecord(GenericRecord record) {
+  // Appends the entity of the record, returns once the record is durable in the write-ahead log
+  public void acceptEntityAvroRecord(GenericRecord record) throws IOException {
     final LocalMasterableEntity entity = getMasterableEntity(record);
 
     if (entity == null) {
@@ -39,9 +52,58 @@ public class KnowledgeEngineFacade {
       return;
     }
 
-    final EntityUniverse universe = universeMap.get(entity.getType().getName());
-    final LocalMemoryEntityUniverse.AppendResult resolution = universe.append(entity);
+    acceptEntity(entity);
+  }
+
+  // Appends the entity, returns once it is durable in the write-ahead log
+  private void acceptEntity(LocalMasterableEntity entity) throws IOException {
+    final WriteAheadLog.Entry entry =
+        writeAheadLog == null ? null : writeAheadLog.logEntity(entity);
+
+    final LocalMemoryEntityUniverse.AppendResult resolution;
+
+    try {
+      resolution = resolveEntity(entity);
+    } finally {
+      if (entry != null) {
+        entry.applied();
+      }
+    }
+
+    // the sync of the record is shared with the records of concurrent callers, the graph only
+    // sees the append once it is durable
+    if (entry != null) {
+      entry.awaitDurable();
+    }
+
+    publishEntity(resolution);
+  }
+
+  // Appends the entity without logging it, as the write-ahead log does when replayed
+  public void appendEntity(LocalMasterableEntity entity) {
+    publishEntity(resolveEntity(entity));
+  }
+
+  // Appends the entity to its universe
+  private LocalMemoryEntityUniverse.AppendResult resolveEntity(LocalMasterableEntity entity) {
+    return getUniverse(entity.getType()).append(entity);
+  }
+
+  // Returns the universe of the entity type, created with the configured clustering as the type
+  // was registered
+  private EntityUniverse getUniverse(EntityType entityType) {
+    final EntityUniverse universe = universeMap.get(entityType.getName());
+
+    if (universe == null) {
+      throw new IllegalStateException(
+          "no universe was created for entity type `" + entityType.getName() + "`");
+    }
+
+    return universe;
+  }
 
+  // Publishes the master entities and deprecations of the append to the knowledge graph
+  private void publishEntity(LocalMemoryEntityUniverse.AppendResult resolution) {
     if (resolution == null || resolution.getMapping() == null) {
       LOG.error("entity could not be resolved");
       return;
@@ -87,14 +149,15 @@ public class KnowledgeEngineFacade {
 
     final EntityType entityType = entityTypeMap.get(entityTypeCode);
 
-    if (!universeMap.containsKey(entityTypeCode)) {
-      universeMap.put(entityTypeCode, new LocalMemoryEntityUniverse(entityType));
-    }
+    // entity types are only registered together with their universe
+    getUniverse(entityType);
 
     return LocalMasterableEntity.of(entityType, record);
   }
 
-  public void acceptRelationshipAvroRecord(GenericRecord record) {
+  // Appends the relationship of the record, returns once the record is durable in the
+  // write-ahead log
+  public void acceptRelationshipAvroRecord(GenericRecord record) throws IOException {
     final LocalMasterableEntity srcEntity =
         getMasterableEntity((GenericRecord) record.get("sourceEntity"));
     final LocalMasterableEntity tgtEntity =
@@ -105,12 +168,73 @@ public class KnowledgeEngineFacade {
       return;
     }
 
-    final EntityUniverse srcUniverse = universeMap.get(srcEntity.getType().getName());
-    final EntityUniverse tgtUniverse = universeMap.get(tgtEntity.getType().getName());
+    final GenericData.Array array = (GenericData.Array) record.get("effectiveDating");
+
+    // both entities are still appended, only the relationship without temporality is dropped
+    if (array.size() <= 0) {
+      LOG.error("relationship missing temporality");
+
+      acceptEntity(srcEntity);
+      acceptEntity(tgtEntity);
+      return;
+    }
+
+    final RangeSet<Long> validDts = LongRangeSet.create();
+
+    array.forEach(
+        k -> {
+          final GenericData.Record r = (GenericData.Record) k;
+          validDts.add(Range.open((Long) r.get("key"), (Long) r.get("value")));
+        });
+
+    final String relationship = record.get("relationshipType").toString();
+
+    final WriteAheadLog.Entry entry =
+        writeAheadLog == null
+            ? null
+            : writeAheadLog.logRelationship(srcEntity, tgtEntity, relationship, validDts);
+
+    final LocalMemoryEntityUniverse.AppendResult srcResolution;
+    final LocalMemoryEntityUniverse.AppendResult tgtResolution;
+
+    try {
+      srcResolution = getUniverse(srcEntity.getType()).append(srcEntity);
+      tgtResolution = getUniverse(tgtEntity.getType()).append(tgtEntity);
+    } finally {
+      if (entry != null) {
+        entry.applied();
+      }
+    }
+
+    // the graph only sees the relationship once it is durable
+    if (entry != null) {
+      entry.awaitDurable();
+    }
+
+    publishRelationship(srcResolution, tgtResolution, relationship, validDts);
+  }
 
-    final LocalMemoryEntityUniverse.AppendResult srcResolution = srcUniverse.append(srcEntity);
-    final LocalMemoryEntityUniverse.AppendResult tgtResolution = tgtUniverse.append(tgtEntity);
+  // Appends the relationship without logging it, as the write-ahead log does when replayed
+  public void appendRelationship(
+      LocalMasterableEntity srcEntity,
+      LocalMasterableEntity tgtEntity,
+      String relationship,
+      RangeSet<Long> validDts) {
+
+    publishRelationship(
+        getUniverse(srcEntity.getType()).append(srcEntity),
+        getUniverse(tgtEntity.getType()).append(tgtEntity),
+        relationship,
+        validDts);
+  }
 
+  // Publishes the master entities, the relationship between them and the deprecations of both
+  // appends to the knowledge graph
+  private void publishRelationship(
+      LocalMemoryEntityUniverse.AppendResult srcResolution,
+      LocalMemoryEntityUniverse.AppendResult tgtResolution,
+      String relationship,
+      RangeSet<Long> validDts) {
     if (srcResolution == null
         || tgtResolution == null
         || srcResolution.getMapping() == null
@@ -141,25 +265,8 @@ public class KnowledgeEngineFacade {
 
                               knowledgeGraph.append(tgtV);
 
-                              final RangeSet<Long> tr = TreeRangeSet.create();
-
-                              final GenericData.Array array =
-                                  (GenericData.Array) record.get("effectiveDating");
-
-                              if (array.size() <= 0) {
-                                throw new RuntimeException("entity missing temporality");
-                              }
-
-                              array.forEach(
-                                  k -> {
-                                    final GenericData.Record r = (GenericData.Record) k;
-                                    tr.add(Range.open((Long) r.get("key"), (Long) r.get("value")));
-                                  });
-
                               knowledgeGraph.relate(
-                                  srcV,
-                                  tgtV,
-                                  KnowledgeEdge.of(record.get("relationshipType").toString(), tr));
+                                  srcV, tgtV, KnowledgeEdge.of(relationship, validDts));
 
                             } catch (Exception ex) {
                               LOG.error("failed to handle resolution", ex);
@@ -5,17 +5,26 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import io.openaristos.dominus.EntityModel;
 import lombok.EqualsAndHashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 // An entity model helps disambiguate manifestations of real world entities
 @EqualsAndHashCode
 public class LocalEntityModel {
+  private static final Logger LOG = LoggerFactory.getLogger(LocalEntityModel.class);
+
   public static Matcher EQUALITY_MATCHER =
       Matcher.of(
           "equality",
           matchingContext -> matchingContext.getSource().equalsIgnoreCase(matchingContext.target));
+  public static Normalizer IDENTITY_NORMALIZER = Normalizer.of("identity", value -> value);
   private final Set<Attribute> attributes;
   private final TreeSet<Resolver> resolvers;
   private final Map<String, Attribute> attributeByName;
@@ -33,8 +42,9 @@ public class LocalEntityModel {
   }
 
   public static LocalEntityModel of(EntityModel request) {
-    return LocalEntityModel.of(
-        mapAttributes(request.getAttributesList()), mapResolvers(request.getResolversList()));
+    final Set<Attribute> attributes = mapAttributes(request.getAttributesList());
+
+    return LocalEntityModel.of(attributes, mapResolvers(request.getResolversList(), attributes));
   }
 
   public static LocalEntityModel of(Set<Attribute> attributes, Set<Resolver> resolvers) {
@@ -46,18 +56,35 @@ public class LocalEntityModel {
     final Set<Attribute> attributes = Sets.newHashSet();
 
     attributesList.forEach(
-        x -> attributes.add(Attribute.of(x.getName(), AttributeType.STRING, EQUALITY_MATCHER)));
+        x ->
+            attributes.add(
+                Attribute.of(
+                    x.getName(),
+                    AttributeType.of(x.getType()),
+                    Matchers.of(x.getMatcher()),
+                    Normalizers.of(x.getNormalizer()))));
 
     return attributes;
   }
 
-  private static Set<Resolver> mapResolvers(List<io.openaristos.dominus.Resolver> resolversList) {
+  // Resolvers refer to the declared attributes by name, so they share their type, matcher and
+  // normalizer. An attribute only named by a resolver is mapped from the resolver's own entry.
+  private static Set<Resolver> mapResolvers(
+      List<io.openaristos.dominus.Resolver> resolversList, Set<Attribute> declared) {
+    final Map<String, Attribute> attributeByName = Maps.newHashMap();
     final Set<Resolver> resolvers = Sets.newHashSet();
 
+    declared.forEach(x -> attributeByName.put(x.getName(), x));
+
     resolversList.forEach(
-        x ->
-            resolvers.add(
-                Resolver.of(x.getName(), mapAttributes(x.getAttributesList()), x.getWeight())));
+        x -> {
+          final Set<Attribute> attributes = Sets.newHashSet();
+
+          mapAttributes(x.getAttributesList())
+              .forEach(y -> attributes.add(attributeByName.getOrDefault(y.getName(), y)));
+
+          resolvers.add(Resolver.of(x.getName(), attributes, x.getWeight()));
+        });
 
     return resolvers;
   }
@@ -75,11 +102,81 @@ public class LocalEntityModel {
   }
 
   // Attributes are assigned a single data type
+  // Typed values are stored under a canonical form, and compared through their numeric form
   public enum AttributeType {
     STRING,
     NUMERIC,
     DATE,
-    BOOLEAN
+    BOOLEAN;
+
+    // Parses the declared type of an attribute. Models used to declare any type and be read as
+    // strings, so an empty or unknown declaration is still a string.
+    public static AttributeType of(String declaration) {
+      if (declaration == null || declaration.trim().isEmpty()) {
+        return STRING;
+      }
+
+      try {
+        return valueOf(declaration.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException ex) {
+        LOG.warn("unknown attribute type `{}`, read as a string", declaration);
+        return STRING;
+      }
+    }
+
+    // Returns the canonical form of a value, so that equal values of this type are equal strings
+    public String canonical(String value) {
+      try {
+        switch (this) {
+          case NUMERIC:
+            return new BigDecimal(value.trim()).stripTrailingZeros().toPlainString();
+          case DATE:
+            return LocalDate.parse(value.trim()).toString();
+          case BOOLEAN:
+            return Boolean.toString(parseBoolean(value));
+          default:
+            return value;
+        }
+      } catch (NumberFormatException | DateTimeParseException ex) {
+        throw new IllegalArgumentException("invalid " + this + " value " + value, ex);
+      }
+    }
+
+    // Returns the value as a number ordered like values of this type, dates count days since the
+    // epoch, NaN if the value is not of this type
+    public double toNumber(String value) {
+      try {
+        switch (this) {
+          case DATE:
+            return LocalDate.parse(value.trim()).toEpochDay();
+          case BOOLEAN:
+            return parseBoolean(value) ? 1 : 0;
+          default:
+            return Double.parseDouble(value.trim());
+        }
+      } catch (IllegalArgumentException | DateTimeParseException ex) {
+        return Double.NaN;
+      }
+    }
+
+    private static boolean parseBoolean(String value) {
+      switch (value.trim().toLowerCase(Locale.ROOT)) {
+        case "true":
+        case "t":
+        case "yes":
+        case "y":
+        case "1":
+          return true;
+        case "false":
+        case "f":
+        case "no":
+        case "n":
+        case "0":
+          return false;
+        default:
+          throw new IllegalArgumentException("invalid BOOLEAN value " + value);
+      }
+    }
   }
 
   // Attributes are used to characterize an entity with small pieces of data
@@ -92,21 +189,38 @@ public class LocalEntityModel {
 
     @EqualsAndHashCode.Exclude private final Matcher matcher;
 
+    @EqualsAndHashCode.Exclude private final Normalizer normalizer;
+
     public Attribute(
         String name, AttributeType type, Map<String, String> context, Matcher matcher) {
+      this(name, type, context, matcher, IDENTITY_NORMALIZER);
+    }
+
+    public Attribute(
+        String name,
+        AttributeType type,
+        Map<String, String> context,
+        Matcher matcher,
+        Normalizer normalizer) {
       this.name = name;
       this.type = type;
       this.context = context;
       this.matcher = matcher;
+      this.normalizer = normalizer;
     }
 
     public static Attribute of(
         String name, AttributeType type, Map<String, String> context, Matcher matcher) {
-      return new Attribute(name, type, context, matcher);
+      return new Attribute(name, type, context, matcher, IDENTITY_NORMALIZER);
     }
 
     public static Attribute of(String name, AttributeType type, Matcher matcher) {
-      return new Attribute(name, type, ImmutableMap.of(), matcher);
+      return new Attribute(name, type, ImmutableMap.of(), matcher, IDENTITY_NORMALIZER);
+    }
+
+    public static Attribute of(
+        String name, AttributeType type, Matcher matcher, Normalizer normalizer) {
+      return new Attribute(name, type, ImmutableMap.of(), matcher, normalizer);
     }
 
     public String getName() {
@@ -124,6 +238,21 @@ public class LocalEntityModel {
     public Matcher getMatcher() {
       return matcher;
     }
+
+    public Normalizer getNormalizer() {
+      return normalizer;
+    }
+
+    // Returns the canonical key of a value of this attribute, the only form it is stored under
+    public String normalize(String value) {
+      if (value == null) {
+        return null;
+      }
+
+      final String normalized = normalizer == null ? value : normalizer.apply(value);
+
+      return type == null ? normalized : type.canonical(normalized);
+    }
   }
 
   // Resolvers combine one or more attributes together in order to uniquely identify an entity
@@ -198,20 +327,63 @@ public class LocalEntityModel {
     }
   }
 
+  // Blocking generates the keys values are indexed and probed under, values sharing no key are
+  // never compared by the matcher
+  public interface Blocking {
+    Collection<String> indexKeys(String value);
+
+    Collection<String> probeKeys(String value);
+  }
+
+  // Windows bound the numeric form of the values a matcher may accept, candidates are read from a
+  // sorted index of the attribute rather than from blocking keys
+  public interface Window {
+    double lower(double value);
+
+    double upper(double value);
+
+    // A coarse and monotone bucket of the value, every window spans only a few buckets
+    long bucket(double value);
+  }
+
   // The matchers are predicates, they compare attributes, and decide whether or not they are the same.
+  // Matchers without blocking nor window only ever compare identical values.
   @EqualsAndHashCode
   public static class Matcher {
 
     private final String name;
     private final Predicate<MatchingContext> predicate;
 
+    @EqualsAndHashCode.Exclude private final Blocking blocking;
+
+    @EqualsAndHashCode.Exclude private final Window window;
+
     public Matcher(String name, Predicate<MatchingContext> predicate) {
+      this(name, predicate, null, null);
+    }
+
+    public Matcher(String name, Predicate<MatchingContext> predicate, Blocking blocking) {
+      this(name, predicate, blocking, null);
+    }
+
+    public Matcher(
+        String name, Predicate<MatchingContext> predicate, Blocking blocking, Window window) {
       this.name = name;
       this.predicate = predicate;
+      this.blocking = blocking;
+      this.window = window;
     }
 
     public static Matcher of(String name, Predicate<MatchingContext> predicate) {
-      return new Matcher(name, predicate);
+      return new Matcher(name, predicate, null, null);
+    }
+
+    public static Matcher of(String name, Predicate<MatchingContext> predicate, Blocking blocking) {
+      return new Matcher(name, predicate, blocking, null);
+    }
+
+    public static Matcher of(String name, Predicate<MatchingContext> predicate, Window window) {
+      return new Matcher(name, predicate, null, window);
     }
 
     public String getName() {
@@ -221,5 +393,47 @@ public class LocalEntityModel {
     public Predicate<MatchingContext> getPredicate() {
       return predicate;
     }
+
+    public Blocking getBlocking() {
+      return blocking;
+    }
+
+    public Window getWindow() {
+      return window;
+    }
+
+    public boolean isExact() {
+      return blocking == null && window == null;
+    }
+  }
+
+  // Normalizers rewrite attribute values into canonical keys, values sharing a key are the same
+  @EqualsAndHashCode
+  public static class Normalizer {
+
+    private final String name;
+    private final UnaryOperator<String> function;
+
+    public Normalizer(String name, UnaryOperator<String> function) {
+      this.name = name;
+      this.function = function;
+    }
+
+    public static Normalizer of(String name, UnaryOperator<String> function) {
+      return new Normalizer(name, function);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String apply(String value) {
+      return function.apply(value);
+    }
+
+    // Returns a normalizer applying this one and then the next
+    public Normalizer andThen(Normalizer next) {
+      return of(name + "," + next.name, value -> next.apply(apply(value)));
+    }
   }
 }
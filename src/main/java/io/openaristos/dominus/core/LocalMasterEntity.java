@@ -3,11 +3,10 @@ package io.openaristos.dominus.core;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.RangeSet;
-import com.google.common.collect.Sets;
 import lombok.EqualsAndHashCode;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 @EqualsAndHashCode
 public class LocalMasterEntity {
@@ -15,35 +14,46 @@ public class LocalMasterEntity {
   private final String uid;
   private final String entityTypeCode;
 
+  // Dense position of this master entity within its universe
+  @EqualsAndHashCode.Exclude private final int ordinal;
+
   @EqualsAndHashCode.Exclude
   private final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors;
 
   @EqualsAndHashCode.Exclude
   private final Map<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>> identities;
 
+  // Incremented whenever the descriptors gain an attribute or a value
+  @EqualsAndHashCode.Exclude private final AtomicLong version = new AtomicLong(0);
+
   public LocalMasterEntity(
+      int ordinal,
       String entityTypeCode,
       Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors) {
-    this.entityTypeCode = entityTypeCode;
-
-    final Set<String> canonicalComponents = Sets.newTreeSet(String::compareTo);
-
-    descriptors.forEach(
-        (x, y) -> {
-          canonicalComponents.add(x.getName());
-          canonicalComponents.addAll(y.keySet());
-        });
-
-    this.uid = UUID.randomUUID().toString();
+    this(UUID.randomUUID().toString(), ordinal, entityTypeCode, descriptors);
+  }
 
+  // Restores a master entity under the uid it was created with
+  public LocalMasterEntity(
+      String uid,
+      int ordinal,
+      String entityTypeCode,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors) {
+    this.ordinal = ordinal;
+    this.entityTypeCode = entityTypeCode;
+    this.uid = uid;
     this.descriptors = descriptors;
-    this.identities = Maps.newHashMap();
+    this.identities = Maps.newConcurrentMap();
   }
 
   public String getUid() {
     return uid;
   }
 
+  public int getOrdinal() {
+    return ordinal;
+  }
+
   public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> getDescriptors() {
     return descriptors;
   }
@@ -62,16 +72,12 @@ public class LocalMasterEntity {
     return String.join(",", parts);
   }
 
-  public int state() {
-    while (true) {
-      try {
-      return this.getDescriptors().keySet().stream()
-          .map(LocalEntityModel.Attribute::getName)
-          .collect(Collectors.toSet())
-          .hashCode();
-      } catch(ConcurrentModificationException ignored) {
-      }
-    }
+  public long getVersion() {
+    return version.get();
+  }
+
+  public void markModified() {
+    version.incrementAndGet();
   }
 
   public String getEntityTypeCode() {
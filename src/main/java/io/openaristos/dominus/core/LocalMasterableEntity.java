@@ -11,6 +11,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 @EqualsAndHashCode
@@ -46,7 +47,7 @@ public class LocalMasterableEntity {
       if (!descriptors.containsKey(localMasterableEntityDescriptor)) {
         descriptors.put(
             localMasterableEntityDescriptor,
-            TreeRangeSet.create(ImmutableList.of(Range.open(Long.MIN_VALUE, Long.MAX_VALUE))));
+            LongRangeSet.create(ImmutableList.of(Range.open(Long.MIN_VALUE, Long.MAX_VALUE))));
       }
 
       for (TimestampRange current : descriptor.getRangesList()) {
@@ -56,7 +57,7 @@ public class LocalMasterableEntity {
       }
     }
 
-    return new LocalMasterableEntity(
+    return LocalMasterableEntity.of(
         type,
         LocalMasterableEntityIdentity.of(
             masterableEntity.getIdentity().getUid(),
@@ -106,7 +107,7 @@ public class LocalMasterableEntity {
               entityDescriptor.get("value").toString());
 
       if (!entityDescriptors.containsKey(key)) {
-        entityDescriptors.put(key, TreeRangeSet.create());
+        entityDescriptors.put(key, LongRangeSet.create());
       }
 
       final GenericData.Array array =
@@ -131,7 +132,56 @@ public class LocalMasterableEntity {
       EntityType type,
       LocalMasterableEntityIdentity masterableEntityIdentity,
       Map<LocalMasterableEntityDescriptor, RangeSet<Long>> descriptors) {
-    return new LocalMasterableEntity(type, masterableEntityIdentity, descriptors);
+    return new LocalMasterableEntity(type, masterableEntityIdentity, normalize(descriptors));
+  }
+
+  // Replaces every descriptor value by the canonical key of its attribute, values sharing a key
+  // have their effective dating merged. Every value is normalized once, and the map is kept as it
+  // is when all of them already are canonical.
+  private static Map<LocalMasterableEntityDescriptor, RangeSet<Long>> normalize(
+      Map<LocalMasterableEntityDescriptor, RangeSet<Long>> descriptors) {
+    Map<LocalMasterableEntityDescriptor, RangeSet<Long>> canonical = null;
+    int visited = 0;
+
+    for (Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>> entry :
+        descriptors.entrySet()) {
+      final LocalMasterableEntityDescriptor descriptor = entry.getKey();
+      final String value =
+          descriptor.getKey() == null
+              ? descriptor.getValue()
+              : descriptor.getKey().normalize(descriptor.getValue());
+
+      if (canonical == null && Objects.equals(value, descriptor.getValue())) {
+        ++visited;
+        continue;
+      }
+
+      if (canonical == null) {
+        canonical = Maps.newHashMap();
+
+        // the descriptors visited so far are canonical already
+        for (Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>> previous :
+            Iterables.limit(descriptors.entrySet(), visited)) {
+          canonical.put(previous.getKey(), previous.getValue());
+        }
+      }
+
+      final LocalMasterableEntityDescriptor key =
+          Objects.equals(value, descriptor.getValue())
+              ? descriptor
+              : LocalMasterableEntityDescriptor.of(descriptor.getKey(), value);
+      final RangeSet<Long> existing = canonical.get(key);
+
+      if (existing == null) {
+        canonical.put(key, entry.getValue());
+      } else {
+        final RangeSet<Long> merged = LongRangeSet.create(existing);
+        merged.addAll(entry.getValue());
+        canonical.put(key, merged);
+      }
+    }
+
+    return canonical == null ? descriptors : canonical;
   }
 
   public EntityType getType() {
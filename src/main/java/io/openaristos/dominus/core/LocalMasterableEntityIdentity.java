@@ -40,9 +40,11 @@ public class LocalMasterableEntityIdentity {
                 .containsKey(x.getKey().getName())) {
               throw new RuntimeException("invalid key");
             }
-            descriptorMap.put(
-                entityType.getLocalEntityModel().getAttributeByName().get(x.getKey().getName()),
-                x.getValue());
+            final LocalEntityModel.Attribute attribute =
+                entityType.getLocalEntityModel().getAttributeByName().get(x.getKey().getName());
+
+            // indexed and probed like any other value, under its canonical key
+            descriptorMap.put(attribute, attribute.normalize(x.getValue()));
           });
     }
   }
@@ -85,6 +87,7 @@ public class LocalMasterableEntityIdentity {
     return masterableEntityDescriptors;
   }
 
+  // Canonical key of every descriptor, the descriptors themselves keep the values as given
   public Map<LocalEntityModel.Attribute, String> getDescriptorMap() {
     return descriptorMap;
   }
@@ -0,0 +1,660 @@
+package io.openaristos.dominus.core;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// A set of disjoint ranges of timestamps backed by sorted primitive endpoints.
+//
+// Every range is stored as a pair of cuts, a cut being an endpoint value and whether it sits just
+// below or just above that value, so open and closed bounds behave exactly as in TreeRangeSet.
+// Unbounded ranges are stored as ending at Long.MIN_VALUE or Long.MAX_VALUE. Writers must be
+// serialized by the caller, readers never block and always observe a consistent set of ranges.
+// Views returned by this class are snapshots rather than live views. Every mutation that changes
+// the set bumps a version, so callers can detect changes without comparing ranges.
+@SuppressWarnings("UnstableApiUsage")
+public final class LongRangeSet implements RangeSet<Long> {
+  private static final State EMPTY = new State(new long[0], new long[0], 0);
+
+  private volatile State state;
+
+  // Incremented after every effective change, written by the single writer only
+  private volatile long version;
+
+  private LongRangeSet(State state) {
+    this.state = state;
+  }
+
+  public static LongRangeSet create() {
+    return new LongRangeSet(EMPTY);
+  }
+
+  public static LongRangeSet create(RangeSet<Long> rangeSet) {
+    if (rangeSet instanceof LongRangeSet) {
+      return new LongRangeSet(((LongRangeSet) rangeSet).state.copy());
+    }
+
+    return new LongRangeSet(stateOf(rangeSet));
+  }
+
+  public static LongRangeSet create(Iterable<Range<Long>> ranges) {
+    final LongRangeSet result = create();
+
+    result.addAll(ranges);
+
+    return result;
+  }
+
+  // Returns a counter that increases every time the set changes
+  public long getVersion() {
+    return version;
+  }
+
+  // Returns true if both sets share at least one non-empty range, without allocating
+  public boolean overlaps(RangeSet<Long> other) {
+    if (other instanceof LongRangeSet) {
+      return overlaps(state, ((LongRangeSet) other).state);
+    }
+
+    for (Range<Long> range : other.asRanges()) {
+      if (intersects(range)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // Returns a new set holding the ranges present in both sets
+  public LongRangeSet intersection(RangeSet<Long> other) {
+    return new LongRangeSet(intersection(state, stateOf(other)));
+  }
+
+  // Returns a new set holding the ranges present in either set
+  public LongRangeSet union(RangeSet<Long> other) {
+    return new LongRangeSet(union(state, stateOf(other)));
+  }
+
+  @Override
+  public boolean contains(Long value) {
+    return rangeContaining(value) != null;
+  }
+
+  @Override
+  public Range<Long> rangeContaining(Long value) {
+    final State current = state;
+    final int i = current.firstUpperAfter(value, false, 0);
+
+    if (i < current.size && compare(current, 2 * i, value, false) <= 0) {
+      return current.range(i);
+    }
+
+    return null;
+  }
+
+  @Override
+  public boolean intersects(Range<Long> range) {
+    final State current = state;
+    final long lowerValue = lowerValue(range);
+    final boolean lowerAbove = lowerAbove(range);
+    final long upperValue = upperValue(range);
+    final boolean upperAbove = upperAbove(range);
+
+    if (compare(lowerValue, lowerAbove, upperValue, upperAbove) >= 0) {
+      return false;
+    }
+
+    final int i = current.firstUpperAfter(lowerValue, lowerAbove, 0);
+
+    return i < current.size && compare(current, 2 * i, upperValue, upperAbove) < 0;
+  }
+
+  @Override
+  public boolean encloses(Range<Long> range) {
+    final State current = state;
+    final long lowerValue = lowerValue(range);
+    final boolean lowerAbove = lowerAbove(range);
+    final int i = current.lastLowerUpTo(lowerValue, lowerAbove);
+
+    return i >= 0 && compare(current, 2 * i + 1, upperValue(range), upperAbove(range)) >= 0;
+  }
+
+  @Override
+  public boolean enclosesAll(RangeSet<Long> other) {
+    return enclosesAll(other.asRanges());
+  }
+
+  @Override
+  public boolean enclosesAll(Iterable<Range<Long>> other) {
+    for (Range<Long> range : other) {
+      if (!encloses(range)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return state.size == 0;
+  }
+
+  @Override
+  public Range<Long> span() {
+    final State current = state;
+
+    if (current.size == 0) {
+      throw new NoSuchElementException();
+    }
+
+    return toRange(current, 0, 2 * current.size - 1);
+  }
+
+  @Override
+  public Set<Range<Long>> asRanges() {
+    return new RangeView(state, false);
+  }
+
+  @Override
+  public Set<Range<Long>> asDescendingSetOfRanges() {
+    return new RangeView(state, true);
+  }
+
+  @Override
+  public LongRangeSet complement() {
+    return new LongRangeSet(complement(state));
+  }
+
+  @Override
+  public LongRangeSet subRangeSet(Range<Long> view) {
+    return new LongRangeSet(intersection(state, stateOf(view)));
+  }
+
+  @Override
+  public void add(Range<Long> range) {
+    final State current = state;
+    final long lowerValue = lowerValue(range);
+    final boolean lowerAbove = lowerAbove(range);
+    final long upperValue = upperValue(range);
+    final boolean upperAbove = upperAbove(range);
+
+    if (compare(lowerValue, lowerAbove, upperValue, upperAbove) >= 0) {
+      return;
+    }
+
+    // ranges arriving in order are appended in place, anything else is merged into a copy
+    if (current.size == 0 || compare(current, 2 * current.size - 1, lowerValue, lowerAbove) < 0) {
+      publish(current.append(lowerValue, lowerAbove, upperValue, upperAbove));
+    } else if (!encloses(range)) {
+      publish(union(current, stateOf(range)));
+    }
+  }
+
+  @Override
+  public void remove(Range<Long> range) {
+    if (intersects(range)) {
+      publish(intersection(state, complement(stateOf(range))));
+    }
+  }
+
+  @Override
+  public void clear() {
+    if (!isEmpty()) {
+      publish(EMPTY);
+    }
+  }
+
+  @Override
+  public void addAll(RangeSet<Long> other) {
+    final State current = state;
+    final State added = stateOf(other);
+
+    if (added.size == 0) {
+      return;
+    }
+
+    if (current.size == 0 || compare(current, 2 * current.size - 1, added, 0) < 0) {
+      State result = current;
+
+      for (int i = 0; i < added.size; ++i) {
+        result =
+            result.append(
+                added.endpoints[2 * i],
+                isSet(added.above, 2 * i),
+                added.endpoints[2 * i + 1],
+                isSet(added.above, 2 * i + 1));
+      }
+
+      publish(result);
+    } else if (!encloses(current, added)) {
+      publish(union(current, added));
+    }
+  }
+
+  @Override
+  public void addAll(Iterable<Range<Long>> ranges) {
+    for (Range<Long> range : ranges) {
+      add(range);
+    }
+  }
+
+  @Override
+  public void removeAll(RangeSet<Long> other) {
+    final State removed = stateOf(other);
+
+    if (overlaps(state, removed)) {
+      publish(intersection(state, complement(removed)));
+    }
+  }
+
+  @Override
+  public void removeAll(Iterable<Range<Long>> ranges) {
+    for (Range<Long> range : ranges) {
+      remove(range);
+    }
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+
+    if (obj instanceof LongRangeSet) {
+      final State left = state;
+      final State right = ((LongRangeSet) obj).state;
+
+      if (left.size != right.size) {
+        return false;
+      }
+
+      for (int i = 0; i < 2 * left.size; ++i) {
+        if (compare(left, i, right, i) != 0) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    if (obj instanceof RangeSet) {
+      return asRanges().equals(((RangeSet<?>) obj).asRanges());
+    }
+
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return asRanges().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return asRanges().toString();
+  }
+
+  private void publish(State next) {
+    state = next;
+    ++version;
+  }
+
+  private static State stateOf(RangeSet<Long> rangeSet) {
+    if (rangeSet instanceof LongRangeSet) {
+      return ((LongRangeSet) rangeSet).state;
+    }
+
+    // ranges of any range set are already disjoint and sorted
+    final Builder builder = new Builder(rangeSet.asRanges().size());
+
+    for (Range<Long> range : rangeSet.asRanges()) {
+      builder.append(
+          lowerValue(range), lowerAbove(range), upperValue(range), upperAbove(range));
+    }
+
+    return builder.build();
+  }
+
+  private static State stateOf(Range<Long> range) {
+    final Builder builder = new Builder(1);
+
+    builder.append(lowerValue(range), lowerAbove(range), upperValue(range), upperAbove(range));
+
+    return builder.build();
+  }
+
+  private static State union(State left, State right) {
+    final Builder builder = new Builder(left.size + right.size);
+    int i = 0;
+    int j = 0;
+
+    // feed ranges by ascending lower cut, the builder coalesces the connected ones
+    while (i < left.size || j < right.size) {
+      if (j >= right.size || (i < left.size && compare(left, 2 * i, right, 2 * j) <= 0)) {
+        builder.append(left, i++);
+      } else {
+        builder.append(right, j++);
+      }
+    }
+
+    return builder.build();
+  }
+
+  private static State intersection(State left, State right) {
+    final Builder builder = new Builder(Math.max(left.size, right.size));
+    int i = 0;
+    int j = 0;
+
+    while (i < left.size && j < right.size) {
+      final int lower = compare(left, 2 * i, right, 2 * j) >= 0 ? 2 * i : -1;
+      final int upper = compare(left, 2 * i + 1, right, 2 * j + 1) <= 0 ? 2 * i + 1 : -1;
+
+      builder.append(
+          lower >= 0 ? left.endpoints[lower] : right.endpoints[2 * j],
+          lower >= 0 ? isSet(left.above, lower) : isSet(right.above, 2 * j),
+          upper >= 0 ? left.endpoints[upper] : right.endpoints[2 * j + 1],
+          upper >= 0 ? isSet(left.above, upper) : isSet(right.above, 2 * j + 1));
+
+      // advance whichever range ends first
+      if (upper >= 0) {
+        ++i;
+      } else {
+        ++j;
+      }
+    }
+
+    return builder.build();
+  }
+
+  private static State complement(State current) {
+    final Builder builder = new Builder(current.size + 1);
+    long lowerValue = Long.MIN_VALUE;
+    boolean lowerAbove = false;
+
+    for (int i = 0; i < current.size; ++i) {
+      builder.append(
+          lowerValue, lowerAbove, current.endpoints[2 * i], isSet(current.above, 2 * i));
+
+      lowerValue = current.endpoints[2 * i + 1];
+      lowerAbove = isSet(current.above, 2 * i + 1);
+    }
+
+    builder.append(lowerValue, lowerAbove, Long.MAX_VALUE, true);
+
+    return builder.build();
+  }
+
+  private static boolean encloses(State outer, State inner) {
+    for (int i = 0; i < inner.size; ++i) {
+      final int j = outer.lastLowerUpTo(inner.endpoints[2 * i], isSet(inner.above, 2 * i));
+
+      if (j < 0 || compare(outer, 2 * j + 1, inner, 2 * i + 1) < 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean overlaps(State left, State right) {
+    final State shorter = left.size <= right.size ? left : right;
+    final State longer = left.size <= right.size ? right : left;
+    int j = 0;
+
+    // probe the longer set with every range of the shorter one, resuming where the last probe ended
+    for (int i = 0; i < shorter.size; ++i) {
+      j =
+          longer.firstUpperAfter(
+              shorter.endpoints[2 * i], isSet(shorter.above, 2 * i), j);
+
+      if (j >= longer.size) {
+        return false;
+      }
+
+      if (compare(longer, 2 * j, shorter, 2 * i + 1) < 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // Cuts order by value first, a cut below a value sorts before the cut above it
+  private static int compare(long leftValue, boolean leftAbove, long rightValue, boolean rightAbove) {
+    final int result = Long.compare(leftValue, rightValue);
+
+    return result != 0 ? result : Boolean.compare(leftAbove, rightAbove);
+  }
+
+  private static int compare(State left, int leftCut, long rightValue, boolean rightAbove) {
+    return compare(
+        left.endpoints[leftCut], isSet(left.above, leftCut), rightValue, rightAbove);
+  }
+
+  private static int compare(State left, int leftCut, State right, int rightCut) {
+    return compare(left, leftCut, right.endpoints[rightCut], isSet(right.above, rightCut));
+  }
+
+  private static long lowerValue(Range<Long> range) {
+    return range.hasLowerBound() ? range.lowerEndpoint() : Long.MIN_VALUE;
+  }
+
+  private static boolean lowerAbove(Range<Long> range) {
+    return range.hasLowerBound() && range.lowerBoundType() == BoundType.OPEN;
+  }
+
+  private static long upperValue(Range<Long> range) {
+    return range.hasUpperBound() ? range.upperEndpoint() : Long.MAX_VALUE;
+  }
+
+  private static boolean upperAbove(Range<Long> range) {
+    return !range.hasUpperBound() || range.upperBoundType() == BoundType.CLOSED;
+  }
+
+  private static Range<Long> toRange(State current, int lowerCut, int upperCut) {
+    return Range.range(
+        current.endpoints[lowerCut],
+        isSet(current.above, lowerCut) ? BoundType.OPEN : BoundType.CLOSED,
+        current.endpoints[upperCut],
+        isSet(current.above, upperCut) ? BoundType.CLOSED : BoundType.OPEN);
+  }
+
+  private static int words(int bits) {
+    return (bits + 63) >>> 6;
+  }
+
+  private static boolean isSet(long[] bits, int index) {
+    return (bits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  private static void assign(long[] bits, int index, boolean value) {
+    if (value) {
+      bits[index >>> 6] |= 1L << index;
+    } else {
+      bits[index >>> 6] &= ~(1L << index);
+    }
+  }
+
+  // Cuts of a set of disjoint ranges, range i spans cuts 2i and 2i + 1. Cuts below 2 * size are
+  // never written again, so a state may share its arrays with the state it was appended to
+  private static final class State {
+    private final long[] endpoints;
+    private final long[] above;
+    private final int size;
+
+    private State(long[] endpoints, long[] above, int size) {
+      this.endpoints = endpoints;
+      this.above = above;
+      this.size = size;
+    }
+
+    private Range<Long> range(int i) {
+      return toRange(this, 2 * i, 2 * i + 1);
+    }
+
+    // Index of the first range, starting from the given one, whose upper cut is after the cut
+    private int firstUpperAfter(long value, boolean valueAbove, int from) {
+      int low = from;
+      int high = size;
+
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+
+        if (compare(this, 2 * mid + 1, value, valueAbove) > 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+
+      return low;
+    }
+
+    // Index of the last range whose lower cut is not after the cut, or -1 if there is none
+    private int lastLowerUpTo(long value, boolean valueAbove) {
+      int low = 0;
+      int high = size;
+
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+
+        if (compare(this, 2 * mid, value, valueAbove) > 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+
+      return low - 1;
+    }
+
+    // Appends a range after every existing one, writing past the visible cuts when there is room
+    private State append(
+        long lowerValue, boolean lowerAbove, long upperValue, boolean upperAbove) {
+      long[] nextEndpoints = endpoints;
+      long[] nextAbove = above;
+
+      if (2 * size + 2 > endpoints.length) {
+        final int capacity = Math.max(4, 4 * size + 4);
+
+        nextEndpoints = Arrays.copyOf(endpoints, capacity);
+        nextAbove = Arrays.copyOf(above, words(capacity));
+      }
+
+      nextEndpoints[2 * size] = lowerValue;
+      nextEndpoints[2 * size + 1] = upperValue;
+      assign(nextAbove, 2 * size, lowerAbove);
+      assign(nextAbove, 2 * size + 1, upperAbove);
+
+      return new State(nextEndpoints, nextAbove, size + 1);
+    }
+
+    // Copy trimmed to the visible cuts, so appends to either state never reach the other
+    private State copy() {
+      return new State(
+          Arrays.copyOf(endpoints, 2 * size), Arrays.copyOf(above, words(2 * size)), size);
+    }
+  }
+
+  // Accumulates ranges by ascending lower cut into fresh arrays, coalescing connected ranges
+  private static final class Builder {
+    private long[] endpoints;
+    private long[] above;
+    private int size;
+
+    private Builder(int capacity) {
+      endpoints = new long[2 * Math.max(1, capacity)];
+      above = new long[words(endpoints.length)];
+    }
+
+    private void append(State source, int i) {
+      append(
+          source.endpoints[2 * i],
+          isSet(source.above, 2 * i),
+          source.endpoints[2 * i + 1],
+          isSet(source.above, 2 * i + 1));
+    }
+
+    private void append(long lowerValue, boolean lowerAbove, long upperValue, boolean upperAbove) {
+      // empty ranges are dropped
+      if (compare(lowerValue, lowerAbove, upperValue, upperAbove) >= 0) {
+        return;
+      }
+
+      final int last = 2 * size - 1;
+
+      // a range connected to the last one extends it
+      if (size > 0
+          && compare(lowerValue, lowerAbove, endpoints[last], isSet(above, last)) <= 0) {
+        if (compare(upperValue, upperAbove, endpoints[last], isSet(above, last)) > 0) {
+          endpoints[last] = upperValue;
+          assign(above, last, upperAbove);
+        }
+
+        return;
+      }
+
+      if (2 * size + 2 > endpoints.length) {
+        endpoints = Arrays.copyOf(endpoints, 2 * endpoints.length);
+        above = Arrays.copyOf(above, words(endpoints.length));
+      }
+
+      endpoints[2 * size] = lowerValue;
+      endpoints[2 * size + 1] = upperValue;
+      assign(above, 2 * size, lowerAbove);
+      assign(above, 2 * size + 1, upperAbove);
+      ++size;
+    }
+
+    private State build() {
+      return new State(endpoints, above, size);
+    }
+  }
+
+  // Snapshot of the ranges of a state, ranges are only materialized while iterating
+  private static final class RangeView extends AbstractSet<Range<Long>> {
+    private final State state;
+    private final boolean descending;
+
+    private RangeView(State state, boolean descending) {
+      this.state = state;
+      this.descending = descending;
+    }
+
+    @Override
+    public Iterator<Range<Long>> iterator() {
+      return new Iterator<Range<Long>>() {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+          return next < state.size;
+        }
+
+        @Override
+        public Range<Long> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+
+          final int i = descending ? state.size - 1 - next : next;
+          ++next;
+
+          return state.range(i);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return state.size;
+    }
+  }
+}
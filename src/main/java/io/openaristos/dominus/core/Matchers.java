@@ -0,0 +1,398 @@
+package io.openaristos.dominus.core;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+
+// Fuzzy matchers, each one paired with the blocking that keeps its candidate generation sub-linear
+public final class Matchers {
+  private static final Logger LOG = LoggerFactory.getLogger(Matchers.class);
+
+  private static final char PADDING = '#';
+
+  // Soundex digit of every letter from A to Z, 0 for vowels and the letters Soundex ignores
+  private static final String SOUNDEX_CODES = "01230120022455012623010202";
+
+  private Matchers() {}
+
+  // Parses a matcher declared as name[:parameter]*. Models used to declare any matcher and be
+  // matched by equality, so an empty or unknown declaration is still an equality matcher.
+  public static LocalEntityModel.Matcher of(String declaration) {
+    if (declaration == null || declaration.trim().isEmpty()) {
+      return LocalEntityModel.EQUALITY_MATCHER;
+    }
+
+    final String[] parts = declaration.trim().toLowerCase(Locale.ROOT).split(":");
+
+    try {
+      switch (parts[0]) {
+        case "equality":
+          return LocalEntityModel.EQUALITY_MATCHER;
+        case "ngram":
+          return ngram(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]));
+        case "jaro_winkler":
+          return jaroWinkler(Double.parseDouble(parts[1]));
+        case "soundex":
+          return soundex();
+        case "numeric":
+          return numericTolerance(Double.parseDouble(parts[1]));
+        case "within":
+          return within(Double.parseDouble(parts[1]));
+        case "within_percent":
+          return withinPercent(Double.parseDouble(parts[1]));
+        default:
+          LOG.warn("unknown matcher `{}`, matched by equality", declaration);
+          return LocalEntityModel.EQUALITY_MATCHER;
+      }
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+      throw new IllegalArgumentException("invalid matcher " + declaration, ex);
+    }
+  }
+
+  // Matches values whose q-gram sets have a Jaccard similarity of at least the threshold,
+  // blocked by q-gram
+  public static LocalEntityModel.Matcher ngram(int q, double threshold) {
+    final LocalEntityModel.Blocking blocking = symmetric(value -> grams(value, q));
+
+    return LocalEntityModel.Matcher.of(
+        String.format("ngram:%d:%s", q, threshold),
+        x -> jaccard(grams(x.getSource(), q), grams(x.getTarget(), q)) >= threshold,
+        blocking);
+  }
+
+  // Matches values whose Jaro-Winkler similarity is at least the threshold, blocked by bigram
+  public static LocalEntityModel.Matcher jaroWinkler(double threshold) {
+    final LocalEntityModel.Blocking blocking = symmetric(value -> grams(value, 2));
+
+    return LocalEntityModel.Matcher.of(
+        String.format("jaro_winkler:%s", threshold),
+        x -> jaroWinkler(normalize(x.getSource()), normalize(x.getTarget())) >= threshold,
+        blocking);
+  }
+
+  // Matches values sharing a Soundex code, blocked by that code
+  public static LocalEntityModel.Matcher soundex() {
+    final LocalEntityModel.Blocking blocking =
+        symmetric(
+            value -> {
+              final String code = soundex(value);
+
+              return code.isEmpty() ? ImmutableSet.of() : ImmutableSet.of(code);
+            });
+
+    return LocalEntityModel.Matcher.of(
+        "soundex",
+        x -> {
+          final String code = soundex(x.getSource());
+
+          return !code.isEmpty() && code.equals(soundex(x.getTarget()));
+        },
+        blocking);
+  }
+
+  // Matches numbers at most the tolerance apart, blocked by buckets as wide as the tolerance so a
+  // probe only needs its own bucket and both neighbours
+  public static LocalEntityModel.Matcher numericTolerance(double tolerance) {
+    if (!(tolerance > 0)) {
+      throw new IllegalArgumentException("numeric tolerance must be positive");
+    }
+
+    final LocalEntityModel.Blocking blocking =
+        new LocalEntityModel.Blocking() {
+          @Override
+          public Collection<String> indexKeys(String value) {
+            final Double number = parse(value);
+
+            return number == null
+                ? ImmutableSet.of()
+                : ImmutableSet.of(Long.toString(bucket(number, tolerance)));
+          }
+
+          @Override
+          public Collection<String> probeKeys(String value) {
+            final Double number = parse(value);
+
+            if (number == null) {
+              return ImmutableSet.of();
+            }
+
+            final long bucket = bucket(number, tolerance);
+
+            return ImmutableSet.of(
+                Long.toString(bucket - 1), Long.toString(bucket), Long.toString(bucket + 1));
+          }
+        };
+
+    return LocalEntityModel.Matcher.of(
+        String.format("numeric:%s", tolerance),
+        x -> {
+          final Double source = parse(x.getSource());
+          final Double target = parse(x.getTarget());
+
+          return source != null && target != null && Math.abs(source - target) <= tolerance;
+        },
+        blocking);
+  }
+
+  // Matches typed values at most the tolerance apart, in days for dates, read from a sorted index
+  public static LocalEntityModel.Matcher within(double tolerance) {
+    if (!(tolerance > 0)) {
+      throw new IllegalArgumentException("tolerance must be positive");
+    }
+
+    final LocalEntityModel.Window window =
+        new LocalEntityModel.Window() {
+          @Override
+          public double lower(double value) {
+            return value - tolerance;
+          }
+
+          @Override
+          public double upper(double value) {
+            return value + tolerance;
+          }
+
+          @Override
+          public long bucket(double value) {
+            return (long) Math.floor(value / tolerance);
+          }
+        };
+
+    return LocalEntityModel.Matcher.of(
+        String.format("within:%s", tolerance),
+        x -> {
+          final double source = toNumber(x, x.getSource());
+          final double target = toNumber(x, x.getTarget());
+
+          return Math.abs(source - target) <= tolerance;
+        },
+        window);
+  }
+
+  // Matches typed values differing by at most the given percentage of the larger magnitude, read
+  // from a sorted index
+  public static LocalEntityModel.Matcher withinPercent(double percent) {
+    if (!(percent > 0 && percent < 100)) {
+      throw new IllegalArgumentException("percentage must be between 0 and 100");
+    }
+
+    final double fraction = percent / 100;
+
+    // buckets grow geometrically, so a window spans the same few buckets at every magnitude
+    final double bucketWidth = Math.log1p(fraction);
+
+    final LocalEntityModel.Window window =
+        new LocalEntityModel.Window() {
+          @Override
+          public double lower(double value) {
+            return value >= 0 ? value * (1 - fraction) : value / (1 - fraction);
+          }
+
+          @Override
+          public double upper(double value) {
+            return value >= 0 ? value / (1 - fraction) : value * (1 - fraction);
+          }
+
+          @Override
+          public long bucket(double value) {
+            if (value == 0) {
+              return 0;
+            }
+
+            // positive buckets sit above zero and negative ones mirror them below
+            final long magnitude =
+                (1L << 32) + (long) Math.floor(Math.log(Math.abs(value)) / bucketWidth);
+
+            return value > 0 ? magnitude : -magnitude;
+          }
+        };
+
+    return LocalEntityModel.Matcher.of(
+        String.format("within_percent:%s", percent),
+        x -> {
+          final double source = toNumber(x, x.getSource());
+          final double target = toNumber(x, x.getTarget());
+
+          return Math.abs(source - target)
+              <= fraction * Math.max(Math.abs(source), Math.abs(target));
+        },
+        window);
+  }
+
+  static double jaroWinkler(String source, String target) {
+    if (source.isEmpty() || target.isEmpty()) {
+      return source.equals(target) ? 1 : 0;
+    }
+
+    final int window = Math.max(0, Math.max(source.length(), target.length()) / 2 - 1);
+    final boolean[] sourceMatched = new boolean[source.length()];
+    final boolean[] targetMatched = new boolean[target.length()];
+    int matches = 0;
+
+    for (int i = 0; i < source.length(); ++i) {
+      final int end = Math.min(target.length() - 1, i + window);
+
+      for (int j = Math.max(0, i - window); j <= end; ++j) {
+        if (!targetMatched[j] && source.charAt(i) == target.charAt(j)) {
+          sourceMatched[i] = true;
+          targetMatched[j] = true;
+          ++matches;
+          break;
+        }
+      }
+    }
+
+    if (matches == 0) {
+      return 0;
+    }
+
+    // half the number of matched characters appearing in a different order
+    int transpositions = 0;
+
+    for (int i = 0, j = 0; i < source.length(); ++i) {
+      if (sourceMatched[i]) {
+        while (!targetMatched[j]) {
+          ++j;
+        }
+
+        if (source.charAt(i) != target.charAt(j)) {
+          ++transpositions;
+        }
+
+        ++j;
+      }
+    }
+
+    final double jaro =
+        ((double) matches / source.length()
+                + (double) matches / target.length()
+                + (matches - transpositions / 2.0) / matches)
+            / 3;
+
+    int prefix = 0;
+
+    while (prefix < Math.min(4, Math.min(source.length(), target.length()))
+        && source.charAt(prefix) == target.charAt(prefix)) {
+      ++prefix;
+    }
+
+    return jaro + prefix * 0.1 * (1 - jaro);
+  }
+
+  static String soundex(String value) {
+    final StringBuilder code = new StringBuilder(4);
+    char last = 0;
+
+    for (char c : value.toUpperCase(Locale.ROOT).toCharArray()) {
+      if (c < 'A' || c > 'Z') {
+        continue;
+      }
+
+      final char digit = SOUNDEX_CODES.charAt(c - 'A');
+
+      if (code.length() == 0) {
+        code.append(c);
+      } else if (digit != '0' && digit != last) {
+        code.append(digit);
+      }
+
+      // H and W do not separate letters sharing a digit, vowels do
+      if (c != 'H' && c != 'W') {
+        last = digit;
+      }
+
+      if (code.length() == 4) {
+        break;
+      }
+    }
+
+    while (code.length() > 0 && code.length() < 4) {
+      code.append('0');
+    }
+
+    return code.toString();
+  }
+
+  static Set<String> grams(String value, int q) {
+    final String normalized = normalize(value);
+
+    if (normalized.isEmpty()) {
+      return ImmutableSet.of();
+    }
+
+    final StringBuilder padded = new StringBuilder();
+
+    for (int i = 1; i < q; ++i) {
+      padded.append(PADDING);
+    }
+
+    padded.append(normalized);
+
+    for (int i = 1; i < q; ++i) {
+      padded.append(PADDING);
+    }
+
+    final Set<String> grams = Sets.newHashSet();
+
+    for (int i = 0; i + q <= padded.length(); ++i) {
+      grams.add(padded.substring(i, i + q));
+    }
+
+    return grams;
+  }
+
+  private static double jaccard(Set<String> source, Set<String> target) {
+    if (source.isEmpty() || target.isEmpty()) {
+      return 0;
+    }
+
+    final int shared = Sets.intersection(source, target).size();
+
+    return (double) shared / (source.size() + target.size() - shared);
+  }
+
+  private static String normalize(String value) {
+    return value.trim().toLowerCase(Locale.ROOT);
+  }
+
+  private static Double parse(String value) {
+    try {
+      final double number = Double.parseDouble(value.trim());
+
+      return Double.isNaN(number) || Double.isInfinite(number) ? null : number;
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  private static double toNumber(LocalEntityModel.MatchingContext context, String value) {
+    final LocalEntityModel.AttributeType type =
+        context.getAttribute() == null ? null : context.getAttribute().getType();
+
+    return (type == null ? LocalEntityModel.AttributeType.NUMERIC : type).toNumber(value);
+  }
+
+  private static long bucket(double number, double tolerance) {
+    return (long) Math.floor(number / tolerance);
+  }
+
+  private static LocalEntityModel.Blocking symmetric(Function<String, Collection<String>> keys) {
+    return new LocalEntityModel.Blocking() {
+      @Override
+      public Collection<String> indexKeys(String value) {
+        return keys.apply(value);
+      }
+
+      @Override
+      public Collection<String> probeKeys(String value) {
+        return keys.apply(value);
+      }
+    };
+  }
+}
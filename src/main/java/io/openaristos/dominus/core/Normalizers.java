@@ -0,0 +1,99 @@
+package io.openaristos.dominus.core;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// Normalizer steps, chained per attribute and applied once when a value is ingested
+public final class Normalizers {
+  private static final Pattern PUNCTUATION = Pattern.compile("\\p{P}+");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private static final String REGEX = "regex:";
+
+  private Normalizers() {}
+
+  // Parses a chain of steps declared as step[,step]*, a regex step consumes the rest of the
+  // declaration so its pattern may contain commas. An empty declaration leaves values untouched.
+  public static LocalEntityModel.Normalizer of(String declaration) {
+    if (declaration == null || declaration.trim().isEmpty()) {
+      return LocalEntityModel.IDENTITY_NORMALIZER;
+    }
+
+    LocalEntityModel.Normalizer chain = null;
+    String remaining = declaration.trim();
+
+    while (!remaining.isEmpty()) {
+      final LocalEntityModel.Normalizer step;
+
+      if (remaining.toLowerCase(Locale.ROOT).startsWith(REGEX)) {
+        step = regex(remaining.substring(REGEX.length()));
+        remaining = "";
+      } else {
+        final int separator = remaining.indexOf(',');
+        final String name = separator < 0 ? remaining : remaining.substring(0, separator);
+
+        step = step(name.trim().toLowerCase(Locale.ROOT), declaration);
+        remaining = separator < 0 ? "" : remaining.substring(separator + 1).trim();
+      }
+
+      chain = chain == null ? step : chain.andThen(step);
+    }
+
+    return chain;
+  }
+
+  // Folds the case of values, locale independent
+  public static LocalEntityModel.Normalizer caseFold() {
+    return LocalEntityModel.Normalizer.of(
+        "case_fold", value -> value.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT));
+  }
+
+  // Applies Unicode compatibility composition, so equivalent code point sequences are identical
+  public static LocalEntityModel.Normalizer nfkc() {
+    return LocalEntityModel.Normalizer.of(
+        "nfkc", value -> Normalizer.normalize(value, Normalizer.Form.NFKC));
+  }
+
+  // Strips leading and trailing whitespace, and collapses inner runs to a single space
+  public static LocalEntityModel.Normalizer trim() {
+    return LocalEntityModel.Normalizer.of(
+        "trim", value -> WHITESPACE.matcher(value.trim()).replaceAll(" "));
+  }
+
+  // Removes every punctuation character
+  public static LocalEntityModel.Normalizer punctuation() {
+    return LocalEntityModel.Normalizer.of(
+        "punctuation", value -> PUNCTUATION.matcher(value).replaceAll(""));
+  }
+
+  // Removes every match of the pattern
+  public static LocalEntityModel.Normalizer regex(String pattern) {
+    final Pattern compiled;
+
+    try {
+      compiled = Pattern.compile(pattern);
+    } catch (PatternSyntaxException ex) {
+      throw new IllegalArgumentException("invalid normalizer pattern " + pattern, ex);
+    }
+
+    return LocalEntityModel.Normalizer.of(
+        REGEX + pattern, value -> compiled.matcher(value).replaceAll(""));
+  }
+
+  private static LocalEntityModel.Normalizer step(String name, String declaration) {
+    switch (name) {
+      case "case_fold":
+        return caseFold();
+      case "nfkc":
+        return nfkc();
+      case "trim":
+        return trim();
+      case "punctuation":
+        return punctuation();
+      default:
+        throw new IllegalArgumentException("invalid normalizer " + declaration);
+    }
+  }
+}
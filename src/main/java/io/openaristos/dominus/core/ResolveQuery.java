@@ -18,20 +18,31 @@ public class ResolveQuery {
   private final String uid;
 
   public ResolveQuery(Map<LocalEntityModel.Attribute, String> descriptors) {
-    this.descriptors = descriptors;
+    this.descriptors = Maps.newHashMap();
     this.descriptorsByFieldName = Maps.newHashMap();
 
-    StringBuilder canonical = new StringBuilder();
+    // query values are normalized once, exactly as ingested values are
+    descriptors.forEach((x, y) -> this.descriptors.put(x, x == null ? y : x.normalize(y)));
 
-    descriptors.forEach(
-        (x, y) -> {
-          descriptorsByFieldName.put(x.getName(), Pair.of(x, descriptors.get(x)));
+    this.descriptors.forEach((x, y) -> descriptorsByFieldName.put(x.getName(), Pair.of(x, y)));
 
-          canonical.append(x.getName());
-          canonical.append(y);
-        });
+    // the canonical form lists descriptors by attribute name, every component is prefixed by its
+    // length so that no two distinct queries share it
+    final StringBuilder canonical = new StringBuilder();
+
+    for (String name : Sets.newTreeSet(descriptorsByFieldName.keySet())) {
+      final String value = descriptorsByFieldName.get(name).getValue();
+
+      canonical.append(name.length()).append(':').append(name);
+
+      if (value == null) {
+        canonical.append('-');
+      } else {
+        canonical.append(value.length()).append(':').append(value);
+      }
+    }
 
-    uid = Integer.toString(canonical.toString().hashCode());
+    uid = canonical.toString();
   }
 
   public static ResolveQuery of(EntityType entityType, ResolveEntityRequest request) {
@@ -67,7 +78,7 @@ public class ResolveQuery {
               attribute,
               ImmutableMap.of(
                   value,
-                  TreeRangeSet.create(
+                  LongRangeSet.create(
                       ImmutableSet.of(Range.open(Long.MIN_VALUE, Long.MAX_VALUE)))));
         });
 
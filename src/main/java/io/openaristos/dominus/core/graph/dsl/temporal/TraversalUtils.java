@@ -1,7 +1,7 @@
 package io.openaristos.dominus.core.graph.dsl.temporal;
 
 import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
+import io.openaristos.dominus.core.LongRangeSet;
 import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 
@@ -15,9 +15,7 @@ public class TraversalUtils {
       implements BiFunction<RangeSet<Long>, RangeSet<Long>, RangeSet<Long>> {
     @Override
     public RangeSet<Long> apply(RangeSet<Long> l1, RangeSet<Long> l2) {
-      final TreeRangeSet<Long> n = TreeRangeSet.create(l1);
-      n.removeAll(l2.complement());
-      return n;
+      return LongRangeSet.create(l1).intersection(l2);
     }
   }
 
@@ -27,9 +25,9 @@ public class TraversalUtils {
     @Override
     public boolean test(Traverser<Edge> edgeTraverser) {
       try {
-        final TreeRangeSet<Long> dating = edgeTraverser.sack();
+        final RangeSet<Long> dating = edgeTraverser.sack();
 
-        return dating.asRanges().size() > 0;
+        return !dating.isEmpty();
 
       } catch (Exception ex) {
         return false;
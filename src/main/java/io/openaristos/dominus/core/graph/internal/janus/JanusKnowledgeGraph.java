@@ -6,12 +6,14 @@ import com.google.common.util.concurrent.Monitor;
 import groovy.util.Eval;
 import io.openaristos.dominus.*;
 import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LongRangeSet;
 import io.openaristos.dominus.core.errors.DominusException;
 import io.openaristos.dominus.core.graph.KnowledgeEdge;
 import io.openaristos.dominus.core.graph.KnowledgeGraph;
 import io.openaristos.dominus.core.graph.KnowledgeNode;
 import io.openaristos.dominus.core.graph.dsl.DominusTraversalSource;
 import io.openaristos.dominus.core.graph.dsl.GremlinUtils;
+import io.openaristos.dominus.core.internal.DeprecationLineage;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
@@ -37,8 +39,13 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
 
   private final Graph graph;
   private final Map<String, Long> vertices = Maps.newHashMap();
-  private final Map<String, Pair<String, RangeSet<Long>>> edges = Maps.newHashMap();
-  private final Map<String, Integer> vertexState = Maps.newHashMap();
+  private final Map<String, Pair<String, LongRangeSet>> edges = Maps.newHashMap();
+
+  // Version of every master entity when its vertex was last written
+  private final Map<String, Long> vertexVersions = Maps.newHashMap();
+
+  // Survivor of every deprecated vertex, stale uids are redirected to it
+  private final DeprecationLineage lineage = new DeprecationLineage();
 
   private final Monitor mutex = new Monitor();
 
@@ -64,12 +71,17 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
   public boolean append(KnowledgeNode vertex) {
     assert mutex.isOccupiedByCurrentThread();
 
+    // a master entity resolved before it was deprecated must not come back as a vertex
+    if (lineage.isDeprecated(vertex.getUid())) {
+      return false;
+    }
+
     if (vertices.containsKey(vertex.getUid())) {
 
-      final int currentState = vertex.getMasterEntity().state();
-      final int previousState = vertexState.get(vertex.getUid());
+      final long currentVersion = vertex.getMasterEntity().getVersion();
+      final long previousVersion = vertexVersions.get(vertex.getUid());
 
-      if (currentState != previousState) {
+      if (currentVersion != previousVersion) {
         final Vertex v = graph.traversal().V(vertices.get(vertex.getUid())).next();
 
         while (true) {
@@ -88,7 +100,7 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
           }
         }
 
-        vertexState.put(vertex.getUid(), vertex.getMasterEntity().state());
+        vertexVersions.put(vertex.getUid(), currentVersion);
       }
       return false;
     }
@@ -121,7 +133,7 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
 
       // store on the map
       vertices.put(vertex.getMasterEntity().getUid(), (long) v.id());
-      vertexState.put(vertex.getMasterEntity().getUid(), vertex.getMasterEntity().state());
+      vertexVersions.put(vertex.getMasterEntity().getUid(), vertex.getMasterEntity().getVersion());
 
       return true;
 
@@ -135,7 +147,15 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
 
   @Override
   public boolean relate(KnowledgeNode s, KnowledgeNode t, KnowledgeEdge e) {
-    return relate(s.getUid(), t.getUid(), e);
+    // relationships of deprecated master entities belong to their survivors
+    final String source = lineage.resolve(s.getUid());
+    final String target = lineage.resolve(t.getUid());
+
+    if (source == null || target == null || source.equalsIgnoreCase(target)) {
+      return false;
+    }
+
+    return relate(source, target, e);
   }
 
   private boolean relate(String s, String t, KnowledgeEdge e) {
@@ -154,17 +174,14 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
     // if this edge already exists
     if (edges.containsKey(edgeKey)) {
 
-      // obtain the current temporality view
-      final int originalHashCode = edges.get(edgeKey).getRight().hashCode();
+      // obtain the current temporality version
+      final long originalVersion = edges.get(edgeKey).getRight().getVersion();
 
       // add new temporality
       edges.get(edgeKey).getRight().addAll(e.getValidDts());
 
-      // obtain the current view
-      final int newHashCode = edges.get(edgeKey).getRight().hashCode();
-
       // if it has changed, update the edge on the graph
-      if (originalHashCode != newHashCode) {
+      if (originalVersion != edges.get(edgeKey).getRight().getVersion()) {
         graph
             .traversal()
             .E(Long.parseLong(edges.get(edgeKey).getKey()))
@@ -179,7 +196,7 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
 
     try {
       // build the edge
-      final RangeSet<Long> tr = TreeRangeSet.create(e.getValidDts());
+      final LongRangeSet tr = LongRangeSet.create(e.getValidDts());
 
       final Edge ex =
           g.addE(e.getRelationship())
@@ -201,14 +218,17 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
   public void deprecate(KnowledgeNode s, KnowledgeNode t, long sequenceId) {
     assert mutex.isOccupiedByCurrentThread();
 
+    // the replacement may itself have been deprecated meanwhile, its survivor takes over
+    final String replacementUid = lineage.resolve(t.getUid());
+
     assert vertices.containsKey(s.getUid());
-    assert vertices.containsKey(t.getUid());
+    assert vertices.containsKey(replacementUid);
 
     final GraphTraversalSource g = graph.traversal();
 
     try {
       final long oldVertexId = vertices.get(s.getUid());
-      final long replacementVertexId = vertices.get(t.getUid());
+      final long replacementVertexId = vertices.get(replacementUid);
 
       for (final Edge e : g.V(s).outE().toList()) {
         handleEdgeDeprecation(oldVertexId, replacementVertexId, e, Direction.OUT);
@@ -222,6 +242,8 @@ public class JanusKnowledgeGraph implements KnowledgeGraph {
       g.V(oldVertexId).drop().iterate();
 
       vertices.remove(s.getUid());
+      vertexVersions.remove(s.getUid());
+      lineage.record(s.getUid(), replacementUid);
 
       assert vertices.size() == graph.traversal().V().count().next();
       assert edges.size() == graph.traversal().E().count().next();
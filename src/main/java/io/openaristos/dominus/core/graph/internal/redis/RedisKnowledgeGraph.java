@@ -21,6 +21,9 @@ public class RedisKnowledgeGraph implements KnowledgeGraph {
 
   private final RedisGraph graph;
 
+  // Version of every master entity when its node was last merged
+  private final Map<String, Long> vertexVersions = Maps.newConcurrentMap();
+
   public RedisKnowledgeGraph(final Properties properties) {
     this.graph = new RedisGraph();
   }
@@ -28,6 +31,13 @@ public class RedisKnowledgeGraph implements KnowledgeGraph {
   @Override
   public boolean append(KnowledgeNode k) {
 
+    final long version = k.getMasterEntity().getVersion();
+
+    // skip nodes whose master entity has not changed since the last merge
+    if (Long.valueOf(version).equals(vertexVersions.get(k.getUid()))) {
+      return false;
+    }
+
     final Set<String> clauses = Sets.newHashSet();
 
     // build a map with the properties
@@ -58,6 +68,8 @@ public class RedisKnowledgeGraph implements KnowledgeGraph {
 
     // obtain the result set
     graph.query(GRAPH_ID, query, params);
+
+    vertexVersions.put(k.getUid(), version);
     return true;
   }
 
@@ -0,0 +1,112 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import io.openaristos.dominus.core.LocalEntityModel;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Interns the (attribute, value) pairs and the blocking keys of a universe into dense integer keys,
+// both share a single key space
+public class AttributeValueDictionary {
+  public static final int MISSING = -1;
+
+  private static final long INTEGER_BYTES = 16;
+
+  // Values are grouped by attribute so a lookup never allocates a composite key
+  private final Map<LocalEntityModel.Attribute, Map<String, Integer>> keys =
+      Maps.newConcurrentMap();
+
+  // Blocking keys of fuzzy matchers, kept apart so they never collide with a value
+  private final Map<LocalEntityModel.Attribute, Map<String, Integer>> blockingKeys =
+      Maps.newConcurrentMap();
+
+  private final AtomicInteger nextKey = new AtomicInteger(0);
+
+  // Pool of the values of the universe, blocking keys are derived from values and are not pooled
+  private final StringPool values;
+
+  public AttributeValueDictionary() {
+    this(new StringPool());
+  }
+
+  public AttributeValueDictionary(StringPool values) {
+    this.values = values;
+  }
+
+  // Returns the key of the attribute value, assigning the next dense key if it is new
+  public int intern(LocalEntityModel.Attribute attribute, String value) {
+    final int key = find(keys, attribute, value);
+
+    return key != MISSING ? key : intern(keys, attribute, values.intern(value));
+  }
+
+  // Returns the key of the attribute value, or MISSING if it was never interned
+  public int find(LocalEntityModel.Attribute attribute, String value) {
+    return find(keys, attribute, value);
+  }
+
+  // Returns the key of a blocking key of the attribute, assigning the next dense key if it is new
+  public int internBlockingKey(LocalEntityModel.Attribute attribute, String blockingKey) {
+    return intern(blockingKeys, attribute, blockingKey);
+  }
+
+  // Returns the key of a blocking key of the attribute, or MISSING if it was never interned
+  public int findBlockingKey(LocalEntityModel.Attribute attribute, String blockingKey) {
+    return find(blockingKeys, attribute, blockingKey);
+  }
+
+  public int size() {
+    return nextKey.get();
+  }
+
+  // Counts both key maps, values are counted by the pool when it is estimated first
+  long estimateBytes(MemoryEstimator estimator) {
+    long bytes = 0;
+
+    for (Map<LocalEntityModel.Attribute, Map<String, Integer>> byAttribute :
+        ImmutableList.of(keys, blockingKeys)) {
+      bytes += MemoryEstimator.MAP_BYTES;
+
+      for (Map<String, Integer> byValue : byAttribute.values()) {
+        bytes += MemoryEstimator.ENTRY_BYTES + MemoryEstimator.MAP_BYTES;
+
+        for (String value : byValue.keySet()) {
+          bytes += MemoryEstimator.ENTRY_BYTES + INTEGER_BYTES + estimator.string(value);
+        }
+      }
+    }
+
+    return bytes;
+  }
+
+  private int intern(
+      Map<LocalEntityModel.Attribute, Map<String, Integer>> keys,
+      LocalEntityModel.Attribute attribute,
+      String value) {
+    final int key = find(keys, attribute, value);
+
+    if (key != MISSING) {
+      return key;
+    }
+
+    return keys.computeIfAbsent(attribute, x -> Maps.newConcurrentMap())
+        .computeIfAbsent(value, x -> nextKey.getAndIncrement());
+  }
+
+  private static int find(
+      Map<LocalEntityModel.Attribute, Map<String, Integer>> keys,
+      LocalEntityModel.Attribute attribute,
+      String value) {
+    final Map<String, Integer> values = keys.get(attribute);
+
+    if (values == null) {
+      return MISSING;
+    }
+
+    final Integer key = values.get(value);
+
+    return key == null ? MISSING : key;
+  }
+}
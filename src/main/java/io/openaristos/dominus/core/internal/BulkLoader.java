@@ -0,0 +1,373 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.openaristos.dominus.core.EntityType;
+import io.openaristos.dominus.core.EntityUniverse;
+import io.openaristos.dominus.core.LocalMasterableEntity;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+// Loads a large set of masterable entities in one pass, rather than through incremental appends
+// which cascade and deprecate over and over. Entities are spilled to disk and blocked by their
+// exact values with an external sort, entities sharing a value are joined into clusters, and
+// batches of whole clusters are read back and appended to their universe in parallel, each with a
+// single resolution pass. Only fills empty universes before incremental appends take over, as the
+// results of its appends are not kept, a load into a populated universe is rejected.
+public class BulkLoader {
+  private static final Logger LOG = LoggerFactory.getLogger(BulkLoader.class);
+
+  // 128MB of blocking keys are sorted in memory before a run is spilled to disk
+  private static final int DEFAULT_RUN_SIZE = 1 << 24;
+
+  // Whole clusters are gathered into batches of at least this many entities
+  private static final int BATCH_SIZE = 4096;
+
+  private static final int PROGRESS_INTERVAL = 1_000_000;
+
+  private final Map<String, EntityType> entityTypeMap;
+  private final Map<String, EntityUniverse> universeMap;
+  private final Function<EntityType, EntityUniverse> universeFactory;
+  private final ForkJoinPool pool;
+  private final File spillDirectory;
+  private final int runSize;
+
+  public BulkLoader(
+      Map<String, EntityType> entityTypeMap,
+      Map<String, EntityUniverse> universeMap,
+      Function<EntityType, EntityUniverse> universeFactory) {
+    this(
+        entityTypeMap,
+        universeMap,
+        universeFactory,
+        ForkJoinPool.commonPool(),
+        new File(System.getProperty("java.io.tmpdir")),
+        DEFAULT_RUN_SIZE);
+  }
+
+  public BulkLoader(
+      Map<String, EntityType> entityTypeMap,
+      Map<String, EntityUniverse> universeMap,
+      Function<EntityType, EntityUniverse> universeFactory,
+      ForkJoinPool pool,
+      File spillDirectory,
+      int runSize) {
+    this.entityTypeMap = entityTypeMap;
+    this.universeMap = universeMap;
+    this.universeFactory = universeFactory;
+    this.pool = pool;
+    this.spillDirectory = spillDirectory;
+    this.runSize = runSize;
+  }
+
+  // Loads Avro files of the entity model consumed by the subscribers
+  public Summary loadAvro(Collection<File> files) throws IOException {
+    final Map<String, Stage> stages = Maps.newHashMap();
+    long rejected = 0;
+
+    try {
+      for (File file : files) {
+        try (DataFileReader<GenericRecord> reader =
+            new DataFileReader<>(file, new GenericDatumReader<>())) {
+          GenericRecord record = null;
+
+          while (reader.hasNext()) {
+            record = reader.next(record);
+
+            final LocalMasterableEntity entity = getMasterableEntity(record);
+
+            if (entity == null) {
+              ++rejected;
+              continue;
+            }
+
+            stage(stages, entity);
+          }
+        }
+
+        LOG.info("read bulk load file `{}`", file);
+      }
+
+      return build(stages, rejected);
+    } finally {
+      stages.values().forEach(Stage::close);
+    }
+  }
+
+  // Loads masterable entities of any entity type
+  public Summary load(Iterable<LocalMasterableEntity> entities) throws IOException {
+    final Map<String, Stage> stages = Maps.newHashMap();
+
+    try {
+      for (LocalMasterableEntity entity : entities) {
+        stage(stages, entity);
+      }
+
+      return build(stages, 0);
+    } finally {
+      stages.values().forEach(Stage::close);
+    }
+  }
+
+  private LocalMasterableEntity getMasterableEntity(GenericRecord record) {
+    final String entityTypeCode = record.get("type").toString();
+    final EntityType entityType = entityTypeMap.get(entityTypeCode);
+
+    if (entityType == null) {
+      LOG.error("failed to find entity model matching code `{}`", entityTypeCode);
+      return null;
+    }
+
+    try {
+      return LocalMasterableEntity.of(entityType, record);
+    } catch (RuntimeException ex) {
+      LOG.error("failed to build entity of type `{}`", entityTypeCode, ex);
+      return null;
+    }
+  }
+
+  private void stage(Map<String, Stage> stages, LocalMasterableEntity entity) throws IOException {
+    final EntityType entityType = entity.getType();
+
+    Stage stage = stages.get(entityType.getName());
+
+    if (stage == null) {
+      final EntityUniverse universe =
+          universeMap.computeIfAbsent(entityType.getName(), x -> universeFactory.apply(entityType));
+
+      // loaded appends may deprecate master entities already known, their results are not kept
+      if (!universe.getMasterEntities(null, 1).getMasterEntities().isEmpty()) {
+        throw new IllegalArgumentException(
+            "universe of `" + entityType.getName() + "` is not empty");
+      }
+
+      stage = new Stage(entityType, universe);
+      stages.put(entityType.getName(), stage);
+    }
+
+    stage.add(entity);
+  }
+
+  private Summary build(Map<String, Stage> stages, long rejected) throws IOException {
+    long records = 0;
+    long masterEntities = 0;
+
+    for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+      final Stage stage = entry.getValue();
+
+      stage.build();
+
+      records += stage.size();
+      masterEntities += stage.universe.getMasterEntities().size();
+
+      LOG.info("bulk loaded `{}` entities of type `{}`", stage.size(), entry.getKey());
+    }
+
+    return new Summary(records, rejected, masterEntities, ImmutableSet.copyOf(stages.keySet()));
+  }
+
+  // The entities of a single entity type, spilled to disk together with the sorted keys which block
+  // them, so only a few primitives per entity stay on the heap while the load is staged
+  private class Stage implements Closeable {
+    private final EntityUniverse universe;
+    private final EntitySpill entities;
+
+    // entities without descriptors resolve to every master entity, they are appended last
+    private final List<LocalMasterableEntity> deferred = Lists.newArrayList();
+
+    // blocking key in the upper half and entity ordinal in the lower half
+    private final ExternalLongSorter keyedOrdinals =
+        new ExternalLongSorter(spillDirectory, runSize);
+
+    // identity hash in the upper half and entity ordinal in the lower half, later entities of an
+    // identity join its cluster, identities sharing a hash only share a batch
+    private final ExternalLongSorter identityOrdinals =
+        new ExternalLongSorter(spillDirectory, runSize);
+
+    private final List<Integer> keys = Lists.newArrayList();
+
+    Stage(EntityType entityType, EntityUniverse universe) throws IOException {
+      this.universe = universe;
+      this.entities = new EntitySpill(entityType, spillDirectory);
+    }
+
+    void add(LocalMasterableEntity entity) throws IOException {
+      if (entity.getDescriptors().isEmpty()) {
+        deferred.add(entity);
+        return;
+      }
+
+      final long ordinal = entities.add(entity);
+
+      if (universe instanceof LocalMemoryEntityUniverse) {
+        final long identity = entity.getMasterableEntityIdentity().hashCode();
+
+        identityOrdinals.add((identity << 32) | ordinal);
+
+        keys.clear();
+        ((LocalMemoryEntityUniverse) universe).addBlockingKeys(entity, keys);
+
+        for (int key : keys) {
+          keyedOrdinals.add(((long) key << 32) | ordinal);
+        }
+      }
+
+      if (size() % PROGRESS_INTERVAL == 0) {
+        LOG.info("staged a total of `{}` entities", size());
+      }
+    }
+
+    int size() {
+      return entities.size() + deferred.size();
+    }
+
+    void build() throws IOException {
+      entities.seal();
+
+      // other universes never cascade, they take the load in batches read back in order
+      if (!(universe instanceof LocalMemoryEntityUniverse)) {
+        for (int i = 0; i < entities.size(); i += BATCH_SIZE) {
+          final List<LocalMasterableEntity> batch = Lists.newArrayList();
+
+          for (int j = i; j < Math.min(i + BATCH_SIZE, entities.size()); ++j) {
+            batch.add(entities.get(j));
+          }
+
+          universe.appendAll(batch);
+        }
+      } else {
+        appendClusters(findClusters());
+      }
+
+      deferred.forEach(universe::append);
+    }
+
+    // Joins every entity with the entities of its identity and the entities it shares a key with
+    private DisjointSets findClusters() throws IOException {
+      final DisjointSets clusters = new DisjointSets();
+
+      for (int i = 0; i < entities.size(); ++i) {
+        clusters.add();
+      }
+
+      joinConsecutive(identityOrdinals, clusters);
+      joinConsecutive(keyedOrdinals, clusters);
+
+      return clusters;
+    }
+
+    // Entities sharing a key are consecutive once sorted, each one joins the one before it
+    private void joinConsecutive(ExternalLongSorter keyed, DisjointSets clusters)
+        throws IOException {
+      final long[] previous = {-1L};
+
+      keyed.forEachSorted(
+          x -> {
+            if (previous[0] != -1L && (previous[0] >>> 32) == (x >>> 32)) {
+              clusters.union((int) previous[0], (int) x);
+            }
+
+            previous[0] = x;
+          });
+    }
+
+    // Appends batches of whole clusters in parallel, clusters share no exact value so their
+    // appends rarely touch the same master entity, those sharing a fuzzy block still lock it
+    private void appendClusters(DisjointSets clusters) {
+      // order the entities by cluster, keeping the order they were read in within every cluster
+      final long[] order = new long[entities.size()];
+
+      for (int i = 0; i < order.length; ++i) {
+        order[i] = ((long) clusters.find(i) << 32) | i;
+      }
+
+      Arrays.parallelSort(order);
+
+      final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+      int first = 0;
+
+      for (int i = 0; i < order.length; ++i) {
+        final boolean last =
+            i + 1 == order.length
+                || (i + 1 - first >= BATCH_SIZE && (order[i] >>> 32) != (order[i + 1] >>> 32));
+
+        if (last) {
+          tasks.add(submit(order, first, i + 1));
+          first = i + 1;
+        }
+      }
+
+      tasks.forEach(ForkJoinTask::join);
+    }
+
+    // Reads back the entities of the batch as it runs, so only running batches are on the heap
+    private ForkJoinTask<?> submit(long[] order, int from, int to) {
+      return pool.submit(
+          () -> {
+            final List<LocalMasterableEntity> batch = Lists.newArrayListWithCapacity(to - from);
+
+            for (int i = from; i < to; ++i) {
+              batch.add(entities.get((int) order[i]));
+            }
+
+            universe.appendAll(batch);
+          });
+    }
+
+    @Override
+    public void close() {
+      keyedOrdinals.close();
+      identityOrdinals.close();
+      entities.close();
+    }
+  }
+
+  public static class Summary {
+    private final long records;
+    private final long rejected;
+    private final long masterEntities;
+    private final Set<String> entityTypes;
+
+    Summary(long records, long rejected, long masterEntities, Set<String> entityTypes) {
+      this.records = records;
+      this.rejected = rejected;
+      this.masterEntities = masterEntities;
+      this.entityTypes = entityTypes;
+    }
+
+    // Entities appended to their universe
+    public long getRecords() {
+      return records;
+    }
+
+    // Records which could not be built into an entity
+    public long getRejected() {
+      return rejected;
+    }
+
+    // Master entities of every loaded universe once the load completed
+    public long getMasterEntities() {
+      return masterEntities;
+    }
+
+    public Set<String> getEntityTypes() {
+      return entityTypes;
+    }
+  }
+}
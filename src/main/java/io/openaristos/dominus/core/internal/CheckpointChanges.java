@@ -0,0 +1,48 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import io.openaristos.dominus.core.LocalMasterEntity;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+// What a universe changed since its last checkpoint: the identities whose snapshot changed, the
+// master entities created, joined or retired, and the master entity uids deprecated. A delta
+// checkpoint only writes these, so its cost follows the rate of appends rather than the size of
+// the universe. Universes record changes while they hold the locks of what they change, and swap
+// in a new instance while they hold every lock, as they write a checkpoint.
+class CheckpointChanges {
+  private final Set<LocalMasterableEntityIdentity> identities = Sets.newConcurrentHashSet();
+
+  // Master entities by ordinal, one which is no longer live is written as a removal
+  private final Map<Integer, LocalMasterEntity> masterEntities = Maps.newConcurrentMap();
+
+  private final Set<String> deprecations = Sets.newConcurrentHashSet();
+
+  void identity(LocalMasterableEntityIdentity identity) {
+    identities.add(identity);
+  }
+
+  void masterEntity(LocalMasterEntity masterEntity) {
+    masterEntities.put(masterEntity.getOrdinal(), masterEntity);
+  }
+
+  void deprecation(String uid) {
+    deprecations.add(uid);
+  }
+
+  Set<LocalMasterableEntityIdentity> getIdentities() {
+    return identities;
+  }
+
+  Collection<LocalMasterEntity> getMasterEntities() {
+    return masterEntities.values();
+  }
+
+  Set<String> getDeprecations() {
+    return deprecations;
+  }
+}
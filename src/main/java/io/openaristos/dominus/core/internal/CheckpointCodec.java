@@ -0,0 +1,368 @@
+package io.openaristos.dominus.core.internal;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.Sets;
+import io.openaristos.dominus.core.EntityType;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterEntityMembership;
+import io.openaristos.dominus.core.LocalMasterableEntity;
+import io.openaristos.dominus.core.LocalMasterableEntityDescriptor;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+import io.openaristos.dominus.core.LongRangeSet;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Binary layout of the identities and descriptors within a checkpoint. Unlike the snapshot codec,
+// attributes and resolvers are written by name so a checkpoint outlives the process writing it,
+// and every range is a byte of flags followed by its bounds as zig-zag variable length longs.
+class CheckpointCodec {
+  private static final int HAS_LOWER = 1;
+  private static final int LOWER_CLOSED = 2;
+  private static final int HAS_UPPER = 4;
+  private static final int UPPER_CLOSED = 8;
+
+  private final EntityType entityType;
+  private final StringPool values;
+  private final Map<String, LocalEntityModel.Resolver> resolverByName = Maps.newHashMap();
+
+  CheckpointCodec(EntityType entityType, StringPool values) {
+    this.entityType = entityType;
+    this.values = values;
+
+    for (LocalEntityModel.Resolver resolver : entityType.getLocalEntityModel().getResolvers()) {
+      resolverByName.put(resolver.getName(), resolver);
+    }
+  }
+
+  void writeIdentity(Output output, LocalMasterableEntityIdentity identity) {
+    output.writeString(identity.getUid());
+    output.writeString(identity.getSource());
+    output.writeVarInt(identity.getMasterableEntityDescriptors().size(), true);
+
+    for (LocalMasterableEntityDescriptor descriptor : identity.getMasterableEntityDescriptors()) {
+      output.writeString(descriptor.getKey().getName());
+      output.writeString(descriptor.getValue());
+    }
+  }
+
+  LocalMasterableEntityIdentity readIdentity(Input input) {
+    final String uid = input.readString();
+    final String source = input.readString();
+    final Set<LocalMasterableEntityDescriptor> descriptors = Sets.newHashSet();
+
+    for (int i = input.readVarInt(true); i > 0; --i) {
+      final LocalEntityModel.Attribute attribute = readAttribute(input);
+
+      descriptors.add(LocalMasterableEntityDescriptor.of(attribute, input.readString()));
+    }
+
+    return LocalMasterableEntityIdentity.of(uid, entityType, source, descriptors);
+  }
+
+  // Writes the identity and descriptors of a masterable entity, descriptors of attributes the
+  // entity model does not declare are dropped as universes ignore them
+  void writeEntity(Output output, LocalMasterableEntity entity) {
+    writeIdentity(output, entity.getMasterableEntityIdentity());
+
+    final List<Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>>> descriptors =
+        Lists.newArrayList();
+
+    for (Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>> descriptor :
+        entity.getDescriptors().entrySet()) {
+      if (descriptor.getKey().getKey() != null) {
+        descriptors.add(descriptor);
+      }
+    }
+
+    output.writeVarInt(descriptors.size(), true);
+
+    for (Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>> descriptor : descriptors) {
+      output.writeString(descriptor.getKey().getKey().getName());
+      output.writeString(descriptor.getKey().getValue());
+      writeRanges(output, descriptor.getValue());
+    }
+  }
+
+  LocalMasterableEntity readEntity(Input input) {
+    final LocalMasterableEntityIdentity identity = readIdentity(input);
+    final Map<LocalMasterableEntityDescriptor, RangeSet<Long>> descriptors = Maps.newHashMap();
+
+    for (int i = input.readVarInt(true); i > 0; --i) {
+      final LocalEntityModel.Attribute attribute = readAttribute(input);
+      final String value = input.readString();
+
+      descriptors.put(LocalMasterableEntityDescriptor.of(attribute, value), readRanges(input));
+    }
+
+    return LocalMasterableEntity.of(entityType, identity, descriptors);
+  }
+
+  // Writes descriptors led by their count plus one, a count of zero marks a snapshot held by the
+  // snapshot store rather than the checkpoint
+  void writeDescriptors(
+      Output output, Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors) {
+    output.writeVarInt(descriptors.size() + 1, true);
+
+    for (Map.Entry<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> attribute :
+        descriptors.entrySet()) {
+      output.writeString(attribute.getKey().getName());
+      output.writeVarInt(attribute.getValue().size(), true);
+
+      for (Map.Entry<String, RangeSet<Long>> value : attribute.getValue().entrySet()) {
+        output.writeString(value.getKey());
+        writeRanges(output, value.getValue());
+      }
+    }
+  }
+
+  // Marks a snapshot the snapshot store persisted, in place of its descriptors
+  void writeHeld(Output output) {
+    output.writeVarInt(0, true);
+  }
+
+  // Reads descriptors into the concurrent maps universes keep, with every value pooled. Returns
+  // null for a snapshot held by the snapshot store.
+  Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> readDescriptors(Input input) {
+    final int attributes = input.readVarInt(true) - 1;
+
+    if (attributes < 0) {
+      return null;
+    }
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors =
+        Maps.newConcurrentMap();
+
+    for (int i = attributes; i > 0; --i) {
+      final LocalEntityModel.Attribute attribute = readAttribute(input);
+      final Map<String, RangeSet<Long>> byValue = Maps.newConcurrentMap();
+
+      for (int j = input.readVarInt(true); j > 0; --j) {
+        final String value = values.intern(input.readString());
+
+        byValue.put(value, readRanges(input));
+      }
+
+      descriptors.put(attribute, byValue);
+    }
+
+    return descriptors;
+  }
+
+  void writeMemberships(Output output, Set<LocalMasterEntityMembership> memberships) {
+    output.writeVarInt(memberships.size(), true);
+
+    for (LocalMasterEntityMembership membership : memberships) {
+      output.writeString(membership.getResolver().getName());
+      output.writeBoolean(membership.isResolvedByCreation());
+    }
+  }
+
+  // Reads the memberships of a member identity, resolvers are found by name in the entity model
+  Set<LocalMasterEntityMembership> readMemberships(
+      Input input, LocalMasterableEntityIdentity identity) {
+    final Set<LocalMasterEntityMembership> memberships = Sets.newHashSet();
+
+    for (int i = input.readVarInt(true); i > 0; --i) {
+      final String name = input.readString();
+      final LocalEntityModel.Resolver resolver = resolverByName.get(name);
+
+      if (resolver == null) {
+        throw new IllegalStateException(
+            "resolver `" + name + "` is not declared by " + entityType.getName());
+      }
+
+      memberships.add(LocalMasterEntityMembership.of(identity, resolver, input.readBoolean()));
+    }
+
+    return memberships;
+  }
+
+  static void writeLineage(Output output, DeprecationLineage lineage) {
+    output.writeVarInt(lineage.size(), true);
+
+    lineage.forEach(
+        (x, y) -> {
+          output.writeString(x);
+          output.writeString(y);
+        });
+  }
+
+  // Writes the deprecations of the given uids only, in the layout of the whole lineage
+  static void writeLineage(Output output, DeprecationLineage lineage, Collection<String> uids) {
+    output.writeVarInt(uids.size(), true);
+
+    lineage.forEach(
+        uids,
+        (x, y) -> {
+          output.writeString(x);
+          output.writeString(y);
+        });
+  }
+
+  static void readLineage(Input input, DeprecationLineage lineage) {
+    for (int i = input.readVarInt(true); i > 0; --i) {
+      final String old = input.readString();
+
+      lineage.record(old, input.readString());
+    }
+  }
+
+  // Copies an identity followed by its snapshot or its held marker, without reading either into the
+  // entity model
+  static void copyIdentity(Input input, Output output) {
+    output.writeString(input.readString());
+    output.writeString(input.readString());
+
+    final int descriptors = copyVarInt(input, output);
+
+    for (int i = 0; i < descriptors; ++i) {
+      output.writeString(input.readString());
+      output.writeString(input.readString());
+    }
+
+    // one more than the attributes, if the snapshot is not held by the snapshot store
+    final int attributes = copyVarInt(input, output) - 1;
+
+    for (int i = 0; i < attributes; ++i) {
+      output.writeString(input.readString());
+
+      final int values = copyVarInt(input, output);
+
+      for (int j = 0; j < values; ++j) {
+        output.writeString(input.readString());
+        copyRanges(input, output);
+      }
+    }
+  }
+
+  // Copies a master entity: its uid, ordinal, shared creator and the ordinal and memberships of
+  // every member. Returns the ordinal of the master entity.
+  static int copyMasterEntity(Input input, Output output) {
+    output.writeString(input.readString());
+
+    final int ordinal = copyVarInt(input, output);
+
+    copyVarInt(input, output);
+
+    final int members = copyVarInt(input, output);
+
+    for (int i = 0; i < members; ++i) {
+      copyVarInt(input, output);
+
+      final int memberships = copyVarInt(input, output);
+
+      for (int j = 0; j < memberships; ++j) {
+        output.writeString(input.readString());
+        output.writeBoolean(input.readBoolean());
+      }
+    }
+
+    return ordinal;
+  }
+
+  private static int copyVarInt(Input input, Output output) {
+    final int value = input.readVarInt(true);
+
+    output.writeVarInt(value, true);
+
+    return value;
+  }
+
+  private static void copyRanges(Input input, Output output) {
+    final int ranges = copyVarInt(input, output);
+
+    for (int i = 0; i < ranges; ++i) {
+      final int flags = input.readByte();
+
+      output.writeByte(flags);
+
+      if ((flags & HAS_LOWER) != 0) {
+        output.writeVarLong(input.readVarLong(false), false);
+      }
+
+      if ((flags & HAS_UPPER) != 0) {
+        output.writeVarLong(input.readVarLong(false), false);
+      }
+    }
+  }
+
+  LocalEntityModel.Attribute readAttribute(Input input) {
+    final String name = input.readString();
+    final LocalEntityModel.Attribute attribute =
+        entityType.getLocalEntityModel().getAttributeByName().get(name);
+
+    if (attribute == null) {
+      throw new IllegalStateException(
+          "attribute `" + name + "` is not declared by " + entityType.getName());
+    }
+
+    return attribute;
+  }
+
+  static void writeRanges(Output output, RangeSet<Long> ranges) {
+    output.writeVarInt(ranges.asRanges().size(), true);
+
+    for (Range<Long> range : ranges.asRanges()) {
+      writeRange(output, range);
+    }
+  }
+
+  static LongRangeSet readRanges(Input input) {
+    final LongRangeSet ranges = LongRangeSet.create();
+
+    for (int i = input.readVarInt(true); i > 0; --i) {
+      ranges.add(readRange(input));
+    }
+
+    return ranges;
+  }
+
+  private static void writeRange(Output output, Range<Long> range) {
+    int flags = 0;
+
+    if (range.hasLowerBound()) {
+      flags |= HAS_LOWER | (range.lowerBoundType() == BoundType.CLOSED ? LOWER_CLOSED : 0);
+    }
+
+    if (range.hasUpperBound()) {
+      flags |= HAS_UPPER | (range.upperBoundType() == BoundType.CLOSED ? UPPER_CLOSED : 0);
+    }
+
+    output.writeByte(flags);
+
+    if (range.hasLowerBound()) {
+      output.writeVarLong(range.lowerEndpoint(), false);
+    }
+
+    if (range.hasUpperBound()) {
+      output.writeVarLong(range.upperEndpoint(), false);
+    }
+  }
+
+  private static Range<Long> readRange(Input input) {
+    final int flags = input.readByte();
+
+    final Long lower = (flags & HAS_LOWER) != 0 ? input.readVarLong(false) : null;
+    final Long upper = (flags & HAS_UPPER) != 0 ? input.readVarLong(false) : null;
+
+    final BoundType lowerType = (flags & LOWER_CLOSED) != 0 ? BoundType.CLOSED : BoundType.OPEN;
+    final BoundType upperType = (flags & UPPER_CLOSED) != 0 ? BoundType.CLOSED : BoundType.OPEN;
+
+    if (lower == null) {
+      return upper == null ? Range.all() : Range.upTo(upper, upperType);
+    }
+
+    return upper == null
+        ? Range.downTo(lower, lowerType)
+        : Range.range(lower, lowerType, upper, upperType);
+  }
+}
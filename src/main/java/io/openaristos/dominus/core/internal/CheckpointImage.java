@@ -0,0 +1,127 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterEntity;
+import io.openaristos.dominus.core.LocalMasterEntityMembership;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+import io.openaristos.dominus.core.LongRangeSet;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+// The state a checkpoint holds while it is written without any blocking lock. Once taken, an append
+// preserves a copy of the snapshot of an identity, or of the members of a master entity, before it
+// first changes one the checkpoint has yet to write, and the writer takes that copy over the live
+// state. Both sides claim an entry through the same map, so the writer never reads state while an
+// append changes it. Entries are written in ascending ordinal, so once the writer moved past an
+// entry appends no longer copy it.
+class CheckpointImage {
+  private final ToIntFunction<LocalMasterableEntityIdentity> identityOrdinals;
+  private final Predicate<LocalMasterableEntityIdentity> identities;
+  private final Predicate<LocalMasterEntity> masterEntities;
+
+  private final Map<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      snapshots = Maps.newConcurrentMap();
+  private final Map<Integer, Map<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>>>
+      members = Maps.newConcurrentMap();
+
+  // ordinals of the last identity and master entity written
+  private volatile int writtenIdentity = -1;
+  private volatile int writtenMasterEntity = -1;
+
+  // Takes an image of the given identities and master entities, the universe must not change
+  // either until the image is installed where its appends preserve into it
+  CheckpointImage(
+      ToIntFunction<LocalMasterableEntityIdentity> identityOrdinals,
+      Predicate<LocalMasterableEntityIdentity> identities,
+      Predicate<LocalMasterEntity> masterEntities) {
+    this.identityOrdinals = identityOrdinals;
+    this.identities = identities;
+    this.masterEntities = masterEntities;
+  }
+
+  // Preserves the snapshot of the identity before an append changes it, the append must hold the
+  // blocking locks of the identity
+  void preserve(
+      LocalMasterableEntityIdentity identity,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    if (identityOrdinals.applyAsInt(identity) > writtenIdentity && identities.test(identity)) {
+      snapshots.computeIfAbsent(identity, x -> copy(snapshot));
+    }
+  }
+
+  // Preserves the members of the master entity before an append changes them, the append must hold
+  // the blocking locks of its cluster
+  void preserve(LocalMasterEntity masterEntity) {
+    if (masterEntity.getOrdinal() > writtenMasterEntity && masterEntities.test(masterEntity)) {
+      members.computeIfAbsent(masterEntity.getOrdinal(), x -> copy(masterEntity));
+    }
+  }
+
+  // Writes the snapshot of the identity as the image holds it, identities must be written in
+  // ascending ordinal
+  void write(
+      LocalMasterableEntityIdentity identity,
+      Supplier<Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>> live,
+      Consumer<Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>> writer) {
+    snapshots.compute(
+        identity,
+        (x, preserved) -> {
+          writer.accept(preserved == null ? live.get() : preserved);
+          writtenIdentity = identityOrdinals.applyAsInt(identity);
+
+          return null;
+        });
+  }
+
+  // Writes the members of the master entity as the image holds them, master entities must be
+  // written in ascending ordinal
+  void write(
+      LocalMasterEntity masterEntity,
+      Consumer<Map<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>>> writer) {
+    members.compute(
+        masterEntity.getOrdinal(),
+        (x, preserved) -> {
+          writer.accept(preserved == null ? masterEntity.getMemberIdentities() : preserved);
+          writtenMasterEntity = masterEntity.getOrdinal();
+
+          return null;
+        });
+  }
+
+  private static Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> copy(
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> copy = Maps.newHashMap();
+
+    snapshot.forEach(
+        (attribute, values) -> {
+          final Map<String, RangeSet<Long>> copied = Maps.newHashMap();
+          values.forEach((value, ranges) -> copied.put(value, LongRangeSet.create(ranges)));
+          copy.put(attribute, copied);
+        });
+
+    return copy;
+  }
+
+  private static Map<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>> copy(
+      LocalMasterEntity masterEntity) {
+    final ImmutableMap.Builder<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>>
+        copy = ImmutableMap.builder();
+
+    masterEntity
+        .getMemberIdentities()
+        .forEach((identity, memberships) -> copy.put(identity, ImmutableSet.copyOf(memberships)));
+
+    return copy.build();
+  }
+}
@@ -0,0 +1,731 @@
+package io.openaristos.dominus.core.internal;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import io.openaristos.dominus.core.EntityType;
+import io.openaristos.dominus.core.EntityUniverse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+// Writes and restores binary checkpoints of universes, so a restart reads them back rather than
+// replaying every append. Each universe has its own file, streamed to disk as it is written and
+// moved over the previous checkpoint once complete, so a crash mid-write keeps the last complete
+// one. A file starts with the entity model it was written against and the position of the
+// write-ahead log every record up to which it holds, and ends with the sequence id reached once
+// it was written. Universes are written and restored in parallel, one task each.
+//
+// Between full checkpoints, delta files only hold what a universe changed since the previous file
+// of its chain, so their cost follows the rate of appends rather than the size of the universe.
+// Every full checkpoint starts a new generation its deltas are tagged with, deltas of any other
+// generation are left over from a crash and ignored. Once a chain reaches its limit of deltas, or
+// as it is restored, the full checkpoint and its deltas are compacted file to file into a new full
+// checkpoint without touching the universe. A full checkpoint may leave snapshots to the snapshot
+// store of its universe, which persists them on its own and keeps them until the next one.
+public class Checkpointer {
+  private static final Logger LOG = LoggerFactory.getLogger(Checkpointer.class);
+
+  private static final int MAGIC = 0x444d434b;
+  private static final int DELTA_MAGIC = 0x444d4454;
+  private static final int VERSION = 4;
+
+  private static final String SUFFIX = ".checkpoint";
+  private static final String DELTA_SUFFIX = ".delta";
+  private static final String PARTIAL_SUFFIX = ".partial";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int DEFAULT_COMPACT_AFTER = 8;
+
+  private final File directory;
+  private final ForkJoinPool pool;
+  private final int compactAfter;
+
+  // Chain of every universe whose last file was written or compacted by this checkpointer. One
+  // without a chain gets a full checkpoint next, as does one whose last write failed.
+  private final Map<String, Chain> chains = Maps.newConcurrentMap();
+
+  public Checkpointer(File directory) {
+    this(directory, ForkJoinPool.commonPool(), DEFAULT_COMPACT_AFTER);
+  }
+
+  public Checkpointer(File directory, ForkJoinPool pool) {
+    this(directory, pool, DEFAULT_COMPACT_AFTER);
+  }
+
+  // A checkpointer compacting the deltas of a universe once it wrote compactAfter of them
+  public Checkpointer(File directory, ForkJoinPool pool, int compactAfter) {
+    this.directory = directory;
+    this.pool = pool;
+    this.compactAfter = compactAfter;
+  }
+
+  // Writes a full checkpoint of every universe, models returns the serialized entity model of an
+  // entity type and sequenceIds the current sequence id. Every record of the write-ahead log up to
+  // the log position must be applied before the checkpoint is written, those records are not
+  // replayed on restore. Only one checkpoint is written at a time.
+  public synchronized Summary write(
+      Map<String, EntityUniverse> universes,
+      Function<String, byte[]> models,
+      LongSupplier sequenceIds,
+      long logPosition)
+      throws IOException {
+    return write(
+        universes,
+        (x, y) -> writeFull(x, y, models.apply(x), sequenceIds, logPosition),
+        logPosition);
+  }
+
+  // Writes a delta of every universe holding what it changed since its last checkpoint, as write
+  // does. A universe without a chain gets a full checkpoint instead.
+  public synchronized Summary writeDelta(
+      Map<String, EntityUniverse> universes,
+      Function<String, byte[]> models,
+      LongSupplier sequenceIds,
+      long logPosition)
+      throws IOException {
+    return write(
+        universes,
+        (x, y) -> {
+          final Chain chain = chains.get(x);
+
+          return chain == null
+              ? writeFull(x, y, models.apply(x), sequenceIds, logPosition)
+              : writeDelta(x, y, chain, sequenceIds, logPosition);
+        },
+        logPosition);
+  }
+
+  private Summary write(
+      Map<String, EntityUniverse> universes,
+      BiFunction<String, EntityUniverse, Summary> writer,
+      long logPosition)
+      throws IOException {
+    Files.createDirectories(directory.toPath());
+
+    final List<ForkJoinTask<Summary>> tasks = Lists.newArrayList();
+
+    universes.forEach((x, y) -> tasks.add(pool.submit(() -> writer.apply(x, y))));
+
+    long bytes = 0;
+    long sequenceId = 0;
+
+    for (ForkJoinTask<Summary> task : tasks) {
+      final Summary summary = join(task);
+
+      bytes += summary.getBytes();
+      sequenceId = Math.max(sequenceId, summary.getSequenceId());
+    }
+
+    return new Summary(tasks.size(), bytes, sequenceId, logPosition);
+  }
+
+  // Restores every checkpoint of the directory into a new universe, entityTypes reads the entity
+  // type back from its name and serialized model. Deltas are compacted into their checkpoint
+  // before it is read.
+  public synchronized Restored load(
+      BiFunction<String, byte[], EntityType> entityTypes,
+      Function<EntityType, EntityUniverse> universeFactory)
+      throws IOException {
+    final File[] files = directory.listFiles((x, name) -> name.endsWith(SUFFIX));
+
+    final Map<String, EntityType> entityTypeMap = Maps.newHashMap();
+    final Map<String, EntityUniverse> universeMap = Maps.newHashMap();
+    final Map<String, Long> logPositions = Maps.newHashMap();
+
+    chains.clear();
+
+    if (files == null) {
+      return new Restored(entityTypeMap, universeMap, logPositions, 0);
+    }
+
+    final List<ForkJoinTask<Restored>> tasks = Lists.newArrayList();
+
+    for (File file : files) {
+      tasks.add(pool.submit(() -> read(file, entityTypes, universeFactory)));
+    }
+
+    long sequenceId = 0;
+
+    for (ForkJoinTask<Restored> task : tasks) {
+      final Restored restored = join(task);
+
+      entityTypeMap.putAll(restored.getEntityTypes());
+      universeMap.putAll(restored.getUniverses());
+      logPositions.putAll(restored.getLogPositions());
+      sequenceId = Math.max(sequenceId, restored.getSequenceId());
+    }
+
+    return new Restored(entityTypeMap, universeMap, logPositions, sequenceId);
+  }
+
+  private Summary writeFull(
+      String entityType,
+      EntityUniverse universe,
+      byte[] model,
+      LongSupplier sequenceIds,
+      long logPosition) {
+    final File file = getFile(entityType);
+    final Header header =
+        new Header(entityType, model, ThreadLocalRandom.current().nextLong(), logPosition);
+
+    // a failure leaves the universe without a chain, as its changes were taken
+    chains.remove(entityType);
+
+    final long sequenceId;
+
+    try {
+      sequenceId =
+          writeAtomically(
+              file,
+              output -> {
+                writeHeader(output, MAGIC, header);
+                universe.writeCheckpoint(output);
+
+                // read once the universe is written, every deprecation it holds has a smaller
+                // sequence id
+                final long current = sequenceIds.getAsLong();
+                output.writeLong(current);
+
+                return current;
+              });
+
+      // deltas of the previous generation no longer apply to anything
+      for (File delta : listDeltas(file).values()) {
+        Files.deleteIfExists(delta.toPath());
+      }
+
+      // snapshots persisted for earlier checkpoints are no longer needed either
+      universe.commitCheckpoint();
+    } catch (IOException | KryoException ex) {
+      throw new UncheckedIOException(
+          new IOException("failed to write the checkpoint of " + entityType, ex));
+    }
+
+    chains.put(entityType, new Chain(header.generation, 0));
+
+    LOG.info("wrote checkpoint of `{}`, {} bytes", entityType, file.length());
+
+    return new Summary(1, file.length(), sequenceId, logPosition);
+  }
+
+  private Summary writeDelta(
+      String entityType,
+      EntityUniverse universe,
+      Chain chain,
+      LongSupplier sequenceIds,
+      long logPosition) {
+    final File file = getFile(entityType);
+    final int deltas = chain.deltas + 1;
+    final File delta = getDeltaFile(file, deltas);
+    final Header header = new Header(entityType, null, chain.generation, logPosition);
+
+    chains.remove(entityType);
+
+    final long sequenceId;
+
+    try {
+      sequenceId =
+          writeAtomically(
+              delta,
+              output -> {
+                writeHeader(output, DELTA_MAGIC, header);
+                universe.writeCheckpointDelta(output);
+
+                final long current = sequenceIds.getAsLong();
+                output.writeLong(current);
+
+                return current;
+              });
+    } catch (IOException | KryoException ex) {
+      throw new UncheckedIOException(
+          new IOException("failed to write a delta checkpoint of " + entityType, ex));
+    }
+
+    LOG.info("wrote delta {} of `{}`, {} bytes", deltas, entityType, delta.length());
+
+    Chain next = new Chain(chain.generation, deltas);
+
+    if (deltas >= compactAfter) {
+      try {
+        next = compact(file);
+      } catch (IOException | KryoException ex) {
+        // the chain is still complete, compacting it is tried again after the next delta
+        LOG.error("failed to compact the deltas of `{}`", entityType, ex);
+      }
+    }
+
+    chains.put(entityType, next);
+
+    return new Summary(1, delta.length(), sequenceId, logPosition);
+  }
+
+  // Merges a checkpoint with the deltas of its generation into a new checkpoint, and deletes every
+  // delta. Records are copied as they are encoded, only the deltas are held on the heap.
+  private Chain compact(File file) throws IOException {
+    final Map<Integer, File> deltas = listDeltas(file);
+    final Header base;
+
+    try (Input input = new Input(new FileInputStream(file), BUFFER_SIZE)) {
+      base = readHeader(input, MAGIC);
+    }
+
+    final Changes changes = readDeltas(base, deltas);
+    Chain chain = new Chain(base.generation, 0);
+
+    if (changes.applied > 0) {
+      final Header header =
+          new Header(
+              base.name, base.model, ThreadLocalRandom.current().nextLong(), changes.logPosition);
+
+      try (Input input = new Input(new FileInputStream(file), BUFFER_SIZE)) {
+        readHeader(input, MAGIC);
+
+        writeAtomically(
+            file,
+            output -> {
+              writeHeader(output, MAGIC, header);
+              merge(input, output, changes);
+              output.writeLong(changes.sequenceId);
+
+              return changes.sequenceId;
+            });
+      }
+
+      chain = new Chain(header.generation, 0);
+
+      LOG.info(
+          "compacted {} deltas of `{}`, {} bytes", changes.applied, base.name, file.length());
+    }
+
+    for (File delta : deltas.values()) {
+      Files.deleteIfExists(delta.toPath());
+    }
+
+    return chain;
+  }
+
+  // Reads the deltas of the checkpoint's generation in order, up to the first one missing
+  private static Changes readDeltas(Header base, Map<Integer, File> deltas) throws IOException {
+    final Changes changes = new Changes(base.logPosition);
+    final Output scratch = new Output(BUFFER_SIZE, -1);
+
+    for (Map.Entry<Integer, File> delta : deltas.entrySet()) {
+      if (delta.getKey() != changes.applied + 1) {
+        LOG.warn("ignoring deltas of `{}` from {} on, one is missing", base.name, delta.getKey());
+        break;
+      }
+
+      try (Input input = new Input(new FileInputStream(delta.getValue()), BUFFER_SIZE)) {
+        final Header header = readHeader(input, DELTA_MAGIC);
+
+        if (header.generation != base.generation) {
+          LOG.warn("ignoring {}, its checkpoint was replaced", delta.getValue());
+          break;
+        }
+
+        changes.read(input, scratch);
+        changes.logPosition = header.logPosition;
+        changes.sequenceId = input.readLong();
+      }
+    }
+
+    return changes;
+  }
+
+  // Copies the body of a checkpoint, with the records of the changes in place of the ones they
+  // replace, in the layout universes read back
+  private static void merge(Input input, Output output, Changes changes) throws IOException {
+    final Output skipped = new Output(BUFFER_SIZE, -1);
+
+    // the generation of persisted snapshots still holds every snapshot the deltas do not replace
+    output.writeVarInt(input.readVarInt(true), true);
+
+    final int identities = input.readVarInt(true);
+
+    if (changes.identityCount < identities) {
+      throw new IOException("deltas hold fewer identities than their checkpoint");
+    }
+
+    output.writeVarInt(changes.identityCount, true);
+
+    for (int i = 0; i < changes.identityCount; ++i) {
+      final byte[] record = changes.identities.get(i);
+
+      if (i < identities) {
+        skipped.reset();
+        CheckpointCodec.copyIdentity(input, record == null ? output : skipped);
+      } else if (record == null) {
+        throw new IOException("deltas miss identity " + i);
+      }
+
+      if (record != null) {
+        output.writeBytes(record);
+      }
+    }
+
+    final int masterEntities = input.readVarInt(true);
+    int written = 0;
+
+    output.writeVarInt(changes.masterEntityCount, true);
+
+    for (int i = 0; i < masterEntities; ++i) {
+      skipped.reset();
+
+      final int ordinal = CheckpointCodec.copyMasterEntity(input, skipped);
+
+      if (!changes.masterEntities.containsKey(ordinal) && !changes.retired.contains(ordinal)) {
+        output.writeBytes(skipped.getBuffer(), 0, skipped.position());
+        ++written;
+      }
+    }
+
+    for (byte[] record : changes.masterEntities.values()) {
+      output.writeBytes(record);
+      ++written;
+    }
+
+    if (written != changes.masterEntityCount) {
+      throw new IOException(
+          "deltas hold " + written + " of " + changes.masterEntityCount + " master entities");
+    }
+
+    input.readVarInt(true);
+    output.writeVarInt(changes.nextOrdinal, true);
+
+    final int deprecations = input.readVarInt(true);
+
+    output.writeVarInt(deprecations + changes.lineage.size(), true);
+
+    for (int i = 0; i < deprecations * 2; ++i) {
+      output.writeString(input.readString());
+    }
+
+    changes.lineage.forEach(
+        (x, y) -> {
+          output.writeString(x);
+          output.writeString(y);
+        });
+
+    // the sequence id of the checkpoint, the last delta's follows
+    input.readLong();
+  }
+
+  private Restored read(
+      File file,
+      BiFunction<String, byte[], EntityType> entityTypes,
+      Function<EntityType, EntityUniverse> universeFactory) {
+    try {
+      final Chain chain = compact(file);
+
+      try (Input input = new Input(new FileInputStream(file), BUFFER_SIZE)) {
+        final Header header = readHeader(input, MAGIC);
+        final EntityType entityType = entityTypes.apply(header.name, header.model);
+        final EntityUniverse universe = universeFactory.apply(entityType);
+
+        universe.readCheckpoint(input);
+
+        final long sequenceId = input.readLong();
+
+        chains.put(header.name, chain);
+
+        LOG.info(
+            "restored checkpoint of `{}`, {} master entities",
+            header.name,
+            universe.getMasterEntities().size());
+
+        return new Restored(
+            ImmutableMap.of(header.name, entityType),
+            ImmutableMap.of(header.name, universe),
+            ImmutableMap.of(header.name, header.logPosition),
+            sequenceId);
+      }
+    } catch (IOException | KryoException ex) {
+      throw new UncheckedIOException(new IOException("failed to restore " + file, ex));
+    }
+  }
+
+  // Streams a file next to its destination and moves it over once synced, returns the sequence id
+  // the body ended with
+  private long writeAtomically(File file, Body body) throws IOException {
+    final File partial = new File(directory, file.getName() + PARTIAL_SUFFIX);
+    final long sequenceId;
+
+    try {
+      try (FileOutputStream stream = new FileOutputStream(partial);
+          Output output = new Output(stream, BUFFER_SIZE)) {
+        sequenceId = body.write(output);
+        output.flush();
+
+        stream.getFD().sync();
+      }
+
+      Files.move(
+          partial.toPath(),
+          file.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | KryoException ex) {
+      Files.deleteIfExists(partial.toPath());
+      throw ex;
+    }
+
+    return sequenceId;
+  }
+
+  private static void writeHeader(Output output, int magic, Header header) {
+    output.writeInt(magic);
+    output.writeVarInt(VERSION, true);
+    output.writeString(header.name);
+
+    // deltas apply onto the model of their checkpoint
+    if (magic == MAGIC) {
+      output.writeVarInt(header.model.length, true);
+      output.writeBytes(header.model);
+    }
+
+    output.writeLong(header.generation);
+    output.writeVarLong(header.logPosition, true);
+  }
+
+  private static Header readHeader(Input input, int magic) throws IOException {
+    if (input.readInt() != magic || input.readVarInt(true) != VERSION) {
+      throw new IOException("unknown checkpoint layout");
+    }
+
+    final String name = input.readString();
+    final byte[] model = magic == MAGIC ? input.readBytes(input.readVarInt(true)) : null;
+    final long generation = input.readLong();
+
+    return new Header(name, model, generation, input.readVarLong(true));
+  }
+
+  // Entity types are encoded into file names, so any name maps to a single valid file
+  private File getFile(String entityType) {
+    try {
+      return new File(directory, URLEncoder.encode(entityType, "UTF-8") + SUFFIX);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private File getDeltaFile(File file, int delta) {
+    return new File(directory, getPrefix(file) + "." + delta + DELTA_SUFFIX);
+  }
+
+  // Deltas written next to a checkpoint, by their number
+  private SortedMap<Integer, File> listDeltas(File file) {
+    final String prefix = getPrefix(file) + ".";
+    final SortedMap<Integer, File> deltas = Maps.newTreeMap();
+    final File[] files =
+        directory.listFiles((x, name) -> name.startsWith(prefix) && name.endsWith(DELTA_SUFFIX));
+
+    if (files != null) {
+      for (File delta : files) {
+        final String name = delta.getName();
+        final Integer number =
+            Ints.tryParse(name.substring(prefix.length(), name.length() - DELTA_SUFFIX.length()));
+
+        // names of other entity types may extend the prefix
+        if (number != null && number > 0) {
+          deltas.put(number, delta);
+        }
+      }
+    }
+
+    return deltas;
+  }
+
+  private static String getPrefix(File file) {
+    return file.getName().substring(0, file.getName().length() - SUFFIX.length());
+  }
+
+  private static <T> T join(ForkJoinTask<T> task) throws IOException {
+    try {
+      return task.join();
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  // Writes the body of a file, returning the sequence id it ends with
+  private interface Body {
+    long write(Output output) throws IOException;
+  }
+
+  private static class Header {
+    private final String name;
+    private final byte[] model;
+    private final long generation;
+    private final long logPosition;
+
+    private Header(String name, byte[] model, long generation, long logPosition) {
+      this.name = name;
+      this.model = model;
+      this.generation = generation;
+      this.logPosition = logPosition;
+    }
+  }
+
+  // Generation of the last full checkpoint of a universe, and the number of deltas written since
+  private static class Chain {
+    private final long generation;
+    private final int deltas;
+
+    private Chain(long generation, int deltas) {
+      this.generation = generation;
+      this.deltas = deltas;
+    }
+  }
+
+  // Deltas read in order into their last record of everything they changed, encoded as written
+  private static class Changes {
+    private final Map<Integer, byte[]> identities = Maps.newHashMap();
+    private final Map<Integer, byte[]> masterEntities = Maps.newLinkedHashMap();
+    private final Set<Integer> retired = Sets.newHashSet();
+    private final Map<String, String> lineage = Maps.newLinkedHashMap();
+
+    private int identityCount;
+    private int masterEntityCount;
+    private int nextOrdinal;
+    private long logPosition;
+    private long sequenceId;
+    private int applied = 0;
+
+    private Changes(long logPosition) {
+      this.logPosition = logPosition;
+    }
+
+    // Reads the body of the next delta, every record replaces the one an earlier delta held
+    private void read(Input input, Output scratch) {
+      identityCount = input.readVarInt(true);
+
+      for (int i = input.readVarInt(true); i > 0; --i) {
+        final int ordinal = input.readVarInt(true);
+
+        scratch.reset();
+        CheckpointCodec.copyIdentity(input, scratch);
+        identities.put(ordinal, scratch.toBytes());
+      }
+
+      masterEntityCount = input.readVarInt(true);
+
+      for (int i = input.readVarInt(true); i > 0; --i) {
+        scratch.reset();
+
+        final int ordinal = CheckpointCodec.copyMasterEntity(input, scratch);
+
+        masterEntities.put(ordinal, scratch.toBytes());
+      }
+
+      for (int i = input.readVarInt(true); i > 0; --i) {
+        final int ordinal = input.readVarInt(true);
+
+        masterEntities.remove(ordinal);
+        retired.add(ordinal);
+      }
+
+      nextOrdinal = input.readVarInt(true);
+
+      for (int i = input.readVarInt(true); i > 0; --i) {
+        final String old = input.readString();
+
+        lineage.put(old, input.readString());
+      }
+
+      ++applied;
+    }
+  }
+
+  public static class Summary {
+    private final int universes;
+    private final long bytes;
+    private final long sequenceId;
+    private final long logPosition;
+
+    Summary(int universes, long bytes, long sequenceId, long logPosition) {
+      this.universes = universes;
+      this.bytes = bytes;
+      this.sequenceId = sequenceId;
+      this.logPosition = logPosition;
+    }
+
+    public int getUniverses() {
+      return universes;
+    }
+
+    // Bytes of every checkpoint written
+    public long getBytes() {
+      return bytes;
+    }
+
+    // Highest sequence id any checkpoint was written at
+    public long getSequenceId() {
+      return sequenceId;
+    }
+
+    // Position of the write-ahead log every checkpoint written holds
+    public long getLogPosition() {
+      return logPosition;
+    }
+  }
+
+  public static class Restored {
+    private final Map<String, EntityType> entityTypes;
+    private final Map<String, EntityUniverse> universes;
+    private final Map<String, Long> logPositions;
+    private final long sequenceId;
+
+    Restored(
+        Map<String, EntityType> entityTypes,
+        Map<String, EntityUniverse> universes,
+        Map<String, Long> logPositions,
+        long sequenceId) {
+      this.entityTypes = entityTypes;
+      this.universes = universes;
+      this.logPositions = logPositions;
+      this.sequenceId = sequenceId;
+    }
+
+    public Map<String, EntityType> getEntityTypes() {
+      return entityTypes;
+    }
+
+    public Map<String, EntityUniverse> getUniverses() {
+      return universes;
+    }
+
+    // Position of the write-ahead log each restored universe holds every record up to
+    public Map<String, Long> getLogPositions() {
+      return logPositions;
+    }
+
+    // Sequence ids below this one may already be held by the restored universes
+    public long getSequenceId() {
+      return sequenceId;
+    }
+  }
+}
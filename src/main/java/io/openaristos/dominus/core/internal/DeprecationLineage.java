@@ -0,0 +1,96 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Maps every deprecated master entity uid to the uid which replaced it. Following the replacements
+// leads to the current survivor, and every lookup points the uids it walked straight at it, so
+// repeated lookups of long chains take near constant time. A uid is deprecated at most once and
+// always in favour of a live one, so the replacements never form a cycle.
+public class DeprecationLineage {
+  // Replacement of a master entity which was deprecated without any survivor
+  private static final String RETIRED = "";
+
+  private final Map<String, String> replacements = Maps.newConcurrentMap();
+
+  // Records the deprecation of a master entity, the current one is null if nothing replaced it
+  public void record(String old, String current) {
+    replacements.put(old, current == null ? RETIRED : current);
+  }
+
+  // Returns the uid currently standing for the given one: the uid itself unless it was deprecated,
+  // or null if its lineage ends without a survivor
+  public String resolve(String uid) {
+    String next = replacements.get(uid);
+
+    if (next == null) {
+      return uid;
+    }
+
+    final List<String> path = Lists.newArrayList();
+    String current = uid;
+
+    while (next != null && !next.equals(RETIRED)) {
+      path.add(current);
+      current = next;
+      next = replacements.get(current);
+    }
+
+    final String survivor = next == null ? current : null;
+
+    // compress the path, every uid walked points straight at the end of its lineage. A concurrent
+    // deprecation of the survivor only makes these replacements one step short again.
+    if (path.size() > 1) {
+      final String target = survivor == null ? RETIRED : survivor;
+
+      for (String walked : path) {
+        replacements.put(walked, target);
+      }
+    }
+
+    return survivor;
+  }
+
+  // Returns true if the master entity uid was deprecated
+  public boolean isDeprecated(String uid) {
+    return replacements.containsKey(uid);
+  }
+
+  // Visits every deprecated uid with its replacement, which is empty if nothing replaced it
+  void forEach(BiConsumer<String, String> consumer) {
+    replacements.forEach(consumer);
+  }
+
+  // Visits the given deprecated uids with their replacement, as forEach does
+  void forEach(Iterable<String> uids, BiConsumer<String, String> consumer) {
+    for (String uid : uids) {
+      final String replacement = replacements.get(uid);
+
+      if (replacement != null) {
+        consumer.accept(uid, replacement);
+      }
+    }
+  }
+
+  long estimateBytes(MemoryEstimator estimator) {
+    long bytes = MemoryEstimator.MAP_BYTES;
+
+    for (Map.Entry<String, String> entry : replacements.entrySet()) {
+      bytes +=
+          MemoryEstimator.ENTRY_BYTES
+              + estimator.string(entry.getKey())
+              + estimator.string(entry.getValue());
+    }
+
+    return bytes;
+  }
+
+  // Number of deprecated uids recorded
+  public int size() {
+    return replacements.size();
+  }
+}
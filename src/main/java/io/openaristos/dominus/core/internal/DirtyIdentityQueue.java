@@ -0,0 +1,120 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+// Dirty identities bucketed by the weight of their strongest resolver, the queue drains the
+// strongest bucket first and every bucket in insertion order
+public class DirtyIdentityQueue {
+  // Weight reported for identities which have no applicable resolver, drained last
+  public static final int NO_RESOLVER = Integer.MIN_VALUE;
+
+  private final int[] ascendingWeights;
+  private final List<ArrayDeque<LocalMasterableEntityIdentity>> buckets;
+  private final ToIntFunction<LocalMasterableEntityIdentity> ordinals;
+  private final ToIntFunction<LocalMasterableEntityIdentity> weights;
+
+  // Ordinals of every identity queued since the last clear
+  private final Set<Integer> queued = Sets.newHashSet();
+
+  // Strongest bucket which may still hold identities
+  private int current = 0;
+
+  // Number of identities waiting in the buckets
+  private int size = 0;
+
+  public DirtyIdentityQueue(
+      LocalEntityModel entityModel,
+      ToIntFunction<LocalMasterableEntityIdentity> ordinals,
+      ToIntFunction<LocalMasterableEntityIdentity> weights) {
+    this.ascendingWeights =
+        entityModel.getResolvers().stream()
+            .mapToInt(LocalEntityModel.Resolver::getWeight)
+            .distinct()
+            .sorted()
+            .toArray();
+    this.ordinals = ordinals;
+    this.weights = weights;
+
+    // one bucket per resolver weight, strongest first, and one for identities without resolvers
+    this.buckets = Lists.newArrayListWithCapacity(ascendingWeights.length + 1);
+
+    for (int i = 0; i <= ascendingWeights.length; ++i) {
+      buckets.add(new ArrayDeque<>());
+    }
+  }
+
+  // Queues the identity unless it was already queued, returns true if it was added
+  public boolean add(LocalMasterableEntityIdentity identity) {
+    if (!queued.add(ordinals.applyAsInt(identity))) {
+      return false;
+    }
+
+    final int bucket = bucketOf(weights.applyAsInt(identity));
+
+    buckets.get(bucket).add(identity);
+    current = Math.min(current, bucket);
+    ++size;
+
+    return true;
+  }
+
+  public void addAll(Collection<LocalMasterableEntityIdentity> identities) {
+    identities.forEach(this::add);
+  }
+
+  // Returns the next identity to resolve, or null once every bucket is drained
+  public LocalMasterableEntityIdentity poll() {
+    while (current < buckets.size()) {
+      final LocalMasterableEntityIdentity identity = buckets.get(current).poll();
+
+      if (identity != null) {
+        --size;
+        return identity;
+      }
+
+      ++current;
+    }
+
+    return null;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // Empties the queue, identities may be queued again afterwards
+  public void clear() {
+    buckets.forEach(ArrayDeque::clear);
+    queued.clear();
+    current = 0;
+    size = 0;
+  }
+
+  private int bucketOf(int weight) {
+    if (weight == NO_RESOLVER) {
+      return ascendingWeights.length;
+    }
+
+    final int position = Arrays.binarySearch(ascendingWeights, weight);
+
+    if (position < 0) {
+      throw new IllegalArgumentException(String.format("unknown resolver weight `%d`", weight));
+    }
+
+    return ascendingWeights.length - 1 - position;
+  }
+}
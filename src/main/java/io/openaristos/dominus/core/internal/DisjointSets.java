@@ -0,0 +1,67 @@
+package io.openaristos.dominus.core.internal;
+
+import java.util.Arrays;
+
+// Disjoint sets of dense ordinals, joined by size and compressed by path halving so every operation
+// runs in near constant amortized time. Writers must be serialized by the caller, readers may only
+// call root while no writer runs.
+class DisjointSets {
+  private int[] parents = new int[16];
+  private int[] sizes = new int[16];
+  private int count = 0;
+
+  // Adds a singleton set and returns the ordinal of its only member
+  int add() {
+    if (count == parents.length) {
+      parents = Arrays.copyOf(parents, count * 2);
+      sizes = Arrays.copyOf(sizes, count * 2);
+    }
+
+    parents[count] = count;
+    sizes[count] = 1;
+
+    return count++;
+  }
+
+  // Returns the representative of the set of the ordinal, halving the path on the way up
+  int find(int ordinal) {
+    while (parents[ordinal] != ordinal) {
+      parents[ordinal] = parents[parents[ordinal]];
+      ordinal = parents[ordinal];
+    }
+
+    return ordinal;
+  }
+
+  // Returns the representative of the set of the ordinal without modifying any path
+  int root(int ordinal) {
+    while (parents[ordinal] != ordinal) {
+      ordinal = parents[ordinal];
+    }
+
+    return ordinal;
+  }
+
+  // Joins the sets of both ordinals and returns the representative of their union, which is the
+  // representative of the larger set
+  int union(int left, int right) {
+    final int leftRoot = find(left);
+    final int rightRoot = find(right);
+
+    if (leftRoot == rightRoot) {
+      return leftRoot;
+    }
+
+    final int larger = sizes[leftRoot] >= sizes[rightRoot] ? leftRoot : rightRoot;
+    final int smaller = larger == leftRoot ? rightRoot : leftRoot;
+
+    parents[smaller] = larger;
+    sizes[larger] += sizes[smaller];
+
+    return larger;
+  }
+
+  int size() {
+    return count;
+  }
+}
@@ -0,0 +1,103 @@
+package io.openaristos.dominus.core.internal;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import io.openaristos.dominus.core.EntityType;
+import io.openaristos.dominus.core.LocalMasterableEntity;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Masterable entities of a single entity type written to a temporary file as they are added, so
+// only the offset of every entity stays on the heap. Once sealed, entities are read back by ordinal
+// in any order with positional reads, which concurrent readers may share.
+class EntitySpill implements Closeable {
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private final CheckpointCodec codec;
+  private final File file;
+  private final Output record = new Output(4096, -1);
+  private OutputStream output;
+  private FileChannel channel;
+
+  // offset of every entity, followed by the end of the last one
+  private long[] offsets = new long[16];
+  private int size = 0;
+
+  EntitySpill(EntityType entityType, File directory) throws IOException {
+    this.codec = new CheckpointCodec(entityType, new StringPool());
+    this.file = File.createTempFile("dominus-entities-", ".bin", directory);
+    this.file.deleteOnExit();
+    this.output = new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE);
+  }
+
+  // Writes the entity and returns its ordinal
+  int add(LocalMasterableEntity entity) throws IOException {
+    record.reset();
+    codec.writeEntity(record, entity);
+    output.write(record.getBuffer(), 0, record.position());
+
+    if (size + 1 == offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+
+    offsets[size + 1] = offsets[size] + record.position();
+
+    return size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  // Flushes every entity added so far, no entity may be added once sealed
+  void seal() throws IOException {
+    output.close();
+    output = null;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  // Reads back the entity of the ordinal, the spill must be sealed
+  LocalMasterableEntity get(int ordinal) {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) (offsets[ordinal + 1] - offsets[ordinal]));
+
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offsets[ordinal] + buffer.position()) < 0) {
+          throw new EOFException("entity " + ordinal + " was truncated in " + file);
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+
+    return codec.readEntity(new Input(buffer.array()));
+  }
+
+  @Override
+  public void close() {
+    try {
+      if (output != null) {
+        output.close();
+      }
+
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+
+// Sorts more longs than fit in memory. Values are buffered into runs, every full run is sorted in
+// parallel and spilled to a temporary file, and the runs are merged back in a single pass. A sort
+// which fits in a single run never touches the disk.
+class ExternalLongSorter implements Closeable {
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private final File directory;
+  private final int runSize;
+  private long[] run = new long[16];
+  private final List<File> spilled = Lists.newArrayList();
+  private int size = 0;
+
+  ExternalLongSorter(File directory, int runSize) {
+    this.directory = directory;
+    this.runSize = runSize;
+  }
+
+  void add(long value) throws IOException {
+    if (size == runSize) {
+      spill();
+    }
+
+    // the run grows up to its size, so small sorts only take what they use
+    if (size == run.length) {
+      run = Arrays.copyOf(run, (int) Math.min(runSize, 2L * run.length));
+    }
+
+    run[size++] = value;
+  }
+
+  // Visits every value added so far in ascending order
+  void forEachSorted(LongConsumer consumer) throws IOException {
+    Arrays.parallelSort(run, 0, size);
+
+    if (spilled.isEmpty()) {
+      for (int i = 0; i < size; ++i) {
+        consumer.accept(run[i]);
+      }
+
+      return;
+    }
+
+    // the run still in memory takes part in the merge like any spilled one
+    final List<RunReader> readers = Lists.newArrayList();
+    final PriorityQueue<RunReader> heads =
+        new PriorityQueue<>(Comparator.comparingLong(RunReader::head));
+
+    try {
+      for (File file : spilled) {
+        final RunReader reader = new RunReader(file);
+        readers.add(reader);
+
+        if (reader.advance()) {
+          heads.add(reader);
+        }
+      }
+
+      int next = 0;
+
+      while (!heads.isEmpty() || next < size) {
+        if (heads.isEmpty() || (next < size && run[next] <= heads.peek().head())) {
+          consumer.accept(run[next++]);
+          continue;
+        }
+
+        final RunReader reader = heads.poll();
+        consumer.accept(reader.head());
+
+        if (reader.advance()) {
+          heads.add(reader);
+        }
+      }
+    } finally {
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    spilled.forEach(File::delete);
+    spilled.clear();
+    size = 0;
+  }
+
+  private void spill() throws IOException {
+    Arrays.parallelSort(run, 0, size);
+
+    final File file = File.createTempFile("dominus-run-", ".bin", directory);
+    file.deleteOnExit();
+    spilled.add(file);
+
+    try (DataOutputStream output =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE))) {
+      for (int i = 0; i < size; ++i) {
+        output.writeLong(run[i]);
+      }
+    }
+
+    size = 0;
+  }
+
+  // Streams a spilled run, one value at a time
+  private static class RunReader implements Closeable {
+    private final DataInputStream input;
+    private long head;
+
+    RunReader(File file) throws IOException {
+      this.input =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+    }
+
+    long head() {
+      return head;
+    }
+
+    // Reads the next value of the run, returns false once it is exhausted
+    boolean advance() throws IOException {
+      try {
+        head = input.readLong();
+        return true;
+      } catch (EOFException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+}
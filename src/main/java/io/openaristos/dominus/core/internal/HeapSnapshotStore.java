@@ -0,0 +1,102 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+// Keeps every snapshot on the heap, changes are visible as soon as they are made. A master entity
+// shares the snapshot of the identity it was created from, so it sees every value the identity
+// gains and the identity sees every value its master entity gains.
+public class HeapSnapshotStore implements SnapshotStore {
+  private final Map<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      snapshots = Maps.newConcurrentMap();
+
+  // Snapshots are not persisted, so they need neither the entity model nor any ordinal
+  @Override
+  public void bind(
+      LocalEntityModel entityModel, ToIntFunction<LocalMasterableEntityIdentity> ordinals) {}
+
+  @Override
+  public boolean contains(LocalMasterableEntityIdentity identity) {
+    return snapshots.containsKey(identity);
+  }
+
+  @Override
+  public void create(LocalMasterableEntityIdentity identity) {
+    snapshots.putIfAbsent(identity, Maps.newConcurrentMap());
+  }
+
+  @Override
+  public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> get(
+      LocalMasterableEntityIdentity identity) {
+    return snapshots.get(identity);
+  }
+
+  @Override
+  public void update(
+      LocalMasterableEntityIdentity identity,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {}
+
+  @Override
+  public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> share(
+      LocalMasterableEntityIdentity identity) {
+    return snapshots.get(identity);
+  }
+
+  // Snapshots are not persisted, nothing tells modified ones apart
+  @Override
+  public void markModified(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {}
+
+  @Override
+  public int size() {
+    return snapshots.size();
+  }
+
+  @Override
+  public void forEachOnHeap(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+          consumer) {
+    snapshots.forEach(consumer);
+  }
+
+  @Override
+  public long getOffHeapBytes() {
+    return 0;
+  }
+
+  // Every snapshot is held by the checkpoint itself
+  @Override
+  public Set<LocalMasterableEntityIdentity> freeze() {
+    return null;
+  }
+
+  @Override
+  public int persist(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Consumer<Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>>
+          frozenSnapshots)
+      throws IOException {
+    throw new IOException("snapshots on the heap are not persisted");
+  }
+
+  @Override
+  public void commit() {}
+
+  @Override
+  public void open(int generation) throws IOException {
+    throw new IOException("snapshots on the heap are not persisted");
+  }
+}
@@ -0,0 +1,358 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+// Index from interned attribute values to the span of effective dating over which every master
+// entity holds them, so a resolution only visits the master entities whose history may overlap its
+// own. The spans of a key are kept in levels of runs sorted by lower endpoint, with the largest
+// upper endpoint of every subtree of the implicit balanced tree over them, so a lookup takes
+// logarithmic time per level plus the spans it reports. A new span becomes a run of its own, merged
+// with every run no larger than it, so runs grow geometrically and a span is merged a logarithmic
+// number of times. Histories only grow, so a master entity posting again can only widen its span,
+// merges keep its widest one. Spans are closed and ignore the gaps of a history, callers still
+// check the histories of reported master entities.
+class IntervalIndex {
+  // A spans object with its array of runs, a run with its array headers, and the bytes of every
+  // span
+  private static final long SPANS_BYTES = 32;
+  private static final long RUN_BYTES = 128;
+  private static final long SPAN_BYTES = 36;
+
+  private final Map<Integer, Spans> spansByKey = Maps.newConcurrentMap();
+
+  // Widens the span of the master entity under the key to the span of its history
+  void add(int key, int ordinal, RangeSet<Long> history) {
+    if (history.isEmpty()) {
+      return;
+    }
+
+    final Range<Long> span = history.span();
+    final long lower = span.hasLowerBound() ? span.lowerEndpoint() : Long.MIN_VALUE;
+    final long upper = span.hasUpperBound() ? span.upperEndpoint() : Long.MAX_VALUE;
+
+    spansByKey.compute(
+        key, (k, current) -> (current == null ? Spans.EMPTY : current).with(ordinal, lower, upper));
+  }
+
+  // Visits the ordinal of every master entity whose span under the key overlaps the span of the
+  // probe, an ordinal may be visited more than once
+  void forEachOverlapping(int key, RangeSet<Long> probe, IntConsumer consumer) {
+    final Spans spans = spansByKey.get(key);
+
+    if (spans == null || probe.isEmpty()) {
+      return;
+    }
+
+    final Range<Long> span = probe.span();
+    final long lower = span.hasLowerBound() ? span.lowerEndpoint() : Long.MIN_VALUE;
+    final long upper = span.hasUpperBound() ? span.upperEndpoint() : Long.MAX_VALUE;
+
+    for (Run run : spans.runs) {
+      run.forEachOverlapping(lower, upper, consumer);
+    }
+  }
+
+  // Removes the spans of every master entity matching the predicate from the key
+  void removeIf(int key, IntPredicate predicate) {
+    spansByKey.computeIfPresent(
+        key,
+        (k, current) -> {
+          final Spans next = current.without(predicate);
+
+          return next.size() == 0 ? null : next;
+        });
+  }
+
+  // Estimated heap bytes of every span
+  long estimateBytes() {
+    long bytes = 0;
+
+    for (Spans spans : spansByKey.values()) {
+      bytes += SPANS_BYTES + RUN_BYTES * spans.runs.length + SPAN_BYTES * spans.size();
+    }
+
+    return bytes;
+  }
+
+  // Runs of decreasing size, a master entity may have a span in more than one of them
+  private static final class Spans {
+    private static final Spans EMPTY = new Spans(new Run[0]);
+
+    private final Run[] runs;
+
+    private Spans(Run[] runs) {
+      this.runs = runs;
+    }
+
+    private int size() {
+      int size = 0;
+
+      for (Run run : runs) {
+        size += run.size();
+      }
+
+      return size;
+    }
+
+    private Spans with(int ordinal, long lower, long upper) {
+      for (Run run : runs) {
+        if (run.covers(ordinal, lower, upper)) {
+          return this;
+        }
+      }
+
+      // merges the new span with every smaller run, as carries of a binary counter
+      Run next =
+          new Run(new long[] {lower}, new long[] {upper}, new int[] {ordinal}, new int[] {0});
+      int count = runs.length;
+
+      while (count > 0 && runs[count - 1].size() <= next.size()) {
+        next = Run.merge(runs[--count], next);
+      }
+
+      final Run[] nextRuns = Arrays.copyOf(runs, count + 1);
+      nextRuns[count] = next;
+
+      return new Spans(nextRuns);
+    }
+
+    private Spans without(IntPredicate predicate) {
+      final List<Run> nextRuns = Lists.newArrayListWithCapacity(runs.length);
+      boolean changed = false;
+
+      for (Run run : runs) {
+        final Run next = run.without(predicate);
+
+        changed |= next != run;
+
+        if (next.size() > 0) {
+          nextRuns.add(next);
+        }
+      }
+
+      return changed ? new Spans(nextRuns.toArray(new Run[0])) : this;
+    }
+  }
+
+  // Spans sorted by lower endpoint with distinct ordinals, immutable once built
+  private static final class Run {
+    private final long[] lowers;
+    private final long[] uppers;
+    private final int[] ordinals;
+
+    // largest upper endpoint of the subtree rooted at every span
+    private final long[] maxUppers;
+
+    // positions of the spans sorted by ordinal
+    private final int[] byOrdinal;
+
+    private Run(long[] lowers, long[] uppers, int[] ordinals, int[] byOrdinal) {
+      this.lowers = lowers;
+      this.uppers = uppers;
+      this.ordinals = ordinals;
+      this.maxUppers = new long[lowers.length];
+      this.byOrdinal = byOrdinal;
+
+      augment(0, lowers.length);
+    }
+
+    private int size() {
+      return lowers.length;
+    }
+
+    // Merges both runs in linear time, a master entity posted in both keeps the span starting
+    // first, widened to the upper endpoint of the other
+    private static Run merge(Run left, Run right) {
+      final long[] leftUppers = left.uppers.clone();
+      final long[] rightUppers = right.uppers.clone();
+      final boolean[] leftDropped = new boolean[left.size()];
+      final boolean[] rightDropped = new boolean[right.size()];
+      int dropped = 0;
+
+      for (int i = 0, j = 0; i < left.size() && j < right.size(); ) {
+        final int l = left.byOrdinal[i];
+        final int r = right.byOrdinal[j];
+
+        if (left.ordinals[l] < right.ordinals[r]) {
+          ++i;
+        } else if (left.ordinals[l] > right.ordinals[r]) {
+          ++j;
+        } else {
+          final long upper = Math.max(left.uppers[l], right.uppers[r]);
+
+          if (left.lowers[l] <= right.lowers[r]) {
+            leftUppers[l] = upper;
+            rightDropped[r] = true;
+          } else {
+            rightUppers[r] = upper;
+            leftDropped[l] = true;
+          }
+
+          ++dropped;
+          ++i;
+          ++j;
+        }
+      }
+
+      final int count = left.size() + right.size() - dropped;
+      final long[] lowers = new long[count];
+      final long[] uppers = new long[count];
+      final int[] ordinals = new int[count];
+
+      // position of every span of both runs in the merged one
+      final int[] leftPositions = new int[left.size()];
+      final int[] rightPositions = new int[right.size()];
+
+      for (int i = 0, j = 0, next = 0; next < count; ++next) {
+        while (i < left.size() && leftDropped[i]) {
+          ++i;
+        }
+
+        while (j < right.size() && rightDropped[j]) {
+          ++j;
+        }
+
+        if (j == right.size() || (i < left.size() && left.lowers[i] <= right.lowers[j])) {
+          lowers[next] = left.lowers[i];
+          uppers[next] = leftUppers[i];
+          ordinals[next] = left.ordinals[i];
+          leftPositions[i++] = next;
+        } else {
+          lowers[next] = right.lowers[j];
+          uppers[next] = rightUppers[j];
+          ordinals[next] = right.ordinals[j];
+          rightPositions[j++] = next;
+        }
+      }
+
+      // the ordinals left are distinct, so both orders by ordinal merge without ties
+      final int[] byOrdinal = new int[count];
+
+      for (int i = 0, j = 0, next = 0; next < count; ++next) {
+        while (i < left.size() && leftDropped[left.byOrdinal[i]]) {
+          ++i;
+        }
+
+        while (j < right.size() && rightDropped[right.byOrdinal[j]]) {
+          ++j;
+        }
+
+        if (j == right.size()
+            || (i < left.size()
+                && left.ordinals[left.byOrdinal[i]] < right.ordinals[right.byOrdinal[j]])) {
+          byOrdinal[next] = leftPositions[left.byOrdinal[i++]];
+        } else {
+          byOrdinal[next] = rightPositions[right.byOrdinal[j++]];
+        }
+      }
+
+      return new Run(lowers, uppers, ordinals, byOrdinal);
+    }
+
+    private Run without(IntPredicate predicate) {
+      final int[] positions = new int[ordinals.length];
+      int count = 0;
+
+      for (int i = 0; i < ordinals.length; ++i) {
+        positions[i] = predicate.test(ordinals[i]) ? -1 : count++;
+      }
+
+      if (count == ordinals.length) {
+        return this;
+      }
+
+      final long[] nextLowers = new long[count];
+      final long[] nextUppers = new long[count];
+      final int[] nextOrdinals = new int[count];
+      final int[] nextByOrdinal = new int[count];
+
+      for (int i = 0; i < ordinals.length; ++i) {
+        if (positions[i] >= 0) {
+          nextLowers[positions[i]] = lowers[i];
+          nextUppers[positions[i]] = uppers[i];
+          nextOrdinals[positions[i]] = ordinals[i];
+        }
+      }
+
+      for (int i = 0, next = 0; i < byOrdinal.length; ++i) {
+        if (positions[byOrdinal[i]] >= 0) {
+          nextByOrdinal[next++] = positions[byOrdinal[i]];
+        }
+      }
+
+      return new Run(nextLowers, nextUppers, nextOrdinals, nextByOrdinal);
+    }
+    // Returns true if the run holds a span of the master entity covering the given one
+    private boolean covers(int ordinal, long lower, long upper) {
+      int low = 0;
+      int high = byOrdinal.length - 1;
+
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final int position = byOrdinal[mid];
+
+        if (ordinals[position] < ordinal) {
+          low = mid + 1;
+        } else if (ordinals[position] > ordinal) {
+          high = mid - 1;
+        } else {
+          return lowers[position] <= lower && uppers[position] >= upper;
+        }
+      }
+
+      return false;
+    }
+
+    private void forEachOverlapping(long lower, long upper, IntConsumer consumer) {
+      forEachOverlapping(0, lowers.length, lower, upper, consumer);
+    }
+
+    // Visits the spans of the subtree over [from, to) overlapping the inclusive bounds, subtrees
+    // ending before the lower bound and spans starting after the upper bound are skipped whole
+    private void forEachOverlapping(
+        int from, int to, long lower, long upper, IntConsumer consumer) {
+      while (from < to) {
+        final int mid = (from + to) >>> 1;
+
+        if (maxUppers[mid] < lower) {
+          return;
+        }
+
+        forEachOverlapping(from, mid, lower, upper, consumer);
+
+        if (lowers[mid] > upper) {
+          return;
+        }
+
+        if (uppers[mid] >= lower) {
+          consumer.accept(ordinals[mid]);
+        }
+
+        from = mid + 1;
+      }
+    }
+
+    // Computes the largest upper endpoint of the subtree over [from, to), rooted at its middle
+    private long augment(int from, int to) {
+      if (from >= to) {
+        return Long.MIN_VALUE;
+      }
+
+      final int mid = (from + to) >>> 1;
+
+      maxUppers[mid] =
+          Math.max(uppers[mid], Math.max(augment(from, mid), augment(mid + 1, to)));
+
+      return maxUppers[mid];
+    }
+  }
+}
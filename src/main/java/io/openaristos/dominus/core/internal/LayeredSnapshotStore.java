@@ -0,0 +1,670 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+// Serves snapshots from an immutable base mapped read-only from files, layered under an on-heap
+// delta of the snapshots changed since the base was written. Reads decode straight from the
+// mapping, updates only touch the delta, and once the delta grows past its threshold a background
+// thread writes a new base holding both and swaps it in, so appends never wait on the files.
+//
+// Bases are keyed by identity ordinal and numbered by generation, and outlive the store together
+// with the names of the attributes their records number. A full checkpoint freezes the delta,
+// persists it with the base into a new generation and only holds the number of that generation,
+// which the store keeps until a later checkpoint replaces it. A restore opens that generation as
+// the base, so no snapshot is read back from the checkpoint or encoded again. As on the heap, a
+// master entity shares the snapshot of the identity it was created from, such snapshots stay on
+// the heap and those its master entity modified since they were last updated are encoded from the
+// image of the checkpoint as they are persisted.
+public class LayeredSnapshotStore implements SnapshotStore, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(LayeredSnapshotStore.class);
+
+  private static final String BASE_SUFFIX = ".base";
+  private static final String INDEX_SUFFIX = ".index";
+  private static final String ATTRIBUTES_SUFFIX = ".attributes";
+
+  private final SnapshotCodec codec = new SnapshotCodec();
+  private final File directory;
+  private final String name;
+  private final int mergeThreshold;
+
+  // Entity model the attributes of an opened base are found in, and the ordinal of every identity
+  // keying the snapshots of a base
+  private volatile LocalEntityModel entityModel;
+  private volatile ToIntFunction<LocalMasterableEntityIdentity> ordinals = x -> -1;
+
+  // Snapshots changed since the base was written, together with their encoded record
+  private volatile Map<LocalMasterableEntityIdentity, Delta> delta = Maps.newConcurrentMap();
+
+  // Snapshots changed before the last freeze, until they are persisted into the base
+  private volatile Map<LocalMasterableEntityIdentity, Delta> frozen;
+
+  // Snapshots shared as the descriptors of the master entities created from their identities, by
+  // identity and by snapshot
+  private final Map<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      shared = Maps.newConcurrentMap();
+  private final Map<
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>,
+          LocalMasterableEntityIdentity>
+      owners = Collections.synchronizedMap(Maps.newIdentityHashMap());
+
+  // Shared snapshots modified through their master entity since the last update of their identity
+  // or the last freeze, and those modified before the last freeze
+  private final Set<LocalMasterableEntityIdentity> modified = Sets.newConcurrentHashSet();
+  private volatile Set<LocalMasterableEntityIdentity> unpublished = ImmutableSet.of();
+
+  // Recently used snapshots, decoded
+  private final Cache<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      hot;
+
+  private final ExecutorService merger;
+  private final AtomicBoolean merging = new AtomicBoolean(false);
+
+  private volatile MappedSnapshotBase base = MappedSnapshotBase.empty();
+
+  // Latest generation written to the directory, by this store or an earlier one
+  private final AtomicInteger generation;
+
+  // Generations persisted for the checkpoint being written and the last one written, kept with the
+  // base. Generations from staleFrom on are deleted once stale, earlier ones are left to open.
+  private volatile int persisted = -1;
+  private volatile int committed = -1;
+  private volatile int staleFrom;
+
+  private LayeredSnapshotStore(
+      File directory, String name, int mergeThreshold, long hotSetSize, int generation) {
+    this.directory = directory;
+    this.name = name;
+    this.mergeThreshold = mergeThreshold;
+    this.hot = CacheBuilder.newBuilder().maximumSize(hotSetSize).build();
+    this.generation = new AtomicInteger(generation);
+    this.staleFrom = generation + 1;
+    this.merger =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("snapshot-merge-" + name + "-%d")
+                .build());
+  }
+
+  // A store whose bases are files of the directory named after the store, merging the delta once
+  // it holds mergeThreshold snapshots. Bases left by an earlier store are kept until one is opened.
+  public static LayeredSnapshotStore of(
+      File directory, String name, int mergeThreshold, long hotSetSize) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("failed to create snapshot directory " + directory);
+    }
+
+    return new LayeredSnapshotStore(
+        directory, name, mergeThreshold, hotSetSize, getLatestGeneration(directory, name));
+  }
+
+  @Override
+  public void bind(
+      LocalEntityModel entityModel, ToIntFunction<LocalMasterableEntityIdentity> ordinals) {
+    this.entityModel = entityModel;
+    this.ordinals = ordinals;
+  }
+
+  @Override
+  public boolean contains(LocalMasterableEntityIdentity identity) {
+    final Map<LocalMasterableEntityIdentity, Delta> frozenNow = frozen;
+
+    return delta.containsKey(identity)
+        || (frozenNow != null && frozenNow.containsKey(identity))
+        || base.contains(ordinals.applyAsInt(identity));
+  }
+
+  @Override
+  public void create(LocalMasterableEntityIdentity identity) {
+    if (contains(identity)) {
+      return;
+    }
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        Maps.newConcurrentMap();
+
+    if (delta.putIfAbsent(identity, new Delta(snapshot, codec.encode(snapshot))) == null) {
+      hot.put(identity, snapshot);
+    }
+  }
+
+  @Override
+  public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> get(
+      LocalMasterableEntityIdentity identity) {
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> pinned =
+        shared.get(identity);
+
+    if (pinned != null) {
+      return pinned;
+    }
+
+    // a freeze moves the delta before replacing it, and a merge or persist swaps its base in
+    // before it drops the layer it merged, so layers read in this order always hold the identity
+    Delta changed = delta.get(identity);
+
+    if (changed == null) {
+      final Map<LocalMasterableEntityIdentity, Delta> frozenNow = frozen;
+      changed = frozenNow == null ? null : frozenNow.get(identity);
+    }
+
+    if (changed != null) {
+      return changed.snapshot;
+    }
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> cached =
+        hot.getIfPresent(identity);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    final ByteBuffer record = base.read(ordinals.applyAsInt(identity));
+
+    if (record == null) {
+      return null;
+    }
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> decoded =
+        codec.decode(record);
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> raced =
+        hot.asMap().putIfAbsent(identity, decoded);
+
+    return raced != null ? raced : decoded;
+  }
+
+  @Override
+  public void update(
+      LocalMasterableEntityIdentity identity,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    // encoded while the caller holds the locks of the identity, so a merge never sees it change
+    final Delta changed = new Delta(snapshot, codec.encode(snapshot));
+    final Map<LocalMasterableEntityIdentity, Delta> current = delta;
+
+    hot.put(identity, snapshot);
+    current.put(identity, changed);
+    modified.remove(identity);
+
+    // frozen snapshots are merged as they are persisted
+    if (current.size() >= mergeThreshold
+        && frozen == null
+        && merging.compareAndSet(false, true)) {
+      merger.execute(this::mergeInBackground);
+    }
+  }
+
+  @Override
+  public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> share(
+      LocalMasterableEntityIdentity identity) {
+    return shared.computeIfAbsent(
+        identity,
+        x -> {
+          final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot = get(x);
+
+          owners.put(snapshot, x);
+
+          return snapshot;
+        });
+  }
+
+  @Override
+  public void markModified(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    final LocalMasterableEntityIdentity owner = owners.get(snapshot);
+
+    if (owner != null) {
+      modified.add(owner);
+    }
+  }
+
+  @Override
+  public int size() {
+    final MappedSnapshotBase current = base;
+    final Map<LocalMasterableEntityIdentity, Delta> frozenNow = frozen;
+
+    int size = current.count();
+
+    for (LocalMasterableEntityIdentity identity : delta.keySet()) {
+      if (!current.contains(ordinals.applyAsInt(identity))
+          && (frozenNow == null || !frozenNow.containsKey(identity))) {
+        ++size;
+      }
+    }
+
+    if (frozenNow != null) {
+      for (LocalMasterableEntityIdentity identity : frozenNow.keySet()) {
+        if (!current.contains(ordinals.applyAsInt(identity))) {
+          ++size;
+        }
+      }
+    }
+
+    return size;
+  }
+
+  // Visits the shared snapshots, the delta and the hot set, every other snapshot is only mapped
+  @Override
+  public void forEachOnHeap(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+          consumer) {
+    final Map<LocalMasterableEntityIdentity, Delta> changed = delta;
+    final Map<LocalMasterableEntityIdentity, Delta> frozenNow = frozen;
+
+    shared.forEach(consumer);
+    changed.forEach(
+        (x, y) -> {
+          if (!shared.containsKey(x)) {
+            consumer.accept(x, y.snapshot);
+          }
+        });
+
+    if (frozenNow != null) {
+      frozenNow.forEach(
+          (x, y) -> {
+            if (!shared.containsKey(x) && !changed.containsKey(x)) {
+              consumer.accept(x, y.snapshot);
+            }
+          });
+    }
+
+    hot.asMap()
+        .forEach(
+            (x, y) -> {
+              if (!shared.containsKey(x)
+                  && !changed.containsKey(x)
+                  && (frozenNow == null || !frozenNow.containsKey(x))) {
+                consumer.accept(x, y);
+              }
+            });
+  }
+
+  // Bytes of the mapped base
+  @Override
+  public long getOffHeapBytes() {
+    return base.size();
+  }
+
+  // Moves the delta aside, so snapshots changed from now on are left out of the next generation.
+  // A delta frozen earlier and never persisted is frozen again with it.
+  @Override
+  public Set<LocalMasterableEntityIdentity> freeze() {
+    final Map<LocalMasterableEntityIdentity, Delta> frozenNow = frozen;
+
+    if (frozenNow == null) {
+      frozen = delta;
+      unpublished = ImmutableSet.copyOf(modified);
+    } else {
+      frozenNow.putAll(delta);
+      unpublished = ImmutableSet.copyOf(Sets.union(unpublished, modified));
+    }
+
+    delta = Maps.newConcurrentMap();
+    modified.clear();
+
+    return unpublished;
+  }
+
+  // Writes the frozen snapshots with the base into a new generation and swaps it in, or keeps the
+  // base as it is when nothing changed since it was written
+  @Override
+  public int persist(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Consumer<Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>>
+          frozenSnapshots)
+      throws IOException {
+    return onMerger(
+        () -> {
+          final Map<LocalMasterableEntityIdentity, Delta> merged = frozen;
+          final MappedSnapshotBase current = base;
+
+          if (merged == null) {
+            throw new IOException("no snapshots of " + name + " are frozen");
+          }
+
+          final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList(unpublished);
+          final Map<LocalMasterableEntityIdentity, Delta> published = Maps.newHashMap(merged);
+
+          // shared snapshots are encoded as they were frozen, over their last update
+          identities.sort(Comparator.comparingInt(ordinals));
+          identities.forEach(
+              x ->
+                  frozenSnapshots.accept(
+                      x, y -> published.put(x, new Delta(y, codec.encode(y)))));
+
+          if (!published.isEmpty() || current.generation() < 0) {
+            base = write(current, published);
+          }
+
+          frozen = null;
+          unpublished = ImmutableSet.of();
+          persisted = base.generation();
+
+          return persisted;
+        },
+        "persisting");
+  }
+
+  @Override
+  public void commit() {
+    committed = persisted;
+    staleFrom = 0;
+
+    merger.execute(this::deleteStale);
+  }
+
+  @Override
+  public void open(int generation) throws IOException {
+    onMerger(
+        () -> {
+          if (size() > 0) {
+            throw new IOException("snapshots of " + name + " are only opened into an empty store");
+          }
+
+          codec.setAttributes(readAttributes(generation));
+          base =
+              MappedSnapshotBase.open(
+                  getFile(generation, BASE_SUFFIX), getFile(generation, INDEX_SUFFIX), generation);
+          this.generation.accumulateAndGet(generation, Math::max);
+          persisted = generation;
+          committed = generation;
+          staleFrom = 0;
+
+          deleteStale();
+
+          LOG.info("opened {} snapshots of `{}` at generation {}", base.count(), name, generation);
+
+          return null;
+        },
+        "opening");
+  }
+
+  // Generation of the base snapshots are read from, -1 until one is written or opened
+  public int getGeneration() {
+    return base.generation();
+  }
+
+  // Snapshots changed since the base was written
+  public int getDeltaSize() {
+    final Map<LocalMasterableEntityIdentity, Delta> frozenNow = frozen;
+
+    return delta.size() + (frozenNow == null ? 0 : frozenNow.size());
+  }
+
+  // Merges the delta into a new base, waiting until it is swapped in
+  public void merge() throws IOException {
+    onMerger(
+        () -> {
+          mergeDelta();
+          return null;
+        },
+        "merging");
+  }
+
+  // Stops merging, every base stays on disk for a later store to open
+  @Override
+  public void close() throws IOException {
+    merger.shutdown();
+
+    try {
+      merger.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while closing snapshots of " + name);
+    }
+  }
+
+  private <T> T onMerger(Callable<T> task, String action) throws IOException {
+    try {
+      return merger.submit(task).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while " + action + " snapshots of " + name);
+    } catch (ExecutionException ex) {
+      throw new IOException("failed " + action + " snapshots of " + name, ex.getCause());
+    }
+  }
+
+  private void mergeInBackground() {
+    try {
+      mergeDelta();
+    } catch (IOException ex) {
+      LOG.error("failed to merge snapshots of `{}`, the delta is kept", name, ex);
+    } finally {
+      merging.set(false);
+    }
+  }
+
+  // Writes the base and the delta into a new base. Only runs on the merger thread.
+  private void mergeDelta() throws IOException {
+    final Map<LocalMasterableEntityIdentity, Delta> source = delta;
+
+    // a delta frozen since it was read is merged as it is persisted, the base may not gain any
+    // snapshot changed after the freeze
+    if (frozen != null || source.isEmpty()) {
+      return;
+    }
+
+    final Map<LocalMasterableEntityIdentity, Delta> merged = Maps.newHashMap(source);
+
+    base = write(base, merged);
+
+    // snapshots updated during the merge stay in the delta, their update is not in the base
+    merged.forEach(source::remove);
+
+    deleteStale();
+  }
+
+  // Writes the base with the given snapshots in place of its own into the next generation. Only
+  // runs on the merger thread.
+  private MappedSnapshotBase write(
+      MappedSnapshotBase current, Map<LocalMasterableEntityIdentity, Delta> changed)
+      throws IOException {
+    final SortedMap<Integer, Delta> byOrdinal = Maps.newTreeMap();
+
+    for (Map.Entry<LocalMasterableEntityIdentity, Delta> entry : changed.entrySet()) {
+      final int ordinal = ordinals.applyAsInt(entry.getKey());
+
+      if (ordinal < 0) {
+        throw new IOException("a snapshot of " + name + " has no ordinal");
+      }
+
+      byOrdinal.put(ordinal, entry.getValue());
+    }
+
+    final int next = generation.incrementAndGet();
+    final int count =
+        Math.max(current.ordinals(), byOrdinal.isEmpty() ? 0 : byOrdinal.lastKey() + 1);
+    final File records = getFile(next, BASE_SUFFIX);
+    final File index = getFile(next, INDEX_SUFFIX);
+    final File attributes = getFile(next, ATTRIBUTES_SUFFIX);
+    final MappedSnapshotBase written;
+
+    try (MappedSnapshotBase.Writer writer = MappedSnapshotBase.create(records, index, next)) {
+      for (int ordinal = 0; ordinal < count; ++ordinal) {
+        final Delta record = byOrdinal.get(ordinal);
+
+        if (record != null) {
+          writer.write(ordinal, record.record);
+        } else if (current.contains(ordinal)) {
+          writer.write(ordinal, current.read(ordinal));
+        }
+      }
+
+      // every record is encoded by now, so the attributes numbered so far cover all of them
+      writeAttributes(attributes, codec.getAttributeNames());
+      written = writer.map();
+    } catch (IOException ex) {
+      delete(records);
+      delete(index);
+      delete(attributes);
+
+      throw ex;
+    }
+
+    LOG.debug(
+        "merged {} snapshots of `{}` into generation {} of {} bytes",
+        changed.size(),
+        name,
+        next,
+        written.size());
+
+    return written;
+  }
+
+  // Deletes the files of every generation neither served, persisted nor committed. Only runs on
+  // the merger thread.
+  private void deleteStale() {
+    final int served = base.generation();
+
+    for (File file : listFiles(directory, name)) {
+      final int number = parseGeneration(name, file.getName());
+
+      if (number >= staleFrom && number != served && number != persisted && number != committed) {
+        delete(file);
+      }
+    }
+  }
+
+  // Writes the names of the attributes the records of a generation number, synced
+  private static void writeAttributes(File file, List<String> names) throws IOException {
+    try (FileOutputStream stream = new FileOutputStream(file);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream))) {
+      output.writeInt(names.size());
+
+      for (String attribute : names) {
+        output.writeUTF(attribute);
+      }
+
+      output.flush();
+      stream.getFD().sync();
+    }
+  }
+
+  // Reads back the attributes the records of a generation number, as the entity model declares
+  // them
+  private List<LocalEntityModel.Attribute> readAttributes(int generation) throws IOException {
+    final File file = getFile(generation, ATTRIBUTES_SUFFIX);
+    final Map<String, LocalEntityModel.Attribute> declared = entityModel.getAttributeByName();
+    final List<LocalEntityModel.Attribute> attributes = Lists.newArrayList();
+
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      for (int i = input.readInt(); i > 0; --i) {
+        final String attribute = input.readUTF();
+
+        if (!declared.containsKey(attribute)) {
+          throw new IOException("attribute `" + attribute + "` of " + file + " is not declared");
+        }
+
+        attributes.add(declared.get(attribute));
+      }
+    }
+
+    return attributes;
+  }
+
+  private File getFile(int generation, String suffix) {
+    return new File(directory, name + "." + generation + suffix);
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  // Latest generation of the store in the directory, 0 if it holds none
+  private static int getLatestGeneration(File directory, String name) {
+    int latest = 0;
+
+    for (File file : listFiles(directory, name)) {
+      latest = Math.max(latest, parseGeneration(name, file.getName()));
+    }
+
+    return latest;
+  }
+
+  private static File[] listFiles(File directory, String name) {
+    final File[] files = directory.listFiles((x, y) -> parseGeneration(name, y) != null);
+
+    return files == null ? new File[0] : files;
+  }
+
+  // Returns the generation of a file of the store, or null for any other file. Names of other
+  // stores may extend the prefix.
+  private static Integer parseGeneration(String name, String fileName) {
+    final String prefix = name + ".";
+    String suffix = null;
+
+    for (String candidate : new String[] {BASE_SUFFIX, INDEX_SUFFIX, ATTRIBUTES_SUFFIX}) {
+      if (fileName.endsWith(candidate)) {
+        suffix = candidate;
+      }
+    }
+
+    if (suffix == null || !fileName.startsWith(prefix)) {
+      return null;
+    }
+
+    final Integer number =
+        Ints.tryParse(fileName.substring(prefix.length(), fileName.length() - suffix.length()));
+
+    return number != null && number > 0 ? number : null;
+  }
+
+  private static class Delta {
+    private final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot;
+    private final byte[] record;
+
+    private Delta(
+        Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot, byte[] record) {
+      this.snapshot = snapshot;
+      this.record = record;
+    }
+  }
+}
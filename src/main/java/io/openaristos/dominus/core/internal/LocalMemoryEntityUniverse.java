@@ -1,14 +1,29 @@
 package io.openaristos.dominus.core.internal;
 
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.*;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Striped;
 import io.openaristos.dominus.DominusApplication;
 import io.openaristos.dominus.core.*;
 import lombok.EqualsAndHashCode;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 // An entity universe is an isolated container of entities
@@ -16,125 +31,1108 @@ import java.util.stream.Collectors;
 public class LocalMemoryEntityUniverse implements EntityUniverse {
   private static final Logger LOG = LoggerFactory.getLogger(DominusApplication.class);
 
+  // Number of lock stripes used to partition appends by blocking key
+  private static final int BLOCKING_LOCK_STRIPES = 1024;
+
+  // Maximum number of tombstoned master entities compacted after every append
+  private static final int COMPACTION_BATCH = 16;
+
+  // Number of resolutions cached by default
+  private static final long DEFAULT_RESOLVE_CACHE_SIZE = 10_000;
+
+  // Minimum number of dirty identities worth partitioning into groups resolved in parallel
+  private static final int PARALLEL_RESOLUTION_THRESHOLD = 64;
+
+  // Blocking keys posted under more master entities are too common to tell values apart, like stop
+  // words they are saturated and from then on neither posted, probed nor locked
+  private static final int MAX_BLOCK_SIZE = 1_000;
+
   private final EntityType entityType;
+
+  // Snapshot of every identity, on the heap unless an off-heap store is given
+  private final SnapshotStore entitySnapshot;
+
+  // Dense ordinal of every identity, assigned when its snapshot is created
+  private final Map<LocalMasterableEntityIdentity, Integer> identityOrdinals =
+      Maps.newConcurrentMap();
+  private final AtomicInteger nextIdentityOrdinal = new AtomicInteger(0);
+
+  // Live master entities, ordered by ordinal so they can be listed page by page
+  private final MasterEntityCatalog masterEntities = new MasterEntityCatalog();
+
+  // Map from masterable entity identity to master entity and it's members
   private final Map<
-          LocalMasterableEntityIdentity,
-          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
-      entitySnapshot = Maps.newHashMap();
-  private final Set<LocalMasterEntity> candidateForDeprecation = Sets.newHashSet();
-
-  // A masterable entity is dirty when it is new, changed, or peer master entity member has changed
-  private final Set<LocalMasterableEntityIdentity> dirtyIdentities =
-      Sets.newTreeSet(
-          (o1, o2) -> {
-            final Iterator<LocalEntityModel.Resolver> srcResolvers =
-                getMatchingResolvers(o1).iterator();
-
-            if (!srcResolvers.hasNext()) {
-              LOG.error("Could not find matcher for `{}`", o1);
-              return 1;
+          LocalMasterableEntityIdentity, Map<LocalMasterEntity, Set<LocalMasterEntityMembership>>>
+      identityToMasterEntity = Maps.newConcurrentMap();
+
+  // Set of masterable entities that are unresolved
+  private final Set<LocalMasterableEntityIdentity> unresolved = Sets.newConcurrentHashSet();
+
+  // Resolvers applicable to each identity, recomputed only when its snapshot gains an attribute
+  private final Map<LocalMasterableEntityIdentity, ResolverApplicability> applicableResolvers =
+      Maps.newConcurrentMap();
+
+  // A single instance of every descriptor value held by this universe
+  private final StringPool valuePool = new StringPool();
+
+  // Dense keys for every attribute value seen by this universe
+  private final AttributeValueDictionary dictionary = new AttributeValueDictionary(valuePool);
+
+  // Map from interned attribute value to master entities
+  private final MasterEntityIndex masterEntityByAttribute = new MasterEntityIndex();
+
+  // Blocking keys posted under more than MAX_BLOCK_SIZE master entities, a key once saturated stays
+  // so, as appends only post under the keys they lock
+  private final Set<Integer> saturatedBlocks = Sets.newConcurrentHashSet();
+
+  // Span of effective dating over which every master entity holds each interned attribute value
+  private final IntervalIndex masterEntityByDating = new IntervalIndex();
+
+  // Sorted index of the values of every attribute matched within a window
+  private final Map<LocalEntityModel.Attribute, SortedValueIndex> sortedValues =
+      Maps.newConcurrentMap();
+
+  // Locks striped by blocking key, appends sharing no candidate cluster never contend
+  private final Striped<Lock> blockingLocks = Striped.lock(BLOCKING_LOCK_STRIPES);
+
+  // Incremented as every append completes, lets an uncontended append skip recomputing its keys
+  private final AtomicLong appendVersion = new AtomicLong(0);
+
+  // Recent resolutions, served until a key they probed changes
+  private final ResolveCache resolveCache;
+
+  // Pool resolving independent groups of dirty identities in parallel, null to resolve in sequence
+  private final ForkJoinPool resolutionPool;
+
+  // How clusters touched by a changed identity are rebuilt
+  private final Reclustering reclustering;
+
+  // Current uid of every deprecated master entity
+  private final DeprecationLineage lineage = new DeprecationLineage();
+
+  // Changes since the last checkpoint, swapped while every blocking lock is held
+  private volatile CheckpointChanges changes = new CheckpointChanges();
+
+  // Image of the checkpoint being written, appends preserve into it what they change
+  private volatile CheckpointImage image;
+
+  public LocalMemoryEntityUniverse(EntityType entityType) {
+    this(entityType, DEFAULT_RESOLVE_CACHE_SIZE);
+  }
+
+  public LocalMemoryEntityUniverse(EntityType entityType, long resolveCacheSize) {
+    this(entityType, resolveCacheSize, null);
+  }
+
+  public LocalMemoryEntityUniverse(
+      EntityType entityType, long resolveCacheSize, ForkJoinPool resolutionPool) {
+    this(entityType, resolveCacheSize, resolutionPool, Reclustering.FULL);
+  }
+
+  public LocalMemoryEntityUniverse(
+      EntityType entityType,
+      long resolveCacheSize,
+      ForkJoinPool resolutionPool,
+      Reclustering reclustering) {
+    this(entityType, resolveCacheSize, resolutionPool, reclustering, new HeapSnapshotStore());
+  }
+
+  public LocalMemoryEntityUniverse(
+      EntityType entityType,
+      long resolveCacheSize,
+      ForkJoinPool resolutionPool,
+      Reclustering reclustering,
+      SnapshotStore snapshotStore) {
+    this.entityType = entityType;
+    this.resolveCache = new ResolveCache(resolveCacheSize);
+    this.resolutionPool = resolutionPool;
+    this.reclustering = reclustering;
+    this.entitySnapshot = snapshotStore;
+
+    snapshotStore.bind(
+        entityType.getLocalEntityModel(), x -> identityOrdinals.getOrDefault(x, -1));
+  }
+
+  public static LocalMemoryEntityUniverse of(EntityType entityType) {
+    return new LocalMemoryEntityUniverse(entityType);
+  }
+
+  public static LocalMemoryEntityUniverse of(EntityType entityType, long resolveCacheSize) {
+    return new LocalMemoryEntityUniverse(entityType, resolveCacheSize);
+  }
+
+  public static LocalMemoryEntityUniverse of(
+      EntityType entityType, long resolveCacheSize, ForkJoinPool resolutionPool) {
+    return new LocalMemoryEntityUniverse(entityType, resolveCacheSize, resolutionPool);
+  }
+
+  public static LocalMemoryEntityUniverse of(EntityType entityType, Reclustering reclustering) {
+    return new LocalMemoryEntityUniverse(
+        entityType, DEFAULT_RESOLVE_CACHE_SIZE, null, reclustering);
+  }
+
+  public static LocalMemoryEntityUniverse of(
+      EntityType entityType, Reclustering reclustering, SnapshotStore snapshotStore) {
+    return new LocalMemoryEntityUniverse(
+        entityType, DEFAULT_RESOLVE_CACHE_SIZE, null, reclustering, snapshotStore);
+  }
+
+  public static LocalMemoryEntityUniverse of(
+      EntityType entityType,
+      Reclustering reclustering,
+      SnapshotStore snapshotStore,
+      ForkJoinPool resolutionPool) {
+    return new LocalMemoryEntityUniverse(
+        entityType, DEFAULT_RESOLVE_CACHE_SIZE, resolutionPool, reclustering, snapshotStore);
+  }
+
+  @Override
+  public AppendResult append(LocalMasterableEntity e) {
+    return withBlockingLocks(ImmutableList.of(e), () -> applyAppend(e));
+  }
+
+  @Override
+  public BatchAppendResult appendAll(Collection<LocalMasterableEntity> entities) {
+    return withBlockingLocks(entities, () -> applyAppendAll(entities));
+  }
+
+  // Runs the action while holding the blocking locks of every cluster the entities may touch
+  private <T> T withBlockingLocks(
+      Collection<LocalMasterableEntity> entities, Supplier<T> action) {
+    // an entity without descriptors resolves to every master entity, so it locks all of them
+    if (entities.stream().anyMatch(e -> e.getDescriptors().isEmpty())) {
+      final List<T> result = Lists.newArrayListWithCapacity(1);
+
+      withAllBlockingLocks(
+          () -> {
+            try {
+              result.add(action.get());
+            } finally {
+              appendVersion.incrementAndGet();
             }
+          });
+
+      compact(COMPACTION_BATCH);
+
+      return result.get(0);
+    }
+
+    // blocking keys guarded by the locks we are about to take
+    final Set<Object> blockingKeys = Sets.newHashSet();
+
+    while (true) {
+      final long observedVersion = appendVersion.get();
+
+      // find the blocking keys of every cluster this append may touch, without holding any lock
+      entities.forEach(e -> blockingKeys.addAll(findBlockingKeys(e)));
+
+      // stripes are returned in a consistent order, so acquiring them in sequence cannot deadlock
+      final Set<Lock> locks = Sets.newLinkedHashSet(blockingLocks.bulkGet(blockingKeys));
+      locks.forEach(Lock::lock);
+
+      try {
+        // clusters may have grown while we were waiting, retry with the wider key set if so
+        if (observedVersion == appendVersion.get()
+            || entities.stream().allMatch(e -> blockingKeys.containsAll(findBlockingKeys(e)))) {
+          try {
+            return action.get();
+          } finally {
+            appendVersion.incrementAndGet();
+          }
+        }
+      } finally {
+        locks.forEach(Lock::unlock);
+
+        // compaction never changes what lookups see, so it does not need any blocking lock
+        compact(COMPACTION_BATCH);
+      }
+    }
+  }
+
+  // Runs the action while holding every blocking lock, so no append runs until it completes.
+  // Stripes are taken in the order every append takes them, so this cannot deadlock either.
+  private void withAllBlockingLocks(Runnable action) {
+    final List<Lock> locks = Lists.newArrayListWithCapacity(blockingLocks.size());
+
+    for (int i = 0; i < blockingLocks.size(); ++i) {
+      locks.add(blockingLocks.getAt(i));
+    }
+
+    locks.forEach(Lock::lock);
+
+    try {
+      action.run();
+    } finally {
+      locks.forEach(Lock::unlock);
+    }
+  }
+
+  // Streams the identities with their snapshots, the members of every live master entity and the
+  // lineage. Indexes are not written, they are rebuilt from the clusters as they are read back.
+  // Appends only wait while the checkpoint is taken, they preserve what they change into its image
+  // while it is written. A snapshot store persisting snapshots is left every snapshot as it was
+  // taken, the checkpoint then only holds the generation it persisted.
+  @Override
+  public synchronized void writeCheckpoint(Output output) {
+    final List<Set<LocalMasterableEntityIdentity>> unpublished = Lists.newArrayList();
+    final AtomicInteger identityCount = new AtomicInteger();
+    final AtomicInteger nextOrdinal = new AtomicInteger();
+    final List<LocalMasterEntity> live = Lists.newArrayList();
+    final DeprecationLineage deprecations = new DeprecationLineage();
+
+    withAllBlockingLocks(
+        () -> {
+          changes = new CheckpointChanges();
+
+          unpublished.add(entitySnapshot.freeze());
+          identityCount.set(identityOrdinals.size());
+          nextOrdinal.set(masterEntityByAttribute.getNextOrdinal());
+
+          // the catalog is ordered by ordinal, as the image is written
+          live.addAll(masterEntities);
+          lineage.forEach(deprecations::record);
+
+          image =
+              new CheckpointImage(
+                  identityOrdinals::get,
+                  x ->
+                      identityOrdinals.get(x) < identityCount.get()
+                          && (unpublished.get(0) == null || unpublished.get(0).contains(x)),
+                  x -> x.getOrdinal() < nextOrdinal.get());
+        });
+
+    try {
+      // the store takes the snapshots it holds no update of from the image
+      final int generation =
+          unpublished.get(0) == null
+              ? -1
+              : entitySnapshot.persist(
+                  (x, y) -> image.write(x, () -> entitySnapshot.get(x), y));
+      final CheckpointCodec codec = new CheckpointCodec(entityType, valuePool);
+      final LocalMasterableEntityIdentity[] identities =
+          new LocalMasterableEntityIdentity[identityCount.get()];
+
+      // identities only ever gain ordinals past those taken
+      identityOrdinals.forEach(
+          (x, y) -> {
+            if (y < identities.length) {
+              identities[y] = x;
+            }
+          });
+
+      output.writeVarInt(generation + 1, true);
+      output.writeVarInt(identities.length, true);
+
+      for (LocalMasterableEntityIdentity identity : identities) {
+        codec.writeIdentity(output, identity);
+
+        if (generation >= 0) {
+          codec.writeHeld(output);
+        } else {
+          image.write(
+              identity,
+              () -> entitySnapshot.get(identity),
+              x -> codec.writeDescriptors(output, x));
+        }
+      }
+
+      output.writeVarInt(live.size(), true);
+
+      for (LocalMasterEntity masterEntity : live) {
+        writeMasterEntity(output, codec, masterEntity);
+      }
+
+      output.writeVarInt(nextOrdinal.get(), true);
+
+      CheckpointCodec.writeLineage(output, deprecations);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      image = null;
+    }
+  }
+
+  // Lets the snapshot store drop the snapshots it persisted for earlier checkpoints
+  @Override
+  public void commitCheckpoint() {
+    entitySnapshot.commit();
+  }
+
+  // Streams what changed since the last checkpoint: every changed identity with its ordinal and
+  // snapshot, the changed master entities which are still live, the ordinals of those retired and
+  // the deprecations recorded. Each part is led by the count of the whole universe, so deltas
+  // apply onto the last full checkpoint without the universe. Appends only wait while the changes
+  // are taken, as with full checkpoints.
+  @Override
+  public synchronized void writeCheckpointDelta(Output output) {
+    final List<CheckpointChanges> taken = Lists.newArrayListWithCapacity(1);
+    final AtomicInteger identityCount = new AtomicInteger();
+    final AtomicInteger masterEntityCount = new AtomicInteger();
+    final AtomicInteger nextOrdinal = new AtomicInteger();
+    final Set<LocalMasterEntity> live = Sets.newHashSet();
+    final List<LocalMasterEntity> retired = Lists.newArrayList();
+    final DeprecationLineage deprecations = new DeprecationLineage();
+
+    withAllBlockingLocks(
+        () -> {
+          taken.add(changes);
+          changes = new CheckpointChanges();
+
+          identityCount.set(identityOrdinals.size());
+          masterEntityCount.set(masterEntities.size());
+          nextOrdinal.set(masterEntityByAttribute.getNextOrdinal());
+
+          for (LocalMasterEntity masterEntity : taken.get(0).getMasterEntities()) {
+            if (masterEntities.contains(masterEntity)) {
+              live.add(masterEntity);
+            } else {
+              retired.add(masterEntity);
+            }
+          }
+
+          lineage.forEach(taken.get(0).getDeprecations(), deprecations::record);
+
+          image =
+              new CheckpointImage(
+                  identityOrdinals::get, taken.get(0).getIdentities()::contains, live::contains);
+        });
+
+    try {
+      final CheckpointCodec codec = new CheckpointCodec(entityType, valuePool);
+      final List<LocalMasterableEntityIdentity> identities =
+          Lists.newArrayList(taken.get(0).getIdentities());
+      final List<LocalMasterEntity> changed = Lists.newArrayList(live);
+
+      // the image is written in ascending ordinal
+      identities.sort(Comparator.comparing(identityOrdinals::get));
+      changed.sort(Comparator.comparing(LocalMasterEntity::getOrdinal));
+
+      output.writeVarInt(identityCount.get(), true);
+      output.writeVarInt(identities.size(), true);
+
+      for (LocalMasterableEntityIdentity identity : identities) {
+        output.writeVarInt(identityOrdinals.get(identity), true);
+        codec.writeIdentity(output, identity);
+        image.write(
+            identity,
+            () -> entitySnapshot.get(identity),
+            x -> codec.writeDescriptors(output, x));
+      }
+
+      output.writeVarInt(masterEntityCount.get(), true);
+      output.writeVarInt(changed.size(), true);
+
+      for (LocalMasterEntity masterEntity : changed) {
+        writeMasterEntity(output, codec, masterEntity);
+      }
+
+      output.writeVarInt(retired.size(), true);
+
+      for (LocalMasterEntity masterEntity : retired) {
+        output.writeVarInt(masterEntity.getOrdinal(), true);
+      }
+
+      output.writeVarInt(nextOrdinal.get(), true);
+
+      CheckpointCodec.writeLineage(output, deprecations);
+    } finally {
+      image = null;
+    }
+  }
+
+  // Writes the master entity with its members as the image of the checkpoint holds them
+  private void writeMasterEntity(
+      Output output, CheckpointCodec codec, LocalMasterEntity masterEntity) {
+    output.writeString(masterEntity.getUid());
+    output.writeVarInt(masterEntity.getOrdinal(), true);
+
+    image.write(
+        masterEntity,
+        members -> {
+          final LocalMasterableEntityIdentity creator = findSharingCreator(masterEntity, members);
+
+          output.writeVarInt(creator == null ? 0 : identityOrdinals.get(creator) + 1, true);
+          output.writeVarInt(members.size(), true);
+
+          members.forEach(
+              (member, memberships) -> {
+                output.writeVarInt(identityOrdinals.get(member), true);
+                codec.writeMemberships(output, memberships);
+              });
+        });
+  }
+
+  // Returns the creator whose snapshot the master entity shares as its descriptors, or null if the
+  // snapshot store gave it a copy
+  private LocalMasterableEntityIdentity findSharingCreator(
+      LocalMasterEntity masterEntity,
+      Map<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>> members) {
+    for (Map.Entry<LocalMasterableEntityIdentity, Set<LocalMasterEntityMembership>> member :
+        members.entrySet()) {
+      if (member.getValue().stream().anyMatch(LocalMasterEntityMembership::isResolvedByCreation)
+          && masterEntity.getDescriptors() == entitySnapshot.get(member.getKey())) {
+        return member.getKey();
+      }
+    }
+
+    return null;
+  }
+
+  // Restores a checkpoint into this universe, which must be empty. Master entities are rebuilt
+  // from the snapshots of their members, the way appends build them, without resolving anything.
+  // Snapshots the checkpoint left to the snapshot store are opened where it persisted them, only
+  // the others are read back.
+  @Override
+  public void readCheckpoint(Input input) {
+    if (entitySnapshot.size() > 0) {
+      throw new IllegalStateException("checkpoints are only restored into an empty universe");
+    }
+
+    withAllBlockingLocks(
+        () -> {
+          final CheckpointCodec codec = new CheckpointCodec(entityType, valuePool);
+          final int generation = input.readVarInt(true) - 1;
+
+          if (generation >= 0) {
+            try {
+              entitySnapshot.open(generation);
+            } catch (IOException ex) {
+              throw new UncheckedIOException(ex);
+            }
+          }
+
+          final LocalMasterableEntityIdentity[] identities =
+              new LocalMasterableEntityIdentity[input.readVarInt(true)];
+
+          for (int i = 0; i < identities.length; ++i) {
+            final LocalMasterableEntityIdentity identity = codec.readIdentity(input);
+            final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors =
+                codec.readDescriptors(input);
+
+            if (descriptors != null) {
+              applySnapshot(identity);
+
+              final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+                  entitySnapshot.get(identity);
+
+              snapshot.putAll(descriptors);
+              entitySnapshot.update(identity, snapshot);
+            } else if (generation >= 0) {
+              // identities are written in ordinal order, the generation holds the snapshot under
+              // the same ordinal
+              identityOrdinals.put(identity, nextIdentityOrdinal.getAndIncrement());
+            } else {
+              throw new IllegalStateException("no generation holds the snapshot of " + identity);
+            }
+
+            identities[i] = identity;
+          }
+
+          for (int i = input.readVarInt(true); i > 0; --i) {
+            final String uid = input.readString();
+            final int ordinal = input.readVarInt(true);
+            final int shared = input.readVarInt(true) - 1;
+
+            final LocalMasterEntity masterEntity =
+                new LocalMasterEntity(
+                    uid,
+                    ordinal,
+                    entityType.getName(),
+                    shared < 0
+                        ? Maps.newConcurrentMap()
+                        : entitySnapshot.share(identities[shared]));
+
+            masterEntityByAttribute.register(masterEntity);
+            masterEntities.add(masterEntity);
+
+            for (int j = input.readVarInt(true); j > 0; --j) {
+              final LocalMasterableEntityIdentity member = identities[input.readVarInt(true)];
+
+              addMember(masterEntity, member, codec.readMemberships(input, member));
+            }
+          }
+
+          masterEntityByAttribute.setNextOrdinal(input.readVarInt(true));
+
+          CheckpointCodec.readLineage(input, lineage);
+
+          // the universe now holds just what the checkpoint does
+          changes = new CheckpointChanges();
+        });
+  }
+
+  // Removes up to the given number of tombstoned master entities from the candidate index
+  public void compact(int limit) {
+    for (int i = 0; i < limit; ++i) {
+      final LocalMasterEntity tombstone = masterEntityByAttribute.pollTombstone();
+
+      if (tombstone == null) {
+        return;
+      }
+
+      // a master entity is posted under its descriptors and the descriptors of its identities
+      tombstone
+          .getDescriptors()
+          .forEach((x, y) -> y.keySet().forEach(value -> compact(x, value)));
+
+      tombstone
+          .getMemberIdentities()
+          .keySet()
+          .forEach(identity -> identity.getDescriptorMap().forEach(this::compact));
+    }
+  }
+
+  private void compact(LocalEntityModel.Attribute attribute, String value) {
+    forEachPostedKey(attribute, value, masterEntityByAttribute::compact);
+
+    final int key = dictionary.find(attribute, value);
+
+    if (key != AttributeValueDictionary.MISSING) {
+      masterEntityByDating.removeIf(key, x -> masterEntityByAttribute.get(x) == null);
+    }
+  }
+
+  // Visits every existing key a master entity carrying the attribute value is reachable through
+  private void forEachPostedKey(
+      LocalEntityModel.Attribute attribute, String value, IntConsumer consumer) {
+    final int key = dictionary.find(attribute, value);
+
+    if (key != AttributeValueDictionary.MISSING) {
+      consumer.accept(key);
+    }
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+    final List<String> blockingKeys = Lists.newArrayList();
+
+    // windowed values are found in the sorted index, the bucket of the value versions them
+    if (matcher != null && matcher.getWindow() != null) {
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (!Double.isNaN(number)) {
+        blockingKeys.add(Long.toString(matcher.getWindow().bucket(number)));
+      }
+    } else if (matcher != null) {
+      blockingKeys.addAll(matcher.getBlocking().indexKeys(value));
+    }
+
+    for (String blockingKey : blockingKeys) {
+      final int blockingKeyId = dictionary.findBlockingKey(attribute, blockingKey);
+
+      if (blockingKeyId != AttributeValueDictionary.MISSING) {
+        consumer.accept(blockingKeyId);
+      }
+    }
+  }
+
+  // Applies an append, the caller must hold the blocking locks of every affected cluster
+  private AppendResult applyAppend(LocalMasterableEntity e) {
+
+    // identities dirtied and master entities deprecated by this append
+    final DirtyIdentityQueue dirtyIdentities = newDirtyIdentities();
+    final Set<LocalMasterEntity> candidateForDeprecation = Sets.newHashSet();
+
+    // get the identity of the masterable entity
+    final LocalMasterableEntityIdentity identity = e.getMasterableEntityIdentity();
+
+    // flag to mark whether it is a new identity
+    final boolean isNew = applySnapshot(identity);
+
+    // apply the mutation and check if it modified the structure of the identity
+    final boolean changed = applyMutation(e, identity);
+
+    applyDirtying(identity, changed || isNew, dirtyIdentities, candidateForDeprecation);
+
+    // Force entity resolution for any unresolved masterable entities such as those which are dirty
+    forcePendingResolutions(dirtyIdentities);
+
+    final Set<DeprecationEntry> resolvedDeprecations =
+        resolveDeprecations(candidateForDeprecation);
+
+    return new AppendResult(
+        identityToMasterEntity.getOrDefault(identity, null), resolvedDeprecations);
+  }
+
+  // Applies a batch of appends with a single resolution and deprecation pass, the caller must hold
+  // the blocking locks of every affected cluster
+  private BatchAppendResult applyAppendAll(Collection<LocalMasterableEntity> entities) {
+
+    // identities dirtied and master entities deprecated by the whole batch
+    final DirtyIdentityQueue dirtyIdentities = newDirtyIdentities();
+    final Set<LocalMasterEntity> candidateForDeprecation = Sets.newHashSet();
+
+    // identities which are new or were modified by the batch
+    final Set<LocalMasterableEntityIdentity> modified = Sets.newHashSet();
+
+    // apply every mutation first
+    for (LocalMasterableEntity e : entities) {
+      final LocalMasterableEntityIdentity identity = e.getMasterableEntityIdentity();
+
+      final boolean isNew = applySnapshot(identity);
+      final boolean changed = applyMutation(e, identity);
+
+      if (isNew || changed) {
+        modified.add(identity);
+      }
+    }
+
+    // then dirty every identity of the batch, each one only once
+    final Set<LocalMasterableEntityIdentity> visited = Sets.newHashSet();
+
+    for (LocalMasterableEntity e : entities) {
+      final LocalMasterableEntityIdentity identity = e.getMasterableEntityIdentity();
+
+      if (visited.add(identity)) {
+        applyDirtying(
+            identity, modified.contains(identity), dirtyIdentities, candidateForDeprecation);
+      }
+    }
+
+    // a single resolution pass over every dirtied identity
+    forcePendingResolutions(dirtyIdentities);
+
+    // and a single deprecation pass over every deprecated master entity
+    final Set<DeprecationEntry> resolvedDeprecations =
+        resolveDeprecations(candidateForDeprecation);
+
+    final List<AppendResult> results = Lists.newArrayListWithCapacity(entities.size());
+
+    // deprecations are reported once for the whole batch rather than on every record
+    for (LocalMasterableEntity e : entities) {
+      results.add(
+          new AppendResult(
+              identityToMasterEntity.getOrDefault(e.getMasterableEntityIdentity(), null),
+              ImmutableSet.of()));
+    }
+
+    return new BatchAppendResult(results, resolvedDeprecations);
+  }
+
+  // Creates an empty snapshot for an identity we have not seen, returns true if it is new
+  private boolean applySnapshot(LocalMasterableEntityIdentity identity) {
+    // if we don't have it in our cache, it is new.
+    if (!entitySnapshot.contains(identity)) {
+      identityOrdinals.put(identity, nextIdentityOrdinal.getAndIncrement());
+      entitySnapshot.create(identity);
+      changes.identity(identity);
+      return true;
+    }
+
+    return false;
+  }
+
+  // Dirties an identity and the peers of its master entities, deprecating the master entities
+  private void applyDirtying(
+      LocalMasterableEntityIdentity identity,
+      boolean changed,
+      DirtyIdentityQueue dirtyIdentities,
+      Set<LocalMasterEntity> candidateForDeprecation) {
+
+    Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> memberships;
+
+    // if masterable entity has changed or is new
+    if (changed || !identityToMasterEntity.containsKey(identity)) {
+      // an identity without attributes matches every master entity, it is never linked by delta
+      if (reclustering == Reclustering.DELTA && !entitySnapshot.get(identity).isEmpty()) {
+        applyDelta(identity, dirtyIdentities, candidateForDeprecation);
+        return;
+      }
+
+      // Mark this entity as dirty
+      dirtyIdentities.add(identity);
+
+      // If masterable entity identity has a master entity
+      if (identityToMasterEntity.containsKey(identity)) {
+        // Dirty all master entity member identities
+        dirtyIdentities.addAll(
+            identityToMasterEntity.get(identity).keySet().stream()
+                .flatMap(x -> x.getMemberIdentities().keySet().stream())
+                .collect(Collectors.toSet()));
+      }
+
+      // Apply all resolvers used by this masterable entity and return its membership
+      memberships =
+          applyResolution(identity, entitySnapshot.get(identity), getMatchingResolvers(identity));
+
+      // If there are master entity members
+      if (memberships != null) {
+        // Deprecate every master entity for which this entity is a member of
+        for (LocalMasterEntity m : memberships.keySet()) {
+          deprecateMasterEntity(m, dirtyIdentities, candidateForDeprecation);
+        }
+      }
+    }
+  }
+
+  // Returns the blocking keys of the identity, its descriptors and every cluster reachable from
+  // them. The appended values reach the candidate clusters they match through every key they
+  // probe, but clusters only reach further clusters through exact values. Fuzzy keys of a cluster
+  // are still locked, so two appends touching clusters which share a block contend on its lock,
+  // yet a block never pulls every cluster it holds into the closure.
+  private Set<Object> findBlockingKeys(LocalMasterableEntity e) {
+    final LocalMasterableEntityIdentity identity = e.getMasterableEntityIdentity();
+
+    final Set<Object> keys = Sets.newHashSet();
+    final Set<Integer> expanded = Sets.newHashSet();
+    final Set<LocalMasterEntity> visited = Sets.newHashSet();
+    final List<Integer> valueKeys = Lists.newArrayList();
+    final Deque<LocalMasterEntity> clusters = new ArrayDeque<>();
+
+    // the identity itself guards its snapshot, even before it belongs to any cluster
+    keys.add(identity);
+
+    final BiConsumer<LocalEntityModel.Attribute, String> appended =
+        (x, y) -> {
+          final Set<LocalMasterEntity> candidates = Sets.newHashSet();
+
+          addKeys(x, y, valueKeys);
+          forEachCandidate(x, y, candidates::add);
+
+          candidates.stream().filter(c -> matchesCandidate(x, y, c)).forEach(clusters::add);
+        };
+
+    e.getDescriptors().keySet().forEach(x -> appended.accept(x.getKey(), x.getValue()));
+    identity.getDescriptorMap().forEach(appended);
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        entitySnapshot.get(identity);
+
+    if (snapshot != null) {
+      snapshot.forEach((x, y) -> y.keySet().forEach(value -> appended.accept(x, value)));
+    }
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> current =
+        identityToMasterEntity.get(identity);
+
+    if (current != null) {
+      clusters.addAll(current.keySet());
+    }
+
+    // expand until no new cluster is reachable through a shared exact attribute value
+    while (!clusters.isEmpty()) {
+      final LocalMasterEntity cluster = clusters.poll();
+
+      if (!masterEntities.contains(cluster) || !visited.add(cluster)) {
+        continue;
+      }
+
+      cluster
+          .getDescriptors()
+          .forEach(
+              (x, y) ->
+                  y.keySet()
+                      .forEach(
+                          value -> {
+                            addKeys(x, value, valueKeys);
+
+                            final int key = dictionary.find(x, value);
+
+                            if (key != AttributeValueDictionary.MISSING && expanded.add(key)) {
+                              masterEntityByAttribute.forEach(key, clusters::add);
+                            }
+                          }));
+    }
+
+    keys.addAll(valueKeys);
+
+    return keys;
+  }
+
+  // Adds the key of every exact value of the entity. Fuzzy blocks are left out, a common q-gram
+  // would join most entities into a single cluster, so entities matching only through a fuzzy
+  // matcher may still end up in different clusters and merge as they are appended.
+  void addBlockingKeys(LocalMasterableEntity e, Collection<Integer> keys) {
+    e.getDescriptors().keySet().forEach(x -> keys.add(dictionary.intern(x.getKey(), x.getValue())));
+    e.getMasterableEntityIdentity()
+        .getDescriptorMap()
+        .forEach((x, y) -> keys.add(dictionary.intern(x, y)));
+  }
+
+  // Adds the key of the attribute value, and the blocking keys it is indexed and probed under
+  private void addKeys(
+      LocalEntityModel.Attribute attribute, String value, Collection<Integer> keys) {
+    keys.add(dictionary.intern(attribute, value));
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      // a value locks every bucket its window spans, so two values within a window share a lock
+      final LocalEntityModel.Window window = matcher.getWindow();
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (!Double.isNaN(number)) {
+        final long last = window.bucket(window.upper(number));
+
+        for (long bucket = window.bucket(window.lower(number)); ; ++bucket) {
+          keys.add(dictionary.internBlockingKey(attribute, Long.toString(bucket)));
+
+          // checked after adding, so buckets saturated by extreme values still stop
+          if (bucket >= last) {
+            break;
+          }
+        }
+      }
+    } else if (matcher != null) {
+      // probe keys are interned too, so two appends probing the same block share its lock
+      matcher.getBlocking().indexKeys(value).forEach(x -> addBlockingKey(attribute, x, keys));
+      matcher.getBlocking().probeKeys(value).forEach(x -> addBlockingKey(attribute, x, keys));
+    }
+  }
+
+  // Adds the blocking key, unless it is saturated and so never posted nor probed
+  private void addBlockingKey(
+      LocalEntityModel.Attribute attribute, String blockingKey, Collection<Integer> keys) {
+    final int key = dictionary.internBlockingKey(attribute, blockingKey);
+
+    if (!saturatedBlocks.contains(key)) {
+      keys.add(key);
+    }
+  }
+
+  // Adds the keys a resolution of the attribute value probes. Keys are only looked up, so queries
+  // never grow the dictionary or the pool, those never interned are added to missing instead.
+  private void addDependencies(
+      LocalEntityModel.Attribute attribute,
+      String value,
+      Collection<Integer> keys,
+      Collection<IntSupplier> missing) {
+    addDependency(() -> dictionary.find(attribute, value), keys, missing);
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      // a value depends on every bucket its window spans
+      final LocalEntityModel.Window window = matcher.getWindow();
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (!Double.isNaN(number)) {
+        final long last = window.bucket(window.upper(number));
+
+        for (long bucket = window.bucket(window.lower(number)); ; ++bucket) {
+          final String blockingKey = Long.toString(bucket);
+
+          addDependency(
+              () -> dictionary.findBlockingKey(attribute, blockingKey), keys, missing);
+
+          if (bucket >= last) {
+            break;
+          }
+        }
+      }
+    } else if (matcher != null) {
+      for (String blockingKey : matcher.getBlocking().probeKeys(value)) {
+        addDependency(() -> dictionary.findBlockingKey(attribute, blockingKey), keys, missing);
+      }
+    }
+  }
+
+  private static void addDependency(
+      IntSupplier lookup, Collection<Integer> keys, Collection<IntSupplier> missing) {
+    final int key = lookup.getAsInt();
+
+    if (key == AttributeValueDictionary.MISSING) {
+      missing.add(lookup);
+    } else {
+      keys.add(key);
+    }
+  }
+
+  // Posts the master entity under the attribute value and every blocking key it is indexed under
+  private void post(
+      LocalEntityModel.Attribute attribute, String value, LocalMasterEntity masterEntity) {
+    final int key = dictionary.intern(attribute, value);
+
+    final boolean posted = masterEntityByAttribute.add(key, masterEntity);
+
+    final Map<String, RangeSet<Long>> histories = masterEntity.getDescriptors().get(attribute);
+    final RangeSet<Long> history = histories == null ? null : histories.get(value);
+
+    // values of member identities carry no history, they never pass the temporal check
+    if (history != null) {
+      masterEntityByDating.add(key, masterEntity.getOrdinal(), history);
+    }
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      sortedValues
+          .computeIfAbsent(getDeclaredAttribute(attribute), x -> new SortedValueIndex())
+          .add(number, key);
+
+      // window lookups never probe the value key, they see the change through its bucket
+      if (posted && !Double.isNaN(number)) {
+        masterEntityByAttribute.touch(
+            dictionary.internBlockingKey(
+                attribute, Long.toString(matcher.getWindow().bucket(number))));
+      }
+    } else if (matcher != null) {
+      for (String blockingKey : matcher.getBlocking().indexKeys(value)) {
+        postBlockingKey(dictionary.internBlockingKey(attribute, blockingKey), masterEntity);
+      }
+    }
+  }
+
+  // Posts the master entity under the blocking key unless it is saturated. Appends lock every key
+  // not saturated as their keys were taken, and keys never leave saturation, so the key is locked
+  // whenever it is posted under. A key growing past MAX_BLOCK_SIZE saturates and drops its
+  // postings, as it is never probed again.
+  private void postBlockingKey(int key, LocalMasterEntity masterEntity) {
+    if (saturatedBlocks.contains(key)) {
+      return;
+    }
+
+    masterEntityByAttribute.add(key, masterEntity);
+
+    if (masterEntityByAttribute.size(key) > MAX_BLOCK_SIZE) {
+      saturatedBlocks.add(key);
+      masterEntityByAttribute.removeIf(key, x -> true);
+      masterEntityByAttribute.touch(key);
+    }
+  }
+
+  // Returns the fuzzy matcher declared for the attribute, or null if its values only match exactly
+  private LocalEntityModel.Matcher getFuzzyMatcher(LocalEntityModel.Attribute attribute) {
+    final LocalEntityModel.Matcher matcher = getDeclaredAttribute(attribute).getMatcher();
+
+    return matcher == null || matcher.isExact() ? null : matcher;
+  }
+
+  // Returns the attribute as declared by the entity model, resolvers may carry bare copies of it
+  private LocalEntityModel.Attribute getDeclaredAttribute(LocalEntityModel.Attribute attribute) {
+    final LocalEntityModel.Attribute declared =
+        entityType.getLocalEntityModel().getAttributeByName().get(attribute.getName());
+
+    return declared != null ? declared : attribute;
+  }
 
-            final Iterator<LocalEntityModel.Resolver> tgtResolvers =
-                getMatchingResolvers(o2).iterator();
+  // A masterable entity is dirty when it is new, changed, or peer master entity member has changed,
+  // dirty identities are resolved by order of their strongest resolver
+  private DirtyIdentityQueue newDirtyIdentities() {
+    return new DirtyIdentityQueue(
+        entityType.getLocalEntityModel(), identityOrdinals::get, this::getTopResolverWeight);
+  }
 
-            if (!tgtResolvers.hasNext()) {
-              LOG.error("Could not find matcher for `{}`", o2);
-              return -1;
-            }
+  // Weight of the strongest resolver applicable to the identity
+  private int getTopResolverWeight(LocalMasterableEntityIdentity identity) {
+    final ResolverApplicability applicability = getResolverApplicability(identity);
 
-            final LocalEntityModel.Resolver topSrcResolver = srcResolvers.next();
-            final LocalEntityModel.Resolver topTgtResolver = tgtResolvers.next();
+    if (!applicability.hasResolvers()) {
+      LOG.error("Could not find matcher for `{}`", identity);
+      return DirtyIdentityQueue.NO_RESOLVER;
+    }
 
-            if (topSrcResolver.getWeight() == topTgtResolver.getWeight()) {
-              return Integer.compare(o1.hashCode(), o2.hashCode());
-            }
+    return applicability.getTopWeight();
+  }
 
-            return Integer.compare(-topSrcResolver.getWeight(), -topTgtResolver.getWeight());
-          });
-  private final Set<LocalMasterEntity> masterEntities = Sets.newHashSet();
+  @Override
+  public Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolve(ResolveQuery query) {
+    // listing every master entity depends on the whole universe, it is never cached
+    if (query.getDescriptors().isEmpty()) {
+      return resolveUncached(query);
+    }
 
-  // Map from masterable entity identity to master entity and it's members
-  private final Map<
-          LocalMasterableEntityIdentity, Map<LocalMasterEntity, Set<LocalMasterEntityMembership>>>
-      identityToMasterEntity = Maps.newConcurrentMap();
+    final ResolveCache.Resolution cached =
+        resolveCache.get(query, masterEntityByAttribute::version);
 
-  // Set of masterable entities that are unresolved
-  private final Set<LocalMasterableEntityIdentity> unresolved = Sets.newHashSet();
+    if (cached != null) {
+      return cached.getMapping();
+    }
 
-  // Map from entity model attribute to master entities
-  private final Map<Pair<LocalEntityModel.Attribute, String>, Set<LocalMasterEntity>>
-      masterEntityByAttribute = Maps.newHashMap();
+    // read the version of every key the resolution may probe before computing it, a change racing
+    // with the computation leaves the cached resolution outdated rather than stale
+    final Set<Integer> dependencies = Sets.newLinkedHashSet();
+    final List<IntSupplier> missing = Lists.newArrayList();
+    query.getDescriptors().forEach((x, y) -> addDependencies(x, y, dependencies, missing));
 
-  public LocalMemoryEntityUniverse(EntityType entityType) {
-    this.entityType = entityType;
+    final int[] keys = Ints.toArray(dependencies);
+    final long[] versions = new long[keys.length];
+
+    for (int i = 0; i < keys.length; ++i) {
+      versions[i] = masterEntityByAttribute.version(keys[i]);
+    }
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution =
+        resolveUncached(query);
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> mapping =
+        resolution == null ? null : ImmutableMap.copyOf(resolution);
+
+    resolveCache.put(query, new ResolveCache.Resolution(mapping, keys, versions, missing));
+
+    return mapping;
   }
 
-  public static LocalMemoryEntityUniverse of(EntityType entityType) {
-    return new LocalMemoryEntityUniverse(entityType);
+  // Hit, miss and invalidation counts of the resolution cache
+  @Override
+  public ResolveCache.Stats getResolveCacheStats() {
+    return resolveCache.getStats();
   }
 
+  // Lineage of every master entity deprecated by this universe
   @Override
-  public synchronized AppendResult append(LocalMasterableEntity e) {
+  public DeprecationLineage getDeprecationLineage() {
+    return lineage;
+  }
 
-    // get the identity of the masterable entity
-    final LocalMasterableEntityIdentity identity = e.getMasterableEntityIdentity();
+  // Walks every structure of the universe, estimates are approximate while appends run
+  @Override
+  public MemoryUsage getMemoryUsage() {
+    final MemoryEstimator estimator = new MemoryEstimator();
+    final Map<String, Long> bytes = Maps.newLinkedHashMap();
 
-    // flag to mark whether it is a new identity
-    boolean isNew = false;
+    // pooled values first, every structure holding them then only counts its references
+    bytes.put("values", valuePool.estimateBytes(estimator));
 
-    // if we don't have it in our cache, it is new.
-    if (!entitySnapshot.containsKey(identity)) {
-      entitySnapshot.put(identity, Maps.newHashMap());
-      isNew = true;
-    }
+    final AtomicLong snapshots =
+        new AtomicLong(
+            MemoryEstimator.MAP_BYTES
+                + (long) entitySnapshot.size() * MemoryEstimator.ENTRY_BYTES);
 
-    // apply the mutation and check if it modified the structure of the identity
-    final boolean changed = applyMutation(e, identity);
+    entitySnapshot.forEachOnHeap(
+        (x, y) -> snapshots.addAndGet(estimator.identity(x) + estimator.descriptors(y)));
 
-    Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> memberships;
+    bytes.put("entitySnapshot", snapshots.get());
 
-    // if masterable entity has changed or is new
-    if (changed || isNew || !identityToMasterEntity.containsKey(identity)) {
-      // Mark this entity as dirty
-      dirtyIdentities.add(identity);
+    long memberships = MemoryEstimator.MAP_BYTES;
 
-      // If masterable entity identity has a master entity
-      if (identityToMasterEntity.containsKey(identity)) {
-        // Dirty all master entity member identities
-        dirtyIdentities.addAll(
-            identityToMasterEntity.get(identity).keySet().stream()
-                .flatMap(x -> x.getMemberIdentities().keySet().stream())
-                .collect(Collectors.toSet()));
+    for (Map.Entry<
+            LocalMasterableEntityIdentity,
+            Map<LocalMasterEntity, Set<LocalMasterEntityMembership>>>
+        entry : identityToMasterEntity.entrySet()) {
+      memberships +=
+          MemoryEstimator.ENTRY_BYTES
+              + estimator.identity(entry.getKey())
+              + MemoryEstimator.MAP_BYTES;
+
+      for (Set<LocalMasterEntityMembership> membership : entry.getValue().values()) {
+        memberships += MemoryEstimator.ENTRY_BYTES + estimator.memberships(membership);
       }
+    }
 
-      // Get all resolvers used by this masterable entity
-      final List<LocalEntityModel.Resolver> matchingResolvers =
-          Lists.newArrayList(getMatchingResolvers(identity));
+    bytes.put("identityToMasterEntity", memberships);
+    bytes.put("masterEntityByAttribute", masterEntityByAttribute.estimateBytes());
+    bytes.put("masterEntityByDating", masterEntityByDating.estimateBytes());
 
-      // Apply all resolvers to masterable entity and return its membership
-      memberships = applyResolution(identity, entitySnapshot.get(identity), matchingResolvers);
+    // on the heap, a master entity shares the descriptors of its creator with its snapshot
+    long descriptors = 0;
 
-      // If there are master entity members
-      if (memberships != null) {
-        // Deprecate every master entity for which this entity is a member of
-        for (LocalMasterEntity m : memberships.keySet()) {
-          deprecateMasterEntity(m);
-        }
-      }
+    for (LocalMasterEntity masterEntity : masterEntities) {
+      descriptors += MemoryEstimator.ENTRY_BYTES + estimator.masterEntity(masterEntity);
     }
 
-    // Force entity resolution for any unresolved masterable entities such as those which are dirty
-    forcePendingResolutions();
-
-    final Set<DeprecationEntry> resolvedDeprecations = resolveDeprecations();
+    bytes.put("masterDescriptors", descriptors);
+    bytes.put("dictionary", dictionary.estimateBytes(estimator));
+    bytes.put("lineage", lineage.estimateBytes(estimator));
 
-    return new AppendResult(
-        identityToMasterEntity.getOrDefault(identity, null), resolvedDeprecations);
+    return new MemoryUsage(
+        entityType.getName(),
+        bytes,
+        entitySnapshot.getOffHeapBytes(),
+        valuePool.getSavedBytes());
   }
 
-  @Override
-  public Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolve(ResolveQuery query) {
+  private Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolveUncached(
+      ResolveQuery query) {
     final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution =
         applyResolution(
             null,
@@ -154,6 +1152,12 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
     return masterEntities;
   }
 
+  // Returns a page of the live master entities, starting after the cursor of the previous page
+  @Override
+  public MasterEntityPage getMasterEntities(String cursor, int limit) {
+    return masterEntities.page(cursor, limit);
+  }
+
   private boolean applyMutation(
       LocalMasterableEntity masterableEntity,
       LocalMasterableEntityIdentity masterableEntityIdentity) {
@@ -162,9 +1166,19 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
     final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
         entitySnapshot.get(masterableEntityIdentity);
 
+    // a checkpoint being written still needs the snapshot as it was taken
+    final CheckpointImage taking = image;
+
+    if (taking != null) {
+      taking.preserve(masterableEntityIdentity, snapshot);
+    }
+
     // by default, no changes
     boolean change = false;
 
+    // whether the snapshot gained an attribute or a value
+    boolean structural = false;
+
     // loop over the descriptors on the masterable entity
     for (Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>> entry :
         masterableEntity.getDescriptors().entrySet()) {
@@ -186,49 +1200,104 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
             .get(masterableEntityDescriptor.getKey())
             .containsKey(masterableEntityDescriptor.getValue())) {
 
-          // get the time period current range set from the entity snapshot
-          final RangeSet<Long> current =
-              snapshot
-                  .get(masterableEntityDescriptor.getKey())
-                  .get(masterableEntityDescriptor.getValue());
+          // get the time period current range set from the entity snapshot, snapshots only ever
+          // hold range sets created by this universe
+          final LongRangeSet current =
+              (LongRangeSet)
+                  snapshot
+                      .get(masterableEntityDescriptor.getKey())
+                      .get(masterableEntityDescriptor.getValue());
 
-          // get the original hash code for this descriptor before making any changes
-          final int originalHashCode = current.hashCode();
+          // get the version of this descriptor before making any changes
+          final long originalVersion = current.getVersion();
 
           // add the new time ranges for this entity descriptor
           current.addAll(timestamps);
 
-          // flag true/false whether the descriptor has changed by checking original/current hash codes
-          change = change || originalHashCode != current.hashCode();
+          if (originalVersion != current.getVersion()) {
+            widenSharedHistories(
+                masterableEntityIdentity,
+                masterableEntityDescriptor.getKey(),
+                masterableEntityDescriptor.getValue(),
+                current);
+          }
+
+          // flag true/false whether the descriptor has changed by checking original/current versions
+          change = change || originalVersion != current.getVersion();
         } else {
           // if the entity has the descriptor, but not the same specific value, the we add it
           snapshot
               .get(masterableEntityDescriptor.getKey())
-              .put(masterableEntityDescriptor.getValue(), timestamps);
+              .put(
+                  valuePool.intern(masterableEntityDescriptor.getValue()),
+                  LongRangeSet.create(timestamps));
 
           // flag true, because we know that this entity has changed with a changed descriptor value
           change = true;
+          structural = true;
         }
       } else {
         // if the entity does not have this descriptor at all, then let's create a new descriptor
-        snapshot.put(masterableEntityDescriptor.getKey(), Maps.newHashMap());
+        snapshot.put(masterableEntityDescriptor.getKey(), Maps.newConcurrentMap());
 
         // Add the descriptor value and effective timestamps to this entity
         snapshot
             .get(masterableEntityDescriptor.getKey())
-            .put(masterableEntityDescriptor.getValue(), timestamps);
+            .put(
+                valuePool.intern(masterableEntityDescriptor.getValue()),
+                LongRangeSet.create(timestamps));
 
         // flag true, because we know that this entity has changed with a new descriptor
         change = true;
+        structural = true;
       }
     }
 
+    // publish the change before the blocking locks of the identity are released
+    if (change) {
+      entitySnapshot.update(masterableEntityIdentity, snapshot);
+      changes.identity(masterableEntityIdentity);
+    }
+
+    // the creator's snapshot may also be the descriptors of its master entity
+    if (structural && identityToMasterEntity.containsKey(masterableEntityIdentity)) {
+      identityToMasterEntity
+          .get(masterableEntityIdentity)
+          .keySet()
+          .forEach(LocalMasterEntity::markModified);
+    }
+
     return change;
   }
 
-  private Iterable<LocalEntityModel.Resolver> getMatchingResolvers(
+  private List<LocalEntityModel.Resolver> getMatchingResolvers(
+      LocalMasterableEntityIdentity masterableEntityIdentity) {
+    return getResolverApplicability(masterableEntityIdentity).getResolvers();
+  }
+
+  // Returns the resolvers applicable to the identity, cached until its snapshot gains an attribute
+  private ResolverApplicability getResolverApplicability(
       LocalMasterableEntityIdentity masterableEntityIdentity) {
-    return getMatchingResolvers(entitySnapshot.get(masterableEntityIdentity).keySet(), false);
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        entitySnapshot.get(masterableEntityIdentity);
+
+    // attributes are never removed from a snapshot, so its size versions its resolvers
+    final int attributeCount = snapshot.size();
+
+    final ResolverApplicability cached = applicableResolvers.get(masterableEntityIdentity);
+
+    if (cached != null && cached.getAttributeCount() == attributeCount) {
+      return cached;
+    }
+
+    final ResolverApplicability computed =
+        new ResolverApplicability(
+            attributeCount,
+            ImmutableList.copyOf(getMatchingResolvers(snapshot.keySet(), false)));
+
+    applicableResolvers.put(masterableEntityIdentity, computed);
+
+    return computed;
   }
 
   // Apply resolution to all masterable entities
@@ -238,14 +1307,8 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
       Iterable<LocalEntityModel.Resolver> matchingResolvers) {
     if (attrs.isEmpty()) {
       final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution = Maps.newHashMap();
-      final Set<LocalMasterEntity> allMasterEntities =
-          masterEntityByAttribute
-              .values()
-              .parallelStream()
-              .flatMap(Collection::stream)
-              .collect(Collectors.toSet());
-
-      for (LocalMasterEntity localMasterEntity : allMasterEntities) {
+
+      for (LocalMasterEntity localMasterEntity : masterEntities) {
         resolution.put(localMasterEntity, ImmutableSet.of());
       }
 
@@ -267,23 +1330,20 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
           break;
         }
 
+        // Fuzzy matchers find their candidates through blocking keys rather than exact values
+        final LocalEntityModel.Matcher matcher = getFuzzyMatcher(resolverAttribute);
+
         // Create a set of candidate master entities
         final Set<LocalMasterEntity> possibleCandidates = Sets.newHashSet();
 
-        // Iterate over every attribute of this masterable entity
-        for (Map.Entry<String, RangeSet<Long>> entry : attrs.get(resolverAttribute).entrySet()) {
-          // Get the attribute value of the masterable entity
-          final Pair<LocalEntityModel.Attribute, String> key = Pair.of(resolverAttribute, entry.getKey());
-
-          // Get master entity who has this exact attribute value and mark it as a candidate
-          final Set<LocalMasterEntity> candidates = masterEntityByAttribute.get(key);
-
-          // If any candidates exist
-          if (candidates != null && !candidates.isEmpty()) {
-
-            candidates.removeIf(x -> !masterEntities.contains(x));
-
-            possibleCandidates.addAll(candidates);
+        // Iterate over every attribute of this masterable entity, exact values only visit master
+        // entities whose history may overlap the one resolved
+        for (Map.Entry<String, RangeSet<Long>> value : attrs.get(resolverAttribute).entrySet()) {
+          if (matcher == null) {
+            forEachOverlappingCandidate(
+                resolverAttribute, value.getKey(), value.getValue(), possibleCandidates::add);
+          } else {
+            forEachCandidate(resolverAttribute, value.getKey(), possibleCandidates::add);
           }
         }
 
@@ -297,20 +1357,20 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
 
         // Iterate over every possible master entity candidate
         for (final LocalMasterEntity candidate : possibleCandidates) {
+          final Map<String, RangeSet<Long>> validRanges =
+              candidate.getDescriptors().get(resolverAttribute);
+
           // If descriptor value overlaps with master entity candidate then mark candidate with temporal overlap
-          attrs
-              .get(resolverAttribute)
-              .forEach(
-                  (tgtValue, tgtRangeset) -> {
-                    if (candidate.getDescriptors().containsKey(resolverAttribute)) {
-                      final RangeSet<Long> validRange =
-                          candidate.getDescriptors().get(resolverAttribute).getOrDefault(tgtValue, null);
-                      if (validRange != null
-                          && validRange.asRanges().stream().anyMatch(tgtRangeset::intersects)) {
-                        candidatesWithTemporalOverlap.add(candidate);
-                      }
-                    }
-                  });
+          if (validRanges != null
+              && (matcher == null
+                  ? TemporalOverlap.overlapsAny(attrs.get(resolverAttribute), validRanges)
+                  : TemporalOverlap.matchesAny(
+                      matcher,
+                      getDeclaredAttribute(resolverAttribute),
+                      attrs.get(resolverAttribute),
+                      validRanges))) {
+            candidatesWithTemporalOverlap.add(candidate);
+          }
         }
 
         // Break if there are no master entity candidates with temporal overlap
@@ -351,10 +1411,124 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
     return null;
   }
 
-  private void deprecateMasterEntity(LocalMasterEntity m) {
+  // Visits every live master entity which may match the attribute value
+  private void forEachCandidate(
+      LocalEntityModel.Attribute attribute, String value, Consumer<LocalMasterEntity> consumer) {
+    // Fuzzy matchers find their candidates through blocking keys rather than exact values
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      // If any live master entity has a value within the window then it is a candidate
+      final SortedValueIndex index = sortedValues.get(getDeclaredAttribute(attribute));
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (index != null) {
+        index.forEach(
+            matcher.getWindow().lower(number),
+            matcher.getWindow().upper(number),
+            key -> masterEntityByAttribute.forEach(key, consumer));
+      }
+
+      return;
+    }
+
+    if (matcher != null) {
+      // If any live master entity shares a block with this value then it is a candidate, blocks
+      // too common to tell values apart are skipped
+      for (String blockingKey : matcher.getBlocking().probeKeys(value)) {
+        final int key = dictionary.findBlockingKey(attribute, blockingKey);
+
+        if (key != AttributeValueDictionary.MISSING && !saturatedBlocks.contains(key)) {
+          masterEntityByAttribute.forEach(key, consumer);
+        }
+      }
+    }
+
+    // Get the interned attribute value of the masterable entity
+    final int key = dictionary.find(attribute, value);
+
+    // If any live master entity has this exact attribute value then it is a candidate
+    if (key != AttributeValueDictionary.MISSING) {
+      masterEntityByAttribute.forEach(key, consumer);
+    }
+  }
+
+  // Visits every live master entity holding the exact attribute value over a span of effective
+  // dating overlapping the span of the history
+  private void forEachOverlappingCandidate(
+      LocalEntityModel.Attribute attribute,
+      String value,
+      RangeSet<Long> history,
+      Consumer<LocalMasterEntity> consumer) {
+    final int key = dictionary.find(attribute, value);
+
+    if (key == AttributeValueDictionary.MISSING) {
+      return;
+    }
 
-    // mark the master entity as candidate for deprecation
-    candidateForDeprecation.add(m);
+    masterEntityByDating.forEachOverlapping(
+        key,
+        history,
+        ordinal -> {
+          final LocalMasterEntity masterEntity = masterEntityByAttribute.get(ordinal);
+
+          if (masterEntity != null) {
+            consumer.accept(masterEntity);
+          }
+        });
+  }
+
+  // A master entity created by an identity shares its snapshot, so its history of the value grew
+  // with the snapshot and its span widens before any resolution probes it
+  private void widenSharedHistories(
+      LocalMasterableEntityIdentity identity,
+      LocalEntityModel.Attribute attribute,
+      String value,
+      RangeSet<Long> history) {
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> current =
+        identityToMasterEntity.get(identity);
+    final int key = dictionary.find(attribute, value);
+
+    if (current == null || key == AttributeValueDictionary.MISSING) {
+      return;
+    }
+
+    for (LocalMasterEntity masterEntity : current.keySet()) {
+      final Map<String, RangeSet<Long>> histories = masterEntity.getDescriptors().get(attribute);
+
+      if (histories != null && histories.get(value) == history) {
+        masterEntityByDating.add(key, masterEntity.getOrdinal(), history);
+      }
+    }
+  }
+
+  // Returns true if the value matches any value of the candidate, regardless of effective dating
+  private boolean matchesCandidate(
+      LocalEntityModel.Attribute attribute, String value, LocalMasterEntity candidate) {
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+    final Map<String, RangeSet<Long>> values = candidate.getDescriptors().get(attribute);
+
+    if (matcher == null || values == null) {
+      return values != null;
+    }
+
+    for (String candidateValue : values.keySet()) {
+      if (matcher
+          .getPredicate()
+          .test(
+              new LocalEntityModel.MatchingContext(
+                  value, candidateValue, getDeclaredAttribute(attribute)))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private void deprecateMasterEntity(
+      LocalMasterEntity m,
+      DirtyIdentityQueue dirtyIdentities,
+      Set<LocalMasterEntity> candidateForDeprecation) {
 
     // mark the identities as dirty
     for(final LocalMasterableEntityIdentity identity : m.getMemberIdentities().keySet()) {
@@ -362,98 +1536,314 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
       dirtyIdentities.add(identity);
     }
 
+    retireMasterEntity(m, candidateForDeprecation);
+  }
+
+  // Removes a master entity from the universe, it is deprecated once its replacement is known
+  private void retireMasterEntity(
+      LocalMasterEntity m, Set<LocalMasterEntity> candidateForDeprecation) {
+    // mark the master entity as candidate for deprecation
+    candidateForDeprecation.add(m);
+
     // remove it from the current list of master entities
     masterEntities.remove(m);
+    changes.masterEntity(m);
 
+    // hide it from every candidate lookup, its postings are compacted later
+    masterEntityByAttribute.tombstone(m);
+
+    // and let every lookup which could have seen it know it is gone
+    m.getDescriptors()
+        .forEach(
+            (x, y) ->
+                y.keySet()
+                    .forEach(value -> forEachPostedKey(x, value, masterEntityByAttribute::touch)));
+    m.getMemberIdentities()
+        .keySet()
+        .forEach(
+            identity ->
+                identity
+                    .getDescriptorMap()
+                    .forEach((x, y) -> forEachPostedKey(x, y, masterEntityByAttribute::touch)));
   }
 
-  /**
-   *
-   */
-  private synchronized void forcePendingResolutions() {
-    // Iterate over dirty identities
-    for (LocalMasterableEntityIdentity dirty : dirtyIdentities) {
-      // Apply entity resolution to dirtied masterable entity
-      Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> memberships =
-          applyResolution(dirty, entitySnapshot.get(dirty), getMatchingResolvers(dirty));
+  // Re-links the changed identity alone: it joins the single master entity it belongs to or
+  // matches, or merges every master entity it bridges into the largest one. Only the smaller master
+  // entities are deprecated, the largest keeps its uid and no other member is re-resolved.
+  private void applyDelta(
+      LocalMasterableEntityIdentity identity,
+      DirtyIdentityQueue dirtyIdentities,
+      Set<LocalMasterEntity> candidateForDeprecation) {
+    final Set<LocalMasterEntity> targets = Sets.newHashSet();
+
+    if (identityToMasterEntity.containsKey(identity)) {
+      targets.addAll(identityToMasterEntity.get(identity).keySet());
+    }
 
-      // The dirtied masterable entity has no master entity so it becomes a new leader
-      if (memberships == null) {
-        // Create a new master entity from this dirtied entity
-        memberships = applyResolutionByCreation(dirty);
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> matches =
+        applyResolution(identity, entitySnapshot.get(identity), getMatchingResolvers(identity));
 
-        // If there are no members
-        if (memberships == null || memberships.size() <= 0) {
-          // Add this dirty entity as unresolved
-          unresolved.add(dirty);
-          continue;
-        }
+    if (matches != null) {
+      targets.addAll(matches.keySet());
+    }
+
+    // an identity matching nothing leads a new master entity once resolved
+    if (targets.isEmpty()) {
+      dirtyIdentities.add(identity);
+      return;
+    }
+
+    // the largest master entity survives, the oldest one on a tie
+    final LocalMasterEntity survivor =
+        Collections.min(
+            targets,
+            Comparator.comparingInt((LocalMasterEntity x) -> -x.getMemberIdentities().size())
+                .thenComparingInt(LocalMasterEntity::getOrdinal));
+
+    for (LocalMasterEntity absorbed : targets) {
+      if (absorbed != survivor) {
+        absorbMasterEntity(survivor, absorbed, candidateForDeprecation);
       }
+    }
 
-      // Iterate over every master entity member
-      memberships.forEach(
-          (masterEntity, e) -> {
-            // Add the dirty identity to the master entity if it's not currently there
-            if (!masterEntity.getMemberIdentities().containsKey(dirty))
-              masterEntity.getMemberIdentities().put(dirty, Sets.newHashSet());
-
-            // Add all memberships
-            masterEntity.getMemberIdentities().get(dirty).addAll(e);
-
-            // Add the masterable entity identity if it doesn't exist in the identity to master entity pointer
-            if (!identityToMasterEntity.containsKey(dirty))
-              identityToMasterEntity.put(dirty, Maps.newHashMap());
-
-            // Add the master entity to the pointer if the identity exists but master entity doesn't
-            if (!identityToMasterEntity.get(dirty).containsKey(masterEntity))
-              identityToMasterEntity.get(dirty).put(masterEntity, Sets.newHashSet());
-
-            // Update the pointer from identity to master entity
-            identityToMasterEntity.get(dirty).get(masterEntity).addAll(e);
-
-            // Iterate over every masterable entity descriptor and add it to the master entity
-            entitySnapshot
-                .get(dirty)
-                .forEach(
-                    (x, y) -> {
-                      if (!masterEntity.getDescriptors().containsKey(x)) {
-                        masterEntity.getDescriptors().put(x, Maps.newHashMap());
-                      }
-
-                      y.forEach(
-                          (key, range) -> {
-                            if (!masterEntity.getDescriptors().get(x).containsKey(key)) {
-                              masterEntity.getDescriptors().get(x).put(key, TreeRangeSet.create());
-                            }
-                            masterEntity.getDescriptors().get(x).get(key).addAll(range);
+    addMember(
+        survivor,
+        identity,
+        matches != null && matches.containsKey(survivor)
+            ? matches.get(survivor)
+            : ImmutableSet.of());
+  }
 
-                            final Pair<LocalEntityModel.Attribute, String> k = Pair.of(x, key);
-                            if (!masterEntityByAttribute.containsKey(k))
-                              masterEntityByAttribute.put(k, Sets.newHashSet());
+  // Moves every member of the absorbed master entity into the survivor, then retires it
+  private void absorbMasterEntity(
+      LocalMasterEntity survivor,
+      LocalMasterEntity absorbed,
+      Set<LocalMasterEntity> candidateForDeprecation) {
+    absorbed
+        .getMemberIdentities()
+        .forEach(
+            (member, memberships) -> {
+              if (identityToMasterEntity.containsKey(member)) {
+                identityToMasterEntity.get(member).remove(absorbed);
+              }
+
+              addMember(survivor, member, memberships);
+            });
 
-                            masterEntityByAttribute.get(k).add(masterEntity);
-                          });
-                    });
+    retireMasterEntity(absorbed, candidateForDeprecation);
+  }
 
-            dirty
-                .getDescriptorMap()
-                .forEach(
-                    (x, y) -> {
-                      final Pair<LocalEntityModel.Attribute, String> key = Pair.of(x, y);
+  // Resolves every dirty identity, the caller must hold the blocking locks of their clusters
+  private void forcePendingResolutions(DirtyIdentityQueue dirtyIdentities) {
+    // Drain dirty identities, strongest resolver first, resolving them never dirties another
+    final List<LocalMasterableEntityIdentity> pending =
+        Lists.newArrayListWithCapacity(dirtyIdentities.size());
 
-                      if (!masterEntityByAttribute.containsKey(key))
-                        masterEntityByAttribute.put(key, Sets.newHashSet());
+    while (!dirtyIdentities.isEmpty()) {
+      pending.add(dirtyIdentities.poll());
+    }
 
-                      masterEntityByAttribute.get(key).add(masterEntity);
-                    });
-          });
+    final List<List<LocalMasterableEntityIdentity>> groups =
+        resolutionPool != null && pending.size() >= PARALLEL_RESOLUTION_THRESHOLD
+            ? partition(pending)
+            : ImmutableList.of(pending);
+
+    // a single group, such as one large merge cascade, gains nothing from the pool
+    if (groups.size() <= 1) {
+      pending.forEach(this::resolveDirtyIdentity);
+      return;
+    }
+
+    final List<ForkJoinTask<?>> tasks = Lists.newArrayListWithCapacity(groups.size());
+
+    for (List<LocalMasterableEntityIdentity> group : groups) {
+      tasks.add(resolutionPool.submit(() -> group.forEach(this::resolveDirtyIdentity)));
+    }
+
+    tasks.forEach(ForkJoinTask::join);
+  }
+
+  // Splits dirty identities into groups sharing no key and no candidate master entity. An identity
+  // only reads and writes master entities reachable through its own keys, so distinct groups never
+  // conflict and only identities within a group depend on the order they are resolved in.
+  private List<List<LocalMasterableEntityIdentity>> partition(
+      List<LocalMasterableEntityIdentity> pending) {
+    final int[] parents = new int[pending.size()];
+    final Map<Integer, Integer> ownerByKey = Maps.newHashMap();
+    final Map<Integer, Integer> ownerByMasterEntity = Maps.newHashMap();
+
+    for (int i = 0; i < parents.length; ++i) {
+      parents[i] = i;
+    }
+
+    for (int i = 0; i < parents.length; ++i) {
+      final int owner = i;
+      final LocalMasterableEntityIdentity identity = pending.get(i);
+      final Set<Integer> keys = Sets.newHashSet();
+
+      // an identity without attributes joins every master entity, nothing is independent of it
+      if (entitySnapshot.get(identity).isEmpty()) {
+        return ImmutableList.of(pending);
+      }
+
+      // identities sharing a candidate master entity may both join it
+      entitySnapshot
+          .get(identity)
+          .forEach(
+              (x, y) ->
+                  y.keySet()
+                      .forEach(
+                          value -> {
+                            addKeys(x, value, keys);
+                            forEachCandidate(
+                                x,
+                                value,
+                                candidate ->
+                                    union(
+                                        parents,
+                                        owner,
+                                        ownerByMasterEntity.computeIfAbsent(
+                                            candidate.getOrdinal(), k -> owner)));
+                          }));
+
+      // and identities sharing a key may form or join the same new master entity
+      identity.getDescriptorMap().forEach((x, y) -> addKeys(x, y, keys));
+
+      for (Integer key : keys) {
+        union(parents, owner, ownerByKey.computeIfAbsent(key, k -> owner));
+      }
+    }
+
+    // groups keep the order identities were drained in
+    final Map<Integer, List<LocalMasterableEntityIdentity>> groups = Maps.newLinkedHashMap();
+
+    for (int i = 0; i < parents.length; ++i) {
+      groups.computeIfAbsent(find(parents, i), k -> Lists.newArrayList()).add(pending.get(i));
+    }
+
+    return Lists.newArrayList(groups.values());
+  }
+
+  private static void union(int[] parents, int left, int right) {
+    final int leftRoot = find(parents, left);
+    final int rightRoot = find(parents, right);
+
+    if (leftRoot != rightRoot) {
+      parents[Math.max(leftRoot, rightRoot)] = Math.min(leftRoot, rightRoot);
+    }
+  }
+
+  private static int find(int[] parents, int index) {
+    while (parents[index] != index) {
+      // halve the path on the way up
+      parents[index] = parents[parents[index]];
+      index = parents[index];
+    }
+
+    return index;
+  }
+
+  // Resolves a dirty identity, joining the master entities it matches or leading a new one
+  private void resolveDirtyIdentity(LocalMasterableEntityIdentity dirty) {
+    // Apply entity resolution to dirtied masterable entity
+    Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> memberships =
+        applyResolution(dirty, entitySnapshot.get(dirty), getMatchingResolvers(dirty));
+
+    // The dirtied masterable entity has no master entity so it becomes a new leader
+    if (memberships == null) {
+      // Create a new master entity from this dirtied entity
+      memberships = applyResolutionByCreation(dirty);
+
+      // If there are no members
+      if (memberships == null || memberships.size() <= 0) {
+        // Add this dirty entity as unresolved
+        unresolved.add(dirty);
+        return;
+      }
+    }
+
+    // Iterate over every master entity member
+    memberships.forEach((masterEntity, e) -> addMember(masterEntity, dirty, e));
+  }
+
+  // Adds the identity to the master entity, or merges its memberships and descriptors if it is
+  // already a member
+  private void addMember(
+      LocalMasterEntity masterEntity,
+      LocalMasterableEntityIdentity identity,
+      Set<LocalMasterEntityMembership> memberships) {
+    // a checkpoint being written still needs the members as they were taken, and the snapshot of
+    // the creator which the descriptors below may be
+    final CheckpointImage taking = image;
+
+    if (taking != null) {
+      final LocalMasterableEntityIdentity creator =
+          findSharingCreator(masterEntity, masterEntity.getMemberIdentities());
+
+      taking.preserve(masterEntity);
+
+      if (creator != null) {
+        taking.preserve(creator, entitySnapshot.get(creator));
+      }
+    }
+
+    // Add the identity to the master entity if it's not currently there
+    if (!masterEntity.getMemberIdentities().containsKey(identity))
+      masterEntity.getMemberIdentities().put(identity, Sets.newHashSet());
+
+    // Add all memberships
+    masterEntity.getMemberIdentities().get(identity).addAll(memberships);
+    changes.masterEntity(masterEntity);
+
+    // Add the masterable entity identity if it doesn't exist in the identity to master entity pointer
+    if (!identityToMasterEntity.containsKey(identity))
+      identityToMasterEntity.put(identity, Maps.newConcurrentMap());
+
+    // Add the master entity to the pointer if the identity exists but master entity doesn't
+    if (!identityToMasterEntity.get(identity).containsKey(masterEntity))
+      identityToMasterEntity.get(identity).put(masterEntity, Sets.newHashSet());
+
+    // Update the pointer from identity to master entity
+    identityToMasterEntity.get(identity).get(masterEntity).addAll(memberships);
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        entitySnapshot.get(identity);
+
+    // Iterate over every masterable entity descriptor and add it to the master entity
+    snapshot.forEach(
+        (x, y) -> {
+          if (!masterEntity.getDescriptors().containsKey(x)) {
+            masterEntity.getDescriptors().put(x, Maps.newConcurrentMap());
+            masterEntity.markModified();
+          }
+
+          y.forEach(
+              (key, range) -> {
+                if (!masterEntity.getDescriptors().get(x).containsKey(key)) {
+                  masterEntity.getDescriptors().get(x).put(key, LongRangeSet.create());
+                  masterEntity.markModified();
+                }
+                final RangeSet<Long> validDts = masterEntity.getDescriptors().get(x).get(key);
+
+                // the creator's snapshot is the master entity's own history
+                if (validDts != range) {
+                  validDts.addAll(range);
+                }
+
+                post(x, key, masterEntity);
+              });
+        });
+
+    // descriptors shared with the creator now hold values no update of the creator published
+    if (snapshot != masterEntity.getDescriptors()) {
+      entitySnapshot.markModified(masterEntity.getDescriptors());
     }
 
-    // Clear out all dirty identities
-    dirtyIdentities.clear();
+    identity.getDescriptorMap().forEach((x, y) -> post(x, y, masterEntity));
   }
 
-  private Set<DeprecationEntry> resolveDeprecations() {
+  private Set<DeprecationEntry> resolveDeprecations(
+      Set<LocalMasterEntity> candidateForDeprecation) {
 
     final Set<DeprecationEntry> deprecations = Sets.newHashSet();
 
@@ -462,11 +1852,14 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
 
     // for each candidate for deprecation
     for (final LocalMasterEntity candidate : candidateForDeprecation) {
+      final LocalMasterEntity replacement = findMasterEntityReplacement(candidate);
+
+      lineage.record(candidate.getUid(), replacement == null ? null : replacement.getUid());
+      changes.deprecation(candidate.getUid());
+
       deprecations.add(
           new DeprecationEntry(
-              candidate,
-              findMasterEntityReplacement(candidate),
-              DominusApplication.SEQUENCE_ID.getAndIncrement()));
+              candidate, replacement, DominusApplication.SEQUENCE_ID.getAndIncrement()));
     }
 
     candidateForDeprecation.clear();
@@ -500,38 +1893,35 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
   private Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> applyResolutionByCreation(
       LocalMasterableEntityIdentity dirtyIdentity) {
 
-    // Create a new master entity using the entity type and masterable entity identity
-    final LocalMasterEntity masterEntity =
-        new LocalMasterEntity(
-            dirtyIdentity.getEntityType().getName(),
-            entitySnapshot.get(dirtyIdentity));
-
     // Get all resolvers, from the entity model, for the dirty identity
     final List<LocalEntityModel.Resolver> candidateResolvers =
-        Lists.newArrayList(getMatchingResolvers(dirtyIdentity));
+        getMatchingResolvers(dirtyIdentity);
 
     // No resolvers for masterable entity, this can happen when theres not enough characteristics for resolvers
     if (candidateResolvers.isEmpty()) {
       return null;
     }
 
+    // Create a new master entity using the entity type and masterable entity identity, only once
+    // it resolves so no ordinal is taken and no snapshot pinned for identities left unresolved
+    final LocalMasterEntity masterEntity =
+        new LocalMasterEntity(
+            masterEntityByAttribute.nextOrdinal(),
+            dirtyIdentity.getEntityType().getName(),
+            entitySnapshot.share(dirtyIdentity));
+
+    // Make the master entity reachable through its ordinal
+    masterEntityByAttribute.register(masterEntity);
+
     // Clone the masterable entity descriptor to the master entity
     masterEntity
         .getDescriptors()
         .forEach(
-            (x, y) -> y.forEach(
-                (attributeValue, rr) -> {
-                  final Pair<LocalEntityModel.Attribute, String> key = Pair.of(x, attributeValue);
-
-                  if (!masterEntityByAttribute.containsKey(key)) {
-                    masterEntityByAttribute.put(key, Sets.newHashSet());
-                  }
-
-                  masterEntityByAttribute.get(key).add(masterEntity);
-                }));
+            (x, y) -> y.forEach((attributeValue, rr) -> post(x, attributeValue, masterEntity)));
 
     // Add this new master entity to the list of masterable entities in this universe
     masterEntities.add(masterEntity);
+    changes.masterEntity(masterEntity);
 
     // Return a mapping of master entity and its members (itself)
     return ImmutableMap.of(
@@ -581,6 +1971,43 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
     return best;
   }
 
+  // Resolvers applicable to an identity for a given number of snapshot attributes
+  private static class ResolverApplicability {
+    private final int attributeCount;
+    private final List<LocalEntityModel.Resolver> resolvers;
+
+    ResolverApplicability(int attributeCount, List<LocalEntityModel.Resolver> resolvers) {
+      this.attributeCount = attributeCount;
+      this.resolvers = resolvers;
+    }
+
+    int getAttributeCount() {
+      return attributeCount;
+    }
+
+    // Applicable resolvers, strongest first
+    List<LocalEntityModel.Resolver> getResolvers() {
+      return resolvers;
+    }
+
+    boolean hasResolvers() {
+      return !resolvers.isEmpty();
+    }
+
+    int getTopWeight() {
+      return resolvers.get(0).getWeight();
+    }
+  }
+
+  // How the clusters touched by a changed identity are rebuilt
+  public enum Reclustering {
+    // every master entity of the identity is deprecated and all of its members are re-resolved
+    FULL,
+    // only the changed identity is re-linked, master entities it bridges are merged into the
+    // largest one, which keeps its uid
+    DELTA
+  }
+
   @EqualsAndHashCode
   public static class DeprecationEntry {
     private final LocalMasterEntity old;
@@ -625,4 +2052,43 @@ public class LocalMemoryEntityUniverse implements EntityUniverse {
       return deprecations;
     }
   }
+
+  public static class MasterEntityPage {
+    private final List<LocalMasterEntity> masterEntities;
+    private final String nextCursor;
+
+    MasterEntityPage(List<LocalMasterEntity> masterEntities, String nextCursor) {
+      this.masterEntities = masterEntities;
+      this.nextCursor = nextCursor;
+    }
+
+    // Live master entities of the page, in ordinal order
+    public List<LocalMasterEntity> getMasterEntities() {
+      return masterEntities;
+    }
+
+    // Cursor of the next page, or null if this page is the last one
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  public static class BatchAppendResult {
+    private final List<AppendResult> results;
+    private final Set<DeprecationEntry> deprecations;
+
+    BatchAppendResult(List<AppendResult> results, Set<DeprecationEntry> deprecations) {
+      this.results = results;
+      this.deprecations = deprecations;
+    }
+
+    // One result per appended record, in the order they were given
+    public List<AppendResult> getResults() {
+      return results;
+    }
+
+    public Set<DeprecationEntry> getDeprecations() {
+      return deprecations;
+    }
+  }
 }
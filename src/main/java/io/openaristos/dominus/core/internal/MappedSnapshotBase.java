@@ -0,0 +1,246 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+// Immutable snapshot records keyed by identity ordinal, in a pair of memory mapped files written
+// once and then only read. The records file holds every record prefixed by its length, never
+// spanning two chunks of the mapping. The index file holds the address of the record of every
+// ordinal plus one, zero for an ordinal without any, followed by the number of records. Both are
+// mapped read-only, so their pages are shared with the page cache and never written back, reads
+// return views of the mapping rather than copies on the heap, and a base outlives the process
+// which wrote it.
+class MappedSnapshotBase {
+  private static final int LENGTH_SIZE = Integer.BYTES;
+  private static final int ADDRESS_SIZE = Long.BYTES;
+  private static final int CHUNK_SIZE = 1 << 30;
+
+  private final int generation;
+  private final List<ByteBuffer> records;
+  private final List<ByteBuffer> index;
+  private final int ordinals;
+  private final int count;
+  private final long size;
+
+  private MappedSnapshotBase(
+      int generation,
+      List<ByteBuffer> records,
+      List<ByteBuffer> index,
+      int ordinals,
+      int count,
+      long size) {
+    this.generation = generation;
+    this.records = records;
+    this.index = index;
+    this.ordinals = ordinals;
+    this.count = count;
+    this.size = size;
+  }
+
+  // A base without any record, backed by no file
+  static MappedSnapshotBase empty() {
+    return new MappedSnapshotBase(-1, Lists.newArrayList(), Lists.newArrayList(), 0, 0, 0);
+  }
+
+  static Writer create(File records, File index, int generation) throws IOException {
+    return new Writer(records, index, generation);
+  }
+
+  // Maps a base written by a writer, possibly by an earlier process
+  static MappedSnapshotBase open(File records, File index, int generation) throws IOException {
+    final List<ByteBuffer> recordChunks = map(records);
+    final List<ByteBuffer> indexChunks = map(index);
+    final long indexLength = index.length();
+
+    if (indexLength < ADDRESS_SIZE || indexLength % ADDRESS_SIZE != 0) {
+      throw new IOException("truncated snapshot index " + index);
+    }
+
+    final int ordinals = (int) (indexLength / ADDRESS_SIZE - 1);
+    final long count = address(indexChunks, ordinals);
+
+    return new MappedSnapshotBase(
+        generation,
+        recordChunks,
+        indexChunks,
+        ordinals,
+        (int) count,
+        records.length() + indexLength);
+  }
+
+  // Generation of the base, -1 for the empty one
+  int generation() {
+    return generation;
+  }
+
+  boolean contains(int ordinal) {
+    return ordinal >= 0 && ordinal < ordinals && address(index, ordinal) != 0;
+  }
+
+  // Returns a read-only view of the record of the ordinal, or null if the base holds none
+  ByteBuffer read(int ordinal) {
+    if (!contains(ordinal)) {
+      return null;
+    }
+
+    final long address = address(index, ordinal) - 1;
+    final ByteBuffer chunk = records.get((int) (address >>> 32)).duplicate();
+    final int offset = (int) address;
+    final int length = chunk.getInt(offset);
+
+    chunk.position(offset + LENGTH_SIZE);
+    chunk.limit(offset + LENGTH_SIZE + length);
+
+    return chunk.slice();
+  }
+
+  // One past the largest ordinal the index covers
+  int ordinals() {
+    return ordinals;
+  }
+
+  // Number of records
+  int count() {
+    return count;
+  }
+
+  // Bytes of both files
+  long size() {
+    return size;
+  }
+
+  // Entries of the index never span two chunks, as chunks are a multiple of their size
+  private static long address(List<ByteBuffer> index, int ordinal) {
+    final long position = (long) ordinal * ADDRESS_SIZE;
+
+    return index.get((int) (position / CHUNK_SIZE)).getLong((int) (position % CHUNK_SIZE));
+  }
+
+  private static List<ByteBuffer> map(File path) throws IOException {
+    final List<ByteBuffer> chunks = Lists.newArrayList();
+
+    try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+      final long length = file.length();
+
+      for (long position = 0; position < length; position += CHUNK_SIZE) {
+        chunks.add(
+            file.getChannel()
+                .map(
+                    FileChannel.MapMode.READ_ONLY,
+                    position,
+                    Math.min(CHUNK_SIZE, length - position)));
+      }
+    }
+
+    return chunks;
+  }
+
+  // Writes the records of a new base in ascending ordinal, the base is mapped once every record is
+  // written and synced
+  static class Writer implements Closeable {
+    private final File recordsPath;
+    private final File indexPath;
+    private final int generation;
+    private final FileOutputStream recordsFile;
+    private final FileOutputStream indexFile;
+    private final DataOutputStream records;
+    private final DataOutputStream index;
+
+    private int chunk = 0;
+    private int offset = 0;
+    private int ordinals = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    private Writer(File recordsPath, File indexPath, int generation) throws IOException {
+      this.recordsPath = recordsPath;
+      this.indexPath = indexPath;
+      this.generation = generation;
+      this.recordsFile = new FileOutputStream(recordsPath);
+      this.indexFile = new FileOutputStream(indexPath);
+      this.records = new DataOutputStream(new BufferedOutputStream(recordsFile));
+      this.index = new DataOutputStream(new BufferedOutputStream(indexFile));
+    }
+
+    // Writes the remaining bytes of the record of the ordinal, which must be larger than that of
+    // the previous record
+    void write(int ordinal, ByteBuffer record) throws IOException {
+      final int required = LENGTH_SIZE + record.remaining();
+
+      if (ordinal < ordinals) {
+        throw new IOException("record of ordinal " + ordinal + " is out of order");
+      }
+
+      if (required > CHUNK_SIZE) {
+        throw new IOException("record of " + record.remaining() + " bytes exceeds a chunk");
+      }
+
+      // pads the rest of the chunk, so the record starts the next one
+      if (offset + required > CHUNK_SIZE) {
+        for (; offset < CHUNK_SIZE; ++offset) {
+          records.write(0);
+        }
+
+        ++chunk;
+        offset = 0;
+      }
+
+      for (; ordinals < ordinal; ++ordinals) {
+        index.writeLong(0);
+      }
+
+      index.writeLong((((long) chunk << 32) | offset) + 1);
+      records.writeInt(record.remaining());
+
+      if (record.hasArray()) {
+        records.write(
+            record.array(), record.arrayOffset() + record.position(), record.remaining());
+      } else {
+        final byte[] bytes = new byte[record.remaining()];
+        record.duplicate().get(bytes);
+        records.write(bytes);
+      }
+
+      offset += required;
+      ++ordinals;
+      ++count;
+    }
+
+    void write(int ordinal, byte[] record) throws IOException {
+      write(ordinal, ByteBuffer.wrap(record));
+    }
+
+    // Ends the index, syncs both files and maps them read-only
+    MappedSnapshotBase map() throws IOException {
+      index.writeLong(count);
+      close();
+
+      return open(recordsPath, indexPath, generation);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+
+        try (DataOutputStream closingRecords = records;
+            DataOutputStream closingIndex = index) {
+          closingRecords.flush();
+          closingIndex.flush();
+          recordsFile.getFD().sync();
+          indexFile.getFD().sync();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+import io.openaristos.dominus.core.LocalMasterEntity;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Live master entities of a universe ordered by ordinal, maintained as they are created and
+// deprecated. Ordinals never move, so a page resumes after the last ordinal it returned.
+class MasterEntityCatalog extends AbstractSet<LocalMasterEntity> {
+  private final ConcurrentNavigableMap<Integer, LocalMasterEntity> byOrdinal =
+      new ConcurrentSkipListMap<>();
+
+  // Counted apart, the size of a skip list is linear
+  private final AtomicInteger size = new AtomicInteger(0);
+
+  @Override
+  public boolean add(LocalMasterEntity masterEntity) {
+    if (byOrdinal.putIfAbsent(masterEntity.getOrdinal(), masterEntity) != null) {
+      return false;
+    }
+
+    size.incrementAndGet();
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof LocalMasterEntity)
+        || !byOrdinal.remove(((LocalMasterEntity) o).getOrdinal(), o)) {
+      return false;
+    }
+
+    size.decrementAndGet();
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof LocalMasterEntity
+        && o.equals(byOrdinal.get(((LocalMasterEntity) o).getOrdinal()));
+  }
+
+  @Override
+  public Iterator<LocalMasterEntity> iterator() {
+    final Iterator<LocalMasterEntity> iterator = byOrdinal.values().iterator();
+
+    // removals go through the catalog so the size stays exact
+    return new Iterator<LocalMasterEntity>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public LocalMasterEntity next() {
+        return iterator.next();
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  // Returns a page of master entities, starting after the cursor of the previous page
+  LocalMemoryEntityUniverse.MasterEntityPage page(String cursor, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("page limit must be positive");
+    }
+
+    final int afterOrdinal;
+
+    try {
+      afterOrdinal = cursor == null || cursor.isEmpty() ? -1 : Integer.parseInt(cursor);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("invalid cursor " + cursor, ex);
+    }
+
+    final List<LocalMasterEntity> page = page(afterOrdinal, limit);
+
+    // only hand out a cursor when there is something left to read
+    final int lastOrdinal = page.isEmpty() ? afterOrdinal : page.get(page.size() - 1).getOrdinal();
+    final String nextCursor =
+        page.size() == limit && hasAfter(lastOrdinal) ? Integer.toString(lastOrdinal) : null;
+
+    return new LocalMemoryEntityUniverse.MasterEntityPage(page, nextCursor);
+  }
+
+  // Returns up to the limit of master entities whose ordinal follows the given one, in order
+  private List<LocalMasterEntity> page(int afterOrdinal, int limit) {
+    final List<LocalMasterEntity> page = Lists.newArrayListWithCapacity(Math.min(limit, size()));
+
+    for (Map.Entry<Integer, LocalMasterEntity> entry :
+        byOrdinal.tailMap(afterOrdinal, false).entrySet()) {
+      if (page.size() >= limit) {
+        break;
+      }
+
+      page.add(entry.getValue());
+    }
+
+    return page;
+  }
+
+  // Returns true if any master entity follows the given ordinal
+  private boolean hasAfter(int ordinal) {
+    return byOrdinal.higherKey(ordinal) != null;
+  }
+}
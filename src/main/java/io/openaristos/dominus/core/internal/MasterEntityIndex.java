@@ -0,0 +1,300 @@
+package io.openaristos.dominus.core.internal;
+
+import io.openaristos.dominus.core.LocalMasterEntity;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+// Index from interned attribute values to the master entities carrying them, master entities are
+// referenced by ordinal and every posting is a sorted array of ordinals. Deprecated master entities
+// are tombstoned by clearing their ordinal, lookups skip them and a compactor later removes them
+// from the postings. Every change a lookup under a key could observe increments the key's version.
+public class MasterEntityIndex {
+  // A postings object with its array header, and a version counter
+  private static final long POSTINGS_BYTES = 40;
+  private static final long VERSION_BYTES = 24;
+
+  private final PagedArray<LocalMasterEntity> masterEntityByOrdinal = new PagedArray<>();
+  private final PagedArray<Postings> postingsByKey = new PagedArray<>();
+  private final PagedArray<AtomicLong> versionsByKey = new PagedArray<>();
+  private final AtomicInteger nextOrdinal = new AtomicInteger(0);
+
+  // Tombstoned master entities whose ordinals may still be posted
+  private final Queue<LocalMasterEntity> tombstones = new ConcurrentLinkedQueue<>();
+
+  // Reserves the ordinal of a master entity about to be created
+  public int nextOrdinal() {
+    return nextOrdinal.getAndIncrement();
+  }
+
+  // Ordinal the next master entity will be created with
+  int getNextOrdinal() {
+    return nextOrdinal.get();
+  }
+
+  // Restores the ordinal the next master entity is created with
+  void setNextOrdinal(int ordinal) {
+    nextOrdinal.set(ordinal);
+  }
+
+  // Makes a master entity reachable through its ordinal
+  public void register(LocalMasterEntity masterEntity) {
+    final int ordinal = masterEntity.getOrdinal();
+
+    masterEntityByOrdinal.page(ordinal).set(ordinal & PagedArray.PAGE_MASK, masterEntity);
+  }
+
+  // Returns the master entity of the ordinal, or null if it was tombstoned
+  public LocalMasterEntity get(int ordinal) {
+    return masterEntityByOrdinal.get(ordinal);
+  }
+
+  // Hides a deprecated master entity from every lookup and queues its postings for compaction
+  public void tombstone(LocalMasterEntity masterEntity) {
+    final int ordinal = masterEntity.getOrdinal();
+
+    masterEntityByOrdinal.page(ordinal).set(ordinal & PagedArray.PAGE_MASK, null);
+    tombstones.add(masterEntity);
+  }
+
+  // Returns the next tombstoned master entity to compact, or null if there are none
+  public LocalMasterEntity pollTombstone() {
+    return tombstones.poll();
+  }
+
+  // Removes every tombstoned ordinal from the postings of the key
+  public void compact(int key) {
+    removeIf(key, Objects::isNull);
+  }
+
+  // Adds the master entity to the postings of the key, the caller must hold the key's blocking lock.
+  // Returns true if it was not posted under the key yet.
+  public boolean add(int key, LocalMasterEntity masterEntity) {
+    final AtomicReferenceArray<Postings> page = postingsByKey.page(key);
+    final int slot = key & PagedArray.PAGE_MASK;
+
+    while (true) {
+      final Postings current = page.get(slot);
+      final Postings next = (current == null ? Postings.EMPTY : current).with(masterEntity.getOrdinal());
+
+      if (next == current) {
+        return false;
+      }
+
+      if (page.compareAndSet(slot, current, next)) {
+        touch(key);
+        return true;
+      }
+    }
+  }
+
+  // Increments the version of the key, after a change its lookups may observe
+  public void touch(int key) {
+    final AtomicReferenceArray<AtomicLong> page = versionsByKey.page(key);
+    final int slot = key & PagedArray.PAGE_MASK;
+
+    AtomicLong version = page.get(slot);
+
+    if (version == null) {
+      page.compareAndSet(slot, null, new AtomicLong(0));
+      version = page.get(slot);
+    }
+
+    version.incrementAndGet();
+  }
+
+  // Version of the key, unchanged as long as its lookups see the same master entities
+  public long version(int key) {
+    final AtomicLong version = versionsByKey.get(key);
+
+    return version == null ? 0 : version.get();
+  }
+
+  // Visits every live master entity posted under the key
+  public void forEach(int key, Consumer<LocalMasterEntity> consumer) {
+    final Postings postings = postingsByKey.get(key);
+
+    if (postings == null) {
+      return;
+    }
+
+    for (int i = 0; i < postings.size; ++i) {
+      final LocalMasterEntity masterEntity = masterEntityByOrdinal.get(postings.ordinals[i]);
+
+      if (masterEntity != null) {
+        consumer.accept(masterEntity);
+      }
+    }
+  }
+
+  // Removes every master entity matching the predicate from the postings of the key
+  public void removeIf(int key, Predicate<LocalMasterEntity> predicate) {
+    final AtomicReferenceArray<Postings> page = postingsByKey.page(key);
+    final int slot = key & PagedArray.PAGE_MASK;
+
+    while (true) {
+      final Postings current = page.get(slot);
+
+      if (current == null) {
+        return;
+      }
+
+      final Postings next = current.without(x -> predicate.test(masterEntityByOrdinal.get(x)));
+
+      if (next == current || page.compareAndSet(slot, current, next)) {
+        return;
+      }
+    }
+  }
+
+  // Number of master entities posted under the key, including tombstones not yet compacted
+  public int size(int key) {
+    final Postings postings = postingsByKey.get(key);
+
+    return postings == null ? 0 : postings.size;
+  }
+
+  // Estimated heap bytes of the postings, versions and ordinal pages, master entities excluded
+  long estimateBytes() {
+    long bytes =
+        masterEntityByOrdinal.estimateBytes()
+            + postingsByKey.estimateBytes()
+            + versionsByKey.estimateBytes();
+
+    for (int key = 0; key < postingsByKey.capacity(); ++key) {
+      final Postings postings = postingsByKey.get(key);
+
+      if (postings != null) {
+        bytes += POSTINGS_BYTES + 4L * postings.ordinals.length;
+      }
+
+      if (versionsByKey.get(key) != null) {
+        bytes += VERSION_BYTES;
+      }
+    }
+
+    return bytes;
+  }
+
+  // An immutable sorted ordinal array, every change copies it so postings racing to replace the same
+  // one never share a slot
+  private static final class Postings {
+    private static final Postings EMPTY = new Postings(new int[0], 0);
+
+    private final int[] ordinals;
+    private final int size;
+
+    private Postings(int[] ordinals, int size) {
+      this.ordinals = ordinals;
+      this.size = size;
+    }
+
+    private Postings with(int ordinal) {
+      // ordinals are handed out in increasing order, so most additions land at the tail
+      final int insertion;
+
+      if (size == 0 || ordinals[size - 1] < ordinal) {
+        insertion = size;
+      } else {
+        final int position = Arrays.binarySearch(ordinals, 0, size, ordinal);
+
+        if (position >= 0) {
+          return this;
+        }
+
+        insertion = -position - 1;
+      }
+
+      final int[] target = new int[size + 1];
+
+      System.arraycopy(ordinals, 0, target, 0, insertion);
+      target[insertion] = ordinal;
+      System.arraycopy(ordinals, insertion, target, insertion + 1, size - insertion);
+
+      return new Postings(target, size + 1);
+    }
+
+    private Postings without(IntPredicate predicate) {
+      int[] target = null;
+      int count = 0;
+
+      for (int i = 0; i < size; ++i) {
+        if (predicate.test(ordinals[i])) {
+          if (target == null) {
+            target = Arrays.copyOf(ordinals, size);
+            count = i;
+          }
+        } else if (target != null) {
+          target[count++] = ordinals[i];
+        }
+      }
+
+      return target == null ? this : new Postings(target, count);
+    }
+  }
+
+  // A growable array of pages, pages are never moved so their slots can be updated atomically
+  private static final class PagedArray<T> {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private volatile AtomicReferenceArray<T>[] pages = newPages(0);
+
+    @SuppressWarnings("unchecked")
+    private static <T> AtomicReferenceArray<T>[] newPages(int size) {
+      return (AtomicReferenceArray<T>[]) new AtomicReferenceArray[size];
+    }
+
+    // Number of slots in every page allocated so far
+    private int capacity() {
+      return pages.length << PAGE_BITS;
+    }
+
+    // A page holds a reference for every slot, behind the atomic array and its header
+    private long estimateBytes() {
+      return pages.length * (32 + (4L << PAGE_BITS));
+    }
+
+    private T get(int index) {
+      final AtomicReferenceArray<T>[] current = pages;
+      final int page = index >>> PAGE_BITS;
+
+      if (page >= current.length) {
+        return null;
+      }
+
+      return current[page].get(index & PAGE_MASK);
+    }
+
+    private AtomicReferenceArray<T> page(int index) {
+      final int page = index >>> PAGE_BITS;
+      final AtomicReferenceArray<T>[] current = pages;
+
+      if (page < current.length) {
+        return current[page];
+      }
+
+      synchronized (this) {
+        if (page >= pages.length) {
+          final AtomicReferenceArray<T>[] grown = Arrays.copyOf(pages, page + 1);
+
+          for (int i = pages.length; i < grown.length; ++i) {
+            grown[i] = new AtomicReferenceArray<>(1 << PAGE_BITS);
+          }
+
+          pages = grown;
+        }
+
+        return pages[page];
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.Sets;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterEntity;
+import io.openaristos.dominus.core.LocalMasterEntityMembership;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+
+import java.util.Map;
+import java.util.Set;
+
+// Estimates the heap retained by the structures of a universe, assuming a 64-bit JVM with
+// compressed references. Every object is counted once, by the first structure reaching it, so an
+// object shared by several structures is attributed to the one estimated first.
+class MemoryEstimator {
+  // An empty hash map or set together with its table
+  static final long MAP_BYTES = 64;
+
+  // A hash map node together with its table slot
+  static final long ENTRY_BYTES = 36;
+
+  // An object holding a few references or primitives
+  static final long OBJECT_BYTES = 32;
+
+  // A range set with its state and empty bound arrays, every range adds a bound to each array
+  private static final long RANGE_SET_BYTES = 88;
+  private static final long RANGE_BYTES = 16;
+
+  private final Set<Object> visited = Sets.newIdentityHashSet();
+
+  // Bytes of a string and its character array
+  static long stringBytes(String value) {
+    return 24 + align(16 + 2L * value.length());
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  long string(String value) {
+    return value != null && visited.add(value) ? stringBytes(value) : 0;
+  }
+
+  long rangeSet(RangeSet<Long> rangeSet) {
+    return visited.add(rangeSet) ? RANGE_SET_BYTES + RANGE_BYTES * rangeSet.asRanges().size() : 0;
+  }
+
+  // Counts the descriptors of a snapshot or of a master entity, their values and dating
+  long descriptors(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors) {
+    if (!visited.add(descriptors)) {
+      return 0;
+    }
+
+    long bytes = MAP_BYTES;
+
+    for (Map<String, RangeSet<Long>> values : descriptors.values()) {
+      bytes += ENTRY_BYTES + MAP_BYTES;
+
+      for (Map.Entry<String, RangeSet<Long>> entry : values.entrySet()) {
+        bytes += ENTRY_BYTES + string(entry.getKey()) + rangeSet(entry.getValue());
+      }
+    }
+
+    return bytes;
+  }
+
+  long identity(LocalMasterableEntityIdentity identity) {
+    if (!visited.add(identity)) {
+      return 0;
+    }
+
+    final int descriptors = identity.getDescriptorMap().size();
+
+    // the identity keeps its descriptors both as a set and as a map
+    long bytes =
+        OBJECT_BYTES
+            + string(identity.getUid())
+            + string(identity.getSource())
+            + 2 * MAP_BYTES
+            + descriptors * (2 * ENTRY_BYTES + OBJECT_BYTES);
+
+    for (String value : identity.getDescriptorMap().values()) {
+      bytes += string(value);
+    }
+
+    return bytes;
+  }
+
+  // Counts a set of memberships and the memberships in it
+  long memberships(Set<LocalMasterEntityMembership> memberships) {
+    if (!visited.add(memberships)) {
+      return 0;
+    }
+
+    long bytes = MAP_BYTES;
+
+    for (LocalMasterEntityMembership membership : memberships) {
+      bytes += ENTRY_BYTES + (visited.add(membership) ? OBJECT_BYTES : 0);
+    }
+
+    return bytes;
+  }
+
+  // Counts a master entity with its descriptors and the index of its members
+  long masterEntity(LocalMasterEntity masterEntity) {
+    if (!visited.add(masterEntity)) {
+      return 0;
+    }
+
+    long bytes =
+        OBJECT_BYTES
+            + string(masterEntity.getUid())
+            + descriptors(masterEntity.getDescriptors())
+            + MAP_BYTES;
+
+    for (Set<LocalMasterEntityMembership> memberships :
+        masterEntity.getMemberIdentities().values()) {
+      bytes += ENTRY_BYTES + memberships(memberships);
+    }
+
+    return bytes;
+  }
+}
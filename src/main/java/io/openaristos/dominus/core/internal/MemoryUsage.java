@@ -0,0 +1,46 @@
+package io.openaristos.dominus.core.internal;
+
+import java.util.Collections;
+import java.util.Map;
+
+// Estimated memory of a universe, the heap retained by each of its structures together with the
+// memory kept outside of the heap and the memory saved by deduplicating values
+public class MemoryUsage {
+  private final String entityType;
+  private final Map<String, Long> bytesByStructure;
+  private final long offHeapBytes;
+  private final long deduplicatedBytes;
+
+  MemoryUsage(
+      String entityType,
+      Map<String, Long> bytesByStructure,
+      long offHeapBytes,
+      long deduplicatedBytes) {
+    this.entityType = entityType;
+    this.bytesByStructure = Collections.unmodifiableMap(bytesByStructure);
+    this.offHeapBytes = offHeapBytes;
+    this.deduplicatedBytes = deduplicatedBytes;
+  }
+
+  public String getEntityType() {
+    return entityType;
+  }
+
+  // Heap bytes of every structure, in the order they were estimated
+  public Map<String, Long> getBytesByStructure() {
+    return bytesByStructure;
+  }
+
+  public long getHeapBytes() {
+    return bytesByStructure.values().stream().mapToLong(Long::longValue).sum();
+  }
+
+  public long getOffHeapBytes() {
+    return offHeapBytes;
+  }
+
+  // Heap bytes of the value copies replaced by their pooled instance
+  public long getDeduplicatedBytes() {
+    return deduplicatedBytes;
+  }
+}
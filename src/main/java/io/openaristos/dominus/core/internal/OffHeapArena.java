@@ -0,0 +1,113 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+// Append-only memory outside of the heap, carved in chunks from direct buffers or from a memory
+// mapped file. Every record is prefixed by its length, never spans two chunks, and is addressed by
+// its chunk in the upper half of a long and its offset in the lower half. Records are never moved
+// or overwritten, so they can be read concurrently with writes.
+class OffHeapArena implements Closeable {
+  private static final int LENGTH_SIZE = Integer.BYTES;
+
+  private final int chunkSize;
+  private final RandomAccessFile file;
+  private final File path;
+  private final List<ByteBuffer> chunks = Lists.newCopyOnWriteArrayList();
+
+  // Bytes written to every chunk so far
+  private long size = 0;
+
+  private OffHeapArena(int chunkSize, File path, RandomAccessFile file) {
+    this.chunkSize = chunkSize;
+    this.path = path;
+    this.file = file;
+  }
+
+  // An arena of direct buffers, freed once the arena is no longer referenced
+  static OffHeapArena direct(int chunkSize) {
+    return new OffHeapArena(chunkSize, null, null);
+  }
+
+  // An arena mapped from the given file, the operating system pages it in and out as needed
+  static OffHeapArena mapped(File path, int chunkSize) throws IOException {
+    return new OffHeapArena(chunkSize, path, new RandomAccessFile(path, "rw"));
+  }
+
+  // Writes a record and returns its address
+  synchronized long write(byte[] bytes) throws IOException {
+    final int required = LENGTH_SIZE + bytes.length;
+
+    ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+
+    if (chunk == null || chunk.remaining() < required) {
+      chunk = allocate(Math.max(chunkSize, required));
+      chunks.add(chunk);
+    }
+
+    final long address = ((long) (chunks.size() - 1) << 32) | chunk.position();
+
+    chunk.putInt(bytes.length);
+    chunk.put(bytes);
+    size += required;
+
+    return address;
+  }
+
+  byte[] read(long address) {
+    // a duplicate has its own position, so readers never disturb the writer
+    final ByteBuffer chunk = chunks.get((int) (address >>> 32)).duplicate();
+
+    chunk.position((int) address);
+
+    final byte[] bytes = new byte[chunk.getInt()];
+    chunk.get(bytes);
+
+    return bytes;
+  }
+
+  // Length of the record at the address
+  int length(long address) {
+    return chunks.get((int) (address >>> 32)).getInt((int) address);
+  }
+
+  // Bytes taken by a record of the given length
+  static int recordSize(int length) {
+    return LENGTH_SIZE + length;
+  }
+
+  synchronized long size() {
+    return size;
+  }
+
+  private ByteBuffer allocate(int capacity) throws IOException {
+    if (file == null) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+
+    final long position = file.length();
+
+    return file.getChannel().map(FileChannel.MapMode.READ_WRITE, position, capacity);
+  }
+
+  // Releases the file of a mapped arena, its mappings go away once they are no longer referenced
+  @Override
+  public synchronized void close() throws IOException {
+    chunks.clear();
+
+    if (file != null) {
+      file.close();
+
+      if (!path.delete()) {
+        path.deleteOnExit();
+      }
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Keeps snapshots outside of the heap in the compact layout of SnapshotCodec, only a bounded hot
+// set of recently used snapshots stays decoded on the heap. Every update writes the snapshot anew
+// and leaves its previous record behind, once most of the arena is garbage the live records are
+// copied into a fresh one. As on the heap, a master entity shares the snapshot of the identity it
+// was created from as its descriptors, so that snapshot stays on the heap for good and later values
+// of either one are seen by both.
+public class OffHeapSnapshotStore implements SnapshotStore, Closeable {
+  private static final int CHUNK_SIZE = 64 << 20;
+
+  private final SnapshotCodec codec = new SnapshotCodec();
+  private final ArenaFactory arenas;
+
+  // Address of the latest record of every identity
+  private final Map<LocalMasterableEntityIdentity, Long> addresses = Maps.newConcurrentMap();
+
+  // Recently used snapshots, decoded
+  private final Cache<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      hot;
+
+  // Snapshots shared as the descriptors of the master entities created from their identities
+  private final Map<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      shared = Maps.newConcurrentMap();
+
+  // Held to read or write the arena, held exclusively to replace it
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Bytes of records replaced by a later update
+  private final AtomicLong garbage = new AtomicLong(0);
+
+  private volatile OffHeapArena arena;
+  private int generation = 0;
+
+  private OffHeapSnapshotStore(ArenaFactory arenas, long hotSetSize) throws IOException {
+    this.arenas = arenas;
+    this.arena = arenas.create(generation);
+    this.hot = CacheBuilder.newBuilder().maximumSize(hotSetSize).build();
+  }
+
+  // A store in direct buffers
+  public static OffHeapSnapshotStore direct(long hotSetSize) {
+    try {
+      return new OffHeapSnapshotStore(x -> OffHeapArena.direct(CHUNK_SIZE), hotSetSize);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // A store in memory mapped files of the directory, named after the store
+  public static OffHeapSnapshotStore mapped(File directory, String name, long hotSetSize)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("failed to create snapshot directory " + directory);
+    }
+
+    return new OffHeapSnapshotStore(
+        x -> OffHeapArena.mapped(new File(directory, name + "." + x + ".snapshots"), CHUNK_SIZE),
+        hotSetSize);
+  }
+
+  // Snapshots are not persisted, so they need neither the entity model nor any ordinal
+  @Override
+  public void bind(
+      LocalEntityModel entityModel, ToIntFunction<LocalMasterableEntityIdentity> ordinals) {}
+
+  @Override
+  public boolean contains(LocalMasterableEntityIdentity identity) {
+    return addresses.containsKey(identity);
+  }
+
+  @Override
+  public void create(LocalMasterableEntityIdentity identity) {
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        Maps.newConcurrentMap();
+
+    lock.readLock().lock();
+
+    try {
+      if (addresses.putIfAbsent(identity, write(snapshot)) == null) {
+        hot.put(identity, snapshot);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> get(
+      LocalMasterableEntityIdentity identity) {
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> pinned =
+        shared.get(identity);
+
+    if (pinned != null) {
+      return pinned;
+    }
+
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> cached =
+        hot.getIfPresent(identity);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    lock.readLock().lock();
+
+    try {
+      while (true) {
+        final Long address = addresses.get(identity);
+
+        if (address == null) {
+          return null;
+        }
+
+        final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> decoded =
+            codec.decode(arena.read(address));
+        final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> current =
+            hot.asMap().putIfAbsent(identity, decoded);
+
+        if (current != null) {
+          return current;
+        }
+
+        // an update racing with the read may have written a newer record, never keep the older one
+        if (address.equals(addresses.get(identity))) {
+          return decoded;
+        }
+
+        hot.asMap().remove(identity, decoded);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void update(
+      LocalMasterableEntityIdentity identity,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    lock.readLock().lock();
+
+    try {
+      final Long previous = addresses.put(identity, write(snapshot));
+
+      hot.put(identity, snapshot);
+
+      if (previous != null) {
+        garbage.addAndGet(OffHeapArena.recordSize(arena.length(previous)));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    if (garbage.get() > CHUNK_SIZE && garbage.get() * 2 > arena.size()) {
+      compact();
+    }
+  }
+
+  @Override
+  public Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> share(
+      LocalMasterableEntityIdentity identity) {
+    // callers hold the blocking locks of the identity, so no update races with pinning it
+    return shared.computeIfAbsent(identity, this::get);
+  }
+
+  // Shared snapshots are only read from the heap, their records are never read back
+  @Override
+  public void markModified(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {}
+
+  @Override
+  public int size() {
+    return addresses.size();
+  }
+
+  // Visits the shared snapshots and the hot set, every other snapshot only takes its address on
+  // the heap
+  @Override
+  public void forEachOnHeap(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+          consumer) {
+    shared.forEach(consumer);
+    hot.asMap()
+        .forEach(
+            (identity, snapshot) -> {
+              if (!shared.containsKey(identity)) {
+                consumer.accept(identity, snapshot);
+              }
+            });
+  }
+
+  // Bytes taken outside of the heap by the latest record of every snapshot
+  @Override
+  public long getOffHeapBytes() {
+    lock.readLock().lock();
+
+    try {
+      return arena.size() - garbage.get();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Every snapshot is held by the checkpoint itself
+  @Override
+  public Set<LocalMasterableEntityIdentity> freeze() {
+    return null;
+  }
+
+  @Override
+  public int persist(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Consumer<Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>>
+          frozenSnapshots)
+      throws IOException {
+    throw new IOException("snapshots off the heap are not persisted");
+  }
+
+  @Override
+  public void commit() {}
+
+  @Override
+  public void open(int generation) throws IOException {
+    throw new IOException("snapshots off the heap are not persisted");
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+
+    try {
+      arena.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private long write(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    try {
+      return arena.write(codec.encode(snapshot));
+    } catch (IOException e) {
+      throw new IllegalStateException("failed to write snapshot", e);
+    }
+  }
+
+  // Copies the latest record of every snapshot into a fresh arena and drops the previous one
+  private void compact() {
+    lock.writeLock().lock();
+
+    try {
+      if (garbage.get() * 2 <= arena.size()) {
+        return;
+      }
+
+      final OffHeapArena compacted = arenas.create(generation + 1);
+      final Map<LocalMasterableEntityIdentity, Long> moved = Maps.newHashMap();
+
+      for (Map.Entry<LocalMasterableEntityIdentity, Long> entry : addresses.entrySet()) {
+        moved.put(entry.getKey(), compacted.write(arena.read(entry.getValue())));
+      }
+
+      // addresses only move once every record was copied, a failure leaves the store as it was
+      addresses.putAll(moved);
+      arena.close();
+      arena = compacted;
+      garbage.set(0);
+      ++generation;
+    } catch (IOException e) {
+      throw new IllegalStateException("failed to compact snapshots", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private interface ArenaFactory {
+    OffHeapArena create(int generation) throws IOException;
+  }
+}
@@ -0,0 +1,146 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.openaristos.dominus.core.LocalMasterEntity;
+import io.openaristos.dominus.core.LocalMasterEntityMembership;
+import io.openaristos.dominus.core.ResolveQuery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.IntToLongFunction;
+
+// Bounded LRU cache of resolutions. Every resolution remembers the version of each index key it
+// depended on, as read before it was computed, and is only served while none of them has moved.
+// Resolutions are therefore never stale, even when computed concurrently with an append.
+public class ResolveCache {
+  private final Cache<ResolveQuery, Resolution> cache;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  public ResolveCache(long maximumSize) {
+    this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+  }
+
+  // Returns the cached resolution of the query if it is still current, or null on a miss
+  Resolution get(ResolveQuery query, IntToLongFunction versions) {
+    final Resolution resolution = cache.getIfPresent(query);
+
+    if (resolution == null) {
+      misses.increment();
+      return null;
+    }
+
+    if (!resolution.isCurrent(versions)) {
+      cache.asMap().remove(query, resolution);
+      invalidations.increment();
+      misses.increment();
+      return null;
+    }
+
+    hits.increment();
+    return resolution;
+  }
+
+  void put(ResolveQuery query, Resolution resolution) {
+    cache.put(query, resolution);
+  }
+
+  public Stats getStats() {
+    return new Stats(
+        hits.sum(), misses.sum(), invalidations.sum(), cache.stats().evictionCount(), cache.size());
+  }
+
+  // A resolution together with the versions of the index keys it was computed from. Keys which
+  // were never interned are looked up again as the resolution is served, they stood at version 0
+  // like any key nothing was posted under, so interning and posting one invalidates it.
+  static final class Resolution {
+    private final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> mapping;
+    private final int[] keys;
+    private final long[] versions;
+    private final List<IntSupplier> missingKeys;
+
+    Resolution(
+        Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> mapping,
+        int[] keys,
+        long[] versions,
+        List<IntSupplier> missingKeys) {
+      this.mapping = mapping;
+      this.keys = keys;
+      this.versions = versions;
+      this.missingKeys = missingKeys;
+    }
+
+    // The cached resolution, null if nothing resolved
+    Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> getMapping() {
+      return mapping;
+    }
+
+    private boolean isCurrent(IntToLongFunction currentVersions) {
+      for (int i = 0; i < keys.length; ++i) {
+        if (currentVersions.applyAsLong(keys[i]) != versions[i]) {
+          return false;
+        }
+      }
+
+      for (IntSupplier missingKey : missingKeys) {
+        final int key = missingKey.getAsInt();
+
+        if (key != AttributeValueDictionary.MISSING && currentVersions.applyAsLong(key) != 0) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  public static class Stats {
+    private final long hitCount;
+    private final long missCount;
+    private final long invalidationCount;
+    private final long evictionCount;
+    private final long size;
+
+    Stats(long hitCount, long missCount, long invalidationCount, long evictionCount, long size) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.invalidationCount = invalidationCount;
+      this.evictionCount = evictionCount;
+      this.size = size;
+    }
+
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    // Lookups that found nothing, or only a resolution invalidated since it was cached
+    public long getMissCount() {
+      return missCount;
+    }
+
+    // Cached resolutions dropped because a master entity they depended on changed
+    public long getInvalidationCount() {
+      return invalidationCount;
+    }
+
+    public long getEvictionCount() {
+      return evictionCount;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public double getHitRate() {
+      final long requests = hitCount + missCount;
+
+      return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+  }
+}
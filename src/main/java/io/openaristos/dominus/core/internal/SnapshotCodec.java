@@ -0,0 +1,195 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LongRangeSet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary layout of identity snapshots. Attributes are written by the ordinal they were
+// first seen at, values as length prefixed UTF-8, and every range as a byte of flags followed by
+// its bounds as zig-zag variable length longs. Counts and lengths are variable length too.
+class SnapshotCodec {
+  private static final int HAS_LOWER = 1;
+  private static final int LOWER_CLOSED = 2;
+  private static final int HAS_UPPER = 4;
+  private static final int UPPER_CLOSED = 8;
+
+  private final List<LocalEntityModel.Attribute> attributes = Lists.newCopyOnWriteArrayList();
+  private final Map<LocalEntityModel.Attribute, Integer> attributeOrdinals =
+      Maps.newConcurrentMap();
+
+  byte[] encode(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    writeVarLong(output, snapshot.size());
+
+    snapshot.forEach(
+        (attribute, values) -> {
+          writeVarLong(output, getAttributeOrdinal(attribute));
+          writeVarLong(output, values.size());
+
+          values.forEach(
+              (value, ranges) -> {
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+                writeVarLong(output, bytes.length);
+                output.write(bytes, 0, bytes.length);
+
+                final List<Range<Long>> asRanges = Lists.newArrayList(ranges.asRanges());
+
+                writeVarLong(output, asRanges.size());
+                asRanges.forEach(range -> writeRange(output, range));
+              });
+        });
+
+    return output.toByteArray();
+  }
+
+  Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> decode(byte[] bytes) {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  // Decodes the remaining bytes of the buffer, which may be a view of a mapped file
+  Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> decode(ByteBuffer input) {
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        Maps.newConcurrentMap();
+
+    for (long i = readVarLong(input); i > 0; --i) {
+      final LocalEntityModel.Attribute attribute = attributes.get((int) readVarLong(input));
+      final Map<String, RangeSet<Long>> values = Maps.newConcurrentMap();
+
+      for (long j = readVarLong(input); j > 0; --j) {
+        final byte[] value = new byte[(int) readVarLong(input)];
+        input.get(value);
+
+        final LongRangeSet ranges = LongRangeSet.create();
+
+        for (long k = readVarLong(input); k > 0; --k) {
+          ranges.add(readRange(input));
+        }
+
+        values.put(new String(value, StandardCharsets.UTF_8), ranges);
+      }
+
+      snapshot.put(attribute, values);
+    }
+
+    return snapshot;
+  }
+
+  // Names of the attributes by ordinal, every record encoded so far only refers to these
+  List<String> getAttributeNames() {
+    final List<String> names = Lists.newArrayList();
+
+    attributes.forEach(x -> names.add(x.getName()));
+
+    return names;
+  }
+
+  // Numbers the attributes in the given order, so records encoded by an earlier codec numbering
+  // them so decode. Only called before anything is encoded.
+  synchronized void setAttributes(List<LocalEntityModel.Attribute> numbered) {
+    attributes.clear();
+    attributeOrdinals.clear();
+
+    numbered.forEach(this::getAttributeOrdinal);
+  }
+
+  // Attributes are numbered as they are first encoded, resolvers may carry bare copies of them
+  private int getAttributeOrdinal(LocalEntityModel.Attribute attribute) {
+    final Integer ordinal = attributeOrdinals.get(attribute);
+
+    if (ordinal != null) {
+      return ordinal;
+    }
+
+    synchronized (this) {
+      return attributeOrdinals.computeIfAbsent(
+          attribute,
+          x -> {
+            attributes.add(x);
+            return attributes.size() - 1;
+          });
+    }
+  }
+
+  private static void writeRange(ByteArrayOutputStream output, Range<Long> range) {
+    int flags = 0;
+
+    if (range.hasLowerBound()) {
+      flags |= HAS_LOWER | (range.lowerBoundType() == BoundType.CLOSED ? LOWER_CLOSED : 0);
+    }
+
+    if (range.hasUpperBound()) {
+      flags |= HAS_UPPER | (range.upperBoundType() == BoundType.CLOSED ? UPPER_CLOSED : 0);
+    }
+
+    output.write(flags);
+
+    if (range.hasLowerBound()) {
+      writeVarLong(output, zigZag(range.lowerEndpoint()));
+    }
+
+    if (range.hasUpperBound()) {
+      writeVarLong(output, zigZag(range.upperEndpoint()));
+    }
+  }
+
+  private static Range<Long> readRange(ByteBuffer input) {
+    final int flags = input.get();
+
+    final Long lower = (flags & HAS_LOWER) != 0 ? unZigZag(readVarLong(input)) : null;
+    final Long upper = (flags & HAS_UPPER) != 0 ? unZigZag(readVarLong(input)) : null;
+
+    final BoundType lowerType = (flags & LOWER_CLOSED) != 0 ? BoundType.CLOSED : BoundType.OPEN;
+    final BoundType upperType = (flags & UPPER_CLOSED) != 0 ? BoundType.CLOSED : BoundType.OPEN;
+
+    if (lower == null) {
+      return upper == null ? Range.all() : Range.upTo(upper, upperType);
+    }
+
+    return upper == null
+        ? Range.downTo(lower, lowerType)
+        : Range.range(lower, lowerType, upper, upperType);
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream output, long value) {
+    while ((value & ~0x7FL) != 0) {
+      output.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    output.write((int) value);
+  }
+
+  private static long readVarLong(ByteBuffer input) {
+    long value = 0;
+
+    for (int shift = 0; ; shift += 7) {
+      final byte b = input.get();
+      value |= (long) (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  // Negative bounds stay as short as positive ones of the same magnitude
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,82 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LocalMasterableEntityIdentity;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+// Holds the snapshot of every identity of a universe, the descriptor values and effective dating
+// it accumulated over all of its appends. Snapshots are only changed while holding the blocking
+// locks of their identity, and every change is published before those locks are released.
+//
+// A store may persist its snapshots by the ordinal of their identity. A full checkpoint then only
+// holds the generation persisted as it was taken, and a restore opens that generation rather than
+// reading every snapshot back.
+public interface SnapshotStore {
+  // Binds the entity model of the universe and the ordinal of every identity, -1 for one without
+  // any, before any snapshot is created
+  void bind(LocalEntityModel entityModel, ToIntFunction<LocalMasterableEntityIdentity> ordinals);
+
+  boolean contains(LocalMasterableEntityIdentity identity);
+
+  // Creates an empty snapshot for the identity
+  void create(LocalMasterableEntityIdentity identity);
+
+  // Returns the snapshot of the identity, or null if it has none
+  Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> get(
+      LocalMasterableEntityIdentity identity);
+
+  // Publishes the changes made to the snapshot of the identity
+  void update(
+      LocalMasterableEntityIdentity identity,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot);
+
+  // Returns the descriptors of a master entity created from the identity, which are its snapshot
+  // from then on, so the identity and its master entity see each other's values
+  Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> share(
+      LocalMasterableEntityIdentity identity);
+
+  // Marks a snapshot shared as the descriptors of a master entity as modified through it, the
+  // values of other members merged into it are published by no update of its identity
+  void markModified(Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot);
+
+  int size();
+
+  // Visits every snapshot held on the heap
+  void forEachOnHeap(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+          consumer);
+
+  // Bytes taken outside of the heap
+  long getOffHeapBytes();
+
+  // Freezes every snapshot as it is for a checkpoint, while the caller holds every blocking lock.
+  // Returns the identities whose snapshots were modified since their last update, which persist
+  // takes as they were frozen, or null if the store persists no snapshot and the checkpoint must
+  // hold all of them.
+  Set<LocalMasterableEntityIdentity> freeze();
+
+  // Persists the snapshots frozen last and returns their generation, without any lock held. The
+  // snapshot of every identity freeze returned is taken from frozenSnapshots in ascending ordinal.
+  int persist(
+      BiConsumer<
+              LocalMasterableEntityIdentity,
+              Consumer<Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>>
+          frozenSnapshots)
+      throws IOException;
+
+  // Keeps the generation persisted last for good, once the checkpoint holding it was written.
+  // Generations no checkpoint holds any more are deleted.
+  void commit();
+
+  // Opens the snapshots persisted as the generation, the store must be empty
+  void open(int generation) throws IOException;
+}
@@ -0,0 +1,135 @@
+package io.openaristos.dominus.core.internal;
+
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+// Sorted index from the numeric form of typed attribute values to their interned keys, held in
+// primitive arrays. New values land in a small sorted tail which is merged into the base once full,
+// so an insertion never copies more than the tail. Readers never lock, they see an immutable state.
+public class SortedValueIndex {
+  private static final int TAIL_CAPACITY = 1024;
+
+  private volatile State state = new State(Run.EMPTY, Run.EMPTY);
+
+  // Interned keys already indexed, every key is only indexed once
+  private final BitSet indexed = new BitSet();
+
+  // Indexes the interned key of a value under its numeric form
+  public synchronized void add(double number, int key) {
+    if (Double.isNaN(number) || indexed.get(key)) {
+      return;
+    }
+
+    indexed.set(key);
+
+    final State current = state;
+    final Run tail = current.tail.with(number, key);
+
+    state =
+        tail.size < TAIL_CAPACITY
+            ? new State(current.base, tail)
+            : new State(current.base.merge(tail), Run.EMPTY);
+  }
+
+  // Visits the interned key of every value whose numeric form is within the inclusive bounds
+  public void forEach(double lower, double upper, IntConsumer consumer) {
+    if (Double.isNaN(lower) || Double.isNaN(upper)) {
+      return;
+    }
+
+    final State current = state;
+
+    current.base.forEach(lower, upper, consumer);
+    current.tail.forEach(lower, upper, consumer);
+  }
+
+  // Number of values indexed
+  public int size() {
+    final State current = state;
+
+    return current.base.size + current.tail.size;
+  }
+
+  private static final class State {
+    private final Run base;
+    private final Run tail;
+
+    private State(Run base, Run tail) {
+      this.base = base;
+      this.tail = tail;
+    }
+  }
+
+  // An immutable run of keys sorted by the numeric form of their values
+  private static final class Run {
+    private static final Run EMPTY = new Run(new double[0], new int[0], 0);
+
+    private final double[] numbers;
+    private final int[] keys;
+    private final int size;
+
+    private Run(double[] numbers, int[] keys, int size) {
+      this.numbers = numbers;
+      this.keys = keys;
+      this.size = size;
+    }
+
+    private Run with(double number, int key) {
+      final int insertion = lowerBound(number);
+      final double[] targetNumbers = new double[size + 1];
+      final int[] targetKeys = new int[size + 1];
+
+      System.arraycopy(numbers, 0, targetNumbers, 0, insertion);
+      System.arraycopy(keys, 0, targetKeys, 0, insertion);
+      targetNumbers[insertion] = number;
+      targetKeys[insertion] = key;
+      System.arraycopy(numbers, insertion, targetNumbers, insertion + 1, size - insertion);
+      System.arraycopy(keys, insertion, targetKeys, insertion + 1, size - insertion);
+
+      return new Run(targetNumbers, targetKeys, size + 1);
+    }
+
+    private Run merge(Run other) {
+      final double[] targetNumbers = new double[size + other.size];
+      final int[] targetKeys = new int[size + other.size];
+      int i = 0;
+      int j = 0;
+
+      for (int k = 0; k < targetNumbers.length; ++k) {
+        if (j >= other.size || (i < size && numbers[i] <= other.numbers[j])) {
+          targetNumbers[k] = numbers[i];
+          targetKeys[k] = keys[i++];
+        } else {
+          targetNumbers[k] = other.numbers[j];
+          targetKeys[k] = other.keys[j++];
+        }
+      }
+
+      return new Run(targetNumbers, targetKeys, targetNumbers.length);
+    }
+
+    private void forEach(double lower, double upper, IntConsumer consumer) {
+      for (int i = lowerBound(lower); i < size && numbers[i] <= upper; ++i) {
+        consumer.accept(keys[i]);
+      }
+    }
+
+    // Position of the first number not less than the given one
+    private int lowerBound(double number) {
+      int low = 0;
+      int high = size;
+
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+
+        if (numbers[middle] < number) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+
+      return low;
+    }
+  }
+}
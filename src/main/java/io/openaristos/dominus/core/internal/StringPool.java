@@ -0,0 +1,58 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Deduplicates the descriptor values of a universe, so snapshots, master entity descriptors and the
+// dictionary all hold the same instance of a value rather than a copy each. Values are never
+// released, as a universe never forgets a value either. Counts every copy it replaced, to report
+// the memory deduplication saved.
+public class StringPool {
+  private final Map<String, String> values = Maps.newConcurrentMap();
+
+  private final LongAdder deduplicated = new LongAdder();
+  private final LongAdder savedBytes = new LongAdder();
+
+  // Returns the pooled instance of the value, pooling it if it is new
+  public String intern(String value) {
+    final String pooled = values.putIfAbsent(value, value);
+
+    if (pooled == null) {
+      return value;
+    }
+
+    if (pooled != value) {
+      deduplicated.increment();
+      savedBytes.add(MemoryEstimator.stringBytes(value));
+    }
+
+    return pooled;
+  }
+
+  public int size() {
+    return values.size();
+  }
+
+  // Copies replaced by their pooled instance
+  public long getDeduplicatedCount() {
+    return deduplicated.sum();
+  }
+
+  // Estimated bytes of the copies replaced by their pooled instance
+  public long getSavedBytes() {
+    return savedBytes.sum();
+  }
+
+  // Counts the pool and every value in it
+  long estimateBytes(MemoryEstimator estimator) {
+    long bytes = MemoryEstimator.MAP_BYTES + (long) values.size() * MemoryEstimator.ENTRY_BYTES;
+
+    for (String value : values.keySet()) {
+      bytes += estimator.string(value);
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,86 @@
+package io.openaristos.dominus.core.internal;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.LocalEntityModel;
+import io.openaristos.dominus.core.LongRangeSet;
+
+import java.util.Map;
+
+// Effective dating overlap checks between descriptor histories
+public final class TemporalOverlap {
+  private TemporalOverlap() {}
+
+  // Returns true if the two range sets share at least one instant
+  public static boolean overlaps(RangeSet<Long> left, RangeSet<Long> right) {
+    if (left instanceof LongRangeSet) {
+      return ((LongRangeSet) left).overlaps(right);
+    }
+
+    if (left.isEmpty() || right.isEmpty()) {
+      return false;
+    }
+
+    // disjoint histories are rejected from their spans alone
+    if (!intersects(left.span(), right.span())) {
+      return false;
+    }
+
+    // probe the longer history with every range of the shorter one, each probe is a tree lookup
+    final boolean leftIsShorter = left.asRanges().size() <= right.asRanges().size();
+    final RangeSet<Long> shorter = leftIsShorter ? left : right;
+    final RangeSet<Long> longer = leftIsShorter ? right : left;
+
+    for (Range<Long> range : shorter.asRanges()) {
+      if (longer.intersects(range)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // Returns true if any value present in both maps has overlapping effective dating
+  public static boolean overlapsAny(
+      Map<String, RangeSet<Long>> left, Map<String, RangeSet<Long>> right) {
+    final boolean leftIsSmaller = left.size() <= right.size();
+    final Map<String, RangeSet<Long>> smaller = leftIsSmaller ? left : right;
+    final Map<String, RangeSet<Long>> larger = leftIsSmaller ? right : left;
+
+    for (Map.Entry<String, RangeSet<Long>> entry : smaller.entrySet()) {
+      final RangeSet<Long> other = larger.get(entry.getKey());
+
+      if (other != null && overlaps(entry.getValue(), other)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // Returns true if any pair of values is accepted by the matcher with overlapping effective dating
+  public static boolean matchesAny(
+      LocalEntityModel.Matcher matcher,
+      LocalEntityModel.Attribute attribute,
+      Map<String, RangeSet<Long>> values,
+      Map<String, RangeSet<Long>> candidateValues) {
+    for (Map.Entry<String, RangeSet<Long>> value : values.entrySet()) {
+      for (Map.Entry<String, RangeSet<Long>> candidateValue : candidateValues.entrySet()) {
+        if (matcher
+                .getPredicate()
+                .test(
+                    new LocalEntityModel.MatchingContext(
+                        value.getKey(), candidateValue.getKey(), attribute))
+            && overlaps(value.getValue(), candidateValue.getValue())) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean intersects(Range<Long> left, Range<Long> right) {
+    return left.isConnected(right) && !left.intersection(right).isEmpty();
+  }
+}
@@ -0,0 +1,972 @@
+package io.openaristos.dominus.core.internal;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.*;
+import com.google.common.primitives.Ints;
+import io.openaristos.dominus.DominusApplication;
+import io.openaristos.dominus.core.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+// An entity universe clustering identities incrementally. Two identities are linked when a resolver
+// applicable to both matches them, and master entities are the connected components of these links,
+// kept in disjoint sets. Snapshots only ever gain values and effective dating, so links are never
+// lost: an append only evaluates links through the values it changed and clusters only ever merge,
+// the smaller cluster being deprecated in favour of the larger one which keeps its uid.
+@SuppressWarnings("UnstableApiUsage")
+public class UnionFindEntityUniverse implements EntityUniverse {
+  // Number of resolutions cached by default
+  private static final long DEFAULT_RESOLVE_CACHE_SIZE = 10_000;
+
+  private final EntityType entityType;
+  private final Map<
+          LocalMasterableEntityIdentity,
+          Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+      entitySnapshot = Maps.newConcurrentMap();
+
+  // Dense ordinal of every identity, which is its element in the disjoint sets
+  private final Map<LocalMasterableEntityIdentity, Integer> identityOrdinals =
+      Maps.newConcurrentMap();
+  private final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+
+  // Clusters of linked identities
+  private final DisjointSets clusters = new DisjointSets();
+
+  // Master entity of every cluster, by the ordinal representing the cluster
+  private final Map<Integer, LocalMasterEntity> masterEntityByRoot = Maps.newHashMap();
+  private final AtomicInteger nextMasterEntityOrdinal = new AtomicInteger(0);
+
+  // Live master entities, ordered by ordinal so they can be listed page by page
+  private final MasterEntityCatalog masterEntities = new MasterEntityCatalog();
+
+  // A single instance of every descriptor value held by this universe
+  private final StringPool valuePool = new StringPool();
+
+  // Dense keys for every attribute value seen by this universe
+  private final AttributeValueDictionary dictionary = new AttributeValueDictionary(valuePool);
+
+  // Map from interned attribute value, or blocking key, to the ordinals of identities carrying it
+  private final Map<Integer, Set<Integer>> identitiesByKey = Maps.newConcurrentMap();
+
+  // Sorted index of the values of every attribute matched within a window
+  private final Map<LocalEntityModel.Attribute, SortedValueIndex> sortedValues =
+      Maps.newConcurrentMap();
+
+  // Version of every key, bumped whenever a resolution probing it may change
+  private final Map<Integer, AtomicLong> keyVersions = Maps.newConcurrentMap();
+
+  // Appends are serialized, resolutions share the lock with each other
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Recent resolutions, served until a key they probed changes
+  private final ResolveCache resolveCache;
+
+  // Current uid of every deprecated master entity
+  private final DeprecationLineage lineage = new DeprecationLineage();
+
+  // Changes since the last checkpoint, swapped while a checkpoint holds the lock
+  private volatile CheckpointChanges changes = new CheckpointChanges();
+
+  public UnionFindEntityUniverse(EntityType entityType) {
+    this(entityType, DEFAULT_RESOLVE_CACHE_SIZE);
+  }
+
+  public UnionFindEntityUniverse(EntityType entityType, long resolveCacheSize) {
+    this.entityType = entityType;
+    this.resolveCache = new ResolveCache(resolveCacheSize);
+  }
+
+  public static UnionFindEntityUniverse of(EntityType entityType) {
+    return new UnionFindEntityUniverse(entityType);
+  }
+
+  @Override
+  public LocalMemoryEntityUniverse.AppendResult append(LocalMasterableEntity e) {
+    lock.writeLock().lock();
+
+    try {
+      final Set<LocalMemoryEntityUniverse.DeprecationEntry> deprecations = Sets.newHashSet();
+
+      applyAppend(e, deprecations);
+
+      return new LocalMemoryEntityUniverse.AppendResult(
+          getMapping(e.getMasterableEntityIdentity()), deprecations);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public LocalMemoryEntityUniverse.BatchAppendResult appendAll(
+      Collection<LocalMasterableEntity> entities) {
+    lock.writeLock().lock();
+
+    try {
+      final Set<LocalMemoryEntityUniverse.DeprecationEntry> deprecations = Sets.newHashSet();
+
+      for (LocalMasterableEntity e : entities) {
+        applyAppend(e, deprecations);
+      }
+
+      final List<LocalMemoryEntityUniverse.AppendResult> results =
+          Lists.newArrayListWithCapacity(entities.size());
+
+      // deprecations are reported once for the whole batch rather than on every record
+      for (LocalMasterableEntity e : entities) {
+        results.add(
+            new LocalMemoryEntityUniverse.AppendResult(
+                getMapping(e.getMasterableEntityIdentity()), ImmutableSet.of()));
+      }
+
+      return new LocalMemoryEntityUniverse.BatchAppendResult(results, deprecations);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Applies an append, the caller must hold the write lock
+  private void applyAppend(
+      LocalMasterableEntity e, Set<LocalMemoryEntityUniverse.DeprecationEntry> deprecations) {
+    final LocalMasterableEntityIdentity identity = e.getMasterableEntityIdentity();
+
+    // create the snapshot of an identity we have not seen
+    if (!entitySnapshot.containsKey(identity)) {
+      identityOrdinals.put(identity, clusters.add());
+      identities.add(identity);
+      entitySnapshot.put(identity, Maps.newConcurrentMap());
+      changes.identity(identity);
+    }
+
+    final int ordinal = identityOrdinals.get(identity);
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+        entitySnapshot.get(identity);
+
+    // only the values which changed can link the identity to anything new
+    final Map<LocalEntityModel.Attribute, Set<String>> changed = applyMutation(e, snapshot);
+
+    if (changed.isEmpty()) {
+      return;
+    }
+
+    changes.identity(identity);
+
+    changed.forEach(
+        (x, y) ->
+            y.forEach(
+                value -> {
+                  post(x, value, ordinal);
+                  forEachPostedKey(x, value, this::touch);
+                }));
+
+    final List<LocalEntityModel.Resolver> resolvers =
+        getMatchingResolvers(snapshot.keySet(), false);
+
+    // without any applicable resolver the identity stays unresolved, and nothing can link to it
+    if (resolvers.isEmpty()) {
+      return;
+    }
+
+    // every identity linked to this one through a changed value, with the resolver linking them
+    final Map<Integer, LocalEntityModel.Resolver> links = findLinks(ordinal, snapshot, changed);
+
+    LocalMasterEntity masterEntity = masterEntityByRoot.remove(clusters.find(ordinal));
+
+    for (Integer linked : links.keySet()) {
+      final LocalMasterEntity other = masterEntityByRoot.remove(clusters.find(linked));
+
+      clusters.union(ordinal, linked);
+      masterEntity = merge(masterEntity, other, deprecations);
+    }
+
+    final boolean joined;
+
+    if (masterEntity == null) {
+      // the identity matches nothing, so it leads a new master entity
+      masterEntity =
+          new LocalMasterEntity(
+              nextMasterEntityOrdinal.getAndIncrement(),
+              identity.getEntityType().getName(),
+              Maps.newConcurrentMap());
+      masterEntity
+          .getMemberIdentities()
+          .put(
+              identity,
+              Sets.newHashSet(LocalMasterEntityMembership.of(identity, resolvers.get(0), true)));
+      masterEntities.add(masterEntity);
+      joined = true;
+    } else if (!masterEntity.getMemberIdentities().containsKey(identity)) {
+      masterEntity
+          .getMemberIdentities()
+          .put(
+              identity,
+              Sets.newHashSet(
+                  LocalMasterEntityMembership.of(
+                      identity, links.values().iterator().next(), false)));
+      joined = true;
+    } else {
+      joined = false;
+    }
+
+    masterEntityByRoot.put(clusters.find(ordinal), masterEntity);
+    changes.masterEntity(masterEntity);
+
+    if (joined) {
+      // every value of the identity now resolves to the master entity
+      addDescriptors(masterEntity, snapshot);
+      touchAll(identity);
+    } else {
+      final LocalMasterEntity current = masterEntity;
+
+      changed.forEach(
+          (x, y) ->
+              y.forEach(value -> addDescriptor(current, x, value, snapshot.get(x).get(value))));
+    }
+  }
+
+  // Merges the descriptors into the snapshot, returns the values which are new or whose effective
+  // dating grew
+  private Map<LocalEntityModel.Attribute, Set<String>> applyMutation(
+      LocalMasterableEntity e,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot) {
+    final Map<LocalEntityModel.Attribute, Set<String>> changed = Maps.newHashMap();
+
+    for (Map.Entry<LocalMasterableEntityDescriptor, RangeSet<Long>> entry :
+        e.getDescriptors().entrySet()) {
+      final LocalMasterableEntityDescriptor descriptor = entry.getKey();
+
+      // Check if masterable entity descriptor is a valid entity model descriptor
+      if (descriptor.getKey() == null) {
+        throw new RuntimeException(
+            "Invalid attribute, masterable entity descriptor has no entity model attribute");
+      }
+
+      final Map<String, RangeSet<Long>> values =
+          snapshot.computeIfAbsent(descriptor.getKey(), x -> Maps.newConcurrentMap());
+
+      // snapshots only ever hold range sets created by this universe
+      final LongRangeSet current = (LongRangeSet) values.get(descriptor.getValue());
+
+      if (current == null) {
+        values.put(
+            valuePool.intern(descriptor.getValue()), LongRangeSet.create(entry.getValue()));
+      } else {
+        final long originalVersion = current.getVersion();
+
+        current.addAll(entry.getValue());
+
+        if (originalVersion == current.getVersion()) {
+          continue;
+        }
+      }
+
+      changed
+          .computeIfAbsent(descriptor.getKey(), x -> Sets.newHashSet())
+          .add(descriptor.getValue());
+    }
+
+    return changed;
+  }
+
+  // Returns the identities linked to the given one through its changed values, strongest resolver
+  // first. Like a resolution, the identity is matched against the merged descriptors of the
+  // candidate's cluster, so the values a resolver needs may come from different members.
+  private Map<Integer, LocalEntityModel.Resolver> findLinks(
+      int ordinal,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot,
+      Map<LocalEntityModel.Attribute, Set<String>> changed) {
+    final Map<Integer, LocalEntityModel.Resolver> links = Maps.newLinkedHashMap();
+    final int root = clusters.find(ordinal);
+
+    for (LocalEntityModel.Resolver resolver : getMatchingResolvers(snapshot.keySet(), false)) {
+      // clusters already checked against this resolver
+      final Set<Integer> visited = Sets.newHashSet();
+
+      for (LocalEntityModel.Attribute attribute : resolver.getAttributes()) {
+        final Set<String> values = changed.get(attribute);
+
+        if (values == null) {
+          continue;
+        }
+
+        for (String value : values) {
+          forEachCandidate(
+              attribute,
+              value,
+              candidate -> {
+                final int candidateRoot = clusters.find(candidate);
+
+                if (candidateRoot != root
+                    && visited.add(candidateRoot)
+                    && !links.containsKey(candidateRoot)
+                    && matches(resolver, snapshot, getClusterDescriptors(candidateRoot))) {
+                  links.put(candidateRoot, resolver);
+                }
+              });
+        }
+      }
+    }
+
+    return links;
+  }
+
+  // Returns the merged descriptors of the cluster, or the snapshot of its only identity if it has
+  // no master entity as none of its resolvers applies yet
+  private Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> getClusterDescriptors(
+      int root) {
+    final LocalMasterEntity masterEntity = masterEntityByRoot.get(root);
+
+    return masterEntity != null
+        ? masterEntity.getDescriptors()
+        : entitySnapshot.get(identities.get(root));
+  }
+
+  // Returns true if every attribute of the resolver matches between both snapshots
+  private boolean matches(
+      LocalEntityModel.Resolver resolver,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> left,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> right) {
+    for (LocalEntityModel.Attribute attribute : resolver.getAttributes()) {
+      final Map<String, RangeSet<Long>> rightValues = right.get(attribute);
+
+      if (rightValues == null || !matches(attribute, left.get(attribute), rightValues)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private boolean matches(
+      LocalEntityModel.Attribute attribute,
+      Map<String, RangeSet<Long>> values,
+      Map<String, RangeSet<Long>> candidateValues) {
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    return matcher == null
+        ? TemporalOverlap.overlapsAny(values, candidateValues)
+        : TemporalOverlap.matchesAny(
+            matcher, getDeclaredAttribute(attribute), values, candidateValues);
+  }
+
+  // Absorbs the smaller of two master entities into the larger one, which keeps its uid, and
+  // deprecates the smaller one
+  private LocalMasterEntity merge(
+      LocalMasterEntity left,
+      LocalMasterEntity right,
+      Set<LocalMemoryEntityUniverse.DeprecationEntry> deprecations) {
+    if (left == null || left == right) {
+      return right;
+    }
+
+    if (right == null) {
+      return left;
+    }
+
+    // the older master entity survives a tie
+    final int leftSize = left.getMemberIdentities().size();
+    final int rightSize = right.getMemberIdentities().size();
+    final boolean leftSurvives =
+        leftSize > rightSize || (leftSize == rightSize && left.getOrdinal() < right.getOrdinal());
+
+    final LocalMasterEntity survivor = leftSurvives ? left : right;
+    final LocalMasterEntity absorbed = leftSurvives ? right : left;
+
+    // only members of the smaller cluster move, so an identity moves a logarithmic number of times
+    absorbed
+        .getMemberIdentities()
+        .forEach(
+            (identity, memberships) -> {
+              survivor
+                  .getMemberIdentities()
+                  .computeIfAbsent(identity, x -> Sets.newHashSet())
+                  .addAll(memberships);
+              addDescriptors(survivor, entitySnapshot.get(identity));
+              touchAll(identity);
+            });
+
+    masterEntities.remove(absorbed);
+    lineage.record(absorbed.getUid(), survivor.getUid());
+    changes.masterEntity(absorbed);
+    changes.deprecation(absorbed.getUid());
+
+    deprecations.add(
+        new LocalMemoryEntityUniverse.DeprecationEntry(
+            absorbed, survivor, DominusApplication.SEQUENCE_ID.getAndIncrement()));
+
+    return survivor;
+  }
+
+  private static void addDescriptors(
+      LocalMasterEntity masterEntity,
+      Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> descriptors) {
+    descriptors.forEach(
+        (x, y) -> y.forEach((value, range) -> addDescriptor(masterEntity, x, value, range)));
+  }
+
+  private static void addDescriptor(
+      LocalMasterEntity masterEntity,
+      LocalEntityModel.Attribute attribute,
+      String value,
+      RangeSet<Long> range) {
+    final Map<String, RangeSet<Long>> values =
+        masterEntity.getDescriptors().computeIfAbsent(attribute, x -> Maps.newConcurrentMap());
+    final RangeSet<Long> validDts = values.get(value);
+
+    if (validDts == null) {
+      values.put(value, LongRangeSet.create(range));
+      masterEntity.markModified();
+    } else {
+      validDts.addAll(range);
+    }
+  }
+
+  // Returns the master entity of the identity and its memberships, or null if it is unresolved
+  private Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> getMapping(
+      LocalMasterableEntityIdentity identity) {
+    final Integer ordinal = identityOrdinals.get(identity);
+    final LocalMasterEntity masterEntity =
+        ordinal == null ? null : masterEntityByRoot.get(clusters.root(ordinal));
+
+    if (masterEntity == null) {
+      return null;
+    }
+
+    return ImmutableMap.of(
+        masterEntity, ImmutableSet.copyOf(masterEntity.getMemberIdentities().get(identity)));
+  }
+
+  // Posts the identity under the attribute value and every blocking key it is indexed under
+  private void post(LocalEntityModel.Attribute attribute, String value, int ordinal) {
+    final int key = dictionary.intern(attribute, value);
+
+    identitiesByKey.computeIfAbsent(key, x -> Sets.newConcurrentHashSet()).add(ordinal);
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      sortedValues
+          .computeIfAbsent(getDeclaredAttribute(attribute), x -> new SortedValueIndex())
+          .add(getDeclaredAttribute(attribute).getType().toNumber(value), key);
+    } else if (matcher != null) {
+      for (String blockingKey : matcher.getBlocking().indexKeys(value)) {
+        identitiesByKey
+            .computeIfAbsent(
+                dictionary.internBlockingKey(attribute, blockingKey),
+                x -> Sets.newConcurrentHashSet())
+            .add(ordinal);
+      }
+    }
+  }
+
+  // Visits the ordinal of every identity which may match the attribute value
+  private void forEachCandidate(
+      LocalEntityModel.Attribute attribute, String value, IntConsumer consumer) {
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      final SortedValueIndex index = sortedValues.get(getDeclaredAttribute(attribute));
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (index != null) {
+        index.forEach(
+            matcher.getWindow().lower(number),
+            matcher.getWindow().upper(number),
+            key -> forEachPosted(key, consumer));
+      }
+    } else if (matcher != null) {
+      for (String blockingKey : matcher.getBlocking().probeKeys(value)) {
+        forEachPosted(dictionary.findBlockingKey(attribute, blockingKey), consumer);
+      }
+    } else {
+      forEachPosted(dictionary.find(attribute, value), consumer);
+    }
+  }
+
+  private void forEachPosted(int key, IntConsumer consumer) {
+    final Set<Integer> posted =
+        key == AttributeValueDictionary.MISSING ? null : identitiesByKey.get(key);
+
+    if (posted != null) {
+      posted.forEach(consumer::accept);
+    }
+  }
+
+  // Visits every key a resolution finding the attribute value probes
+  private void forEachPostedKey(
+      LocalEntityModel.Attribute attribute, String value, IntConsumer consumer) {
+    consumer.accept(dictionary.intern(attribute, value));
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      // windowed values are found in the sorted index, the bucket of the value versions them
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (!Double.isNaN(number)) {
+        consumer.accept(
+            dictionary.internBlockingKey(
+                attribute, Long.toString(matcher.getWindow().bucket(number))));
+      }
+    } else if (matcher != null) {
+      matcher
+          .getBlocking()
+          .indexKeys(value)
+          .forEach(x -> consumer.accept(dictionary.internBlockingKey(attribute, x)));
+    }
+  }
+
+  // Adds the keys a resolution of the attribute value depends on. Keys are only looked up, so
+  // queries never grow the dictionary, those never interned are added to missing instead.
+  private void addDependencies(
+      LocalEntityModel.Attribute attribute,
+      String value,
+      Collection<Integer> keys,
+      Collection<IntSupplier> missing) {
+    addDependency(() -> dictionary.find(attribute, value), keys, missing);
+
+    final LocalEntityModel.Matcher matcher = getFuzzyMatcher(attribute);
+
+    if (matcher != null && matcher.getWindow() != null) {
+      // a value depends on every bucket its window spans
+      final LocalEntityModel.Window window = matcher.getWindow();
+      final double number = getDeclaredAttribute(attribute).getType().toNumber(value);
+
+      if (!Double.isNaN(number)) {
+        final long last = window.bucket(window.upper(number));
+
+        for (long bucket = window.bucket(window.lower(number)); ; ++bucket) {
+          final String blockingKey = Long.toString(bucket);
+
+          addDependency(
+              () -> dictionary.findBlockingKey(attribute, blockingKey), keys, missing);
+
+          if (bucket >= last) {
+            break;
+          }
+        }
+      }
+    } else if (matcher != null) {
+      for (String blockingKey : matcher.getBlocking().probeKeys(value)) {
+        addDependency(() -> dictionary.findBlockingKey(attribute, blockingKey), keys, missing);
+      }
+    }
+  }
+
+  private static void addDependency(
+      IntSupplier lookup, Collection<Integer> keys, Collection<IntSupplier> missing) {
+    final int key = lookup.getAsInt();
+
+    if (key == AttributeValueDictionary.MISSING) {
+      missing.add(lookup);
+    } else {
+      keys.add(key);
+    }
+  }
+
+  private void touch(int key) {
+    keyVersions.computeIfAbsent(key, x -> new AtomicLong(0)).incrementAndGet();
+  }
+
+  // Touches every key of the identity, its values now resolve to another master entity
+  private void touchAll(LocalMasterableEntityIdentity identity) {
+    entitySnapshot
+        .get(identity)
+        .forEach((x, y) -> y.keySet().forEach(value -> forEachPostedKey(x, value, this::touch)));
+  }
+
+  private long version(int key) {
+    final AtomicLong version = keyVersions.get(key);
+
+    return version == null ? 0 : version.get();
+  }
+
+  @Override
+  public Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolve(ResolveQuery query) {
+    final ResolveCache.Resolution cached =
+        query.getDescriptors().isEmpty() ? null : resolveCache.get(query, this::version);
+
+    if (cached != null) {
+      return cached.getMapping();
+    }
+
+    lock.readLock().lock();
+
+    try {
+      // listing every master entity depends on the whole universe, it is never cached
+      if (query.getDescriptors().isEmpty()) {
+        return resolveUncached(query);
+      }
+
+      final Set<Integer> dependencies = Sets.newLinkedHashSet();
+      final List<IntSupplier> missing = Lists.newArrayList();
+      query.getDescriptors().forEach((x, y) -> addDependencies(x, y, dependencies, missing));
+
+      final int[] keys = Ints.toArray(dependencies);
+      final long[] versions = new long[keys.length];
+
+      for (int i = 0; i < keys.length; ++i) {
+        versions[i] = version(keys[i]);
+      }
+
+      final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> mapping =
+          resolveUncached(query);
+
+      resolveCache.put(query, new ResolveCache.Resolution(mapping, keys, versions, missing));
+
+      return mapping;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Resolves the query against the master entities, the caller must hold the read lock
+  private Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolveUncached(
+      ResolveQuery query) {
+    final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> attrs =
+        query.getTemporalQueryAttributes();
+
+    if (attrs.isEmpty()) {
+      final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution = Maps.newHashMap();
+
+      for (LocalMasterEntity masterEntity : masterEntities) {
+        resolution.put(masterEntity, ImmutableSet.of());
+      }
+
+      return resolution.isEmpty() ? null : resolution;
+    }
+
+    for (LocalEntityModel.Resolver resolver :
+        getMatchingResolvers(query.getDescriptors().keySet(), true)) {
+      Set<LocalMasterEntity> currentMatches = null;
+
+      // a master entity matches when some member matches each attribute of the query
+      for (LocalEntityModel.Attribute attribute : resolver.getAttributes()) {
+        final Map<String, RangeSet<Long>> values = attrs.get(attribute);
+
+        if (values == null) {
+          continue;
+        }
+
+        final Set<LocalMasterEntity> candidates = Sets.newHashSet();
+
+        for (String value : values.keySet()) {
+          forEachCandidate(
+              attribute,
+              value,
+              candidate -> {
+                final LocalMasterEntity masterEntity =
+                    masterEntityByRoot.get(clusters.root(candidate));
+
+                if (masterEntity != null
+                    && !candidates.contains(masterEntity)
+                    && matches(
+                        attribute,
+                        values,
+                        entitySnapshot.get(identities.get(candidate)).get(attribute))) {
+                  candidates.add(masterEntity);
+                }
+              });
+        }
+
+        currentMatches =
+            currentMatches == null
+                ? candidates
+                : Sets.newHashSet(Sets.intersection(currentMatches, candidates));
+
+        if (currentMatches.isEmpty()) {
+          break;
+        }
+      }
+
+      if (currentMatches != null && !currentMatches.isEmpty()) {
+        final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> result =
+            Maps.newHashMap();
+
+        for (LocalMasterEntity masterEntity : currentMatches) {
+          result.put(
+              masterEntity, ImmutableSet.of(LocalMasterEntityMembership.of(null, resolver, false)));
+        }
+
+        return ImmutableMap.copyOf(result);
+      }
+    }
+
+    return null;
+  }
+
+  @Override
+  public Set<LocalMasterEntity> getMasterEntities() {
+    return masterEntities;
+  }
+
+  @Override
+  public LocalMemoryEntityUniverse.MasterEntityPage getMasterEntities(String cursor, int limit) {
+    return masterEntities.page(cursor, limit);
+  }
+
+  @Override
+  public ResolveCache.Stats getResolveCacheStats() {
+    return resolveCache.getStats();
+  }
+
+  // Walks every structure of the universe, estimates are approximate while appends run
+  @Override
+  public MemoryUsage getMemoryUsage() {
+    final MemoryEstimator estimator = new MemoryEstimator();
+    final Map<String, Long> bytes = Maps.newLinkedHashMap();
+
+    // pooled values first, every structure holding them then only counts its references
+    bytes.put("values", valuePool.estimateBytes(estimator));
+
+    long snapshots = MemoryEstimator.MAP_BYTES;
+
+    for (Map.Entry<
+            LocalMasterableEntityIdentity,
+            Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+        entry : entitySnapshot.entrySet()) {
+      snapshots +=
+          MemoryEstimator.ENTRY_BYTES
+              + estimator.identity(entry.getKey())
+              + estimator.descriptors(entry.getValue());
+    }
+
+    bytes.put("entitySnapshot", snapshots);
+
+    long descriptors = 0;
+
+    for (LocalMasterEntity masterEntity : masterEntities) {
+      descriptors += MemoryEstimator.ENTRY_BYTES + estimator.masterEntity(masterEntity);
+    }
+
+    bytes.put("masterDescriptors", descriptors);
+
+    long postings = MemoryEstimator.MAP_BYTES;
+
+    for (Set<Integer> ordinals : identitiesByKey.values()) {
+      postings +=
+          MemoryEstimator.ENTRY_BYTES
+              + MemoryEstimator.MAP_BYTES
+              + (long) ordinals.size() * (MemoryEstimator.ENTRY_BYTES + 16);
+    }
+
+    bytes.put("identitiesByKey", postings);
+    bytes.put("dictionary", dictionary.estimateBytes(estimator));
+    bytes.put("lineage", lineage.estimateBytes(estimator));
+
+    return new MemoryUsage(entityType.getName(), bytes, 0, valuePool.getSavedBytes());
+  }
+
+  @Override
+  public DeprecationLineage getDeprecationLineage() {
+    return lineage;
+  }
+
+  // Streams the identities with their snapshots, the members of every cluster and the lineage, in
+  // the layout of every universe. Appends wait until it is written, resolutions do not.
+  @Override
+  public void writeCheckpoint(Output output) {
+    lock.readLock().lock();
+
+    try {
+      final CheckpointCodec codec = new CheckpointCodec(entityType, valuePool);
+
+      changes = new CheckpointChanges();
+
+      // snapshots are held on the heap, no generation of a snapshot store holds any
+      output.writeVarInt(0, true);
+      output.writeVarInt(identities.size(), true);
+
+      for (LocalMasterableEntityIdentity identity : identities) {
+        codec.writeIdentity(output, identity);
+        codec.writeDescriptors(output, entitySnapshot.get(identity));
+      }
+
+      output.writeVarInt(masterEntities.size(), true);
+
+      for (LocalMasterEntity masterEntity : masterEntities) {
+        writeMasterEntity(output, codec, masterEntity);
+      }
+
+      output.writeVarInt(nextMasterEntityOrdinal.get(), true);
+
+      CheckpointCodec.writeLineage(output, lineage);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Streams what changed since the last checkpoint in the delta layout of every universe: the
+  // changed identities by ordinal, the live changed clusters, the ordinals of those absorbed and
+  // the deprecations recorded
+  @Override
+  public void writeCheckpointDelta(Output output) {
+    lock.readLock().lock();
+
+    try {
+      final CheckpointChanges taken = changes;
+      final CheckpointCodec codec = new CheckpointCodec(entityType, valuePool);
+
+      changes = new CheckpointChanges();
+
+      output.writeVarInt(identities.size(), true);
+      output.writeVarInt(taken.getIdentities().size(), true);
+
+      for (LocalMasterableEntityIdentity identity : taken.getIdentities()) {
+        output.writeVarInt(identityOrdinals.get(identity), true);
+        codec.writeIdentity(output, identity);
+        codec.writeDescriptors(output, entitySnapshot.get(identity));
+      }
+
+      final List<LocalMasterEntity> live = Lists.newArrayList();
+      final List<LocalMasterEntity> absorbed = Lists.newArrayList();
+
+      for (LocalMasterEntity masterEntity : taken.getMasterEntities()) {
+        (masterEntities.contains(masterEntity) ? live : absorbed).add(masterEntity);
+      }
+
+      output.writeVarInt(masterEntities.size(), true);
+      output.writeVarInt(live.size(), true);
+
+      for (LocalMasterEntity masterEntity : live) {
+        writeMasterEntity(output, codec, masterEntity);
+      }
+
+      output.writeVarInt(absorbed.size(), true);
+
+      for (LocalMasterEntity masterEntity : absorbed) {
+        output.writeVarInt(masterEntity.getOrdinal(), true);
+      }
+
+      output.writeVarInt(nextMasterEntityOrdinal.get(), true);
+
+      CheckpointCodec.writeLineage(output, lineage, taken.getDeprecations());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void writeMasterEntity(
+      Output output, CheckpointCodec codec, LocalMasterEntity masterEntity) {
+    output.writeString(masterEntity.getUid());
+    output.writeVarInt(masterEntity.getOrdinal(), true);
+
+    // descriptors of a cluster are never shared with any of its snapshots
+    output.writeVarInt(0, true);
+    output.writeVarInt(masterEntity.getMemberIdentities().size(), true);
+
+    masterEntity
+        .getMemberIdentities()
+        .forEach(
+            (member, memberships) -> {
+              output.writeVarInt(identityOrdinals.get(member), true);
+              codec.writeMemberships(output, memberships);
+            });
+  }
+
+  // Restores a checkpoint into this universe, which must be empty. Clusters are linked again from
+  // their members and their descriptors rebuilt from the members' snapshots.
+  @Override
+  public void readCheckpoint(Input input) {
+    lock.writeLock().lock();
+
+    try {
+      if (!identities.isEmpty()) {
+        throw new IllegalStateException("checkpoints are only restored into an empty universe");
+      }
+
+      final CheckpointCodec codec = new CheckpointCodec(entityType, valuePool);
+
+      if (input.readVarInt(true) != 0) {
+        throw new IllegalStateException("snapshots persisted by a snapshot store are not readable");
+      }
+
+      for (int i = input.readVarInt(true); i > 0; --i) {
+        final LocalMasterableEntityIdentity identity = codec.readIdentity(input);
+        final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> snapshot =
+            codec.readDescriptors(input);
+        final int ordinal = clusters.add();
+
+        identityOrdinals.put(identity, ordinal);
+        identities.add(identity);
+        entitySnapshot.put(identity, snapshot);
+
+        snapshot.forEach((x, y) -> y.keySet().forEach(value -> post(x, value, ordinal)));
+      }
+
+      for (int i = input.readVarInt(true); i > 0; --i) {
+        final String uid = input.readString();
+        final int ordinal = input.readVarInt(true);
+
+        // the descriptors are rebuilt whether or not they were shared
+        input.readVarInt(true);
+
+        final LocalMasterEntity masterEntity =
+            new LocalMasterEntity(uid, ordinal, entityType.getName(), Maps.newConcurrentMap());
+
+        int root = -1;
+
+        for (int j = input.readVarInt(true); j > 0; --j) {
+          final int member = input.readVarInt(true);
+          final LocalMasterableEntityIdentity identity = identities.get(member);
+
+          masterEntity.getMemberIdentities().put(identity, codec.readMemberships(input, identity));
+          addDescriptors(masterEntity, entitySnapshot.get(identity));
+
+          root = root < 0 ? member : clusters.union(root, member);
+        }
+
+        masterEntityByRoot.put(clusters.find(root), masterEntity);
+        masterEntities.add(masterEntity);
+      }
+
+      nextMasterEntityOrdinal.set(input.readVarInt(true));
+
+      CheckpointCodec.readLineage(input, lineage);
+
+      changes = new CheckpointChanges();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Checkpoints hold every snapshot themselves, nothing is kept once they are written
+  @Override
+  public void commitCheckpoint() {}
+
+  private List<LocalEntityModel.Resolver> getMatchingResolvers(
+      Set<LocalEntityModel.Attribute> keys, boolean contains) {
+    final List<LocalEntityModel.Resolver> results = Lists.newArrayList();
+
+    for (LocalEntityModel.Resolver resolver : entityType.getLocalEntityModel().getResolvers()) {
+      if (contains
+          ? resolver.getAttributes().containsAll(keys)
+          : keys.containsAll(resolver.getAttributes())) {
+        results.add(resolver);
+      }
+    }
+
+    return results;
+  }
+
+  // Returns the fuzzy matcher declared for the attribute, or null if its values only match exactly
+  private LocalEntityModel.Matcher getFuzzyMatcher(LocalEntityModel.Attribute attribute) {
+    final LocalEntityModel.Matcher matcher = getDeclaredAttribute(attribute).getMatcher();
+
+    return matcher == null || matcher.isExact() ? null : matcher;
+  }
+
+  // Returns the attribute as declared by the entity model, resolvers may carry bare copies of it
+  private LocalEntityModel.Attribute getDeclaredAttribute(LocalEntityModel.Attribute attribute) {
+    final LocalEntityModel.Attribute declared =
+        entityType.getLocalEntityModel().getAttributeByName().get(attribute.getName());
+
+    return declared != null ? declared : attribute;
+  }
+}
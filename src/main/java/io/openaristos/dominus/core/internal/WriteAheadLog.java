@@ -0,0 +1,504 @@
+package io.openaristos.dominus.core.internal;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.RangeSet;
+import io.openaristos.dominus.core.EntityType;
+import io.openaristos.dominus.core.LocalMasterableEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+// Append-only log of every append, so appends made since the last checkpoint survive a restart.
+// Callers encode their record and queue it, a single writer thread writes everything queued and
+// syncs it with one fsync, so concurrent callers share a sync rather than paying one each and a
+// caller applies its record while the sync is under way. Records are framed with their length
+// and a checksum, a record torn by a crash ends its segment. The log is split into segments named
+// by the position of their first record, segments held by a checkpoint are deleted.
+public class WriteAheadLog implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+  private static final String SUFFIX = ".wal";
+  private static final long SEGMENT_BYTES = 64L << 20;
+  private static final int MAX_RECORD_BYTES = 64 << 20;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final byte ENTITY_MODEL = 1;
+  private static final byte ENTITY = 2;
+  private static final byte RELATIONSHIP = 3;
+
+  private final File directory;
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  private final Entry closing = new Entry(-1, new byte[0]);
+
+  // positions logged but not yet applied to their universes
+  private final NavigableSet<Long> unapplied = new ConcurrentSkipListSet<>();
+  private final Map<EntityType, CheckpointCodec> codecs = Maps.newConcurrentMap();
+  private final LongAdder syncs = new LongAdder();
+
+  // segments found when the log was opened, the ones replayed
+  private final List<File> recovered;
+  private final Thread writer;
+
+  private long position;
+  private boolean closed;
+  private volatile IOException failure;
+
+  // only used by the writer thread
+  private FileChannel segment;
+
+  public WriteAheadLog(File directory) throws IOException {
+    this.directory = directory;
+
+    Files.createDirectories(directory.toPath());
+
+    this.recovered = listSegments();
+    this.position = recover();
+    this.segment = openSegment(position + 1);
+
+    this.writer = new Thread(this::write, "write-ahead-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public Entry logEntityModel(String entityType, byte[] model) {
+    final Output output = new Output(model.length + 64, -1);
+
+    output.writeByte(ENTITY_MODEL);
+    output.writeString(entityType);
+    output.writeVarInt(model.length, true);
+    output.writeBytes(model);
+
+    return append(output.toBytes());
+  }
+
+  public Entry logEntity(LocalMasterableEntity entity) {
+    final Output output = new Output(256, -1);
+
+    output.writeByte(ENTITY);
+    writeEntity(output, entity);
+
+    return append(output.toBytes());
+  }
+
+  public Entry logRelationship(
+      LocalMasterableEntity source,
+      LocalMasterableEntity target,
+      String relationship,
+      RangeSet<Long> validDts) {
+    final Output output = new Output(512, -1);
+
+    output.writeByte(RELATIONSHIP);
+    output.writeString(relationship);
+    CheckpointCodec.writeRanges(output, validDts);
+    writeEntity(output, source);
+    writeEntity(output, target);
+
+    return append(output.toBytes());
+  }
+
+  // Every record up to the returned position is applied, a checkpoint started afterwards holds it
+  public synchronized long getAppliedPosition() {
+    final Long first = unapplied.ceiling(Long.MIN_VALUE);
+
+    return first == null ? position : first - 1;
+  }
+
+  // Number of syncs made, a sync covers every record queued while the previous one ran
+  public long getSyncs() {
+    return syncs.sum();
+  }
+
+  // Replays the records logged before the log was opened. A record is replayed if it follows the
+  // position its entity type was checkpointed at, entity types without a position replay all of
+  // their records. Returns the number of records replayed.
+  public long replay(
+      Map<String, Long> positions,
+      Function<String, EntityType> entityTypes,
+      Replayer replayer)
+      throws IOException {
+    final LongAdder replayed = new LongAdder();
+
+    for (File file : recovered) {
+      read(
+          file,
+          (x, input) -> {
+            if (replay(x, input, positions, entityTypes, replayer)) {
+              replayed.increment();
+            }
+          });
+    }
+
+    LOG.info("replayed {} records of the write-ahead log", replayed.sum());
+
+    return replayed.sum();
+  }
+
+  // Deletes the segments holding no record after the position, a checkpoint holds all of them
+  public void truncate(long position) throws IOException {
+    final List<File> segments = listSegments();
+
+    // the last segment is never deleted, it may be the one being written
+    for (int i = 0; i + 1 < segments.size(); ++i) {
+      if (getFirstPosition(segments.get(i + 1)) - 1 > position) {
+        break;
+      }
+
+      Files.deleteIfExists(segments.get(i).toPath());
+    }
+  }
+
+  // Writes every record queued so far and stops the writer, records can no longer be logged
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      queue.add(closing);
+    }
+
+    try {
+      writer.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while closing the write-ahead log");
+    }
+
+    segment.close();
+  }
+
+  private synchronized Entry append(byte[] record) {
+    if (closed) {
+      throw new IllegalStateException("the write-ahead log is closed");
+    }
+
+    final Entry entry = new Entry(++position, record);
+
+    unapplied.add(entry.position);
+    queue.add(entry);
+
+    return entry;
+  }
+
+  // Writes records as they are queued, each batch being everything queued during the last sync
+  private void write() {
+    final List<Entry> batch = Lists.newArrayList();
+    final Output output = new Output(BUFFER_SIZE, -1);
+    final Output header = new Output(16);
+    final CRC32 checksum = new CRC32();
+
+    boolean stopping = false;
+
+    while (!stopping) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException ex) {
+        break;
+      }
+
+      queue.drainTo(batch);
+      stopping = batch.remove(closing);
+
+      try {
+        if (failure != null) {
+          throw failure;
+        }
+
+        output.reset();
+
+        for (Entry entry : batch) {
+          header.reset();
+          header.writeVarLong(entry.position, true);
+
+          checksum.reset();
+          checksum.update(header.getBuffer(), 0, header.position());
+          checksum.update(entry.record);
+
+          output.writeInt(header.position() + entry.record.length);
+          output.writeInt((int) checksum.getValue());
+          output.writeBytes(header.getBuffer(), 0, header.position());
+          output.writeBytes(entry.record);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(output.getBuffer(), 0, output.position());
+
+        while (buffer.hasRemaining()) {
+          segment.write(buffer);
+        }
+
+        segment.force(false);
+        syncs.increment();
+
+        batch.forEach(x -> x.durable.complete(null));
+
+        if (!batch.isEmpty() && segment.size() >= SEGMENT_BYTES) {
+          segment.close();
+          segment = openSegment(batch.get(batch.size() - 1).position + 1);
+        }
+      } catch (IOException ex) {
+        if (failure == null) {
+          LOG.error("failed to write the write-ahead log, no further record is logged", ex);
+          failure = ex;
+        }
+
+        batch.forEach(x -> x.durable.completeExceptionally(failure));
+      }
+
+      batch.clear();
+    }
+  }
+
+  // Finds the last complete record of every segment, a torn tail is cut off
+  private long recover() throws IOException {
+    long last = 0;
+
+    for (File file : recovered) {
+      final long[] position = {getFirstPosition(file) - 1};
+      final long length = read(file, (x, input) -> position[0] = x);
+
+      if (length < file.length()) {
+        LOG.warn("cutting torn records off `{}` after {} bytes", file, length);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+          channel.truncate(length);
+        }
+      }
+
+      last = Math.max(last, position[0]);
+    }
+
+    return last;
+  }
+
+  private boolean replay(
+      long position,
+      Input input,
+      Map<String, Long> positions,
+      Function<String, EntityType> entityTypes,
+      Replayer replayer) {
+    final byte type = input.readByte();
+
+    if (type == ENTITY_MODEL) {
+      final String entityType = input.readString();
+      final byte[] model = input.readBytes(input.readVarInt(true));
+
+      if (position <= positions.getOrDefault(entityType, 0L)) {
+        return false;
+      }
+
+      replayer.entityModel(entityType, model);
+      return true;
+    }
+
+    if (type == ENTITY) {
+      final LocalMasterableEntity entity = readEntity(input, position, entityTypes);
+
+      if (entity == null || position <= getPosition(positions, entity)) {
+        return false;
+      }
+
+      replayer.entity(entity);
+      return true;
+    }
+
+    if (type == RELATIONSHIP) {
+      final String relationship = input.readString();
+      final RangeSet<Long> validDts = CheckpointCodec.readRanges(input);
+      final LocalMasterableEntity source = readEntity(input, position, entityTypes);
+      final LocalMasterableEntity target =
+          source == null ? null : readEntity(input, position, entityTypes);
+
+      // one side may be checkpointed already, appending it once more leaves its universe as it is
+      if (target == null
+          || position
+              <= Math.min(getPosition(positions, source), getPosition(positions, target))) {
+        return false;
+      }
+
+      replayer.relationship(source, target, relationship, validDts);
+      return true;
+    }
+
+    throw new IllegalStateException("unknown record type " + type + " at position " + position);
+  }
+
+  private void writeEntity(Output output, LocalMasterableEntity entity) {
+    output.writeString(entity.getType().getName());
+    getCodec(entity.getType()).writeEntity(output, entity);
+  }
+
+  // Reads an entity, or returns null if its entity type is unknown
+  private LocalMasterableEntity readEntity(
+      Input input, long position, Function<String, EntityType> entityTypes) {
+    final String name = input.readString();
+    final EntityType entityType = entityTypes.apply(name);
+
+    if (entityType == null) {
+      LOG.warn("skipping record at position {} of unknown entity type `{}`", position, name);
+      return null;
+    }
+
+    return getCodec(entityType).readEntity(input);
+  }
+
+  private CheckpointCodec getCodec(EntityType entityType) {
+    return codecs.computeIfAbsent(entityType, x -> new CheckpointCodec(x, new StringPool()));
+  }
+
+  private static long getPosition(Map<String, Long> positions, LocalMasterableEntity entity) {
+    return positions.getOrDefault(entity.getType().getName(), 0L);
+  }
+
+  private List<File> listSegments() {
+    final File[] files = directory.listFiles((x, name) -> name.endsWith(SUFFIX));
+
+    if (files == null) {
+      return Lists.newArrayList();
+    }
+
+    final List<File> segments = Lists.newArrayList(Arrays.asList(files));
+    segments.sort(Comparator.comparingLong(WriteAheadLog::getFirstPosition));
+
+    return segments;
+  }
+
+  private FileChannel openSegment(long firstPosition) throws IOException {
+    final File file = new File(directory, String.format("%020d%s", firstPosition, SUFFIX));
+
+    final FileChannel channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+
+    // the directory entry of the new segment has to be as durable as the records written to it
+    try (FileChannel parent = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      parent.force(true);
+    }
+
+    return channel;
+  }
+
+  private static long getFirstPosition(File segment) {
+    final String name = segment.getName();
+
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  // Reads every complete record of the segment, returns the bytes they take
+  private static long read(File segment, BiConsumer<Long, Input> consumer) throws IOException {
+    final CRC32 checksum = new CRC32();
+
+    long length = 0;
+
+    try (Input input = new Input(new FileInputStream(segment), BUFFER_SIZE)) {
+      while (true) {
+        final byte[] record;
+
+        try {
+          final int size = input.readInt();
+          final int expected = input.readInt();
+
+          if (size <= 0 || size > MAX_RECORD_BYTES) {
+            break;
+          }
+
+          record = input.readBytes(size);
+
+          checksum.reset();
+          checksum.update(record);
+
+          if ((int) checksum.getValue() != expected) {
+            break;
+          }
+        } catch (KryoException ex) {
+          // the end of the segment, or a record torn by a crash
+          break;
+        }
+
+        final Input recordInput = new Input(record);
+
+        consumer.accept(recordInput.readVarLong(true), recordInput);
+        length = input.total();
+      }
+    }
+
+    return length;
+  }
+
+  // Replays the records of a write-ahead log
+  public interface Replayer {
+    void entityModel(String entityType, byte[] model);
+
+    void entity(LocalMasterableEntity entity);
+
+    void relationship(
+        LocalMasterableEntity source,
+        LocalMasterableEntity target,
+        String relationship,
+        RangeSet<Long> validDts);
+  }
+
+  // A logged record, applied by its caller while it is written
+  public class Entry {
+    private final long position;
+    private final byte[] record;
+    private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+    private Entry(long position, byte[] record) {
+      this.position = position;
+      this.record = record;
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    // Marks the record applied to its universes, whether or not applying it succeeded
+    public void applied() {
+      unapplied.remove(position);
+    }
+
+    // Waits until the record is synced to disk
+    public void awaitDurable() throws IOException {
+      try {
+        durable.get();
+      } catch (ExecutionException ex) {
+        throw (IOException) ex.getCause();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while logging position " + position);
+      }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package io.openaristos.dominus.core.subscribers;
 import io.openaristos.dominus.core.EntityType;
 import io.openaristos.dominus.core.EntityUniverse;
 import io.openaristos.dominus.core.graph.KnowledgeGraph;
+import io.openaristos.dominus.core.internal.WriteAheadLog;
 
 import java.util.Map;
 
@@ -11,8 +12,10 @@ public interface ExternalSubscriber {
 
   void stop();
 
+  // Records received are logged to the write-ahead log before they are appended, unless it is null
   void setup(
       final Map<String, EntityType> entityTypeMap,
       final Map<String, EntityUniverse> universeMap,
-      final KnowledgeGraph knowledgeGraph);
+      final KnowledgeGraph knowledgeGraph,
+      final WriteAheadLog writeAheadLog);
 }
@@ -8,6 +8,7 @@ import io.openaristos.dominus.core.EntityType;
 import io.openaristos.dominus.core.EntityUniverse;
 import io.openaristos.dominus.core.KnowledgeEngineFacade;
 import io.openaristos.dominus.core.graph.KnowledgeGraph;
+import io.openaristos.dominus.core.internal.WriteAheadLog;
 import io.openaristos.dominus.core.subscribers.ExternalSubscriber;
 import io.openaristos.models.Entity;
 import io.openaristos.models.Relationship;
@@ -79,18 +80,20 @@ public class PubSubExternalSubscriber implements ExternalSubscriber {
   public synchronized void setup(
       final Map<String, EntityType> entityTypeMap,
       final Map<String, EntityUniverse> universeMap,
-      final KnowledgeGraph knowledgeGraph) {
+      final KnowledgeGraph knowledgeGraph,
+      final WriteAheadLog writeAheadLog) {
 
     this.relationshipSubscriber =
         Subscriber.newBuilder(
                 properties.getProperty("subscribers.pubsub.relationships.subscription"),
-                new RelationshipReceiver(entityTypeMap, universeMap, knowledgeGraph))
+                new RelationshipReceiver(
+                    entityTypeMap, universeMap, knowledgeGraph, writeAheadLog))
             .build();
 
     this.entitySubscriber =
         Subscriber.newBuilder(
                 properties.getProperty("subscribers.pubsub.entities.subscription"),
-                new EntityReceiver(entityTypeMap, universeMap, knowledgeGraph))
+                new EntityReceiver(entityTypeMap, universeMap, knowledgeGraph, writeAheadLog))
             .build();
   }
 
@@ -109,9 +112,11 @@ public class PubSubExternalSubscriber implements ExternalSubscriber {
     EntityReceiver(
         Map<String, EntityType> entityTypeMap,
         Map<String, EntityUniverse> universeMap,
-        KnowledgeGraph knowledgeGraph) {
+        KnowledgeGraph knowledgeGraph,
+        WriteAheadLog writeAheadLog) {
       this.totalReceived = 0;
-      this.facade = new KnowledgeEngineFacade(entityTypeMap, universeMap, knowledgeGraph);
+      this.facade =
+          new KnowledgeEngineFacade(entityTypeMap, universeMap, knowledgeGraph, writeAheadLog);
     }
 
     @Override
@@ -144,8 +149,10 @@ public class PubSubExternalSubscriber implements ExternalSubscriber {
     RelationshipReceiver(
         Map<String, EntityType> entityTypeMap,
         Map<String, EntityUniverse> universeMap,
-        KnowledgeGraph knowledgeGraph) {
-      this.facade = new KnowledgeEngineFacade(entityTypeMap, universeMap, knowledgeGraph);
+        KnowledgeGraph knowledgeGraph,
+        WriteAheadLog writeAheadLog) {
+      this.facade =
+          new KnowledgeEngineFacade(entityTypeMap, universeMap, knowledgeGraph, writeAheadLog);
     }
 
     @Override
@@ -1,8 +1,18 @@
 package io.openaristos.dominus;
 
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.*;
 import io.openaristos.dominus.core.*;
+import io.openaristos.dominus.core.internal.BulkLoader;
+import io.openaristos.dominus.core.internal.Checkpointer;
+import io.openaristos.dominus.core.internal.DeprecationLineage;
+import io.openaristos.dominus.core.internal.LayeredSnapshotStore;
 import io.openaristos.dominus.core.internal.LocalMemoryEntityUniverse;
+import io.openaristos.dominus.core.internal.MemoryUsage;
+import io.openaristos.dominus.core.internal.OffHeapSnapshotStore;
+import io.openaristos.dominus.core.internal.UnionFindEntityUniverse;
+import io.openaristos.dominus.core.internal.WriteAheadLog;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -10,10 +20,25 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @RunWith(JUnit4.class)
@@ -947,4 +972,2002 @@ public class LocalMemoryEntityUniverseTest {
     assert ar.getMapping().keySet().iterator().next().getMemberIdentities().size() == entities.size() + 1;
     assert universe.getMasterEntities().size() == 1;
   }
+
+  @Test
+  public void testCanAppendConcurrently() throws InterruptedException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel.Attribute email =
+        LocalEntityModel.Attribute.of(
+            "email", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel personEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, email),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("uid", ImmutableSet.of(uid), 10),
+                LocalEntityModel.Resolver.of("email", ImmutableSet.of(email), 5)));
+
+    final EntityType personEntityType = EntityType.of("person", personEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(personEntityType);
+
+    // each family shares an email, families share nothing between them
+    final int MAX_FAMILIES = 50;
+    final int MAX_MEMBERS = 20;
+
+    final List<LocalMasterableEntity> entities = Lists.newArrayList();
+
+    for (int i = 0; i < MAX_FAMILIES; ++i) {
+      final String familyEmail = UUID.randomUUID().toString();
+
+      for (int j = 0; j < MAX_MEMBERS; ++j) {
+        final LocalMasterableEntity m =
+            getRandomMasterableEntity(personEntityType, PERSPECTIVE_A, uid);
+
+        entities.add(
+            LocalMasterableEntity.of(
+                m.getType(),
+                m.getMasterableEntityIdentity(),
+                ImmutableMap.of(
+                    LocalMasterableEntityDescriptor.of(email, familyEmail), perpetualRangeSet())));
+      }
+    }
+
+    Collections.shuffle(entities);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    for (LocalMasterableEntity masterableEntity : entities) {
+      executor.submit(() -> universe.append(masterableEntity));
+    }
+
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+    // every family collapses into a single master entity
+    Assert.assertEquals(MAX_FAMILIES, universe.getMasterEntities().size());
+
+    for (LocalMasterEntity masterEntity : universe.getMasterEntities()) {
+      Assert.assertEquals(MAX_MEMBERS, masterEntity.getMemberIdentities().size());
+    }
+  }
+
+  @Test
+  public void testAppendsEntitiesWithoutDescriptorsAgainstEveryCluster()
+      throws InterruptedException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel.Attribute email =
+        LocalEntityModel.Attribute.of(
+            "email", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final EntityType personEntityType =
+        EntityType.of(
+            "person",
+            LocalEntityModel.of(
+                ImmutableSet.of(uid, email),
+                ImmutableSet.of(LocalEntityModel.Resolver.of("email", ImmutableSet.of(email), 5))));
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(personEntityType);
+
+    final int MAX_ENTITIES = 100;
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    // an entity without descriptors resolves to every cluster, appends around it wait for it
+    for (int i = 0; i < MAX_ENTITIES; ++i) {
+      final LocalMasterableEntity m =
+          getRandomMasterableEntity(personEntityType, PERSPECTIVE_A, uid);
+
+      executor.submit(
+          () ->
+              universe.append(
+                  LocalMasterableEntity.of(
+                      m.getType(),
+                      m.getMasterableEntityIdentity(),
+                      ImmutableMap.of(
+                          LocalMasterableEntityDescriptor.of(
+                              email, UUID.randomUUID().toString()),
+                          perpetualRangeSet()))));
+
+      if (i % 10 == 0) {
+        executor.submit(
+            () ->
+                universe.append(
+                    LocalMasterableEntity.of(
+                        m.getType(),
+                        getRandomIdentity(personEntityType, PERSPECTIVE_A, uid),
+                        ImmutableMap.of())));
+      }
+    }
+
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+    final LocalMasterableEntityIdentity identity =
+        getRandomIdentity(personEntityType, PERSPECTIVE_A, uid);
+
+    universe.append(LocalMasterableEntity.of(personEntityType, identity, ImmutableMap.of()));
+
+    for (LocalMasterEntity masterEntity : universe.getMasterEntities()) {
+      Assert.assertTrue(masterEntity.getMemberIdentities().containsKey(identity));
+    }
+  }
+
+  @Test
+  public void testCanAppendInBatches() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel.Attribute email =
+        LocalEntityModel.Attribute.of(
+            "email", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel personEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, email),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("uid", ImmutableSet.of(uid), 10),
+                LocalEntityModel.Resolver.of("email", ImmutableSet.of(email), 5)));
+
+    final EntityType personEntityType = EntityType.of("person", personEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(personEntityType);
+
+    final int MAX_ENTITIES = 100;
+
+    final List<LocalMasterableEntity> entities = Lists.newArrayList();
+
+    for (int i = 0; i < MAX_ENTITIES; ++i) {
+      entities.add(getRandomMasterableEntity(personEntityType, PERSPECTIVE_A, uid));
+    }
+
+    // a first batch creates one master entity per masterable entity
+    final LocalMemoryEntityUniverse.BatchAppendResult r1 = universe.appendAll(entities);
+
+    Assert.assertEquals(MAX_ENTITIES, r1.getResults().size());
+    Assert.assertEquals(MAX_ENTITIES, universe.getMasterEntities().size());
+    Assert.assertTrue(r1.getDeprecations().isEmpty());
+
+    final String sampleEmail = UUID.randomUUID().toString();
+
+    // a second batch collapses all of them through a shared email
+    final LocalMemoryEntityUniverse.BatchAppendResult r2 =
+        universe.appendAll(
+            entities.stream()
+                .map(
+                    x ->
+                        LocalMasterableEntity.of(
+                            x.getType(),
+                            x.getMasterableEntityIdentity(),
+                            ImmutableMap.of(
+                                LocalMasterableEntityDescriptor.of(email, sampleEmail),
+                                perpetualRangeSet())))
+                .collect(Collectors.toList()));
+
+    Assert.assertEquals(1, universe.getMasterEntities().size());
+    Assert.assertEquals(MAX_ENTITIES, r2.getDeprecations().size());
+
+    final LocalMasterEntity survivor = universe.getMasterEntities().iterator().next();
+
+    for (LocalMemoryEntityUniverse.AppendResult result : r2.getResults()) {
+      Assert.assertEquals(ImmutableSet.of(survivor), result.getMapping().keySet());
+    }
+
+    Assert.assertEquals(MAX_ENTITIES, survivor.getMemberIdentities().size());
+  }
+
+  @Test
+  public void testMatchesOnLongDescriptorHistories() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel.Attribute isin =
+        LocalEntityModel.Attribute.of(
+            "isin", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel securityEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, isin),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("uid", ImmutableSet.of(uid), 10),
+                LocalEntityModel.Resolver.of("isin", ImmutableSet.of(isin), 5)));
+
+    final EntityType securityEntityType = EntityType.of("security", securityEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(securityEntityType);
+
+    final int MAX_DAYS = 1000;
+
+    // the isin is listed every other day, the gaps are listed by another security
+    final RangeSet<Long> listed = TreeRangeSet.create();
+    final RangeSet<Long> gaps = TreeRangeSet.create();
+
+    for (long day = 0; day < MAX_DAYS; ++day) {
+      listed.add(Range.closed(2 * day, 2 * day + 1));
+      gaps.add(Range.open(2 * day + 1, 2 * day + 2));
+    }
+
+    final String isinValue = RandomStringUtils.randomAlphanumeric(12);
+
+    final LocalMasterableEntity listing =
+        getSecurity(securityEntityType, uid, isin, isinValue, listed);
+    final LocalMasterableEntity other = getSecurity(securityEntityType, uid, isin, isinValue, gaps);
+    final LocalMasterableEntity lastDay =
+        getSecurity(
+            securityEntityType,
+            uid,
+            isin,
+            isinValue,
+            TreeRangeSet.create(ImmutableSet.of(Range.singleton(2L * MAX_DAYS - 1))));
+
+    universe.append(listing);
+    universe.append(other);
+    universe.append(lastDay);
+
+    Assert.assertEquals(2, universe.getMasterEntities().size());
+
+    final LocalMasterEntity listingMasterEntity =
+        universe.getMasterEntities().stream()
+            .filter(
+                x -> x.getMemberIdentities().containsKey(listing.getMasterableEntityIdentity()))
+            .findFirst()
+            .orElseThrow(AssertionError::new);
+
+    Assert.assertEquals(
+        ImmutableSet.of(
+            listing.getMasterableEntityIdentity(), lastDay.getMasterableEntityIdentity()),
+        listingMasterEntity.getMemberIdentities().keySet());
+  }
+
+  @Test
+  public void testMatchesValuesReusedOverTimeByTheirDating() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel.Attribute isin =
+        LocalEntityModel.Attribute.of(
+            "isin", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final EntityType securityEntityType =
+        EntityType.of(
+            "security",
+            LocalEntityModel.of(
+                ImmutableSet.of(uid, isin),
+                ImmutableSet.of(LocalEntityModel.Resolver.of("isin", ImmutableSet.of(isin), 5))));
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(securityEntityType);
+
+    final int MAX_SECURITIES = 300;
+
+    final String isinValue = RandomStringUtils.randomAlphanumeric(12);
+    final List<LocalMasterableEntity> securities = Lists.newArrayList();
+
+    // every security holds the isin for a while, after the one before it
+    for (long i = 0; i < MAX_SECURITIES; ++i) {
+      securities.add(
+          getSecurity(
+              securityEntityType,
+              uid,
+              isin,
+              isinValue,
+              TreeRangeSet.create(ImmutableSet.of(Range.closed(10 * i, 10 * i + 5)))));
+    }
+
+    securities.forEach(universe::append);
+
+    Assert.assertEquals(MAX_SECURITIES, universe.getMasterEntities().size());
+
+    // a listing within the dating of a single security only joins that one
+    final LocalMasterableEntity listing =
+        getSecurity(
+            securityEntityType,
+            uid,
+            isin,
+            isinValue,
+            TreeRangeSet.create(ImmutableSet.of(Range.singleton(1372L))));
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> joined =
+        universe.append(listing).getMapping();
+
+    Assert.assertEquals(1, joined.size());
+    Assert.assertTrue(
+        joined
+            .keySet()
+            .iterator()
+            .next()
+            .getMemberIdentities()
+            .containsKey(securities.get(137).getMasterableEntityIdentity()));
+
+    // a security holding the isin again is found at its later dates
+    universe.append(
+        LocalMasterableEntity.of(
+            securityEntityType,
+            securities.get(0).getMasterableEntityIdentity(),
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(isin, isinValue),
+                TreeRangeSet.create(ImmutableSet.of(Range.closed(5000L, 5010L))))));
+
+    final LocalMasterableEntity relisting =
+        getSecurity(
+            securityEntityType,
+            uid,
+            isin,
+            isinValue,
+            TreeRangeSet.create(ImmutableSet.of(Range.singleton(5005L))));
+
+    Assert.assertTrue(
+        universe
+            .append(relisting)
+            .getMapping()
+            .keySet()
+            .iterator()
+            .next()
+            .getMemberIdentities()
+            .containsKey(securities.get(0).getMasterableEntityIdentity()));
+    Assert.assertEquals(MAX_SECURITIES, universe.getMasterEntities().size());
+  }
+
+  @Test
+  public void testMatchesSimilarValuesWithFuzzyMatcher() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute name =
+        LocalEntityModel.Attribute.of(
+            "name", LocalEntityModel.AttributeType.STRING, Matchers.jaroWinkler(0.9));
+
+    final LocalEntityModel personEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, name),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("name", ImmutableSet.of(name), 0)));
+
+    final EntityType personEntityType = EntityType.of("person", personEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(personEntityType);
+
+    final LocalMasterableEntityIdentity jon =
+        getRandomIdentity(personEntityType, PERSPECTIVE_A, uid);
+    final LocalMasterableEntityIdentity john =
+        getRandomIdentity(personEntityType, PERSPECTIVE_A, uid);
+    final LocalMasterableEntityIdentity jane =
+        getRandomIdentity(personEntityType, PERSPECTIVE_A, uid);
+
+    universe.append(
+        LocalMasterableEntity.of(
+            personEntityType,
+            jon,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(name, "Jon Smith"), perpetualRangeSet())));
+    universe.append(
+        LocalMasterableEntity.of(
+            personEntityType,
+            john,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(name, "John Smith"), perpetualRangeSet())));
+    universe.append(
+        LocalMasterableEntity.of(
+            personEntityType,
+            jane,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(name, "Jane Doe"), perpetualRangeSet())));
+
+    Assert.assertEquals(2, universe.getMasterEntities().size());
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> q1 =
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(name, "john smith")));
+
+    Assert.assertEquals(1, q1.size());
+    Assert.assertEquals(
+        ImmutableSet.of(jon, john), q1.keySet().iterator().next().getMemberIdentities().keySet());
+  }
+
+  @Test
+  public void testSkipsBlocksTooCommonToTellValuesApart() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute name =
+        LocalEntityModel.Attribute.of(
+            "name", LocalEntityModel.AttributeType.STRING, Matchers.ngram(3, 0.7));
+
+    final EntityType companyEntityType =
+        EntityType.of(
+            "company",
+            LocalEntityModel.of(
+                ImmutableSet.of(uid, name),
+                ImmutableSet.of(LocalEntityModel.Resolver.of("name", ImmutableSet.of(name), 0))));
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    final int MAX_ENTITIES = 1_200;
+
+    final List<String> names = Lists.newArrayList();
+
+    // every name shares the grams of its prefix, which soon block too many clusters to be probed,
+    // suffixes come from a fixed seed, an unlucky draw leaves two names similar enough to merge
+    final Random random = new Random(1);
+
+    for (int i = 0; i < MAX_ENTITIES; ++i) {
+      names.add(String.format("Company %08x", random.nextInt()));
+
+      universe.append(
+          LocalMasterableEntity.of(
+              companyEntityType,
+              getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(name, names.get(i)), perpetualRangeSet())));
+    }
+
+    Assert.assertEquals(MAX_ENTITIES, universe.getMasterEntities().size());
+
+    // identical values still match through their exact key, similar ones through rarer grams
+    final String similar = names.get(1).substring(0, names.get(1).length() - 1) + "_";
+
+    for (String value : ImmutableList.of(names.get(0), similar)) {
+      universe.append(
+          LocalMasterableEntity.of(
+              companyEntityType,
+              getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(name, value), perpetualRangeSet())));
+    }
+
+    Assert.assertEquals(MAX_ENTITIES, universe.getMasterEntities().size());
+    Assert.assertEquals(
+        2,
+        universe
+            .resolve(ResolveQuery.of(ImmutableMap.of(name, names.get(0))))
+            .keySet()
+            .iterator()
+            .next()
+            .getMemberIdentities()
+            .size());
+  }
+
+  @Test
+  public void testMatchesOnCanonicalKeys() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute name =
+        LocalEntityModel.Attribute.of(
+            "name",
+            LocalEntityModel.AttributeType.STRING,
+            EQUALITY_MATCHER,
+            Normalizers.of("nfkc,case_fold,punctuation,trim"));
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, name),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("name", ImmutableSet.of(name), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    final LocalMasterableEntityIdentity id1 =
+        getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+    final LocalMasterableEntityIdentity id2 =
+        getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+
+    final LocalMasterableEntity me1 =
+        LocalMasterableEntity.of(
+            companyEntityType,
+            id1,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(name, "Everest Re Group, Ltd."),
+                perpetualRangeSet()));
+
+    Assert.assertEquals(
+        ImmutableSet.of(LocalMasterableEntityDescriptor.of(name, "everest re group ltd")),
+        me1.getDescriptors().keySet());
+
+    universe.append(me1);
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            id2,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(name, "  EVEREST RE  GROUP LTD "),
+                perpetualRangeSet())));
+
+    Assert.assertEquals(1, universe.getMasterEntities().size());
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> q1 =
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(name, "Everest RE Group Ltd")));
+
+    Assert.assertEquals(1, q1.size());
+    Assert.assertEquals(
+        ImmutableSet.of(id1, id2), q1.keySet().iterator().next().getMemberIdentities().keySet());
+  }
+
+  @Test
+  public void testKeysIdentityDescriptorsOnCanonicalKeys() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid",
+            LocalEntityModel.AttributeType.STRING,
+            EQUALITY_MATCHER,
+            Normalizers.of("case_fold,trim"));
+
+    final EntityType companyEntityType =
+        EntityType.of(
+            "company",
+            LocalEntityModel.of(
+                ImmutableSet.of(uid),
+                ImmutableSet.of(LocalEntityModel.Resolver.of("uid", ImmutableSet.of(uid), 0))));
+
+    final LocalMasterableEntityIdentity identity =
+        LocalMasterableEntityIdentity.of(
+            "acme",
+            companyEntityType,
+            PERSPECTIVE_A,
+            LocalMasterableEntityDescriptor.of(uid, " ACME-01 "));
+
+    // the identity keeps its value as given, and is posted and probed under its canonical key
+    Assert.assertEquals(
+        ImmutableSet.of(LocalMasterableEntityDescriptor.of(uid, " ACME-01 ")),
+        identity.getMasterableEntityDescriptors());
+    Assert.assertEquals(ImmutableMap.of(uid, "acme-01"), identity.getDescriptorMap());
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            identity,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(uid, "Acme-01"), perpetualRangeSet())));
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> q1 =
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(uid, "ACME-01")));
+
+    Assert.assertEquals(1, q1.size());
+    Assert.assertEquals(
+        ImmutableSet.of(identity), q1.keySet().iterator().next().getMemberIdentities().keySet());
+  }
+
+  @Test
+  public void testMatchesTypedValuesWithinWindow() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute dob =
+        LocalEntityModel.Attribute.of(
+            "dob", LocalEntityModel.AttributeType.DATE, Matchers.within(3));
+    final LocalEntityModel.Attribute salary =
+        LocalEntityModel.Attribute.of(
+            "salary", LocalEntityModel.AttributeType.NUMERIC, Matchers.withinPercent(0.5));
+
+    final LocalEntityModel personEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, dob, salary),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("dob", ImmutableSet.of(dob), 1),
+                LocalEntityModel.Resolver.of("salary", ImmutableSet.of(salary), 0)));
+
+    final EntityType personEntityType = EntityType.of("person", personEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(personEntityType);
+
+    final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+
+    for (String[] person :
+        ImmutableList.of(
+            new String[] {"dob", "1990-01-01"},
+            new String[] {"dob", "1990-01-03"},
+            new String[] {"dob", "1990-02-01"},
+            new String[] {"salary", "100000.00"},
+            new String[] {"salary", "100400"},
+            new String[] {"salary", "101000"})) {
+      final LocalMasterableEntityIdentity identity =
+          getRandomIdentity(personEntityType, PERSPECTIVE_A, uid);
+
+      identities.add(identity);
+
+      universe.append(
+          LocalMasterableEntity.of(
+              personEntityType,
+              identity,
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(
+                      person[0].equals("dob") ? dob : salary, person[1]),
+                  perpetualRangeSet())));
+    }
+
+    Assert.assertEquals(4, universe.getMasterEntities().size());
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> q1 =
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(dob, "1989-12-30")));
+
+    Assert.assertEquals(1, q1.size());
+    Assert.assertEquals(
+        ImmutableSet.of(identities.get(0), identities.get(1)),
+        q1.keySet().iterator().next().getMemberIdentities().keySet());
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> q2 =
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(salary, "1.002E+5")));
+
+    Assert.assertEquals(1, q2.size());
+    Assert.assertEquals(
+        ImmutableSet.of(identities.get(3), identities.get(4)),
+        q2.keySet().iterator().next().getMemberIdentities().keySet());
+    Assert.assertTrue(
+        q2.keySet().iterator().next().getDescriptors().get(salary).containsKey("100000"));
+  }
+
+  @Test
+  public void testListsMasterEntitiesByPage() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel personEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("uid", ImmutableSet.of(uid), 0)));
+
+    final EntityType personEntityType = EntityType.of("person", personEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(personEntityType);
+
+    for (int i = 0; i < 5; ++i) {
+      universe.append(getRandomMasterableEntity(personEntityType, PERSPECTIVE_A, uid));
+    }
+
+    final Set<LocalMasterEntity> listed = Sets.newHashSet();
+    String cursor = null;
+    int pages = 0;
+
+    do {
+      final LocalMemoryEntityUniverse.MasterEntityPage page =
+          universe.getMasterEntities(cursor, 2);
+
+      Assert.assertTrue(page.getMasterEntities().size() <= 2);
+
+      listed.addAll(page.getMasterEntities());
+      cursor = page.getNextCursor();
+      ++pages;
+    } while (cursor != null);
+
+    Assert.assertEquals(3, pages);
+    Assert.assertEquals(universe.getMasterEntities(), listed);
+    Assert.assertNull(universe.getMasterEntities(null, 5).getNextCursor());
+  }
+
+  @Test
+  public void testCachesResolutionsUntilTheyChange() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute lei =
+        LocalEntityModel.Attribute.of(
+            "lei", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker, lei),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("lei", ImmutableSet.of(lei), 1),
+                LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    final LocalMasterableEntityIdentity id1 =
+        getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+    final LocalMasterableEntityIdentity id2 =
+        getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            id1,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(ticker, "RE"), perpetualRangeSet())));
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            id2,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(lei, "549300N24XF2VV0B3570"),
+                perpetualRangeSet())));
+
+    final ResolveQuery query = ResolveQuery.of(ImmutableMap.of(ticker, "RE"));
+    final LocalMasterEntity first = universe.resolve(query).keySet().iterator().next();
+
+    Assert.assertEquals(first, universe.resolve(query).keySet().iterator().next());
+    Assert.assertEquals(
+        first,
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(ticker, "RE"))).keySet().iterator().next());
+    Assert.assertNull(universe.resolve(ResolveQuery.of(ImmutableMap.of(ticker, "RE1"))));
+    Assert.assertEquals(2, universe.getResolveCacheStats().getHitCount());
+
+    // a new value of a member deprecates the cached master entity
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            id1,
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(ticker, "RE.N"), perpetualRangeSet())));
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution =
+        universe.resolve(query);
+
+    Assert.assertEquals(1, resolution.size());
+    Assert.assertFalse(universe.getMasterEntities().contains(first));
+    Assert.assertTrue(universe.getMasterEntities().containsAll(resolution.keySet()));
+    Assert.assertEquals(1, universe.getResolveCacheStats().getInvalidationCount());
+  }
+
+  @Test
+  public void testCachesMissesWithoutGrowingTheDictionary() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final EntityType companyEntityType =
+        EntityType.of(
+            "company",
+            LocalEntityModel.of(
+                ImmutableSet.of(uid, ticker),
+                ImmutableSet.of(
+                    LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0))));
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(ticker, "RE"), perpetualRangeSet())));
+
+    final Map<String, Long> before = universe.getMemoryUsage().getBytesByStructure();
+
+    // read-only traffic with values never appended leaves the universe as it was
+    for (int i = 0; i < 100; ++i) {
+      Assert.assertNull(universe.resolve(ResolveQuery.of(ImmutableMap.of(ticker, "X" + i))));
+    }
+
+    final Map<String, Long> after = universe.getMemoryUsage().getBytesByStructure();
+
+    Assert.assertEquals(before.get("values"), after.get("values"));
+    Assert.assertEquals(before.get("dictionary"), after.get("dictionary"));
+
+    // a cached miss is served until the value is appended
+    final ResolveQuery query = ResolveQuery.of(ImmutableMap.of(ticker, "X0"));
+
+    Assert.assertNull(universe.resolve(query));
+    Assert.assertEquals(1, universe.getResolveCacheStats().getHitCount());
+
+    universe.append(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+            ImmutableMap.of(
+                LocalMasterableEntityDescriptor.of(ticker, "X0"), perpetualRangeSet())));
+
+    Assert.assertEquals(1, universe.resolve(query).size());
+    Assert.assertEquals(1, universe.getResolveCacheStats().getInvalidationCount());
+  }
+
+  @Test
+  public void testResolvesIndependentClustersInParallel() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+
+    try {
+      final LocalMemoryEntityUniverse universe =
+          LocalMemoryEntityUniverse.of(companyEntityType, 0, pool);
+
+      // pairs of identities sharing a ticker, every pair is independent of the others
+      final List<LocalMasterableEntity> entities = Lists.newArrayList();
+
+      for (int i = 0; i < 200; ++i) {
+        entities.add(
+            LocalMasterableEntity.of(
+                companyEntityType,
+                getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+                ImmutableMap.of(
+                    LocalMasterableEntityDescriptor.of(ticker, "T" + i / 2),
+                    perpetualRangeSet())));
+      }
+
+      universe.appendAll(entities);
+
+      Assert.assertEquals(100, universe.getMasterEntities().size());
+
+      for (LocalMasterEntity masterEntity : universe.getMasterEntities()) {
+        Assert.assertEquals(2, masterEntity.getMemberIdentities().size());
+      }
+
+      for (int i = 0; i < 100; ++i) {
+        Assert.assertEquals(
+            1, universe.resolve(ResolveQuery.of(ImmutableMap.of(ticker, "T" + i))).size());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testReclustersOnlyTheChangeInDeltaMode() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute lei =
+        LocalEntityModel.Attribute.of(
+            "lei", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker, lei),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("lei", ImmutableSet.of(lei), 1),
+                LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final LocalMemoryEntityUniverse universe =
+        LocalMemoryEntityUniverse.of(
+            companyEntityType, LocalMemoryEntityUniverse.Reclustering.DELTA);
+
+    final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+    LocalMemoryEntityUniverse.AppendResult result = null;
+
+    // members joining a cluster never deprecate it
+    for (int i = 0; i < 3; ++i) {
+      final LocalMasterableEntityIdentity identity =
+          getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+
+      identities.add(identity);
+      result =
+          universe.append(
+              LocalMasterableEntity.of(
+                  companyEntityType,
+                  identity,
+                  ImmutableMap.of(
+                      LocalMasterableEntityDescriptor.of(ticker, "RE"), perpetualRangeSet())));
+
+      Assert.assertTrue(result.getDeprecations().isEmpty());
+    }
+
+    final LocalMasterEntity larger = result.getMapping().keySet().iterator().next();
+
+    Assert.assertEquals(3, larger.getMemberIdentities().size());
+
+    final LocalMasterEntity smaller =
+        universe
+            .append(
+                LocalMasterableEntity.of(
+                    companyEntityType,
+                    getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+                    ImmutableMap.of(
+                        LocalMasterableEntityDescriptor.of(lei, "549300N24XF2VV0B3570"),
+                        perpetualRangeSet())))
+            .getMapping()
+            .keySet()
+            .iterator()
+            .next();
+
+    // a member bridging both clusters merges the smaller one into the larger one
+    result =
+        universe.append(
+            LocalMasterableEntity.of(
+                companyEntityType,
+                identities.get(1),
+                ImmutableMap.of(
+                    LocalMasterableEntityDescriptor.of(lei, "549300N24XF2VV0B3570"),
+                    perpetualRangeSet())));
+
+    Assert.assertEquals(ImmutableSet.of(larger), result.getMapping().keySet());
+    Assert.assertEquals(1, result.getDeprecations().size());
+    Assert.assertEquals(smaller, result.getDeprecations().iterator().next().getOld());
+    Assert.assertEquals(larger, result.getDeprecations().iterator().next().getCurrent());
+    Assert.assertEquals(ImmutableSet.of(larger), universe.getMasterEntities());
+    Assert.assertEquals(4, larger.getMemberIdentities().size());
+    Assert.assertEquals(
+        ImmutableSet.of(larger),
+        universe
+            .resolve(ResolveQuery.of(ImmutableMap.of(lei, "549300N24XF2VV0B3570")))
+            .keySet());
+  }
+
+  @Test
+  public void testFollowsDeprecatedUidsToTheirSurvivor() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    final LocalMasterableEntityIdentity identity =
+        getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+    final List<String> uids = Lists.newArrayList();
+
+    // every new value of the only member replaces its master entity
+    for (String value : ImmutableList.of("RE", "RE.N", "RE.L")) {
+      uids.add(
+          universe
+              .append(
+                  LocalMasterableEntity.of(
+                      companyEntityType,
+                      identity,
+                      ImmutableMap.of(
+                          LocalMasterableEntityDescriptor.of(ticker, value), perpetualRangeSet())))
+              .getMapping()
+              .keySet()
+              .iterator()
+              .next()
+              .getUid());
+    }
+
+    final DeprecationLineage lineage = universe.getDeprecationLineage();
+
+    Assert.assertEquals(3, Sets.newHashSet(uids).size());
+    Assert.assertEquals(2, lineage.size());
+
+    for (String deprecated : uids) {
+      Assert.assertEquals(uids.get(2), lineage.resolve(deprecated));
+    }
+
+    Assert.assertFalse(lineage.isDeprecated(uids.get(2)));
+
+    // a lineage ending without a survivor resolves to nothing
+    lineage.record(uids.get(2), null);
+
+    Assert.assertNull(lineage.resolve(uids.get(0)));
+    Assert.assertEquals("unknown", lineage.resolve("unknown"));
+  }
+
+  @Test
+  public void testBulkLoadBuildsTheClustersOfIncrementalAppends() throws IOException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute lei =
+        LocalEntityModel.Attribute.of(
+            "lei", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker, lei),
+            ImmutableSet.of(
+                LocalEntityModel.Resolver.of("lei", ImmutableSet.of(lei), 1),
+                LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final List<LocalMasterableEntity> entities = Lists.newArrayList();
+
+    // entities of a cluster share their ticker and lei, no entity bridges two clusters
+    for (int i = 0; i < 200; ++i) {
+      entities.add(
+          LocalMasterableEntity.of(
+              companyEntityType,
+              getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 37)),
+                  perpetualRangeSet(),
+                  LocalMasterableEntityDescriptor.of(lei, "L" + (i % 37)),
+                  perpetualRangeSet())));
+    }
+
+    // and a later entity of an identity only extends it
+    entities.add(
+        LocalMasterableEntity.of(
+            companyEntityType,
+            entities.get(0).getMasterableEntityIdentity(),
+            ImmutableMap.of(LocalMasterableEntityDescriptor.of(ticker, "U0"), perpetualRangeSet())));
+
+    for (int i = 0; i < 100; ++i) {
+      entities.add(
+          LocalMasterableEntity.of(
+              companyEntityType,
+              getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(ticker, "U" + (i % 41)),
+                  perpetualRangeSet())));
+    }
+
+    final LocalMemoryEntityUniverse incremental = LocalMemoryEntityUniverse.of(companyEntityType);
+    entities.forEach(incremental::append);
+
+    final Map<String, EntityUniverse> universeMap = Maps.newHashMap();
+
+    // a tiny run size spills the blocking keys to disk many times over
+    final BulkLoader.Summary summary =
+        new BulkLoader(
+                ImmutableMap.of(companyEntityType.getName(), companyEntityType),
+                universeMap,
+                LocalMemoryEntityUniverse::of,
+                ForkJoinPool.commonPool(),
+                new File(System.getProperty("java.io.tmpdir")),
+                64)
+            .load(entities);
+
+    final EntityUniverse bulk = universeMap.get(companyEntityType.getName());
+
+    Assert.assertEquals(entities.size(), summary.getRecords());
+    Assert.assertEquals(bulk.getMasterEntities().size(), summary.getMasterEntities());
+    Assert.assertEquals(getClusters(incremental), getClusters(bulk));
+    Assert.assertEquals(0, bulk.getDeprecationLineage().size());
+
+    final int members =
+        bulk.resolve(ResolveQuery.of(ImmutableMap.of(ticker, "U1")))
+            .keySet()
+            .iterator()
+            .next()
+            .getMemberIdentities()
+            .size();
+
+    // incremental appends take over from the loaded state
+    final LocalMemoryEntityUniverse.AppendResult result =
+        bulk.append(
+            LocalMasterableEntity.of(
+                companyEntityType,
+                getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+                ImmutableMap.of(
+                    LocalMasterableEntityDescriptor.of(ticker, "U1"), perpetualRangeSet())));
+
+    Assert.assertEquals(1, result.getMapping().size());
+    Assert.assertEquals(
+        members + 1,
+        result.getMapping().keySet().iterator().next().getMemberIdentities().size());
+
+    // a load could deprecate the master entities of a populated universe, so it is rejected
+    try {
+      new BulkLoader(
+              ImmutableMap.of(companyEntityType.getName(), companyEntityType),
+              universeMap,
+              LocalMemoryEntityUniverse::of)
+          .load(entities);
+      Assert.fail("a populated universe was bulk loaded");
+    } catch (IllegalArgumentException ex) {
+      Assert.assertEquals(summary.getMasterEntities(), bulk.getMasterEntities().size());
+    }
+  }
+
+  @Test
+  public void testKeepsSnapshotsOffHeap() throws IOException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final File directory = Files.createTempDirectory("dominus-snapshots").toFile();
+
+    // a hot set of two snapshots reads almost every other one back from the mapped file
+    try (OffHeapSnapshotStore store = OffHeapSnapshotStore.mapped(directory, "company", 2)) {
+      final LocalMemoryEntityUniverse heap = LocalMemoryEntityUniverse.of(companyEntityType);
+      final LocalMemoryEntityUniverse offHeap =
+          LocalMemoryEntityUniverse.of(
+              companyEntityType, LocalMemoryEntityUniverse.Reclustering.FULL, store);
+
+      final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+
+      for (int i = 0; i < 50; ++i) {
+        identities.add(getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid));
+      }
+
+      // later appends extend the dating of values and add new ones, rewriting the snapshots
+      for (int round = 0; round < 3; ++round) {
+        for (int i = 0; i < identities.size(); ++i) {
+          final LocalMasterableEntity entity =
+              LocalMasterableEntity.of(
+                  companyEntityType,
+                  identities.get(i),
+                  ImmutableMap.of(
+                      LocalMasterableEntityDescriptor.of(ticker, "T" + ((i + round) % 7)),
+                      round == 0
+                          ? perpetualRangeSet()
+                          : createRangeSet(ImmutableList.of(10L * round, 20L * round))));
+
+          heap.append(entity);
+          offHeap.append(entity);
+        }
+      }
+
+      Assert.assertEquals(identities.size(), store.size());
+      Assert.assertTrue(store.getOffHeapBytes() > 0);
+      Assert.assertEquals(getClusters(heap), getClusters(offHeap));
+
+      for (int i = 0; i < 7; ++i) {
+        final ResolveQuery query = ResolveQuery.of(ImmutableMap.of(ticker, "T" + i));
+
+        Assert.assertEquals(
+            heap.resolve(query).keySet().stream()
+                .map(LocalMasterEntity::getDescriptors)
+                .collect(Collectors.toSet()),
+            offHeap.resolve(query).keySet().stream()
+                .map(LocalMasterEntity::getDescriptors)
+                .collect(Collectors.toSet()));
+      }
+    }
+
+    Assert.assertEquals(0, directory.listFiles().length);
+  }
+
+  @Test
+  public void testLayersSnapshotDeltasOverAMappedBase() throws IOException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute name =
+        LocalEntityModel.Attribute.of(
+            "name", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker, name),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final File directory = Files.createTempDirectory("dominus-snapshots").toFile();
+
+    // a delta of ten snapshots merges in the background many times over, and a hot set of two
+    // snapshots reads almost every other one from the mapped base
+    try (LayeredSnapshotStore store = LayeredSnapshotStore.of(directory, "company", 10, 2)) {
+      final LocalMemoryEntityUniverse heap = LocalMemoryEntityUniverse.of(companyEntityType);
+      final LocalMemoryEntityUniverse layered =
+          LocalMemoryEntityUniverse.of(
+              companyEntityType, LocalMemoryEntityUniverse.Reclustering.FULL, store);
+
+      final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+
+      for (int i = 0; i < 50; ++i) {
+        identities.add(getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid));
+      }
+
+      for (int round = 0; round < 3; ++round) {
+        for (int i = 0; i < identities.size(); ++i) {
+          final RangeSet<Long> validDts =
+              round == 0
+                  ? perpetualRangeSet()
+                  : createRangeSet(ImmutableList.of(10L * round, 20L * round));
+
+          final LocalMasterableEntity entity =
+              LocalMasterableEntity.of(
+                  companyEntityType,
+                  identities.get(i),
+                  ImmutableMap.of(
+                      LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 7)),
+                      validDts,
+                      LocalMasterableEntityDescriptor.of(name, "N" + round),
+                      validDts));
+
+          heap.append(entity);
+          layered.append(entity);
+        }
+      }
+
+      store.merge();
+
+      Assert.assertEquals(0, store.getDeltaSize());
+      Assert.assertEquals(identities.size(), store.size());
+      Assert.assertTrue(store.getOffHeapBytes() > 0);
+      Assert.assertEquals(getClusters(heap), getClusters(layered));
+
+      // only the files of the latest base are kept
+      Assert.assertEquals(3, directory.listFiles().length);
+
+      for (int i = 0; i < 7; ++i) {
+        final ResolveQuery query = ResolveQuery.of(ImmutableMap.of(ticker, "T" + i));
+
+        Assert.assertEquals(
+            heap.resolve(query).keySet().stream()
+                .map(LocalMasterEntity::getDescriptors)
+                .collect(Collectors.toSet()),
+            layered.resolve(query).keySet().stream()
+                .map(LocalMasterEntity::getDescriptors)
+                .collect(Collectors.toSet()));
+      }
+
+      for (LocalMasterableEntityIdentity identity : identities) {
+        Assert.assertEquals(3, store.get(identity).get(name).size());
+      }
+    }
+
+    // bases outlive their store
+    Assert.assertEquals(3, directory.listFiles().length);
+  }
+
+  @Test
+  public void testRestoresLayeredSnapshotsFromTheirBase() throws IOException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute name =
+        LocalEntityModel.Attribute.of(
+            "name", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker, name),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    final File snapshots = Files.createTempDirectory("dominus-snapshots").toFile();
+    final Checkpointer checkpointer =
+        new Checkpointer(Files.createTempDirectory("dominus-checkpoints").toFile());
+
+    final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+
+    for (int i = 0; i < 50; ++i) {
+      identities.add(getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid));
+    }
+
+    final Map<String, Set<LocalMasterableEntityIdentity>> checkpointed;
+    final Map<
+            LocalMasterableEntityIdentity,
+            Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>>>
+        snapshotsAtCheckpoint = Maps.newHashMap();
+    final Set<Set<LocalMasterableEntityIdentity>> clustersAfterCheckpoint;
+    final int generation;
+
+    try (LayeredSnapshotStore store = LayeredSnapshotStore.of(snapshots, "company", 10, 2)) {
+      final LocalMemoryEntityUniverse universe =
+          LocalMemoryEntityUniverse.of(
+              companyEntityType, LocalMemoryEntityUniverse.Reclustering.FULL, store);
+
+      for (int round = 0; round < 2; ++round) {
+        appendNamed(universe, companyEntityType, identities, ticker, name, round);
+      }
+
+      checkpointer.write(
+          ImmutableMap.of("company", universe),
+          x -> x.getBytes(StandardCharsets.UTF_8),
+          () -> 42,
+          0);
+
+      generation = store.getGeneration();
+      checkpointed = getMasterEntitiesByUid(universe);
+      // shared snapshots keep changing with their master entity
+      for (LocalMasterableEntityIdentity identity : identities) {
+        final Map<LocalEntityModel.Attribute, Map<String, RangeSet<Long>>> copy =
+            Maps.newHashMap();
+
+        store
+            .get(identity)
+            .forEach(
+                (x, y) -> {
+                  copy.put(x, Maps.newHashMap());
+                  y.forEach((value, ranges) -> copy.get(x).put(value, TreeRangeSet.create(ranges)));
+                });
+
+        snapshotsAtCheckpoint.put(identity, copy);
+      }
+
+      Assert.assertTrue(generation > 0);
+
+      // later appends merge into later generations, which the checkpoint does not hold
+      appendNamed(universe, companyEntityType, identities, ticker, name, 2);
+      store.merge();
+
+      clustersAfterCheckpoint = getClusters(universe);
+
+      Assert.assertTrue(store.getGeneration() > generation);
+    }
+
+    try (LayeredSnapshotStore store = LayeredSnapshotStore.of(snapshots, "company", 1000, 2)) {
+      final Checkpointer.Restored restored =
+          checkpointer.load(
+              (x, y) -> companyEntityType,
+              x ->
+                  LocalMemoryEntityUniverse.of(
+                      x, LocalMemoryEntityUniverse.Reclustering.FULL, store));
+      final EntityUniverse universe = restored.getUniverses().get("company");
+
+      // the base is opened as persisted, no snapshot is read back into the delta
+      Assert.assertEquals(generation, store.getGeneration());
+      Assert.assertEquals(0, store.getDeltaSize());
+      Assert.assertEquals(identities.size(), store.size());
+      Assert.assertEquals(checkpointed, getMasterEntitiesByUid(universe));
+
+      for (LocalMasterableEntityIdentity identity : identities) {
+        Assert.assertEquals(snapshotsAtCheckpoint.get(identity), store.get(identity));
+      }
+
+      // generations written after the checkpoint are deleted once it is opened
+      Assert.assertEquals(3, snapshots.listFiles().length);
+
+      appendNamed(universe, companyEntityType, identities, ticker, name, 2);
+
+      Assert.assertEquals(clustersAfterCheckpoint, getClusters(universe));
+
+      // the next checkpoint persists a later generation, and the opened one is deleted
+      checkpointer.write(
+          ImmutableMap.of("company", universe),
+          x -> x.getBytes(StandardCharsets.UTF_8),
+          () -> 43,
+          0);
+
+      Assert.assertTrue(store.getGeneration() > generation);
+
+      store.merge();
+    }
+
+    Assert.assertEquals(3, snapshots.listFiles().length);
+  }
+
+  private static void appendNamed(
+      EntityUniverse universe,
+      EntityType entityType,
+      List<LocalMasterableEntityIdentity> identities,
+      LocalEntityModel.Attribute ticker,
+      LocalEntityModel.Attribute name,
+      int round) {
+    for (int i = 0; i < identities.size(); ++i) {
+      final RangeSet<Long> validDts =
+          round == 0
+              ? perpetualRangeSet()
+              : createRangeSet(ImmutableList.of(10L * round, 20L * round));
+
+      universe.append(
+          LocalMasterableEntity.of(
+              entityType,
+              identities.get(i),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 7)),
+                  validDts,
+                  LocalMasterableEntityDescriptor.of(name, "N" + round),
+                  validDts)));
+    }
+  }
+
+  @Test
+  public void testReportsMemoryByStructureAndDeduplicatesValues() {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    // identities only match on their uid, so every one of them is its own master entity
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("uid", ImmutableSet.of(uid), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+
+    for (EntityUniverse universe :
+        ImmutableList.of(
+            LocalMemoryEntityUniverse.of(companyEntityType),
+            UnionFindEntityUniverse.of(companyEntityType))) {
+      for (int i = 0; i < 20; ++i) {
+        final LocalMasterableEntityIdentity identity =
+            getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid);
+
+        // every append carries its own copy of the ticker
+        universe.append(
+            LocalMasterableEntity.of(
+                companyEntityType,
+                identity,
+                ImmutableMap.of(
+                    LocalMasterableEntityDescriptor.of(uid, identity.getUid()),
+                    perpetualRangeSet(),
+                    LocalMasterableEntityDescriptor.of(ticker, new String("TICKER")),
+                    perpetualRangeSet())));
+      }
+
+      Assert.assertEquals(20, universe.getMasterEntities().size());
+
+      final Set<String> tickers = Sets.newIdentityHashSet();
+      universe
+          .getMasterEntities()
+          .forEach(x -> tickers.addAll(x.getDescriptors().get(ticker).keySet()));
+
+      Assert.assertEquals(1, tickers.size());
+
+      final MemoryUsage usage = universe.getMemoryUsage();
+
+      Assert.assertEquals("company", usage.getEntityType());
+      Assert.assertTrue(usage.getDeduplicatedBytes() > 0);
+      Assert.assertEquals(0, usage.getOffHeapBytes());
+      Assert.assertTrue(usage.getBytesByStructure().containsKey("entitySnapshot"));
+      Assert.assertTrue(usage.getBytesByStructure().containsKey("dictionary"));
+      Assert.assertTrue(usage.getBytesByStructure().values().stream().allMatch(x -> x > 0));
+      Assert.assertEquals(
+          usage.getBytesByStructure().values().stream().mapToLong(Long::longValue).sum(),
+          usage.getHeapBytes());
+    }
+  }
+
+  @Test
+  public void testRestoresUniversesFromCheckpoints() throws IOException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+    final EntityType fundEntityType = EntityType.of("fund", companyEntityModel);
+
+    final Map<String, EntityUniverse> universes =
+        ImmutableMap.of(
+            "company", LocalMemoryEntityUniverse.of(companyEntityType),
+            "fund", UnionFindEntityUniverse.of(fundEntityType));
+
+    // every uid appends resolved to, most of them deprecated by later appends
+    final Set<String> uids = Sets.newHashSet();
+
+    // a second round adds tickers, deprecating master entities along the way
+    for (EntityUniverse universe : universes.values()) {
+      final EntityType entityType =
+          universe == universes.get("company") ? companyEntityType : fundEntityType;
+      final List<LocalMasterableEntityIdentity> members = Lists.newArrayList();
+
+      for (int i = 0; i < 30; ++i) {
+        members.add(getRandomIdentity(entityType, PERSPECTIVE_A, uid));
+      }
+
+      for (int round = 0; round < 2; ++round) {
+        for (int i = 0; i < members.size(); ++i) {
+          uids.addAll(
+              getUids(
+                  universe
+                      .append(
+                          LocalMasterableEntity.of(
+                              entityType,
+                              members.get(i),
+                              ImmutableMap.of(
+                                  LocalMasterableEntityDescriptor.of(
+                                      ticker, "T" + (i % (5 + round))),
+                                  createRangeSet(ImmutableList.of(10L * round, 10L * round + 5)))))
+                      .getMapping()));
+        }
+      }
+    }
+
+    final File directory = Files.createTempDirectory("dominus-checkpoints").toFile();
+    final Checkpointer checkpointer = new Checkpointer(directory);
+
+    final Checkpointer.Summary summary =
+        checkpointer.write(universes, x -> x.getBytes(StandardCharsets.UTF_8), () -> 42, 0);
+
+    Assert.assertEquals(2, summary.getUniverses());
+    Assert.assertEquals(42, summary.getSequenceId());
+
+    final Checkpointer.Restored restored =
+        checkpointer.load(
+            (x, y) -> {
+              Assert.assertEquals(x, new String(y, StandardCharsets.UTF_8));
+              return EntityType.of(x, companyEntityModel);
+            },
+            x ->
+                x.getName().equals("company")
+                    ? LocalMemoryEntityUniverse.of(x)
+                    : UnionFindEntityUniverse.of(x));
+
+    Assert.assertEquals(42, restored.getSequenceId());
+    Assert.assertEquals(universes.keySet(), restored.getUniverses().keySet());
+
+    for (String entityType : universes.keySet()) {
+      final EntityUniverse original = universes.get(entityType);
+      final EntityUniverse universe = restored.getUniverses().get(entityType);
+
+      // master entities keep their uid, members and descriptors
+      Assert.assertEquals(getMasterEntitiesByUid(original), getMasterEntitiesByUid(universe));
+
+      for (LocalMasterEntity masterEntity : original.getMasterEntities()) {
+        Assert.assertEquals(
+            masterEntity.getDescriptors(),
+            universe.getMasterEntities().stream()
+                .filter(x -> x.getUid().equals(masterEntity.getUid()))
+                .findFirst()
+                .get()
+                .getDescriptors());
+      }
+
+      // deprecated uids still lead to their survivors
+      for (String deprecated : uids) {
+        Assert.assertEquals(
+            original.getDeprecationLineage().resolve(deprecated),
+            universe.getDeprecationLineage().resolve(deprecated));
+      }
+
+      for (int i = 0; i < 6; ++i) {
+        final ResolveQuery query = ResolveQuery.of(ImmutableMap.of(ticker, "T" + i));
+
+        Assert.assertEquals(getUids(original.resolve(query)), getUids(universe.resolve(query)));
+      }
+
+      // and later appends cluster as they would have without the restart
+      final EntityType restoredType = restored.getEntityTypes().get(entityType);
+      final LocalMasterableEntityIdentity bridge =
+          getRandomIdentity(restoredType, PERSPECTIVE_A, uid);
+
+      for (EntityUniverse target : ImmutableList.of(original, universe)) {
+        for (String value : ImmutableList.of("T1", "T2")) {
+          target.append(
+              LocalMasterableEntity.of(
+                  restoredType,
+                  bridge,
+                  ImmutableMap.of(
+                      LocalMasterableEntityDescriptor.of(ticker, value), perpetualRangeSet())));
+        }
+      }
+
+      Assert.assertEquals(getClusters(original), getClusters(universe));
+    }
+  }
+
+  @Test
+  public void testAppendsWhileACheckpointIsWritten() throws Exception {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel companyEntityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final EntityType companyEntityType = EntityType.of("company", companyEntityModel);
+    final LocalMemoryEntityUniverse universe = LocalMemoryEntityUniverse.of(companyEntityType);
+    final List<LocalMasterableEntityIdentity> members = Lists.newArrayList();
+
+    for (int i = 0; i < 30; ++i) {
+      members.add(getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid));
+      universe.append(
+          LocalMasterableEntity.of(
+              companyEntityType,
+              members.get(i),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 5)),
+                  createRangeSet(ImmutableList.of(0L, 5L)))));
+    }
+
+    final Map<String, Set<LocalMasterableEntityIdentity>> expected =
+        ImmutableMap.copyOf(
+            Maps.transformValues(getMasterEntitiesByUid(universe), ImmutableSet::copyOf));
+    final Map<String, String> expectedDescriptors =
+        universe.getMasterEntities().stream()
+            .collect(
+                Collectors.toMap(LocalMasterEntity::getUid, x -> x.getDescriptors().toString()));
+
+    // the stream stalls on its first flush, until the appends below completed
+    final CountDownLatch flushed = new CountDownLatch(1);
+    final CountDownLatch appended = new CountDownLatch(1);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final OutputStream stream =
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            bytes.write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            flushed.countDown();
+
+            try {
+              appended.await();
+            } catch (InterruptedException ex) {
+              throw new IllegalStateException(ex);
+            }
+
+            bytes.write(b, off, len);
+          }
+        };
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try {
+      final Future<?> checkpoint =
+          executor.submit(
+              () -> {
+                try (Output output = new Output(stream, 16)) {
+                  universe.writeCheckpoint(output);
+                }
+              });
+
+      Assert.assertTrue(flushed.await(10, TimeUnit.SECONDS));
+
+      // extend every snapshot, merge every cluster and add identities, none waits on the stream
+      executor
+          .submit(
+              () -> {
+                for (int i = 0; i < members.size(); ++i) {
+                  universe.append(
+                      LocalMasterableEntity.of(
+                          companyEntityType,
+                          members.get(i),
+                          ImmutableMap.of(
+                              LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 5)),
+                              perpetualRangeSet(),
+                              LocalMasterableEntityDescriptor.of(ticker, "T" + ((i + 1) % 5)),
+                              perpetualRangeSet())));
+                  universe.append(
+                      LocalMasterableEntity.of(
+                          companyEntityType,
+                          getRandomIdentity(companyEntityType, PERSPECTIVE_A, uid),
+                          ImmutableMap.of(
+                              LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 5)),
+                              perpetualRangeSet())));
+                }
+              })
+          .get(10, TimeUnit.SECONDS);
+
+      Assert.assertEquals(1, universe.getMasterEntities().size());
+
+      appended.countDown();
+      checkpoint.get(10, TimeUnit.SECONDS);
+    } finally {
+      appended.countDown();
+      executor.shutdownNow();
+    }
+
+    // the checkpoint holds the universe as it was when it was taken
+    final LocalMemoryEntityUniverse restored = LocalMemoryEntityUniverse.of(companyEntityType);
+
+    try (Input input = new Input(bytes.toByteArray())) {
+      restored.readCheckpoint(input);
+    }
+
+    Assert.assertEquals(expected, getMasterEntitiesByUid(restored));
+    Assert.assertEquals(
+        expectedDescriptors,
+        restored.getMasterEntities().stream()
+            .collect(
+                Collectors.toMap(
+                    LocalMasterEntity::getUid, x -> x.getDescriptors().toString())));
+  }
+
+  @Test
+  public void testReplaysTheWriteAheadLogAfterTheCheckpoint() throws Exception {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final EntityType entityType =
+        EntityType.of(
+            "company",
+            LocalEntityModel.of(
+                ImmutableSet.of(uid, ticker),
+                ImmutableSet.of(
+                    LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0))));
+
+    final EntityUniverse universe = LocalMemoryEntityUniverse.of(entityType);
+    final File directory = Files.createTempDirectory("dominus-wal").toFile();
+    final File logDirectory = new File(directory, "wal");
+    final Checkpointer checkpointer = new Checkpointer(new File(directory, "checkpoints"));
+    final WriteAheadLog log = new WriteAheadLog(logDirectory);
+
+    final List<LocalMasterableEntity> entities = Lists.newArrayList();
+
+    for (int i = 0; i < 200; ++i) {
+      entities.add(
+          LocalMasterableEntity.of(
+              entityType,
+              getRandomIdentity(entityType, PERSPECTIVE_A, uid),
+              ImmutableMap.of(
+                  LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 40)),
+                  perpetualRangeSet())));
+    }
+
+    // concurrent callers share their syncs, half of the appends are checkpointed
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    for (List<LocalMasterableEntity> half : Lists.partition(entities, 100)) {
+      final List<Future<?>> futures = Lists.newArrayList();
+
+      for (LocalMasterableEntity entity : half) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  final WriteAheadLog.Entry entry = log.logEntity(entity);
+
+                  try {
+                    universe.append(entity);
+                  } finally {
+                    entry.applied();
+                  }
+
+                  entry.awaitDurable();
+                  return null;
+                }));
+      }
+
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+      if (half.contains(entities.get(0))) {
+        checkpointer.write(
+            ImmutableMap.of("company", universe),
+            x -> new byte[0],
+            () -> 0,
+            log.getAppliedPosition());
+      }
+    }
+
+    executor.shutdown();
+
+    Assert.assertEquals(200, log.getAppliedPosition());
+    Assert.assertTrue(log.getSyncs() <= 200);
+
+    log.close();
+
+    // a record torn by a crash ends the log
+    final File[] segments = logDirectory.listFiles();
+    Assert.assertEquals(1, segments.length);
+    Files.write(segments[0].toPath(), new byte[] {1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+    final Checkpointer.Restored restored =
+        checkpointer.load((x, y) -> entityType, LocalMemoryEntityUniverse::of);
+    final EntityUniverse restoredUniverse = restored.getUniverses().get("company");
+
+    Assert.assertEquals(100L, (long) restored.getLogPositions().get("company"));
+
+    final WriteAheadLog reopened = new WriteAheadLog(logDirectory);
+
+    final long replayed =
+        reopened.replay(
+            restored.getLogPositions(),
+            x -> entityType,
+            new WriteAheadLog.Replayer() {
+              @Override
+              public void entityModel(String entityType, byte[] model) {
+                Assert.fail("no entity model was logged");
+              }
+
+              @Override
+              public void entity(LocalMasterableEntity entity) {
+                restoredUniverse.append(entity);
+              }
+
+              @Override
+              public void relationship(
+                  LocalMasterableEntity source,
+                  LocalMasterableEntity target,
+                  String relationship,
+                  RangeSet<Long> validDts) {
+                Assert.fail("no relationship was logged");
+              }
+            });
+
+    // only the appends after the checkpoint are replayed, and cluster as they did before
+    Assert.assertEquals(100, replayed);
+    Assert.assertEquals(getClusters(universe), getClusters(restoredUniverse));
+
+    // positions continue after the recovered records
+    Assert.assertEquals(201, reopened.logEntity(entities.get(0)).getPosition());
+
+    reopened.close();
+  }
+
+  @Test
+  public void testCompactsDeltaCheckpointsIntoTheirBase() throws IOException {
+    final LocalEntityModel.Attribute uid =
+        LocalEntityModel.Attribute.of(
+            "uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+    final LocalEntityModel.Attribute ticker =
+        LocalEntityModel.Attribute.of(
+            "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final LocalEntityModel entityModel =
+        LocalEntityModel.of(
+            ImmutableSet.of(uid, ticker),
+            ImmutableSet.of(LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(ticker), 0)));
+
+    final Map<String, EntityUniverse> universes =
+        ImmutableMap.of(
+            "company", LocalMemoryEntityUniverse.of(EntityType.of("company", entityModel)),
+            "fund", UnionFindEntityUniverse.of(EntityType.of("fund", entityModel)));
+
+    final Map<String, List<LocalMasterableEntityIdentity>> members = Maps.newHashMap();
+    final Set<String> uids = Sets.newHashSet();
+
+    for (Map.Entry<String, EntityUniverse> universe : universes.entrySet()) {
+      final EntityType entityType = EntityType.of(universe.getKey(), entityModel);
+      final List<LocalMasterableEntityIdentity> identities = Lists.newArrayList();
+
+      for (int i = 0; i < 200; ++i) {
+        identities.add(getRandomIdentity(entityType, PERSPECTIVE_A, uid));
+        uids.addAll(
+            getUids(
+                universe
+                    .getValue()
+                    .append(
+                        LocalMasterableEntity.of(
+                            entityType,
+                            identities.get(i),
+                            ImmutableMap.of(
+                                LocalMasterableEntityDescriptor.of(ticker, "T" + (i % 50)),
+                                perpetualRangeSet())))
+                    .getMapping()));
+      }
+
+      members.put(universe.getKey(), identities);
+    }
+
+    final File directory = Files.createTempDirectory("dominus-deltas").toFile();
+    final Checkpointer checkpointer = new Checkpointer(directory, ForkJoinPool.commonPool(), 3);
+
+    final Checkpointer.Summary full =
+        checkpointer.write(universes, x -> x.getBytes(StandardCharsets.UTF_8), () -> 1, 0);
+
+    for (int round = 1; round <= 4; ++round) {
+      // each round bridges two clusters, deprecating one, and adds an identity of its own
+      for (Map.Entry<String, EntityUniverse> universe : universes.entrySet()) {
+        final EntityType entityType = EntityType.of(universe.getKey(), entityModel);
+        final LocalMasterableEntityIdentity bridge =
+            members.get(universe.getKey()).get(round);
+
+        for (LocalMasterableEntityIdentity identity :
+            ImmutableList.of(bridge, getRandomIdentity(entityType, PERSPECTIVE_A, uid))) {
+          uids.addAll(
+              getUids(
+                  universe
+                      .getValue()
+                      .append(
+                          LocalMasterableEntity.of(
+                              entityType,
+                              identity,
+                              ImmutableMap.of(
+                                  LocalMasterableEntityDescriptor.of(ticker, "T" + (round + 10)),
+                                  perpetualRangeSet())))
+                      .getMapping()));
+        }
+      }
+
+      final Checkpointer.Summary delta =
+          checkpointer.writeDelta(
+              universes, x -> x.getBytes(StandardCharsets.UTF_8), () -> 2, round);
+
+      // a delta only holds what the round changed
+      Assert.assertTrue(delta.getBytes() * 5 < full.getBytes());
+
+      // the third delta is compacted into a new base
+      Assert.assertEquals(
+          round == 3 ? 0 : (round % 3) * 2,
+          directory.listFiles((x, name) -> name.endsWith(".delta")).length);
+    }
+
+    final Checkpointer.Restored restored =
+        checkpointer.load(
+            (x, y) -> EntityType.of(x, entityModel),
+            x ->
+                x.getName().equals("company")
+                    ? LocalMemoryEntityUniverse.of(x)
+                    : UnionFindEntityUniverse.of(x));
+
+    Assert.assertEquals(0, directory.listFiles((x, name) -> name.endsWith(".delta")).length);
+    Assert.assertEquals(ImmutableMap.of("company", 4L, "fund", 4L), restored.getLogPositions());
+
+    for (String entityType : universes.keySet()) {
+      final EntityUniverse original = universes.get(entityType);
+      final EntityUniverse universe = restored.getUniverses().get(entityType);
+
+      Assert.assertEquals(getMasterEntitiesByUid(original), getMasterEntitiesByUid(universe));
+
+      for (String deprecated : uids) {
+        Assert.assertEquals(
+            original.getDeprecationLineage().resolve(deprecated),
+            universe.getDeprecationLineage().resolve(deprecated));
+      }
+
+      for (int i = 0; i < 50; ++i) {
+        final ResolveQuery query = ResolveQuery.of(ImmutableMap.of(ticker, "T" + i));
+
+        Assert.assertEquals(getUids(original.resolve(query)), getUids(universe.resolve(query)));
+      }
+    }
+  }
+
+  private Map<String, Set<LocalMasterableEntityIdentity>> getMasterEntitiesByUid(
+      EntityUniverse universe) {
+    return universe.getMasterEntities().stream()
+        .collect(
+            Collectors.toMap(LocalMasterEntity::getUid, x -> x.getMemberIdentities().keySet()));
+  }
+
+  private Set<String> getUids(Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution) {
+    return resolution == null
+        ? ImmutableSet.of()
+        : resolution.keySet().stream().map(LocalMasterEntity::getUid).collect(Collectors.toSet());
+  }
+
+  private Set<Set<LocalMasterableEntityIdentity>> getClusters(EntityUniverse universe) {
+    return universe.getMasterEntities().stream()
+        .map(x -> x.getMemberIdentities().keySet())
+        .collect(Collectors.toSet());
+  }
+
+  private LocalMasterableEntity getSecurity(
+      EntityType entityType,
+      LocalEntityModel.Attribute uid,
+      LocalEntityModel.Attribute isin,
+      String isinValue,
+      RangeSet<Long> validDts) {
+    final LocalMasterableEntityIdentity identity = getRandomIdentity(entityType, PERSPECTIVE_A, uid);
+
+    return LocalMasterableEntity.of(
+        entityType,
+        identity,
+        ImmutableMap.of(
+            LocalMasterableEntityDescriptor.of(uid, identity.getDescriptorMap().get(uid)),
+            perpetualRangeSet(),
+            LocalMasterableEntityDescriptor.of(isin, isinValue),
+            validDts));
+  }
 }
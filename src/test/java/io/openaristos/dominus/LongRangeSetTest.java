@@ -0,0 +1,140 @@
+package io.openaristos.dominus;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import io.openaristos.dominus.core.LongRangeSet;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Random;
+
+@SuppressWarnings("UnstableApiUsage")
+@RunWith(JUnit4.class)
+public class LongRangeSetTest {
+
+  static final List<Range<Long>> RANGES =
+      ImmutableList.of(
+          Range.closed(1L, 5L),
+          Range.open(5L, 7L),
+          Range.closedOpen(9L, 12L),
+          Range.openClosed(12L, 15L),
+          Range.closed(20L, 20L),
+          Range.open(0L, 1L));
+
+  @Test
+  public void testKeepsBoundTypesOfTreeRangeSet() {
+    final RangeSet<Long> expected = TreeRangeSet.create();
+    final LongRangeSet actual = LongRangeSet.create();
+
+    for (Range<Long> range : RANGES) {
+      expected.add(range);
+      actual.add(range);
+    }
+
+    Assert.assertEquals(expected.asRanges(), actual.asRanges());
+    Assert.assertEquals(expected, actual);
+    Assert.assertEquals(actual, expected);
+    Assert.assertEquals(expected.hashCode(), actual.hashCode());
+    Assert.assertEquals(expected.span(), actual.span());
+
+    for (long value = -1; value <= 21; ++value) {
+      Assert.assertEquals(expected.contains(value), actual.contains(value));
+      Assert.assertEquals(expected.rangeContaining(value), actual.rangeContaining(value));
+    }
+  }
+
+  @Test
+  public void testMatchesTreeRangeSetOperations() {
+    final Random random = new Random(7);
+
+    for (int i = 0; i < 1000; ++i) {
+      final RangeSet<Long> expected = TreeRangeSet.create();
+      final RangeSet<Long> other = TreeRangeSet.create();
+      final LongRangeSet actual = LongRangeSet.create();
+
+      for (int j = 0; j < 6; ++j) {
+        final Range<Long> range = RANGES.get(random.nextInt(RANGES.size()));
+        final Range<Long> shifted =
+            Range.range(
+                range.lowerEndpoint() + random.nextInt(10),
+                range.lowerBoundType(),
+                range.upperEndpoint() + random.nextInt(10) + 10,
+                range.upperBoundType());
+
+        if (random.nextInt(4) == 0) {
+          expected.remove(shifted);
+          actual.remove(shifted);
+        } else if (random.nextBoolean()) {
+          expected.add(shifted);
+          actual.add(shifted);
+        } else {
+          other.add(shifted);
+        }
+      }
+
+      Assert.assertEquals(expected, actual);
+      Assert.assertEquals(
+          other.asRanges().stream().anyMatch(expected::intersects), actual.overlaps(other));
+
+      final RangeSet<Long> intersection = TreeRangeSet.create(expected);
+      intersection.removeAll(other.complement());
+      Assert.assertEquals(intersection, actual.intersection(other));
+
+      final RangeSet<Long> union = TreeRangeSet.create(expected);
+      union.addAll(other);
+      Assert.assertEquals(union, actual.union(other));
+
+      final RangeSet<Long> difference = TreeRangeSet.create(expected);
+      difference.removeAll(other);
+      final LongRangeSet actualDifference = LongRangeSet.create(actual);
+      actualDifference.removeAll(other);
+      Assert.assertEquals(difference, actualDifference);
+    }
+  }
+
+  @Test
+  public void testCopiesDoNotShareAppends() {
+    final LongRangeSet original = LongRangeSet.create();
+
+    for (long day = 0; day < 100; day += 2) {
+      original.add(Range.closed(day, day));
+    }
+
+    final LongRangeSet copy = LongRangeSet.create(original);
+
+    original.add(Range.closed(500L, 501L));
+    copy.add(Range.closed(600L, 601L));
+
+    Assert.assertTrue(original.contains(500L));
+    Assert.assertFalse(original.contains(600L));
+    Assert.assertTrue(copy.contains(600L));
+    Assert.assertFalse(copy.contains(500L));
+    Assert.assertEquals(51, original.asRanges().size());
+  }
+
+  @Test
+  public void testVersionOnlyChangesWithTheSet() {
+    final LongRangeSet rangeSet = LongRangeSet.create();
+
+    rangeSet.add(Range.closed(1L, 10L));
+
+    final long version = rangeSet.getVersion();
+
+    // ranges already enclosed, or absent, leave the set untouched
+    rangeSet.add(Range.closed(2L, 3L));
+    rangeSet.addAll(LongRangeSet.create(ImmutableList.of(Range.closed(4L, 10L))));
+    rangeSet.remove(Range.open(10L, 12L));
+    rangeSet.removeAll(LongRangeSet.create(ImmutableList.of(Range.closed(20L, 30L))));
+
+    Assert.assertEquals(version, rangeSet.getVersion());
+
+    rangeSet.addAll(LongRangeSet.create(ImmutableList.of(Range.closed(0L, 2L))));
+
+    Assert.assertTrue(rangeSet.getVersion() > version);
+  }
+}
@@ -0,0 +1,181 @@
+package io.openaristos.dominus;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import io.openaristos.dominus.core.*;
+import io.openaristos.dominus.core.internal.LocalMemoryEntityUniverse;
+import io.openaristos.dominus.core.internal.UnionFindEntityUniverse;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+@RunWith(JUnit4.class)
+public class UnionFindEntityUniverseTest {
+
+  static final LocalEntityModel.Matcher EQUALITY_MATCHER =
+      LocalEntityModel.Matcher.of("equality", (x) -> x.getSource().equalsIgnoreCase(x.getTarget()));
+
+  static final String PERSPECTIVE_A = "perspective_a";
+
+  static final LocalEntityModel.Attribute UID =
+      LocalEntityModel.Attribute.of("uid", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+  static final LocalEntityModel.Attribute TICKER =
+      LocalEntityModel.Attribute.of(
+          "ticker", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+  static final LocalEntityModel.Attribute LEI =
+      LocalEntityModel.Attribute.of("lei", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+  static final EntityType COMPANY =
+      EntityType.of(
+          "company",
+          LocalEntityModel.of(
+              ImmutableSet.of(UID, TICKER, LEI),
+              ImmutableSet.of(
+                  LocalEntityModel.Resolver.of("lei", ImmutableSet.of(LEI), 1),
+                  LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(TICKER), 0))));
+
+  static RangeSet<Long> perpetualRangeSet() {
+    return TreeRangeSet.create(ImmutableSet.of(Range.openClosed(0L, Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testMergesClustersIntoTheLargerOne() {
+    final UnionFindEntityUniverse universe = UnionFindEntityUniverse.of(COMPANY);
+
+    final LocalMemoryEntityUniverse.AppendResult first =
+        universe.append(getCompany(ImmutableMap.of(TICKER, "RE")));
+    final LocalMemoryEntityUniverse.AppendResult second =
+        universe.append(getCompany(ImmutableMap.of(TICKER, "RE")));
+    final LocalMemoryEntityUniverse.AppendResult third =
+        universe.append(getCompany(ImmutableMap.of(LEI, "549300N24XF2VV0B3570")));
+
+    final LocalMasterEntity larger = first.getMapping().keySet().iterator().next();
+    final LocalMasterEntity smaller = third.getMapping().keySet().iterator().next();
+
+    Assert.assertEquals(first.getMapping().keySet(), second.getMapping().keySet());
+    Assert.assertTrue(second.getDeprecations().isEmpty());
+    Assert.assertEquals(2, universe.getMasterEntities().size());
+
+    // a bridge links both clusters, only the smaller one is deprecated
+    final LocalMemoryEntityUniverse.AppendResult bridge =
+        universe.append(
+            getCompany(ImmutableMap.of(TICKER, "RE", LEI, "549300N24XF2VV0B3570")));
+
+    Assert.assertEquals(ImmutableSet.of(larger), bridge.getMapping().keySet());
+    Assert.assertEquals(1, bridge.getDeprecations().size());
+
+    final LocalMemoryEntityUniverse.DeprecationEntry deprecation =
+        bridge.getDeprecations().iterator().next();
+
+    Assert.assertEquals(smaller, deprecation.getOld());
+    Assert.assertEquals(larger, deprecation.getCurrent());
+    Assert.assertEquals(ImmutableSet.of(larger), universe.getMasterEntities());
+    Assert.assertEquals(4, larger.getMemberIdentities().size());
+
+    final Map<LocalMasterEntity, Set<LocalMasterEntityMembership>> resolution =
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(LEI, "549300N24XF2VV0B3570")));
+
+    Assert.assertEquals(ImmutableSet.of(larger), resolution.keySet());
+    Assert.assertNull(universe.resolve(ResolveQuery.of(ImmutableMap.of(TICKER, "RE1"))));
+  }
+
+  @Test
+  public void testKeepsTheClusterOfUnchangedAppends() {
+    final UnionFindEntityUniverse universe = UnionFindEntityUniverse.of(COMPANY);
+
+    final LocalMasterableEntity company = getCompany(ImmutableMap.of(TICKER, "RE"));
+
+    final LocalMemoryEntityUniverse.AppendResult first = universe.append(company);
+    final LocalMemoryEntityUniverse.AppendResult again = universe.append(company);
+
+    Assert.assertEquals(first.getMapping().keySet(), again.getMapping().keySet());
+    Assert.assertTrue(again.getDeprecations().isEmpty());
+
+    // a new value of a member grows its master entity rather than replacing it
+    final LocalMemoryEntityUniverse.AppendResult grown =
+        universe.append(
+            LocalMasterableEntity.of(
+                COMPANY,
+                company.getMasterableEntityIdentity(),
+                ImmutableMap.of(
+                    LocalMasterableEntityDescriptor.of(TICKER, "RE.N"), perpetualRangeSet())));
+
+    Assert.assertEquals(first.getMapping().keySet(), grown.getMapping().keySet());
+    Assert.assertTrue(grown.getDeprecations().isEmpty());
+    Assert.assertEquals(
+        first.getMapping().keySet(),
+        universe.resolve(ResolveQuery.of(ImmutableMap.of(TICKER, "RE.N"))).keySet());
+  }
+
+  @Test
+  public void testLinksAgainstTheMergedDescriptorsOfAClusterLikeResolutions() {
+    final LocalEntityModel.Attribute mic =
+        LocalEntityModel.Attribute.of(
+            "mic", LocalEntityModel.AttributeType.STRING, EQUALITY_MATCHER);
+
+    final EntityType listing =
+        EntityType.of(
+            "listing",
+            LocalEntityModel.of(
+                ImmutableSet.of(UID, TICKER, LEI, mic),
+                ImmutableSet.of(
+                    LocalEntityModel.Resolver.of("lei_mic", ImmutableSet.of(LEI, mic), 1),
+                    LocalEntityModel.Resolver.of("ticker", ImmutableSet.of(TICKER), 0))));
+
+    final LocalMasterableEntity first =
+        getCompany(listing, ImmutableMap.of(TICKER, "RE", LEI, "549300N24XF2VV0B3570"));
+    final LocalMasterableEntity second =
+        getCompany(listing, ImmutableMap.of(TICKER, "RE", mic, "XNYS"));
+
+    // no single member carries both the lei and the mic, their cluster does
+    final LocalMasterableEntity third =
+        getCompany(listing, ImmutableMap.of(LEI, "549300N24XF2VV0B3570", mic, "XNYS"));
+
+    for (EntityUniverse universe :
+        ImmutableList.of(
+            UnionFindEntityUniverse.of(listing), LocalMemoryEntityUniverse.of(listing))) {
+      universe.append(first);
+      universe.append(second);
+
+      final LocalMemoryEntityUniverse.AppendResult result = universe.append(third);
+
+      Assert.assertEquals(1, universe.getMasterEntities().size());
+      Assert.assertEquals(
+          ImmutableSet.of(
+              first.getMasterableEntityIdentity(),
+              second.getMasterableEntityIdentity(),
+              third.getMasterableEntityIdentity()),
+          result.getMapping().keySet().iterator().next().getMemberIdentities().keySet());
+    }
+  }
+
+  private LocalMasterableEntity getCompany(Map<LocalEntityModel.Attribute, String> descriptors) {
+    return getCompany(COMPANY, descriptors);
+  }
+
+  private LocalMasterableEntity getCompany(
+      EntityType entityType, Map<LocalEntityModel.Attribute, String> descriptors) {
+    final String uid = UUID.randomUUID().toString();
+
+    final ImmutableMap.Builder<LocalMasterableEntityDescriptor, RangeSet<Long>> builder =
+        ImmutableMap.builder();
+
+    descriptors.forEach(
+        (x, y) -> builder.put(LocalMasterableEntityDescriptor.of(x, y), perpetualRangeSet()));
+
+    return LocalMasterableEntity.of(
+        entityType,
+        LocalMasterableEntityIdentity.of(
+            uid, entityType, PERSPECTIVE_A, LocalMasterableEntityDescriptor.of(UID, uid)),
+        builder.build());
+  }
+}